@@ -0,0 +1,82 @@
+#!/usr/bin/env bash
+# Compares startup time of payment-service images, e.g. the default Jib image against the -Pstartup (AOT + CDS) one:
+#
+#   scripts/startup-benchmark.sh mazaadak/payment-service:v1 mazaadak/payment-service:v1-startup
+#
+# MODE=refresh (default) starts each container with spring.context.exit=onRefresh and offline settings, so it needs no
+# Kafka, Eureka or config server and measures JVM start plus context refresh until the container exits. The AOT image
+# still runs Flyway during refresh since AOT fixes spring.flyway.enabled at build time, so point DATASOURCE_URL at a
+# Postgres reachable from the container. MODE=ready runs the service for real and measures until
+# /actuator/health/readiness is UP. Pass the network and environment through DOCKER_ARGS in both modes, e.g.
+# DOCKER_ARGS="--network mazadak --env-file payment.env" DATASOURCE_URL=jdbc:postgresql://postgres:5432/payment
+#
+# RUNS (default 5) containers are started per image, after one discarded warm-up run per image.
+set -euo pipefail
+
+MODE=${MODE:-refresh}
+RUNS=${RUNS:-5}
+PORT=${PORT:-8080}
+TIMEOUT_SECONDS=${TIMEOUT_SECONDS:-180}
+DOCKER_ARGS=${DOCKER_ARGS:-}
+DATASOURCE_URL=${DATASOURCE_URL:-jdbc:postgresql://localhost:5432/payment}
+OFFLINE_ARGS="--spring.cloud.config.enabled=false --eureka.client.enabled=false --spring.flyway.enabled=false \
+--spring.datasource.url=$DATASOURCE_URL --spring.jpa.database-platform=org.hibernate.dialect.PostgreSQLDialect \
+--spring.jpa.properties.hibernate.boot.allow_jdbc_metadata_access=false --payment.journal.enabled=false \
+--stripe.api.secret-key=sk_benchmark --stripe.api.client-id=ca_benchmark --stripe.webhook.secret=whsec_benchmark"
+
+if [ $# -eq 0 ]; then
+  sed -n '2,13p' "$0" | sed 's/^# \{0,1\}//'
+  exit 2
+fi
+
+now_ms() { date +%s%3N; }
+
+run_once() {
+  local image=$1 start end container status
+  start=$(now_ms)
+  if [ "$MODE" = "refresh" ]; then
+    # arguments after the image are appended to the entrypoint of both image layouts
+    container=$(docker run -d $DOCKER_ARGS -e JAVA_TOOL_OPTIONS="-Dspring.context.exit=onRefresh" "$image" $OFFLINE_ARGS)
+    status=$(docker wait "$container")
+    if [ "$status" != "0" ]; then
+      echo "$image exited with $status before the context was refreshed" >&2
+      docker logs "$container" 2>&1 | tail -20 >&2
+      docker rm -f "$container" > /dev/null
+      return 1
+    fi
+  else
+    container=$(docker run -d -p "$PORT:$PORT" $DOCKER_ARGS "$image")
+    until curl -fs "http://localhost:$PORT/actuator/health/readiness" > /dev/null 2>&1; do
+      if [ $(( $(now_ms) - start )) -gt $(( TIMEOUT_SECONDS * 1000 )) ]; then
+        echo "timed out waiting for readiness of $image" >&2
+        docker logs "$container" | tail -20 >&2
+        docker rm -f "$container" > /dev/null
+        return 1
+      fi
+      sleep 0.1
+    done
+  fi
+  end=$(now_ms)
+
+  # Spring's own figure when the context got far enough to log it
+  local started
+  started=$(docker logs "$container" 2>&1 | grep -o 'Started PaymentServiceApplication in [0-9.]* seconds' | grep -o '[0-9.]*' || true)
+  docker rm -f "$container" > /dev/null
+  echo "$(( end - start )) ${started:--}"
+}
+
+median() { sort -n | awk '{ values[NR] = $1 } END { print (NR % 2) ? values[(NR + 1) / 2] : int((values[NR / 2] + values[NR / 2 + 1]) / 2) }'; }
+
+printf '%-50s %10s %10s %10s %14s\n' "image ($MODE)" "median ms" "min ms" "max ms" "spring s (med)"
+for image in "$@"; do
+  run_once "$image" > /dev/null
+  results=()
+  for _ in $(seq "$RUNS"); do
+    results+=("$(run_once "$image")")
+  done
+  wall=$(printf '%s\n' "${results[@]}" | awk '{ print $1 }')
+  spring=$(printf '%s\n' "${results[@]}" | awk '$2 != "-" { print $2 * 1000 }')
+  printf '%-50s %10s %10s %10s %14s\n' "$image" \
+    "$(echo "$wall" | median)" "$(echo "$wall" | sort -n | head -1)" "$(echo "$wall" | sort -n | tail -1)" \
+    "$( [ -n "$spring" ] && echo "$spring" | median | awk '{ printf "%.2f", $1 / 1000 }' || echo -)"
+done
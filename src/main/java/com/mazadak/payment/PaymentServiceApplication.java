@@ -1,13 +1,18 @@
 package com.mazadak.payment;
 
+import com.mazadak.payment.cache.ChargeCacheInvalidationEvent;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.bus.jackson.RemoteApplicationEventScan;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.data.jpa.repository.config.EnableJpaAuditing;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @EnableJpaAuditing(auditorAwareRef = "auditAwareImpl")
+@EnableScheduling
 @SpringBootApplication
 @ComponentScan(basePackages = {"com.mazadak.payment", "com.mazadak.common"})
+@RemoteApplicationEventScan(basePackageClasses = ChargeCacheInvalidationEvent.class)
 public class PaymentServiceApplication {
     public static void main(String[] args) { SpringApplication.run(PaymentServiceApplication.class, args); }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package com.mazadak.payment.bulkhead;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Caps how many callers of one kind run at once. Up to maxQueued more wait at most maxWait for a permit in arrival
+/// order, anything beyond that is rejected straight away so a flood of one kind cannot hold every request thread.
+public class Bulkhead {
+
+    @Getter
+    private final String name;
+    @Getter
+    private final Duration retryAfter;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final Duration maxWait;
+
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Counter rejected;
+    private final Timer waited;
+
+    public Bulkhead(String name, int maxConcurrent, int maxQueued, Duration maxWait, Duration retryAfter, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.maxWait = maxWait;
+        this.retryAfter = retryAfter;
+        this.permits = new Semaphore(maxConcurrent, true);
+
+        Gauge.builder("payment.bulkhead.active", this, Bulkhead::active).tag("bulkhead", name).register(meterRegistry);
+        Gauge.builder("payment.bulkhead.queued", queued, AtomicInteger::get).tag("bulkhead", name).register(meterRegistry);
+        Gauge.builder("payment.bulkhead.max.concurrent", () -> maxConcurrent).tag("bulkhead", name).register(meterRegistry);
+        this.rejected = meterRegistry.counter("payment.bulkhead.rejected", "bulkhead", name);
+        this.waited = Timer.builder("payment.bulkhead.wait").tag("bulkhead", name).register(meterRegistry);
+    }
+
+    /// Every successful call must be paired with release()
+    public boolean tryAcquire() {
+        try {
+            /// The timed variant honours fairness, the untimed one would barge ahead of queued callers
+            if (permits.tryAcquire(0, TimeUnit.NANOSECONDS))
+                return true;
+
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                rejected.increment();
+                return false;
+            }
+
+            long start = System.nanoTime();
+            try {
+                boolean acquired = permits.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+                waited.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                if (!acquired)
+                    rejected.increment();
+                return acquired;
+            } finally {
+                queued.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            return false;
+        }
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    public int active() {
+        return maxConcurrent - permits.availablePermits();
+    }
+}
@@ -0,0 +1,59 @@
+package com.mazadak.payment.bulkhead;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/// Routes each API request through the bulkhead of its kind and sheds it with 503 and Retry-After when that bulkhead
+/// is saturated, so a webhook replay cannot stall checkout. Actuator and Swagger requests are not limited.
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class BulkheadFilter extends OncePerRequestFilter {
+
+    static final String WEBHOOK_PATH = "/api/payments/stripe-webhook";
+
+    private final Bulkheads bulkheads;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        Bulkheads.Kind kind = classify(request.getRequestURI().substring(request.getContextPath().length()));
+        if (kind == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        Bulkhead bulkhead = bulkheads.get(kind);
+        if (!bulkhead.tryAcquire()) {
+            log.warn("Shedding {} {}, {} bulkhead is saturated", request.getMethod(), request.getRequestURI(), bulkhead.getName());
+            response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, bulkhead.getRetryAfter().toSeconds())));
+            response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), "Too many concurrent " + bulkhead.getName() + " requests, retry later");
+            return;
+        }
+
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    static Bulkheads.Kind classify(String path) {
+        if (path.startsWith(WEBHOOK_PATH))
+            return Bulkheads.Kind.WEBHOOK;
+        if (path.startsWith("/api/onboarding/"))
+            return Bulkheads.Kind.ONBOARDING;
+        if (path.startsWith("/api/payments/"))
+            return Bulkheads.Kind.CUSTOMER;
+        return null;
+    }
+}
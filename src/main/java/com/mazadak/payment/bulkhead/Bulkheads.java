@@ -0,0 +1,57 @@
+package com.mazadak.payment.bulkhead;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/// One bulkhead per kind of work, configured under payment.bulkhead.<kind>. Together the request bulkheads must stay
+/// below the Tomcat thread pool, and webhook plus jobs below the Hikari pool so checkout always finds a connection.
+@Component
+public class Bulkheads {
+
+    public enum Kind {
+        WEBHOOK("webhook", 8, 32, "PT2S", "PT10S"),
+        CUSTOMER("customer", 32, 64, "PT0.5S", "PT1S"),
+        ONBOARDING("onboarding", 4, 8, "PT1S", "PT2S"),
+        /// Scheduled jobs wait rather than fail, their work is picked up again on the next run anyway
+        JOBS("jobs", 4, 16, "PT30S", "PT0S"),
+        /// Held by ExportController for the whole stream rather than by BulkheadFilter, each export keeps a connection busy
+        EXPORT("export", 2, 0, "PT0S", "PT1M");
+
+        private final String key;
+        private final int maxConcurrent;
+        private final int maxQueued;
+        private final String maxWait;
+        private final String retryAfter;
+
+        Kind(String key, int maxConcurrent, int maxQueued, String maxWait, String retryAfter) {
+            this.key = key;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+            this.maxWait = maxWait;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    private final Map<Kind, Bulkhead> bulkheads = new EnumMap<>(Kind.class);
+
+    public Bulkheads(Environment environment, MeterRegistry meterRegistry) {
+        for (Kind kind : Kind.values()) {
+            String prefix = "payment.bulkhead." + kind.key + ".";
+            bulkheads.put(kind, new Bulkhead(kind.key,
+                    environment.getProperty(prefix + "max-concurrent", Integer.class, kind.maxConcurrent),
+                    environment.getProperty(prefix + "max-queued", Integer.class, kind.maxQueued),
+                    environment.getProperty(prefix + "max-wait", Duration.class, Duration.parse(kind.maxWait)),
+                    environment.getProperty(prefix + "retry-after", Duration.class, Duration.parse(kind.retryAfter)),
+                    meterRegistry));
+        }
+    }
+
+    public Bulkhead get(Kind kind) {
+        return bulkheads.get(kind);
+    }
+}
@@ -0,0 +1,25 @@
+package com.mazadak.payment.cache;
+
+import lombok.Getter;
+import org.springframework.cloud.bus.event.Destination;
+import org.springframework.cloud.bus.event.RemoteApplicationEvent;
+
+import java.util.UUID;
+
+/// Broadcast on the bus after a replica commits a change to a charge, receivers drop their cached snapshot
+@Getter
+public class ChargeCacheInvalidationEvent extends RemoteApplicationEvent {
+
+    private UUID orderId;
+    private String paymentIntentId;
+
+    /// For deserialization by the bus
+    public ChargeCacheInvalidationEvent() {
+    }
+
+    public ChargeCacheInvalidationEvent(Object source, String originService, Destination destination, UUID orderId, String paymentIntentId) {
+        super(source, originService, destination);
+        this.orderId = orderId;
+        this.paymentIntentId = paymentIntentId;
+    }
+}
@@ -0,0 +1,25 @@
+package com.mazadak.payment.cache;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.model.SellerSplit;
+import com.mazadak.payment.model.StripeChargeTransaction;
+import lombok.With;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/// Immutable copy of a charge's columns, including the per-seller split so the hot paths never load the orderItems
+/// collection. created_at is kept because it is the partition key of the charge table.
+@With
+public record ChargeSnapshot(UUID id, LocalDateTime createdAt, UUID orderId, String paymentIntentId, String stripeChargeId,
+                             BigDecimal amount, String currency, ChargeStatus status, UUID idempotencyKey, String stripeErrorMessage,
+                             Boolean refunded, LocalDateTime authorizationExpiresAt, List<SellerSplit> sellerSplit) {
+
+    public static ChargeSnapshot from(StripeChargeTransaction charge, List<SellerSplit> sellerSplit) {
+        return new ChargeSnapshot(charge.getId(), charge.getCreated_at(), charge.getOrderId(), charge.getPaymentIntentId(), charge.getStripeChargeId(),
+                charge.getAmount(), charge.getCurrency(), charge.getStatus(), charge.getIdempotencyKey(), charge.getStripeErrorMessage(),
+                charge.getRefunded(), charge.getAuthorizationExpiresAt(), List.copyOf(sellerSplit));
+    }
+}
@@ -0,0 +1,208 @@
+package com.mazadak.payment.cache;
+
+import com.mazadak.payment.model.SellerSplit;
+import com.mazadak.payment.model.StripeChargeTransaction;
+import com.mazadak.payment.repository.StripeChargeTransactionRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.bus.BusProperties;
+import org.springframework.cloud.bus.event.Destination;
+import org.springframework.cloud.bus.event.PathDestinationFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/// Bounded LRU near cache of charge snapshots, keyed by order id with a PaymentIntent id index.
+///
+/// A replica that changes a charge writes the new snapshot through to its own cache after commit and broadcasts a
+/// {@link ChargeCacheInvalidationEvent} so the other replicas drop theirs. Writers compare-and-set on the status they
+/// read, so a snapshot that is stale because an invalidation is still in flight is detected and reloaded, and entries
+/// expire after the TTL in case a bus message is lost.
+@Component
+public class ChargeSnapshotCache {
+
+    @Value("${payment.charge-cache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${payment.charge-cache.max-size:10000}")
+    private int maxSize;
+
+    @Value("${payment.charge-cache.ttl:PT10M}")
+    private Duration ttl;
+
+    @Value("${spring.application.name:payment}")
+    private String applicationName;
+
+    private final StripeChargeTransactionRepository stripeChargeTransactionRepository;
+    private final ApplicationEventPublisher applicationEventPublisher;
+    private final BusProperties busProperties;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter remoteInvalidations;
+
+    private final Map<UUID, Entry> byOrderId = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+            if (size() <= maxSize)
+                return false;
+            orderIdByPaymentIntentId.remove(eldest.getValue().snapshot().paymentIntentId());
+            return true;
+        }
+    };
+    private final Map<String, UUID> orderIdByPaymentIntentId = new HashMap<>();
+    /// Bumped by every invalidation, a load that raced with one is not cached
+    private long invalidations;
+
+    private record Entry(ChargeSnapshot snapshot, long expiresAt) {}
+
+    public ChargeSnapshotCache(StripeChargeTransactionRepository stripeChargeTransactionRepository, ApplicationEventPublisher applicationEventPublisher,
+                               BusProperties busProperties, MeterRegistry meterRegistry) {
+        this.stripeChargeTransactionRepository = stripeChargeTransactionRepository;
+        this.applicationEventPublisher = applicationEventPublisher;
+        this.busProperties = busProperties;
+        this.hits = meterRegistry.counter("payment.charge.cache", "result", "hit");
+        this.misses = meterRegistry.counter("payment.charge.cache", "result", "miss");
+        this.remoteInvalidations = meterRegistry.counter("payment.charge.cache.invalidations", "origin", "remote");
+        meterRegistry.gauge("payment.charge.cache.size", this, ChargeSnapshotCache::size);
+    }
+
+    public Optional<ChargeSnapshot> findByOrderId(UUID orderId) {
+        ChargeSnapshot cached = get(orderId);
+        return cached != null ? Optional.of(cached) : load(() -> stripeChargeTransactionRepository.findByOrderId(orderId));
+    }
+
+    public Optional<ChargeSnapshot> findByPaymentIntentId(String paymentIntentId) {
+        ChargeSnapshot cached;
+        synchronized (this) {
+            UUID orderId = orderIdByPaymentIntentId.get(paymentIntentId);
+            cached = orderId == null ? null : get(orderId);
+        }
+        return cached != null ? Optional.of(cached) : load(() -> stripeChargeTransactionRepository.findByPaymentIntentId(paymentIntentId));
+    }
+
+    /// Bypasses the cache, for writers whose compare-and-set found the cached status out of date
+    public Optional<ChargeSnapshot> reload(UUID orderId) {
+        evict(orderId);
+        return load(() -> stripeChargeTransactionRepository.findByOrderId(orderId));
+    }
+
+    /// Call after writing the snapshot's values to the database, takes effect once the transaction commits
+    public void changed(ChargeSnapshot snapshot) {
+        afterCommit(() -> {
+            synchronized (this) {
+                invalidations++;
+                if (enabled)
+                    put(snapshot);
+            }
+            broadcast(snapshot.orderId(), snapshot.paymentIntentId());
+        });
+    }
+
+    /// For writers that change a charge without holding a snapshot of the result
+    public void invalidate(UUID orderId, String paymentIntentId) {
+        afterCommit(() -> {
+            evict(orderId);
+            broadcast(orderId, paymentIntentId);
+        });
+    }
+
+    @EventListener
+    public void onInvalidation(ChargeCacheInvalidationEvent event) {
+        /// Our own broadcasts come back through the local publisher, the entry was already written through
+        if (busProperties.getId().equals(event.getOriginService()))
+            return;
+
+        remoteInvalidations.increment();
+        evict(event.getOrderId());
+    }
+
+    private synchronized ChargeSnapshot get(UUID orderId) {
+        if (!enabled)
+            return null;
+
+        Entry entry = byOrderId.get(orderId);
+        if (entry == null || entry.expiresAt() < System.nanoTime()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.snapshot();
+    }
+
+    private Optional<ChargeSnapshot> load(Supplier<Optional<StripeChargeTransaction>> loader) {
+        long generation;
+        synchronized (this) {
+            generation = invalidations;
+        }
+
+        Optional<ChargeSnapshot> loaded = loader.get().map(charge -> ChargeSnapshot.from(charge, sellerSplit(charge)));
+        loaded.ifPresent(snapshot -> {
+            synchronized (this) {
+                if (enabled && generation == invalidations)
+                    put(snapshot);
+            }
+        });
+        return loaded;
+    }
+
+    /// Charges created before seller_split existed get their totals summed from order_items, without accounts
+    private List<SellerSplit> sellerSplit(StripeChargeTransaction charge) {
+        if (charge.getSellerSplit() != null)
+            return charge.getSellerSplit();
+
+        return stripeChargeTransactionRepository.sumOrderItemsBySeller(charge.getId()).stream()
+                .map(total -> new SellerSplit(total.sellerId(), total.amount(), null))
+                .toList();
+    }
+
+    private void put(ChargeSnapshot snapshot) {
+        byOrderId.put(snapshot.orderId(), new Entry(snapshot, System.nanoTime() + ttl.toNanos()));
+        if (snapshot.paymentIntentId() != null)
+            orderIdByPaymentIntentId.put(snapshot.paymentIntentId(), snapshot.orderId());
+    }
+
+    private synchronized void evict(UUID orderId) {
+        invalidations++;
+        Entry removed = byOrderId.remove(orderId);
+        if (removed != null && removed.snapshot().paymentIntentId() != null)
+            orderIdByPaymentIntentId.remove(removed.snapshot().paymentIntentId());
+    }
+
+    private synchronized int size() {
+        return byOrderId.size();
+    }
+
+    private void broadcast(UUID orderId, String paymentIntentId) {
+        if (!enabled)
+            return;
+
+        Destination destination = new PathDestinationFactory().getDestination(applicationName + ":**");
+        applicationEventPublisher.publishEvent(new ChargeCacheInvalidationEvent(this, busProperties.getId(), destination, orderId, paymentIntentId));
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,25 @@
+package com.mazadak.payment.config;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.util.Arrays;
+
+/// With spring.main.lazy-initialization enabled, beans are created on first use except those that do their work at
+/// startup: schedulers would never be registered and @PostConstruct setup such as the static Stripe client
+/// configuration would run too late, so those stay eager.
+@Configuration
+public class StartupConfig {
+
+    @Bean
+    static LazyInitializationExcludeFilter eagerStartupWork() {
+        return (beanName, beanDefinition, beanType) -> beanType != null
+                && Arrays.stream(ReflectionUtils.getUniqueDeclaredMethods(ClassUtils.getUserClass(beanType)))
+                        .anyMatch(method -> method.isAnnotationPresent(Scheduled.class) || method.isAnnotationPresent(PostConstruct.class));
+    }
+}
@@ -0,0 +1,81 @@
+package com.mazadak.payment.constant;
+
+/// Local status of a charge. Codes are what the status column and the payment state journal store, they share one
+/// code space with {@link TransferStatus} and must never be renumbered.
+public enum ChargeStatus {
+    PENDING(1),
+    REQUIRES_CAPTURE(2),
+    FAILED(3),
+    SUCCEEDED(4),
+    REFUNDED(5),
+    CANCELED(6),
+    REQUIRES_PAYMENT_METHOD(8),
+    REQUIRES_CONFIRMATION(9),
+    REQUIRES_ACTION(10),
+    PROCESSING(11);
+
+    private static final ChargeStatus[] VALUES = values();
+    private static final ChargeStatus[] BY_CODE = new ChargeStatus[12];
+    private static final boolean[][] TRANSITIONS = new boolean[VALUES.length][VALUES.length];
+
+    static {
+        for (ChargeStatus status : VALUES) {
+            BY_CODE[status.code] = status;
+            /// Redelivered webhooks and repeated API calls report the status the charge already has. They are accepted so
+            /// they are not mistaken for out of order events, which also means a permitted transition is no proof that
+            /// anything changed, callers that act once per change must check the previous status themselves.
+            TRANSITIONS[status.ordinal()][status.ordinal()] = true;
+        }
+
+        ChargeStatus[] confirming = {REQUIRES_PAYMENT_METHOD, REQUIRES_CONFIRMATION, REQUIRES_ACTION, PROCESSING, REQUIRES_CAPTURE, SUCCEEDED, CANCELED, FAILED};
+        allow(PENDING, confirming);
+        allow(REQUIRES_PAYMENT_METHOD, confirming);
+        allow(REQUIRES_CONFIRMATION, confirming);
+        allow(REQUIRES_ACTION, confirming);
+        allow(PROCESSING, confirming);
+        /// A failed attempt returns the PaymentIntent to requires_payment_method, the buyer may retry with another card
+        allow(FAILED, confirming);
+        allow(REQUIRES_CAPTURE, PROCESSING, SUCCEEDED, CANCELED);
+        allow(SUCCEEDED, REFUNDED);
+    }
+
+    private final short code;
+
+    ChargeStatus(int code) {
+        this.code = (short) code;
+    }
+
+    public short getCode() {
+        return code;
+    }
+
+    public boolean canTransitionTo(ChargeStatus next) {
+        return TRANSITIONS[ordinal()][next.ordinal()];
+    }
+
+    public static ChargeStatus fromCode(short code) {
+        ChargeStatus status = code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        if (status == null)
+            throw new IllegalArgumentException("Unknown charge status code " + code);
+        return status;
+    }
+
+    /// Maps a PaymentIntent status as reported by Stripe
+    public static ChargeStatus fromStripe(String paymentIntentStatus) {
+        return switch (paymentIntentStatus) {
+            case "requires_payment_method" -> REQUIRES_PAYMENT_METHOD;
+            case "requires_confirmation" -> REQUIRES_CONFIRMATION;
+            case "requires_action" -> REQUIRES_ACTION;
+            case "processing" -> PROCESSING;
+            case "requires_capture" -> REQUIRES_CAPTURE;
+            case "succeeded" -> SUCCEEDED;
+            case "canceled" -> CANCELED;
+            default -> throw new IllegalArgumentException("Unknown PaymentIntent status " + paymentIntentStatus);
+        };
+    }
+
+    private static void allow(ChargeStatus from, ChargeStatus... to) {
+        for (ChargeStatus next : to)
+            TRANSITIONS[from.ordinal()][next.ordinal()] = true;
+    }
+}
@@ -0,0 +1,9 @@
+package com.mazadak.payment.constant;
+
+/// How seller shares of a succeeded charge reach the sellers, set with payment.payout.mode
+public enum PayoutMode {
+    /// One Stripe transfer per seller and order, sourced from the order's charge as soon as the payment succeeds
+    IMMEDIATE,
+    /// Shares are queued and SellerPayoutService moves them on its schedule, one transfer per seller and currency
+    DEFERRED
+}
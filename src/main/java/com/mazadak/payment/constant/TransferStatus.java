@@ -0,0 +1,53 @@
+package com.mazadak.payment.constant;
+
+/// Local status of a seller transfer, codes share the {@link ChargeStatus} code space and must never be renumbered
+public enum TransferStatus {
+    FAILED(3),
+    SUCCEEDED(4),
+    REVERSED(7),
+    /// Waiting for the next deferred payout, also the status of a payout that has not been sent yet
+    QUEUED(12);
+
+    private static final TransferStatus[] VALUES = values();
+    private static final TransferStatus[] BY_CODE = new TransferStatus[13];
+    private static final boolean[][] TRANSITIONS = new boolean[VALUES.length][VALUES.length];
+
+    static {
+        for (TransferStatus status : VALUES) {
+            BY_CODE[status.code] = status;
+            TRANSITIONS[status.ordinal()][status.ordinal()] = true;
+        }
+
+        allow(FAILED, SUCCEEDED);
+        /// Refunding the charge also retires transfers that never went through, otherwise the retry job would pay them out
+        allow(FAILED, REVERSED);
+        allow(SUCCEEDED, REVERSED);
+        allow(QUEUED, SUCCEEDED, FAILED, REVERSED);
+    }
+
+    private final short code;
+
+    TransferStatus(int code) {
+        this.code = (short) code;
+    }
+
+    public short getCode() {
+        return code;
+    }
+
+    public boolean canTransitionTo(TransferStatus next) {
+        return TRANSITIONS[ordinal()][next.ordinal()];
+    }
+
+    public static TransferStatus fromCode(short code) {
+        TransferStatus status = code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        if (status == null)
+            throw new IllegalArgumentException("Unknown transfer status code " + code);
+        return status;
+    }
+
+    private static void allow(TransferStatus from, TransferStatus... to) {
+        for (TransferStatus next : to)
+            TRANSITIONS[from.ordinal()][next.ordinal()] = true;
+    }
+}
@@ -0,0 +1,102 @@
+package com.mazadak.payment.controller;
+
+import com.mazadak.payment.bulkhead.Bulkhead;
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.export.ExportDataset;
+import com.mazadak.payment.export.ExportFormat;
+import com.mazadak.payment.export.ExportService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lombok.RequiredArgsConstructor;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+@Tag(name = "Export Controller", description = "Streaming finance extracts of charges, order items and transfers")
+@RestController
+@RequestMapping("/api/exports")
+@RequiredArgsConstructor
+public class ExportController {
+
+    private static final int MAX_DAYS = 92;
+
+    private final ExportService exportService;
+    private final Bulkheads bulkheads;
+
+    @Operation(summary = "Export charges, order items or transfers",
+            description = "Streams the rows created between two days, both inclusive, as CSV or NDJSON, optionally gzip-compressed. " +
+                    "Rows are written while they are read, so a month of data exports in constant memory.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "The extract, as an attachment"),
+            @ApiResponse(responseCode = "400", description = "Unknown format or status, or a date range longer than 92 days"),
+            @ApiResponse(responseCode = "404", description = "Unknown dataset"),
+            @ApiResponse(responseCode = "503", description = "Too many exports are running, retry after the Retry-After delay")
+    })
+    @GetMapping("/{dataset}")
+    public ResponseEntity<StreamingResponseBody> export(
+            @Parameter(description = "charges, order-items or transfers") @PathVariable String dataset,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @Parameter(description = "Status names, e.g. SUCCEEDED, order items match the status of their charge") @RequestParam(required = false) List<String> status,
+            @Parameter(description = "Only rows of this seller") @RequestParam(required = false) UUID sellerId,
+            @Parameter(description = "csv or ndjson") @RequestParam(defaultValue = "csv") String format,
+            @RequestParam(defaultValue = "false") boolean gzip) {
+        ExportDataset exportDataset = ExportDataset.fromKey(dataset)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown dataset " + dataset));
+        ExportFormat exportFormat = ExportFormat.fromKey(format)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown format " + format));
+        List<String> statuses = status == null ? List.of() : status;
+        if (to.isBefore(from) || from.plusDays(MAX_DAYS).isBefore(to))
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Date range must be 1 to " + MAX_DAYS + " days");
+        /// Rejected before the response is committed, a bad status would otherwise only fail once streaming started
+        try {
+            statuses.forEach(exportDataset::statusCode);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown " + exportDataset.getKey() + " status in " + statuses);
+        }
+
+        Bulkhead bulkhead = bulkheads.get(Bulkheads.Kind.EXPORT);
+        if (!bulkhead.tryAcquire())
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, bulkhead.getRetryAfter().toSeconds())))
+                    .build();
+
+        String fileName = exportDataset.getKey() + "-" + from + "-" + to + "." + exportFormat.getKey() + (gzip ? ".gz" : "");
+        StreamingResponseBody body = out -> {
+            try {
+                if (gzip) {
+                    GZIPOutputStream compressed = new GZIPOutputStream(out, 64 * 1024);
+                    exportService.export(exportDataset, exportFormat, from, to, statuses, sellerId, compressed);
+                    compressed.finish();
+                } else {
+                    exportService.export(exportDataset, exportFormat, from, to, statuses, sellerId, out);
+                }
+            } finally {
+                bulkhead.release();
+            }
+        };
+
+        return ResponseEntity.ok()
+                .contentType(gzip ? MediaType.parseMediaType("application/gzip") : MediaType.parseMediaType(exportFormat.getContentType()))
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(fileName).build().toString())
+                .body(body);
+    }
+}
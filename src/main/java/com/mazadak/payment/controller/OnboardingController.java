@@ -1,7 +1,9 @@
 package com.mazadak.payment.controller;
 
+import com.mazadak.payment.dto.request.SellerOnboardingStatusRequest;
+import com.mazadak.payment.dto.response.SellerOnboardingStatus;
+import com.mazadak.payment.selleraccount.SellerAccountLookup;
 import com.mazadak.payment.service.impl.OnboardingService;
-import com.mazadak.payment.service.impl.StripePaymentService;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -9,6 +11,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.util.UriComponentsBuilder;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.validation.Valid;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.media.ExampleObject;
@@ -20,6 +23,7 @@ import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -34,7 +38,7 @@ import static com.mazadak.payment.utils.OnboardingUtils.extractSellerIdFromState
 public class OnboardingController {
 
     private final OnboardingService onboardingService;
-    private final StripePaymentService paymentService;
+    private final SellerAccountLookup sellerAccountLookup;
 
     @Operation(summary = "Generate Stripe OAuth URL",
             description = "Generates a Stripe Connect OAuth URL for seller onboarding")
@@ -115,6 +119,30 @@ public class OnboardingController {
     })
     @GetMapping("/get-account/{sellerId}")
     public ResponseEntity<String> getConnectedAccountId(@PathVariable UUID sellerId) {
-        return ResponseEntity.ok(paymentService.getStripeAccountId(sellerId));
+        return ResponseEntity.ok(sellerAccountLookup.getStripeAccountId(sellerId));
+    }
+
+    @Operation(summary = "Deauthorize the Stripe account of a seller",
+            description = "Disconnects the account from the platform, e.g. when the seller is deleted. The seller has to onboard again to be paid")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "204", description = "Stripe account deauthorized"),
+            @ApiResponse(responseCode = "404", description = "Seller or Stripe account not found")
+    })
+    @DeleteMapping("/accounts/{sellerId}")
+    public ResponseEntity<Void> deauthorizeAccount(@PathVariable UUID sellerId) {
+        onboardingService.deauthorizeAccount(sellerId);
+        return ResponseEntity.noContent().build();
+    }
+
+    @Operation(summary = "Get onboarding status for several sellers",
+            description = "Resolves in one query whether each seller has a connected Stripe account, e.g. for every seller in a cart")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "One status per distinct seller id, in request order"),
+            @ApiResponse(responseCode = "400", description = "Empty list or more than 500 seller ids")
+    })
+    @PostMapping("/accounts/status")
+    public ResponseEntity<List<SellerOnboardingStatus>> getOnboardingStatuses(
+            @Valid @org.springframework.web.bind.annotation.RequestBody SellerOnboardingStatusRequest request) {
+        return ResponseEntity.ok(sellerAccountLookup.getOnboardingStatuses(request.sellerIds()));
     }
 }
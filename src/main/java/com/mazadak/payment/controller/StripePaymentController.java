@@ -1,11 +1,14 @@
 package com.mazadak.payment.controller;
 
 import com.mazadak.payment.dto.request.CreatePaymentIntentRequest;
+import com.mazadak.payment.dto.request.PaymentStatusRequest;
 import com.mazadak.payment.dto.request.RefundRequest;
 import com.mazadak.payment.dto.response.CreatePaymentIntentResponse;
 import com.mazadak.payment.dto.response.PaymentIntentResponse;
+import com.mazadak.payment.dto.response.PaymentStatusResponse;
 import com.mazadak.payment.dto.response.RefundResponse;
 import com.mazadak.payment.service.impl.StripePaymentService;
+import com.mazadak.payment.velocity.VelocityLimiter;
 import com.stripe.model.PaymentIntent;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
@@ -17,6 +20,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.List;
 import java.util.UUID;
 
 
@@ -27,11 +31,14 @@ import java.util.UUID;
 @Validated
 public class StripePaymentController {
     private final StripePaymentService paymentService;
+    private final VelocityLimiter velocityLimiter;
 
     @Operation(summary = "Create a Payment Intent (Authorize)",
             description = "Initiates a payment by creating a PaymentIntent...The response contains a client secret that the frontend uses to confirm the payment")
     @PostMapping("/create-payment-intent")
     public ResponseEntity<CreatePaymentIntentResponse> createPaymentIntent(@Valid @RequestBody CreatePaymentIntentRequest request) {
+        /// Ahead of the service, a rejected attempt makes no query
+        velocityLimiter.check(request);
         CreatePaymentIntentResponse response = paymentService.createPaymentIntent(request);
         return ResponseEntity.ok(response);
     }
@@ -73,4 +80,15 @@ public class StripePaymentController {
         return ResponseEntity.ok(response);
     }
 
+    @Operation(summary = "Get payment status for several orders",
+            description = "Looks up orders by order ID, PaymentIntent ID or both, with up to 500 of each, and returns the charge status, amount, refunded flag and a summary of the seller transfers.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "One status per order found, orders without a payment are left out"),
+            @ApiResponse(responseCode = "400", description = "More than 500 IDs of one kind")
+    })
+    @PostMapping("/status")
+    public ResponseEntity<List<PaymentStatusResponse>> getPaymentStatuses(@Valid @RequestBody PaymentStatusRequest request) {
+        return ResponseEntity.ok(paymentService.getPaymentStatuses(request.orderIds(), request.paymentIntentIds()));
+    }
+
 }
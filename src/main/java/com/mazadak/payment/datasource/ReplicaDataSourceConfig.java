@@ -0,0 +1,74 @@
+package com.mazadak.payment.datasource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.micrometer.MicrometerMetricsTrackerFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/// Sends @Transactional(readOnly = true) work to the replicas under payment.datasource.replicas.instances and
+/// everything else to the primary. The proxy hands Hibernate a connection handle and only picks the pool once the first
+/// statement runs, by then JpaTransactionManager has marked the handle read-only for read-only transactions.
+///
+/// Replicas inherit the primary's credentials unless they set their own. Any database works as a replica for a local
+/// run, e.g. a second database on the same server, its lag is then always zero.
+@Configuration
+@ConditionalOnProperty(name = "payment.datasource.replicas.enabled", havingValue = "true")
+public class ReplicaDataSourceConfig {
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+
+    @Bean
+    ReplicaRoutingDataSource replicaRoutingDataSource(HikariDataSource primaryDataSource, DataSourceProperties primaryProperties, Environment environment,
+                                                      MeterRegistry meterRegistry,
+                                                      @Value("${payment.datasource.replicas.max-lag:PT5S}") Duration maxLag,
+                                                      @Value("${payment.datasource.replicas.maximum-pool-size:10}") int maximumPoolSize) {
+        Map<String, DataSourceProperties> instances = Binder.get(environment)
+                .bind("payment.datasource.replicas.instances", Bindable.mapOf(String.class, DataSourceProperties.class))
+                .orElseThrow(() -> new IllegalStateException("payment.datasource.replicas.enabled is set but no replica is configured"));
+
+        Map<String, HikariDataSource> replicas = new LinkedHashMap<>();
+        instances.forEach((name, properties) -> {
+            if (properties.getUsername() == null) {
+                properties.setUsername(primaryProperties.determineUsername());
+                properties.setPassword(primaryProperties.determinePassword());
+            }
+            HikariDataSource replica = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+            replica.setPoolName("replica-" + name);
+            replica.setMaximumPoolSize(maximumPoolSize);
+            replica.setReadOnly(true);
+            replica.setMetricsTrackerFactory(new MicrometerMetricsTrackerFactory(meterRegistry));
+            replicas.put(name, replica);
+        });
+
+        ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primaryDataSource, replicas, maxLag, meterRegistry);
+        routing.checkLag();
+        return routing;
+    }
+
+    @Bean
+    @Primary
+    DataSource dataSource(HikariDataSource primaryDataSource, ReplicaRoutingDataSource replicaRoutingDataSource) {
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(primaryDataSource);
+        dataSource.setReadOnlyDataSource(replicaRoutingDataSource);
+        return dataSource;
+    }
+}
@@ -0,0 +1,118 @@
+package com.mazadak.payment.datasource;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Read-only side of the routed DataSource. Connections go round-robin to the replicas whose last lag check passed,
+/// and to the primary while none did, so a lagging or unreachable replica only costs the primary some extra reads.
+@Slf4j
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource implements AutoCloseable {
+
+    static final String PRIMARY = "primary";
+
+    /// Zero on the primary itself or on a replica that has replayed everything it received, so an idle primary does not
+    /// make its replicas look stale
+    private static final String LAG_QUERY = """
+            SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0
+                        ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) END""";
+
+    private static final class Replica {
+        private final String name;
+        private final DataSource dataSource;
+        private volatile boolean healthy;
+        private volatile double lagSeconds = Double.NaN;
+
+        private Replica(String name, DataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+    }
+
+    private final List<Replica> replicas;
+    private final Duration maxLag;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Counter replicaReads;
+    private final Counter primaryReads;
+
+    public ReplicaRoutingDataSource(DataSource primary, Map<String, ? extends DataSource> replicas, Duration maxLag, MeterRegistry meterRegistry) {
+        this.replicas = replicas.entrySet().stream().map(entry -> new Replica(entry.getKey(), entry.getValue())).toList();
+        this.maxLag = maxLag;
+
+        Map<Object, Object> targets = new HashMap<>(replicas);
+        targets.put(PRIMARY, primary);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        setLenientFallback(false);
+        afterPropertiesSet();
+
+        for (Replica replica : this.replicas) {
+            Gauge.builder("payment.datasource.replica.lag", replica, r -> r.lagSeconds).tag("replica", replica.name).baseUnit("seconds").register(meterRegistry);
+            Gauge.builder("payment.datasource.replica.healthy", replica, r -> r.healthy ? 1 : 0).tag("replica", replica.name).register(meterRegistry);
+        }
+        this.replicaReads = meterRegistry.counter("payment.datasource.reads", "target", "replica");
+        this.primaryReads = meterRegistry.counter("payment.datasource.reads", "target", "primary");
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        int size = replicas.size();
+        int start = Math.floorMod(next.getAndIncrement(), Math.max(size, 1));
+        for (int i = 0; i < size; i++) {
+            Replica replica = replicas.get((start + i) % size);
+            if (replica.healthy) {
+                replicaReads.increment();
+                return replica.name;
+            }
+        }
+        primaryReads.increment();
+        return PRIMARY;
+    }
+
+    /// Takes a replica out of rotation once its replay lag exceeds maxLag or the check fails, and back in once it caught up
+    @Scheduled(fixedDelayString = "${payment.datasource.replicas.check-interval:PT5S}")
+    public void checkLag() {
+        for (Replica replica : replicas) {
+            boolean wasHealthy = replica.healthy;
+            try (Connection connection = replica.dataSource.getConnection();
+                 Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery(LAG_QUERY)) {
+                resultSet.next();
+                replica.lagSeconds = resultSet.getDouble(1);
+                replica.healthy = replica.lagSeconds * 1000 <= maxLag.toMillis();
+            } catch (SQLException e) {
+                replica.lagSeconds = Double.NaN;
+                replica.healthy = false;
+                if (wasHealthy)
+                    log.warn("Replica {} is out of rotation, lag check failed: {}", replica.name, e.getMessage());
+                continue;
+            }
+
+            if (wasHealthy && !replica.healthy)
+                log.warn("Replica {} is out of rotation, lag {} s exceeds {}", replica.name, replica.lagSeconds, maxLag);
+            else if (!wasHealthy && replica.healthy)
+                log.info("Replica {} is back in rotation, lag {} s", replica.name, replica.lagSeconds);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (Replica replica : replicas)
+            if (replica.dataSource instanceof AutoCloseable closeable)
+                closeable.close();
+    }
+}
@@ -0,0 +1,78 @@
+package com.mazadak.payment.datasource;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/// Counts every statement sent to the database against the thread's {@link StatementScope}. A batch counts once, it is
+/// a single round trip. Statements outside any scope, e.g. from scheduled jobs, go to the unscoped callback.
+public class StatementCountingDataSource extends DelegatingDataSource {
+
+    private final Runnable unscoped;
+
+    public StatementCountingDataSource(DataSource targetDataSource, Runnable unscoped) {
+        super(targetDataSource);
+        this.unscoped = unscoped;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return countingConnection(obtainTargetDataSource().getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return countingConnection(obtainTargetDataSource().getConnection(username, password));
+    }
+
+    private Connection countingConnection(Connection connection) {
+        return proxy(Connection.class, connection, (method, args, result) -> switch (result) {
+            case CallableStatement statement -> proxy(CallableStatement.class, statement, counting((String) args[0]));
+            case PreparedStatement statement -> proxy(PreparedStatement.class, statement, counting((String) args[0]));
+            case Statement statement -> proxy(Statement.class, statement, counting(null));
+            case null, default -> result;
+        });
+    }
+
+    /// Prepared statements report the SQL they were prepared with, plain statements the SQL passed to execute
+    private ResultHandler counting(String preparedSql) {
+        return (method, args, result) -> {
+            if (method.getName().startsWith("execute")) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String executed ? executed : preparedSql;
+                if (!StatementScope.executed(sql))
+                    unscoped.run();
+            }
+            return result;
+        };
+    }
+
+    private interface ResultHandler {
+        Object handle(Method method, Object[] args, Object result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, T target, ResultHandler handler) {
+        return (T) Proxy.newProxyInstance(StatementCountingDataSource.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "unwrap", "isWrapperFor" -> invoke(target, method, args);
+            default -> handler.handle(method, args, invoke(target, method, args));
+        });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+}
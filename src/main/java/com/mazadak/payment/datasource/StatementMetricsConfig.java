@@ -0,0 +1,31 @@
+package com.mazadak.payment.datasource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+/// Wraps the application's DataSource, the routing proxy when replicas are enabled, in a StatementCountingDataSource.
+/// Pools stay reachable through unwrap, so Hikari metrics and health checks are unaffected.
+@Configuration
+@ConditionalOnProperty(name = "payment.datasource.statement-metrics.enabled", havingValue = "true", matchIfMissing = true)
+public class StatementMetricsConfig {
+
+    @Bean
+    static BeanPostProcessor statementCountingDataSourcePostProcessor(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!"dataSource".equals(beanName) || !(bean instanceof DataSource dataSource) || bean instanceof StatementCountingDataSource)
+                    return bean;
+
+                /// Resolved on first use, a post-processor must not pull the registry in before it is fully configured
+                return new StatementCountingDataSource(dataSource, () -> meterRegistry.getObject().counter("payment.db.statements.unscoped").increment());
+            }
+        };
+    }
+}
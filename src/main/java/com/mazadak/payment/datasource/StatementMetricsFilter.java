@@ -0,0 +1,42 @@
+package com.mazadak.payment.datasource;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+
+/// Records how many statements each request ran as payment.db.statements, tagged with the method and route pattern so
+/// path variables do not multiply the series. Webhooks are tagged with their event type instead, see StatementScope.
+@Component
+@ConditionalOnProperty(name = "payment.datasource.statement-metrics.enabled", havingValue = "true", matchIfMissing = true)
+@RequiredArgsConstructor
+public class StatementMetricsFilter extends OncePerRequestFilter {
+
+    private final MeterRegistry meterRegistry;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        StatementScope scope = StatementScope.open(null);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            scope.close();
+            meterRegistry.summary("payment.db.statements", "scope", scopeName(scope, request)).record(scope.count());
+        }
+    }
+
+    private static String scopeName(StatementScope scope, HttpServletRequest request) {
+        if (scope.name() != null)
+            return scope.name();
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        return pattern == null ? "unmatched" : request.getMethod() + " " + pattern;
+    }
+}
@@ -0,0 +1,75 @@
+package com.mazadak.payment.datasource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/// Counts the JDBC statements {@link StatementCountingDataSource} executes on this thread while the scope is open. Web
+/// requests get one per endpoint from {@link StatementMetricsConfig}, and the webhook handler renames its scope after
+/// the event type since all webhooks share one endpoint. Scopes nest, closing one reopens the enclosing scope.
+public final class StatementScope implements AutoCloseable {
+
+    private static final ThreadLocal<StatementScope> CURRENT = new ThreadLocal<>();
+
+    private final StatementScope enclosing;
+    private final List<String> statements;
+    private String name;
+    private int count;
+
+    private StatementScope(String name, StatementScope enclosing, boolean recordSql) {
+        this.name = name;
+        this.enclosing = enclosing;
+        this.statements = recordSql ? new ArrayList<>() : null;
+    }
+
+    public static StatementScope open(String name) {
+        return open(name, false);
+    }
+
+    /// Also keeps the SQL of every statement, for failure messages of statement budgets in tests
+    public static StatementScope open(String name, boolean recordSql) {
+        StatementScope scope = new StatementScope(name, CURRENT.get(), recordSql);
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    /// Names the current scope after something only known inside the handler, e.g. the type of a webhook event
+    public static void rename(String name) {
+        StatementScope scope = CURRENT.get();
+        if (scope != null)
+            scope.name = name;
+    }
+
+    /// Returns false when no scope is open
+    static boolean executed(String sql) {
+        StatementScope scope = CURRENT.get();
+        if (scope == null)
+            return false;
+
+        for (StatementScope counted = scope; counted != null; counted = counted.enclosing) {
+            counted.count++;
+            if (counted.statements != null)
+                counted.statements.add(sql);
+        }
+        return true;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public List<String> statements() {
+        return statements == null ? List.of() : List.copyOf(statements);
+    }
+
+    @Override
+    public void close() {
+        if (enclosing == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(enclosing);
+    }
+}
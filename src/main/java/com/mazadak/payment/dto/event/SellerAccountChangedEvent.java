@@ -0,0 +1,13 @@
+package com.mazadak.payment.dto.event;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.UUID;
+
+@Schema(description = "Current Stripe account of a seller, keyed by seller id on a compacted topic. A deauthorized seller gets a tombstone.")
+public record SellerAccountChangedEvent(
+        @Schema(description = "Seller ID, also the record key")
+        UUID sellerId,
+        @Schema(description = "Connected Stripe account ID", example = "acct_1234")
+        String stripeAccountId) {
+}
@@ -0,0 +1,7 @@
+package com.mazadak.payment.dto.projection;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+public record AuthorizationHoldView(UUID id, UUID orderId, LocalDateTime authorizationExpiresAt) {
+}
@@ -0,0 +1,11 @@
+package com.mazadak.payment.dto.projection;
+
+import com.mazadak.payment.constant.ChargeStatus;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+public record ChargeReplayView(UUID id, UUID orderId, String paymentIntentId, ChargeStatus status, BigDecimal amount,
+                               String checkoutType, String stripeErrorMessage, LocalDateTime createdAt) {
+}
@@ -0,0 +1,8 @@
+package com.mazadak.payment.dto.projection;
+
+import com.mazadak.payment.constant.ChargeStatus;
+
+import java.util.UUID;
+
+public record ChargeStatusView(UUID id, UUID orderId, String paymentIntentId, ChargeStatus status, String stripeChargeId) {
+}
@@ -0,0 +1,12 @@
+package com.mazadak.payment.dto.projection;
+
+import com.mazadak.payment.constant.ChargeStatus;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/// A charge with its transfers counted per status, transferredAmount only counts transfers that went through
+public record PaymentStatusView(UUID orderId, String paymentIntentId, ChargeStatus status, BigDecimal amount, String currency, Boolean refunded,
+                                Long transfers, Long succeededTransfers, Long failedTransfers, Long queuedTransfers, Long reversedTransfers,
+                                BigDecimal transferredAmount) {
+}
@@ -0,0 +1,8 @@
+package com.mazadak.payment.dto.projection;
+
+import java.util.UUID;
+
+public interface PayoutGroup {
+    UUID getSellerId();
+    String getCurrency();
+}
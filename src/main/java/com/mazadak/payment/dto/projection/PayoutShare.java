@@ -0,0 +1,10 @@
+package com.mazadak.payment.dto.projection;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+public interface PayoutShare {
+    UUID getId();
+    UUID getOrderId();
+    BigDecimal getAmount();
+}
@@ -0,0 +1,7 @@
+package com.mazadak.payment.dto.projection;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+public record SellerTotal(UUID sellerId, BigDecimal amount) {
+}
@@ -0,0 +1,16 @@
+package com.mazadak.payment.dto.projection;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+public interface TransferRetryCandidate {
+    UUID getId();
+    UUID getOrderId();
+    UUID getSellerId();
+    String getSellerStripeAccountId();
+    BigDecimal getAmount();
+    String getCurrency();
+    String getIdempotencyKey();
+    Integer getAttempts();
+    String getSourceTransaction();
+}
@@ -0,0 +1,8 @@
+package com.mazadak.payment.dto.projection;
+
+import com.mazadak.payment.constant.TransferStatus;
+
+import java.util.UUID;
+
+public record TransferStatusView(UUID id, String stripeTransferId, TransferStatus status) {
+}
@@ -7,6 +7,7 @@ import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.NotNull;
 
 import java.util.List;
+import java.util.UUID;
 
 @Schema(description = "Request to create a new PaymentIntent")
 public record CreatePaymentIntentRequest(
@@ -26,5 +27,8 @@ public record CreatePaymentIntentRequest(
         @Schema(description = "A list of items in the cart that contain seller id and item amount")
         @NotEmpty
         @Valid
-        List<CartItem> items
+        List<CartItem> items,
+
+        @Schema(description = "ID of the buyer, keys the per-buyer attempt limit when given")
+        UUID buyerId
 ) {}
@@ -0,0 +1,26 @@
+package com.mazadak.payment.dto.request;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
+
+import java.util.List;
+import java.util.UUID;
+
+@Schema(description = "Orders whose payment status should be resolved in one call, by order id, PaymentIntent id or both")
+public record PaymentStatusRequest(
+
+        @Schema(description = "IDs of the orders")
+        @Size(max = 500)
+        List<@NotNull UUID> orderIds,
+
+        @Schema(description = "IDs of the PaymentIntents", example = "[\"pi_3P5Y2e1eZvKYlo2C0a1b2c3d\"]")
+        @Size(max = 500)
+        List<@NotBlank String> paymentIntentIds
+) {
+    public PaymentStatusRequest {
+        orderIds = orderIds == null ? List.of() : orderIds;
+        paymentIntentIds = paymentIntentIds == null ? List.of() : paymentIntentIds;
+    }
+}
@@ -0,0 +1,18 @@
+package com.mazadak.payment.dto.request;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
+
+import java.util.List;
+import java.util.UUID;
+
+@Schema(description = "Sellers whose Stripe onboarding status should be resolved in one call")
+public record SellerOnboardingStatusRequest(
+
+        @Schema(description = "IDs of the sellers in the cart")
+        @NotEmpty
+        @Size(max = 500)
+        List<@NotNull UUID> sellerIds
+) {}
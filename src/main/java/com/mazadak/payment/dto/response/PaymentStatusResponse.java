@@ -0,0 +1,68 @@
+package com.mazadak.payment.dto.response;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.dto.projection.PaymentStatusView;
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+@Schema(description = "Payment state of one order and the transfers to its sellers")
+public record PaymentStatusResponse(
+
+        @Schema(description = "ID of the order")
+        UUID orderId,
+
+        @Schema(description = "The PaymentIntent of the order", example = "pi_3P5Y2e1eZvKYlo2C0a1b2c3d")
+        String paymentIntentId,
+
+        @Schema(description = "Local status of the charge", example = "SUCCEEDED")
+        ChargeStatus status,
+
+        @Schema(description = "The amount charged", example = "49.99")
+        BigDecimal amount,
+
+        @Schema(description = "The currency of the charge", example = "usd")
+        String currency,
+
+        @Schema(description = "True once the charge has been refunded", example = "false")
+        boolean refunded,
+
+        @Schema(description = "Transfers to the sellers of the order, empty until the charge succeeds")
+        TransferSummary transfers
+) {
+    @Schema(description = "Seller transfers of a charge counted per status")
+    public record TransferSummary(
+
+            @Schema(description = "Number of transfers", example = "2")
+            long count,
+
+            @Schema(description = "Transfers paid out to the seller", example = "1")
+            long succeeded,
+
+            @Schema(description = "Transfers that failed and are retried", example = "1")
+            long failed,
+
+            @Schema(description = "Transfers waiting for the next deferred payout", example = "0")
+            long queued,
+
+            @Schema(description = "Transfers reversed by a refund", example = "0")
+            long reversed,
+
+            @Schema(description = "Sum of the succeeded transfers", example = "40.00")
+            BigDecimal transferredAmount
+    ) {}
+
+    public static PaymentStatusResponse from(PaymentStatusView view) {
+        return new PaymentStatusResponse(
+                view.orderId(),
+                view.paymentIntentId(),
+                view.status(),
+                view.amount(),
+                view.currency(),
+                Boolean.TRUE.equals(view.refunded()),
+                new TransferSummary(view.transfers(), view.succeededTransfers(), view.failedTransfers(), view.queuedTransfers(),
+                        view.reversedTransfers(), view.transferredAmount())
+        );
+    }
+}
@@ -0,0 +1,18 @@
+package com.mazadak.payment.dto.response;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.UUID;
+
+@Schema(description = "Whether a seller has connected a Stripe account and can receive payouts")
+public record SellerOnboardingStatus(
+
+        @Schema(description = "ID of the seller")
+        UUID sellerId,
+
+        @Schema(description = "True when the seller has a connected Stripe account", example = "true")
+        boolean onboarded,
+
+        @Schema(description = "The connected Stripe account, null when the seller is not onboarded", example = "acct_1P5Y2e1eZvKYlo2C")
+        String stripeAccountId
+) {}
@@ -0,0 +1,77 @@
+package com.mazadak.payment.export;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.TransferStatus;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.Function;
+
+/// A table finance can extract. Statuses are filtered and written by name, order items take the status of their charge.
+public enum ExportDataset {
+    CHARGES("charges", """
+            SELECT c.id, c.order_id, c.payment_intent_id, c.stripe_charge_id, c.amount, c.currency, c.status, c.refunded,
+                   c.checkout_type, c.created_at, c.updated_at
+            FROM charge_stripe_transactions c""",
+            "c.created_at", "c.status",
+            "EXISTS (SELECT 1 FROM order_items i WHERE i.charge_transaction_id = c.id AND i.seller_id = ?)",
+            name -> ChargeStatus.valueOf(name).getCode(), code -> ChargeStatus.fromCode(code).name()),
+    ORDER_ITEMS("order-items", """
+            SELECT i.id, i.charge_transaction_id, c.order_id, i.seller_id, i.amount, c.currency, c.status, i.created_at
+            FROM order_items i JOIN charge_stripe_transactions c ON c.id = i.charge_transaction_id""",
+            "i.created_at", "c.status", "i.seller_id = ?",
+            name -> ChargeStatus.valueOf(name).getCode(), code -> ChargeStatus.fromCode(code).name()),
+    TRANSFERS("transfers", """
+            SELECT t.id, t.charge_transaction_id, t.seller_id, t.seller_stripe_account_id, t.stripe_transfer_id, t.amount,
+                   t.currency, t.status, t.attempts, t.payout_id, t.created_at, t.updated_at
+            FROM transfer_stripe_transactions t""",
+            "t.created_at", "t.status", "t.seller_id = ?",
+            name -> TransferStatus.valueOf(name).getCode(), code -> TransferStatus.fromCode(code).name());
+
+    private final String key;
+    private final String select;
+    private final String createdAtColumn;
+    private final String statusColumn;
+    private final String sellerCondition;
+    private final Function<String, Short> statusCode;
+    private final Function<Short, String> statusName;
+
+    ExportDataset(String key, String select, String createdAtColumn, String statusColumn, String sellerCondition,
+                  Function<String, Short> statusCode, Function<Short, String> statusName) {
+        this.key = key;
+        this.select = select;
+        this.createdAtColumn = createdAtColumn;
+        this.statusColumn = statusColumn;
+        this.sellerCondition = sellerCondition;
+        this.statusCode = statusCode;
+        this.statusName = statusName;
+    }
+
+    public static Optional<ExportDataset> fromKey(String key) {
+        return Arrays.stream(values()).filter(dataset -> dataset.key.equals(key)).findFirst();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /// Rows come out in created_at order, which walks the monthly partitions one after another
+    String sql(int statusCount, boolean bySeller) {
+        StringBuilder sql = new StringBuilder(select)
+                .append(" WHERE ").append(createdAtColumn).append(" >= ? AND ").append(createdAtColumn).append(" < ?");
+        if (statusCount > 0)
+            sql.append(" AND ").append(statusColumn).append(" IN (").append("?, ".repeat(statusCount - 1)).append("?)");
+        if (bySeller)
+            sql.append(" AND ").append(sellerCondition);
+        return sql.append(" ORDER BY ").append(createdAtColumn).toString();
+    }
+
+    /// Throws IllegalArgumentException for a name that is not a status of this dataset
+    public short statusCode(String name) {
+        return statusCode.apply(name.trim().toUpperCase());
+    }
+
+    String statusName(short code) {
+        return statusName.apply(code);
+    }
+}
@@ -0,0 +1,109 @@
+package com.mazadak.payment.export;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+public enum ExportFormat {
+    CSV("csv", "text/csv;charset=UTF-8") {
+        @Override
+        RowWriter open(OutputStream out, List<String> columns) throws IOException {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writer.write(String.join(",", columns));
+            writer.write("\r\n");
+            return new RowWriter() {
+                @Override
+                public void write(Object[] values) throws IOException {
+                    for (int i = 0; i < values.length; i++) {
+                        if (i > 0)
+                            writer.write(',');
+                        if (values[i] != null)
+                            writer.write(escape(values[i] instanceof BigDecimal amount ? amount.toPlainString() : values[i].toString()));
+                    }
+                    writer.write("\r\n");
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    writer.flush();
+                }
+            };
+        }
+    },
+    NDJSON("ndjson", "application/x-ndjson") {
+        @Override
+        RowWriter open(OutputStream out, List<String> columns) throws IOException {
+            JsonGenerator generator = JSON.createGenerator(out);
+            generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+            return new RowWriter() {
+                @Override
+                public void write(Object[] values) throws IOException {
+                    generator.writeStartObject();
+                    for (int i = 0; i < values.length; i++) {
+                        generator.writeFieldName(columns.get(i));
+                        switch (values[i]) {
+                            case null -> generator.writeNull();
+                            case BigDecimal amount -> generator.writeNumber(amount);
+                            case Integer number -> generator.writeNumber(number);
+                            case Boolean flag -> generator.writeBoolean(flag);
+                            default -> generator.writeString(values[i].toString());
+                        }
+                    }
+                    generator.writeEndObject();
+                    generator.writeRaw('\n');
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    generator.flush();
+                }
+            };
+        }
+    };
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final String key;
+    private final String contentType;
+
+    ExportFormat(String key, String contentType) {
+        this.key = key;
+        this.contentType = contentType;
+    }
+
+    interface RowWriter {
+        void write(Object[] values) throws IOException;
+
+        void flush() throws IOException;
+    }
+
+    abstract RowWriter open(OutputStream out, List<String> columns) throws IOException;
+
+    public static Optional<ExportFormat> fromKey(String key) {
+        return Arrays.stream(values()).filter(format -> format.key.equalsIgnoreCase(key)).findFirst();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    private static String escape(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+            return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,78 @@
+package com.mazadak.payment.journal;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.TransferStatus;
+
+/// Binary layout shared by the writer and the reader. Every record has the same size so a segment can be scanned or
+/// binary searched by offset, and the magic is written last so a torn record at the tail is never read as valid.
+///
+/// | offset | size | field                                  |
+/// |--------|------|----------------------------------------|
+/// | 0      | 4    | magic, written last                    |
+/// | 4      | 1    | entity (1 charge, 2 transfer)          |
+/// | 5      | 1    | from-state code, 0 when created        |
+/// | 6      | 1    | to-state code                          |
+/// | 7      | 1    | reference length                       |
+/// | 8      | 8    | sequence                               |
+/// | 16     | 8    | timestamp, epoch millis                |
+/// | 24     | 16   | order id                               |
+/// | 40     | 1    | event id length                        |
+/// | 48     | 40   | reference, PaymentIntent or Transfer id|
+/// | 88     | 40   | event id or idempotency key            |
+final class JournalLayout {
+
+    static final int RECORD_SIZE = 128;
+    static final int MAGIC = 0x50534A31;
+
+    static final int MAGIC_OFFSET = 0;
+    static final int ENTITY_OFFSET = 4;
+    static final int FROM_STATE_OFFSET = 5;
+    static final int TO_STATE_OFFSET = 6;
+    static final int REFERENCE_LENGTH_OFFSET = 7;
+    static final int SEQUENCE_OFFSET = 8;
+    static final int TIMESTAMP_OFFSET = 16;
+    static final int ORDER_ID_OFFSET = 24;
+    static final int EVENT_ID_LENGTH_OFFSET = 40;
+    static final int REFERENCE_OFFSET = 48;
+    static final int EVENT_ID_OFFSET = 88;
+    static final int MAX_ID_LENGTH = 40;
+
+    static final byte ENTITY_CHARGE = 1;
+    static final byte ENTITY_TRANSFER = 2;
+
+    static final String SEGMENT_PREFIX = "payment-state-";
+    static final String SEGMENT_SUFFIX = ".journal";
+
+    private JournalLayout() {}
+
+    static byte stateCode(ChargeStatus status) {
+        return status == null ? 0 : (byte) status.getCode();
+    }
+
+    static byte stateCode(TransferStatus status) {
+        return status == null ? 0 : (byte) status.getCode();
+    }
+
+    static String stateName(byte entity, byte code) {
+        if (code == 0)
+            return null;
+
+        try {
+            return entity == ENTITY_TRANSFER ? TransferStatus.fromCode(code).name() : ChargeStatus.fromCode(code).name();
+        } catch (IllegalArgumentException e) {
+            return "UNKNOWN(" + code + ")";
+        }
+    }
+
+    static String entityName(byte entity) {
+        return switch (entity) {
+            case ENTITY_CHARGE -> "CHARGE";
+            case ENTITY_TRANSFER -> "TRANSFER";
+            default -> "UNKNOWN";
+        };
+    }
+
+    static String segmentName(long firstSequence) {
+        return SEGMENT_PREFIX + String.format("%020d", firstSequence) + SEGMENT_SUFFIX;
+    }
+}
@@ -0,0 +1,9 @@
+package com.mazadak.payment.journal;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/// Decoded journal entry, only built by the reader, the write path never allocates one
+public record JournalRecord(long sequence, Instant timestamp, String entity, UUID orderId, String reference,
+                            String fromState, String toState, String eventId) {
+}
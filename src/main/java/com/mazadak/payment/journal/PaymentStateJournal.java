@@ -0,0 +1,282 @@
+package com.mazadak.payment.journal;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.TransferStatus;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.mazadak.payment.journal.JournalLayout.*;
+
+/// Append-only journal of charge and transfer status transitions on memory-mapped, fixed-size segments.
+///
+/// Appends copy primitives into the mapped segment under a lock and return, the bytes are in the page cache and survive
+/// a process crash. A background thread forces dirty pages to disk every flush interval, so the hot path never waits on
+/// an fsync and at most one interval of records is exposed to a host crash. Inside a transaction the records are encoded
+/// into a buffer and copied in together on commit, so a rolled back status change is never journaled. Each thread reuses
+/// its buffer across transactions, but registering it with the transaction still allocates Spring's synchronization
+/// bookkeeping, a few small objects per transaction.
+@Component
+@Slf4j
+public class PaymentStateJournal {
+
+    @Value("${payment.journal.enabled:false}")
+    private boolean enabled;
+
+    /// No default, a directory that does not survive a restart or redeploy would lose the journal with it
+    @Value("${payment.journal.directory:#{null}}")
+    private Path directory;
+
+    @Value("${payment.journal.segment-size:64MB}")
+    private DataSize segmentSize;
+
+    @Value("${payment.journal.flush-interval:PT1S}")
+    private Duration flushInterval;
+
+    private ScheduledExecutorService flusher;
+    private MappedByteBuffer segment;
+    private int segmentCapacity;
+    private int position;
+    private int flushedPosition;
+    private long nextSequence;
+    /// The transaction buffer a thread used last, kept while no transaction of the thread has it bound
+    private final ThreadLocal<TransactionBuffer> idleBuffers = new ThreadLocal<>();
+
+    @PostConstruct
+    public synchronized void open() {
+        if (!enabled)
+            return;
+        if (directory == null)
+            throw new IllegalStateException("payment.journal.enabled is set but payment.journal.directory is not, it must point at persistent storage");
+
+        /// Round down to whole records so a record never straddles two segments
+        segmentCapacity = (int) Math.min(segmentSize.toBytes() / RECORD_SIZE * RECORD_SIZE, Integer.MAX_VALUE / RECORD_SIZE * RECORD_SIZE);
+        try {
+            Files.createDirectories(directory);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open payment state journal in " + directory.toAbsolutePath(), e);
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("payment-journal-flusher").daemon().factory());
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+        log.info("Payment state journal open in {} at sequence {}", directory.toAbsolutePath(), nextSequence);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (flusher == null)
+            return;
+
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(flushInterval.toMillis() * 2, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    public void recordCharge(UUID orderId, String paymentIntentId, ChargeStatus from, ChargeStatus to, String eventId) {
+        record(ENTITY_CHARGE, orderId, paymentIntentId, stateCode(from), stateCode(to), eventId);
+    }
+
+    public void recordTransfer(UUID orderId, String stripeTransferId, TransferStatus from, TransferStatus to, String eventId) {
+        record(ENTITY_TRANSFER, orderId, stripeTransferId, stateCode(from), stateCode(to), eventId);
+    }
+
+    private void record(byte entity, UUID orderId, String reference, byte fromState, byte toState, String eventId) {
+        if (!enabled)
+            return;
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            append(entity, orderId, reference, fromState, toState, eventId);
+            return;
+        }
+
+        TransactionBuffer buffer = (TransactionBuffer) TransactionSynchronizationManager.getResource(this);
+        if (buffer == null) {
+            buffer = idleBuffers.get();
+            if (buffer == null)
+                buffer = new TransactionBuffer();
+            else
+                idleBuffers.set(null);
+            TransactionSynchronizationManager.bindResource(this, buffer);
+            TransactionSynchronizationManager.registerSynchronization(buffer);
+        }
+        buffer.add(entity, orderId, reference, fromState, toState, eventId);
+    }
+
+    private synchronized void appendAll(ByteBuffer records, int size) {
+        if (segment == null)
+            return;
+
+        for (int offset = 0; offset < size; offset += RECORD_SIZE) {
+            if (position + RECORD_SIZE > segment.capacity())
+                rotate();
+
+            segment.put(position, records, offset, RECORD_SIZE);
+            seal(position);
+        }
+    }
+
+    private synchronized void append(byte entity, UUID orderId, String reference, byte fromState, byte toState, String eventId) {
+        if (segment == null)
+            return;
+
+        if (position + RECORD_SIZE > segment.capacity())
+            rotate();
+
+        encode(segment, position, entity, orderId, reference, fromState, toState, eventId);
+        seal(position);
+    }
+
+    /// Numbers and timestamps the record at base in the segment, then writes the magic that makes it valid
+    private void seal(int base) {
+        segment.putLong(base + SEQUENCE_OFFSET, nextSequence++);
+        segment.putLong(base + TIMESTAMP_OFFSET, System.currentTimeMillis());
+        segment.putInt(base + MAGIC_OFFSET, MAGIC);
+        position += RECORD_SIZE;
+    }
+
+    /// Every field except magic, sequence and timestamp, which are only known once the record is appended
+    private static void encode(ByteBuffer target, int base, byte entity, UUID orderId, String reference, byte fromState, byte toState, String eventId) {
+        target.put(base + ENTITY_OFFSET, entity);
+        target.put(base + FROM_STATE_OFFSET, fromState);
+        target.put(base + TO_STATE_OFFSET, toState);
+        target.put(base + REFERENCE_LENGTH_OFFSET, (byte) putAscii(target, base + REFERENCE_OFFSET, reference));
+        target.putLong(base + ORDER_ID_OFFSET, orderId == null ? 0 : orderId.getMostSignificantBits());
+        target.putLong(base + ORDER_ID_OFFSET + 8, orderId == null ? 0 : orderId.getLeastSignificantBits());
+        target.put(base + EVENT_ID_LENGTH_OFFSET, (byte) putAscii(target, base + EVENT_ID_OFFSET, eventId));
+    }
+
+    /// Stripe ids and UUID keys are ASCII, longer values are truncated to the field width
+    private static int putAscii(ByteBuffer target, int offset, String value) {
+        if (value == null)
+            return 0;
+
+        int length = Math.min(value.length(), MAX_ID_LENGTH);
+        for (int i = 0; i < length; i++)
+            target.put(offset + i, (byte) value.charAt(i));
+        return length;
+    }
+
+    private void flush() {
+        MappedByteBuffer current;
+        int from;
+        int to;
+        synchronized (this) {
+            current = segment;
+            from = flushedPosition;
+            to = position;
+            flushedPosition = position;
+        }
+        if (current != null && to > from)
+            current.force(from, to - from);
+    }
+
+    /// Only the segment switch allocates, once per segment, the full segment is forced off the append path
+    private void rotate() {
+        MappedByteBuffer previous = segment;
+        try {
+            segment = map(directory.resolve(segmentName(nextSequence)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not rotate payment state journal", e);
+        }
+        position = 0;
+        flushedPosition = 0;
+        if (previous != null && flusher != null)
+            flusher.execute(previous::force);
+    }
+
+    private void recover() throws IOException {
+        List<Path> segments = PaymentStateJournalReader.segments(directory);
+        if (segments.isEmpty()) {
+            nextSequence = 1;
+            rotate();
+            return;
+        }
+
+        Path last = segments.getLast();
+        segment = map(last);
+        position = 0;
+        nextSequence = firstSequence(last);
+        while (position + RECORD_SIZE <= segment.capacity() && segment.getInt(position + MAGIC_OFFSET) == MAGIC) {
+            nextSequence = segment.getLong(position + SEQUENCE_OFFSET) + 1;
+            position += RECORD_SIZE;
+        }
+        flushedPosition = position;
+    }
+
+    /// An existing segment keeps its size even if the configured size changed since it was created
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = Math.max(channel.size(), segmentCapacity);
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /// Bound to a transaction like a resource so it follows the transaction through suspend and resume, and handed
+    /// back to its thread once the transaction completes. Records are encoded in the segment layout and grow the
+    /// buffer only when a transaction journals more than any before it on the thread.
+    private final class TransactionBuffer implements TransactionSynchronization {
+
+        private ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 8);
+        private int size;
+
+        void add(byte entity, UUID orderId, String reference, byte fromState, byte toState, String eventId) {
+            if (size + RECORD_SIZE > records.capacity())
+                records = ByteBuffer.allocate(records.capacity() * 2).put(0, records, 0, size);
+            /// A reused slot may hold a longer id from an earlier record, the lengths say where each id ends
+            encode(records, size, entity, orderId, reference, fromState, toState, eventId);
+            size += RECORD_SIZE;
+        }
+
+        @Override
+        public void suspend() {
+            TransactionSynchronizationManager.unbindResource(PaymentStateJournal.this);
+        }
+
+        @Override
+        public void resume() {
+            TransactionSynchronizationManager.bindResource(PaymentStateJournal.this, this);
+        }
+
+        @Override
+        public void afterCommit() {
+            appendAll(records, size);
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(PaymentStateJournal.this);
+            size = 0;
+            idleBuffers.set(this);
+        }
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
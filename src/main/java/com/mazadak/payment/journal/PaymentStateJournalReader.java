@@ -0,0 +1,137 @@
+package com.mazadak.payment.journal;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static com.mazadak.payment.journal.JournalLayout.*;
+
+/// Reads journal segments in sequence order for incident forensics and replay. Safe to run against the directory of a
+/// live service, a record is only visible once its magic has been written.
+///
+/// ```
+/// java -cp "/app/classes:/app/libs/*" com.mazadak.payment.journal.PaymentStateJournalReader <directory>
+///      [--order <uuid>] [--reference <pi_...|tr_...>] [--since <instant>] [--until <instant>] [--csv]
+/// ```
+public final class PaymentStateJournalReader {
+
+    private PaymentStateJournalReader() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: PaymentStateJournalReader <directory> [--order <uuid>] [--reference <id>] [--since <instant>] [--until <instant>] [--csv]");
+            System.exit(2);
+        }
+
+        Path directory = Path.of(args[0]);
+        Predicate<JournalRecord> filter = record -> true;
+        boolean csv = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--order" -> {
+                    UUID orderId = UUID.fromString(args[++i]);
+                    filter = filter.and(record -> orderId.equals(record.orderId()));
+                }
+                case "--reference" -> {
+                    String reference = args[++i];
+                    filter = filter.and(record -> reference.equals(record.reference()));
+                }
+                case "--since" -> {
+                    Instant since = Instant.parse(args[++i]);
+                    filter = filter.and(record -> !record.timestamp().isBefore(since));
+                }
+                case "--until" -> {
+                    Instant until = Instant.parse(args[++i]);
+                    filter = filter.and(record -> record.timestamp().isBefore(until));
+                }
+                case "--csv" -> csv = true;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        PrintStream out = System.out;
+        if (csv)
+            out.println("sequence,timestamp,entity,order_id,reference,from_state,to_state,event_id");
+
+        Predicate<JournalRecord> selected = filter;
+        boolean asCsv = csv;
+        long read = read(directory, record -> {
+            if (!selected.test(record))
+                return;
+            if (asCsv)
+                out.printf("%d,%s,%s,%s,%s,%s,%s,%s%n", record.sequence(), record.timestamp(), record.entity(), record.orderId(),
+                        nullToEmpty(record.reference()), nullToEmpty(record.fromState()), nullToEmpty(record.toState()), nullToEmpty(record.eventId()));
+            else
+                out.printf("%10d %s %-8s order=%s ref=%s %s -> %s event=%s%n", record.sequence(), record.timestamp(), record.entity(),
+                        record.orderId(), record.reference(), record.fromState(), record.toState(), record.eventId());
+        });
+        System.err.printf("%d records read from %s%n", read, directory.toAbsolutePath());
+    }
+
+    /// Feeds every committed record to the consumer in sequence order and returns how many were read
+    public static long read(Path directory, Consumer<JournalRecord> consumer) throws IOException {
+        long count = 0;
+        for (Path segment : segments(directory)) {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                for (int base = 0; base + RECORD_SIZE <= buffer.capacity() && buffer.getInt(base + MAGIC_OFFSET) == MAGIC; base += RECORD_SIZE) {
+                    consumer.accept(decode(buffer, base));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    static List<Path> segments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory))
+            return List.of();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                    .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static JournalRecord decode(MappedByteBuffer buffer, int base) {
+        long mostSignificant = buffer.getLong(base + ORDER_ID_OFFSET);
+        long leastSignificant = buffer.getLong(base + ORDER_ID_OFFSET + 8);
+        byte entity = buffer.get(base + ENTITY_OFFSET);
+        return new JournalRecord(
+                buffer.getLong(base + SEQUENCE_OFFSET),
+                Instant.ofEpochMilli(buffer.getLong(base + TIMESTAMP_OFFSET)),
+                entityName(entity),
+                mostSignificant == 0 && leastSignificant == 0 ? null : new UUID(mostSignificant, leastSignificant),
+                ascii(buffer, base + REFERENCE_OFFSET, buffer.get(base + REFERENCE_LENGTH_OFFSET)),
+                stateName(entity, buffer.get(base + FROM_STATE_OFFSET)),
+                stateName(entity, buffer.get(base + TO_STATE_OFFSET)),
+                ascii(buffer, base + EVENT_ID_OFFSET, buffer.get(base + EVENT_ID_LENGTH_OFFSET)));
+    }
+
+    private static String ascii(MappedByteBuffer buffer, int offset, int length) {
+        if (length == 0)
+            return null;
+
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,18 @@
+package com.mazadak.payment.lease;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/// Runs the method only on the replica holding the named lease, on every other replica the call returns without doing
+/// anything. Meant for @Scheduled jobs that would otherwise run on all replicas at once.
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface JobLease {
+
+    /// Lease name, shared by every replica running the job
+    String value();
+}
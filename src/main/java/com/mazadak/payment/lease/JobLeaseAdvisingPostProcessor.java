@@ -0,0 +1,52 @@
+package com.mazadak.payment.lease;
+
+import lombok.extern.slf4j.Slf4j;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.autoproxy.AbstractBeanFactoryAwareAdvisingPostProcessor;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.dao.DataAccessException;
+
+import java.util.Optional;
+
+/// Proxies beans with {@link JobLease} methods, the way @Async is applied. The manager is looked up on the first call
+/// since a post-processor is created before the beans it depends on.
+@Slf4j
+public class JobLeaseAdvisingPostProcessor extends AbstractBeanFactoryAwareAdvisingPostProcessor {
+
+    public JobLeaseAdvisingPostProcessor(ObjectProvider<JobLeaseManager> jobLeaseManager) {
+        this.advisor = new DefaultPointcutAdvisor(AnnotationMatchingPointcut.forMethodAnnotation(JobLease.class), interceptor(jobLeaseManager));
+        setBeforeExistingAdvisors(true);
+        setProxyTargetClass(true);
+    }
+
+    private static MethodInterceptor interceptor(ObjectProvider<JobLeaseManager> jobLeaseManager) {
+        return (MethodInvocation invocation) -> {
+            Class<?> targetClass = invocation.getThis() == null ? invocation.getMethod().getDeclaringClass() : AopUtils.getTargetClass(invocation.getThis());
+            JobLease annotation = AnnotatedElementUtils.findMergedAnnotation(AopUtils.getMostSpecificMethod(invocation.getMethod(), targetClass), JobLease.class);
+
+            Optional<Lease> lease;
+            try {
+                lease = jobLeaseManager.getObject().tryAcquire(annotation.value());
+            } catch (DataAccessException e) {
+                log.warn("Skipping {}, job lease could not be checked: {}", annotation.value(), e.getMessage());
+                return null;
+            }
+            if (lease.isEmpty()) {
+                log.debug("Skipping {}, another replica holds its lease", annotation.value());
+                return null;
+            }
+
+            Lease enclosing = JobLeaseManager.enter(lease.get());
+            try {
+                return invocation.proceed();
+            } finally {
+                JobLeaseManager.exit(enclosing);
+            }
+        };
+    }
+}
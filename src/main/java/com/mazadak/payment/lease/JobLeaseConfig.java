@@ -0,0 +1,14 @@
+package com.mazadak.payment.lease;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class JobLeaseConfig {
+
+    @Bean
+    static JobLeaseAdvisingPostProcessor jobLeaseAdvisingPostProcessor(ObjectProvider<JobLeaseManager> jobLeaseManager) {
+        return new JobLeaseAdvisingPostProcessor(jobLeaseManager);
+    }
+}
@@ -0,0 +1,182 @@
+package com.mazadak.payment.lease;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/// Leases in the job_leases table decide which replica runs each {@link JobLease} job. A replica keeps a lease by
+/// renewing it every renew-interval on its own thread, so a long run on the single scheduler thread cannot let it lapse.
+/// Once a lease is older than its TTL any replica may take it over, which bumps the fencing token. Leases are released
+/// on shutdown, so a rolling deploy hands jobs over at the next run instead of after the TTL. All times come from the
+/// database clock, clock skew between replicas does not matter.
+///
+/// Metrics: payment.job.lease.held (1 on the holder), payment.job.lease.hold (how long a replica held a lease until it
+/// released or lost it) and payment.job.lease.handover (from the previous holder's expiry or release to the takeover).
+@Component
+@Slf4j
+public class JobLeaseManager {
+
+    /// The CTE reads the row as it was before the statement, a takeover reports how long the lease had been free
+    static final String ACQUIRE = """
+            WITH previous AS (SELECT owner, expires_at FROM job_leases WHERE job_name = ?)
+            INSERT INTO job_leases AS l (job_name, owner, fencing_token, acquired_at, expires_at)
+            VALUES (?, ?, 1, now(), now() + make_interval(secs => ?))
+            ON CONFLICT (job_name) DO UPDATE SET
+                owner = EXCLUDED.owner,
+                fencing_token = CASE WHEN l.owner = EXCLUDED.owner THEN l.fencing_token ELSE l.fencing_token + 1 END,
+                acquired_at = CASE WHEN l.owner = EXCLUDED.owner THEN l.acquired_at ELSE now() END,
+                expires_at = EXCLUDED.expires_at
+            WHERE l.owner = EXCLUDED.owner OR l.expires_at < now()
+            RETURNING l.fencing_token,
+                (SELECT EXTRACT(EPOCH FROM now() - p.expires_at) FROM previous p WHERE p.owner <> l.owner) AS free_seconds""";
+
+    static final String RENEW = "UPDATE job_leases SET expires_at = now() + make_interval(secs => ?) WHERE owner = ? RETURNING job_name";
+
+    /// FOR SHARE holds off a takeover until the caller's transaction ends
+    static final String CHECK = "SELECT 1 FROM job_leases WHERE job_name = ? AND owner = ? AND fencing_token = ? FOR SHARE";
+
+    static final String RELEASE = "UPDATE job_leases SET expires_at = now() WHERE owner = ?";
+
+    private static final ThreadLocal<Lease> CURRENT = new ThreadLocal<>();
+
+    private final JdbcTemplate jdbcTemplate;
+    private final MeterRegistry meterRegistry;
+    private final Duration ttl;
+    private final Duration renewInterval;
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+
+    private record Held(long fencingToken, long acquiredAt) {}
+
+    private final Map<String, Held> held = new ConcurrentHashMap<>();
+    private final Set<String> gauged = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService renewer;
+
+    public JobLeaseManager(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry,
+                           @Value("${payment.job-lease.ttl:PT30S}") Duration ttl,
+                           @Value("${payment.job-lease.renew-interval:PT10S}") Duration renewInterval) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.meterRegistry = meterRegistry;
+        this.ttl = ttl;
+        this.renewInterval = renewInterval;
+    }
+
+    @PostConstruct
+    void start() {
+        renewer = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("job-lease-renewer").daemon().factory());
+        renewer.scheduleWithFixedDelay(this::renew, renewInterval.toMillis(), renewInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        renewer.shutdownNow();
+        if (held.isEmpty())
+            return;
+
+        try {
+            jdbcTemplate.update(RELEASE, owner);
+        } catch (DataAccessException e) {
+            log.warn("Could not release job leases {}, other replicas take over once they expire: {}", held.keySet(), e.getMessage());
+        }
+        held.keySet().forEach(this::lost);
+    }
+
+    /// The lease of the job running on this thread, empty outside {@link JobLease} methods
+    public static Optional<Lease> current() {
+        return Optional.ofNullable(CURRENT.get());
+    }
+
+    static Lease enter(Lease lease) {
+        Lease enclosing = CURRENT.get();
+        CURRENT.set(lease);
+        return enclosing;
+    }
+
+    static void exit(Lease enclosing) {
+        if (enclosing == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(enclosing);
+    }
+
+    /// Takes the lease if it is free or expired, or extends it if this replica already holds it
+    public Optional<Lease> tryAcquire(String jobName) {
+        registerGauge(jobName);
+        List<Lease> granted = jdbcTemplate.query(ACQUIRE, (rs, row) -> {
+            double freeSeconds = rs.getDouble("free_seconds");
+            if (!rs.wasNull())
+                meterRegistry.timer("payment.job.lease.handover", "job", jobName).record(Duration.ofMillis((long) (freeSeconds * 1000)));
+            return new Lease(jobName, rs.getLong("fencing_token"));
+        }, jobName, jobName, owner, ttl.toMillis() / 1000.0);
+
+        if (granted.isEmpty()) {
+            lost(jobName);
+            return Optional.empty();
+        }
+
+        Lease lease = granted.getFirst();
+        Held previous = held.get(jobName);
+        if (previous == null || previous.fencingToken() != lease.fencingToken()) {
+            if (previous != null)
+                lost(jobName);
+            held.put(jobName, new Held(lease.fencingToken(), System.nanoTime()));
+            log.info("Acquired job lease {} with fencing token {}", jobName, lease.fencingToken());
+        }
+        return Optional.of(lease);
+    }
+
+    /// Call inside the transaction that writes a job's results. Fails if another replica has taken the lease over, and
+    /// otherwise keeps the lease from changing hands until that transaction ends. A no-op outside {@link JobLease} methods.
+    public void checkFence() {
+        Lease lease = CURRENT.get();
+        if (lease == null)
+            return;
+
+        if (jdbcTemplate.queryForList(CHECK, Integer.class, lease.jobName(), owner, lease.fencingToken()).isEmpty())
+            throw new IllegalStateException("Job lease " + lease.jobName() + " with fencing token " + lease.fencingToken() + " was taken over");
+    }
+
+    void renew() {
+        if (held.isEmpty())
+            return;
+
+        try {
+            Set<String> renewed = new HashSet<>(jdbcTemplate.queryForList(RENEW, String.class, ttl.toMillis() / 1000.0, owner));
+            held.keySet().stream().filter(jobName -> !renewed.contains(jobName)).toList().forEach(jobName -> {
+                log.warn("Lost job lease {} to another replica", jobName);
+                lost(jobName);
+            });
+        } catch (DataAccessException e) {
+            log.warn("Could not renew job leases {}: {}", held.keySet(), e.getMessage());
+        }
+    }
+
+    private void lost(String jobName) {
+        Held lease = held.remove(jobName);
+        if (lease != null)
+            meterRegistry.timer("payment.job.lease.hold", "job", jobName).record(System.nanoTime() - lease.acquiredAt(), TimeUnit.NANOSECONDS);
+    }
+
+    private void registerGauge(String jobName) {
+        if (gauged.add(jobName))
+            meterRegistry.gauge("payment.job.lease.held", Tags.of("job", jobName), held, leases -> leases.containsKey(jobName) ? 1 : 0);
+    }
+}
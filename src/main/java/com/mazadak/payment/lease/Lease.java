@@ -0,0 +1,5 @@
+package com.mazadak.payment.lease;
+
+/// The fencing token grows with every change of owner, a write carrying an older token comes from a replica that lost the lease
+public record Lease(String jobName, long fencingToken) {
+}
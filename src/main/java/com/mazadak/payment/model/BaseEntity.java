@@ -15,7 +15,7 @@ import org.springframework.data.annotation.LastModifiedBy;
 import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.jpa.domain.support.AuditingEntityListener;
 
-import java.time.LocalDate;
+import java.time.LocalDateTime;
 
 @Data
 @MappedSuperclass
@@ -32,10 +32,10 @@ public class BaseEntity {
     @CreatedDate
     @CurrentTimestamp
     @Column(updatable = false)
-    private LocalDate created_at;
+    private LocalDateTime created_at;
 
     @LastModifiedDate
     @Column(insertable = false)
-    private LocalDate updated_at;
+    private LocalDateTime updated_at;
 }
 
@@ -0,0 +1,19 @@
+package com.mazadak.payment.model;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+@Converter(autoApply = true)
+public class ChargeStatusConverter implements AttributeConverter<ChargeStatus, Short> {
+
+    @Override
+    public Short convertToDatabaseColumn(ChargeStatus status) {
+        return status == null ? null : status.getCode();
+    }
+
+    @Override
+    public ChargeStatus convertToEntityAttribute(Short code) {
+        return code == null ? null : ChargeStatus.fromCode(code);
+    }
+}
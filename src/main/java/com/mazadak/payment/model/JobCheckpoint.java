@@ -0,0 +1,24 @@
+package com.mazadak.payment.model;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Entity
+@Table(name = "job_checkpoints")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class JobCheckpoint extends BaseEntity {
+
+    @Id
+    private String jobName;
+
+    /// Job-specific position, e.g. the Stripe `created` epoch second a reconciliation run starts from
+    @Column(nullable = false)
+    private Long position;
+}
@@ -0,0 +1,59 @@
+package com.mazadak.payment.model;
+
+import com.mazadak.payment.constant.TransferStatus;
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/// One aggregated Stripe transfer of the deferred payout mode, covering every transfer row whose payoutId points here
+@Entity
+@Table(name = "seller_payouts")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class SellerPayout extends BaseEntity {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private UUID id;
+
+    @Column(nullable = false)
+    private UUID sellerId;
+
+    private String sellerStripeAccountId;
+
+    @Column(nullable = false)
+    private String currency;
+
+    /// Fixed once the payout was first sent, so every retry repeats the same request under the same idempotency key
+    @Column(nullable = false)
+    private BigDecimal amount;
+
+    @Column(nullable = false)
+    private Integer shareCount;
+
+    @Column(unique = true)
+    private String stripeTransferId;
+
+    @Column(nullable = false)
+    private TransferStatus status;
+
+    private String stripeErrorMessage;
+
+    @Column(nullable = false)
+    @Builder.Default
+    private Integer attempts = 0;
+
+    private LocalDateTime nextAttemptAt;
+
+    public String transferGroup() {
+        return "payout-" + id;
+    }
+}
@@ -0,0 +1,9 @@
+package com.mazadak.payment.model;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/// One seller's share of a charge, with the connected account resolved when the PaymentIntent was created. The account
+/// is null for charges created before the split was stored.
+public record SellerSplit(UUID sellerId, BigDecimal amount, String stripeAccountId) {
+}
@@ -1,12 +1,17 @@
 package com.mazadak.payment.model;
 
+import com.mazadak.payment.constant.ChargeStatus;
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.annotations.UuidGenerator;
+import org.hibernate.type.SqlTypes;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.UUID;
 
@@ -20,7 +25,7 @@ import java.util.UUID;
 public class StripeChargeTransaction extends BaseEntity {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.UUID)
+    @UuidGenerator(algorithm = TimeOrderedUuidGenerator.class)
     private UUID id;
 
     @Column(nullable = false, unique = true)
@@ -39,7 +44,7 @@ public class StripeChargeTransaction extends BaseEntity {
     private String currency;
 
     @Column(nullable = false)
-    private String status;
+    private ChargeStatus status;
 
     @Column(unique = true)
     private UUID idempotencyKey;
@@ -48,9 +53,20 @@ public class StripeChargeTransaction extends BaseEntity {
 
     private Boolean refunded;
 
+    /// When the card authorization of a REQUIRES_CAPTURE PaymentIntent lapses
+    private LocalDateTime authorizationExpiresAt;
+
+    /// AUCTION or FIXED, null on charges created before it was stored
+    private String checkoutType;
+
+    /// Per-seller totals and accounts, computed once at intent creation so the success webhook reads a ready payout plan
+    @JdbcTypeCode(SqlTypes.JSON)
+    private List<SellerSplit> sellerSplit;
+
     @OneToMany(mappedBy = "chargeTransaction", cascade = CascadeType.ALL)
     private List<StripeTransferTransaction> transfers;
 
-    @OneToMany(mappedBy = "chargeTransaction", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
+    /// One row per seller since sellerSplit was added, lazy since the hot paths read sellerSplit
+    @OneToMany(mappedBy = "chargeTransaction", cascade = CascadeType.ALL)
     private List<OrderItem> orderItems;
 }
@@ -1,13 +1,16 @@
 package com.mazadak.payment.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.mazadak.payment.constant.TransferStatus;
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.UuidGenerator;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
 import java.util.UUID;
 
 
@@ -20,7 +23,7 @@ import java.util.UUID;
 public class StripeTransferTransaction extends BaseEntity {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.UUID)
+    @UuidGenerator(algorithm = TimeOrderedUuidGenerator.class)
     private UUID id;
 
     @ManyToOne(fetch = FetchType.LAZY)
@@ -31,7 +34,8 @@ public class StripeTransferTransaction extends BaseEntity {
     @Column(unique = true)
     private String stripeTransferId;
 
-    @Column(nullable = false)
+    private UUID sellerId;
+
     private String sellerStripeAccountId;
 
     @Column(nullable = false)
@@ -41,8 +45,23 @@ public class StripeTransferTransaction extends BaseEntity {
     private String currency;
 
     @Column(nullable = false)
-    private String status;
+    private TransferStatus status;
 
     private String stripeErrorMessage;
 
+    /// Reused on every retry so Stripe never executes the same transfer twice
+    private String idempotencyKey;
+
+    @Column(nullable = false)
+    @Builder.Default
+    private Integer attempts = 0;
+
+    private LocalDateTime nextAttemptAt;
+
+    /// Stripe transfer group of the order, set on shares queued for a deferred payout
+    private String transferGroup;
+
+    /// The SellerPayout a queued share was paid out with
+    private UUID payoutId;
+
 }
\ No newline at end of file
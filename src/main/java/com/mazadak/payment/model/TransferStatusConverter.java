@@ -0,0 +1,19 @@
+package com.mazadak.payment.model;
+
+import com.mazadak.payment.constant.TransferStatus;
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+
+@Converter(autoApply = true)
+public class TransferStatusConverter implements AttributeConverter<TransferStatus, Short> {
+
+    @Override
+    public Short convertToDatabaseColumn(TransferStatus status) {
+        return status == null ? null : status.getCode();
+    }
+
+    @Override
+    public TransferStatus convertToEntityAttribute(Short code) {
+        return code == null ? null : TransferStatus.fromCode(code);
+    }
+}
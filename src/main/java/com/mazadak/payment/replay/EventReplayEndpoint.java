@@ -0,0 +1,60 @@
+package com.mazadak.payment.replay;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/// Admin access to {@link EventReplayService}, e.g.
+/// `POST /actuator/eventreplay/orders-2025-10 {"from": "2025-10-01T00:00", "to": "2025-11-01T00:00", "statuses": "SUCCEEDED"}`
+/// starts or resumes a replay, GET reports its progress and DELETE cancels it. Statuses are comma separated and default to
+/// every status that has an event.
+@Component
+@Endpoint(id = "eventreplay")
+@RequiredArgsConstructor
+public class EventReplayEndpoint {
+
+    private final EventReplayService eventReplayService;
+
+    @ReadOperation
+    public Collection<EventReplayProgress> replays() {
+        return eventReplayService.list();
+    }
+
+    @ReadOperation
+    public EventReplayProgress replay(@Selector String name) {
+        return eventReplayService.get(name);
+    }
+
+    @WriteOperation
+    public EventReplayProgress start(@Selector String name, String from, String to, @Nullable String statuses) {
+        try {
+            Set<ChargeStatus> replayed = statuses == null ? Set.of() : Arrays.stream(statuses.split(","))
+                    .map(String::trim)
+                    .filter(status -> !status.isEmpty())
+                    .map(status -> ChargeStatus.valueOf(status.toUpperCase()))
+                    .collect(Collectors.toSet());
+            return eventReplayService.start(name, LocalDateTime.parse(from), LocalDateTime.parse(to), replayed);
+        } catch (IllegalArgumentException | IllegalStateException | DateTimeParseException e) {
+            throw new InvalidEndpointRequestException(e.getMessage(), e.getMessage());
+        }
+    }
+
+    @DeleteOperation
+    public EventReplayProgress cancel(@Selector String name) {
+        return eventReplayService.cancel(name);
+    }
+}
@@ -0,0 +1,54 @@
+package com.mazadak.payment.replay;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+
+/// Live state of one replay as reported by the eventreplay endpoint, only kept in memory of the instance running it
+@Getter
+public class EventReplayProgress {
+
+    public enum State {
+        RUNNING, COMPLETED, CANCELED, FAILED
+    }
+
+    private final String name;
+    private final LocalDateTime from;
+    private final LocalDateTime to;
+    private final Set<ChargeStatus> statuses;
+    private final LocalDateTime resumedFrom;
+    private volatile State state = State.RUNNING;
+    private volatile long published;
+    /// created_at of the last published charge
+    private volatile LocalDateTime position;
+    private volatile String error;
+    private volatile boolean cancelRequested;
+
+    EventReplayProgress(String name, LocalDateTime from, LocalDateTime to, Set<ChargeStatus> statuses, LocalDateTime resumedFrom) {
+        this.name = name;
+        this.from = from;
+        this.to = to;
+        this.statuses = statuses;
+        this.resumedFrom = resumedFrom;
+    }
+
+    void published(LocalDateTime position) {
+        this.published++;
+        this.position = position;
+    }
+
+    void finish(State state, String error) {
+        this.state = state;
+        this.error = error;
+    }
+
+    void requestCancel() {
+        cancelRequested = true;
+    }
+
+    boolean isRunning() {
+        return state == State.RUNNING;
+    }
+}
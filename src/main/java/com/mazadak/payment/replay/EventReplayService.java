@@ -0,0 +1,256 @@
+package com.mazadak.payment.replay;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.dto.event.PaymentAuthorizedEvent;
+import com.mazadak.payment.dto.event.PaymentFailedEvent;
+import com.mazadak.payment.dto.event.PaymentSuccessEvent;
+import com.mazadak.payment.dto.projection.ChargeReplayView;
+import com.mazadak.payment.model.JobCheckpoint;
+import com.mazadak.payment.repository.JobCheckpointRepository;
+import com.mazadak.payment.repository.StripeChargeTransactionRepository;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
+import com.stripe.exception.StripeException;
+import com.stripe.model.PaymentIntent;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/// Publishes the payment events of stored charges again, for consumers that lost them. A replay reads a created_at
+/// range from one server-side cursor, so memory stays flat however many charges it covers, and sends each charge's
+/// current state as the event the webhook sent for it: PaymentSuccessEvent for SUCCEEDED, PaymentAuthorizedEvent for
+/// REQUIRES_CAPTURE and PaymentFailedEvent for FAILED and CANCELED.
+///
+/// Publishing is paced to max-rate events per second. Every batch-size events the position is checkpointed under the
+/// replay's name, range and statuses, one batch behind so the producer has flushed what the checkpoint covers. Starting
+/// the same replay again resumes from its checkpoint, a completed one publishes nothing, while reusing the name for
+/// another range or other statuses starts from the beginning. Delivery is at least once, events around a checkpoint may
+/// go out twice.
+@Service
+@Slf4j
+public class EventReplayService {
+
+    static final String JOB_PREFIX = "event-replay:";
+    static final Set<ChargeStatus> REPLAYABLE = EnumSet.of(ChargeStatus.SUCCEEDED, ChargeStatus.REQUIRES_CAPTURE, ChargeStatus.FAILED, ChargeStatus.CANCELED);
+
+    @Value("${payment.replay.max-rate:200}")
+    private int maxRate;
+
+    @Value("${payment.replay.batch-size:500}")
+    private int batchSize;
+
+    private final StripeChargeTransactionRepository stripeChargeTransactionRepository;
+    private final JobCheckpointRepository jobCheckpointRepository;
+    private final StreamBridge streamBridge;
+    private final StripeGateway stripeGateway;
+    private final MeterRegistry meterRegistry;
+    /// The cursor lives in a read-only transaction, checkpoints commit on their own while it stays open
+    private final TransactionTemplate cursorTransaction;
+    private final TransactionTemplate checkpointTransaction;
+
+    private final Map<String, EventReplayProgress> replays = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(Thread.ofPlatform().name("event-replay").factory());
+
+    public EventReplayService(StripeChargeTransactionRepository stripeChargeTransactionRepository, JobCheckpointRepository jobCheckpointRepository,
+                              StreamBridge streamBridge, StripeGateway stripeGateway, MeterRegistry meterRegistry, PlatformTransactionManager transactionManager) {
+        this.stripeChargeTransactionRepository = stripeChargeTransactionRepository;
+        this.jobCheckpointRepository = jobCheckpointRepository;
+        this.streamBridge = streamBridge;
+        this.stripeGateway = stripeGateway;
+        this.meterRegistry = meterRegistry;
+        this.cursorTransaction = new TransactionTemplate(transactionManager);
+        this.cursorTransaction.setReadOnly(true);
+        this.checkpointTransaction = new TransactionTemplate(transactionManager);
+        this.checkpointTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        replays.values().forEach(EventReplayProgress::requestCancel);
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /// One replay runs at a time per instance, which keeps max-rate the actual load on the brokers
+    public synchronized EventReplayProgress start(String name, LocalDateTime from, LocalDateTime to, Set<ChargeStatus> statuses) {
+        Set<ChargeStatus> replayed = statuses == null || statuses.isEmpty() ? REPLAYABLE : EnumSet.copyOf(statuses);
+        if (!REPLAYABLE.containsAll(replayed))
+            throw new IllegalArgumentException("Only " + REPLAYABLE + " have events to replay, got " + statuses);
+        if (!from.isBefore(to))
+            throw new IllegalArgumentException("Replay range is empty: " + from + " to " + to);
+        String checkpointName = checkpointName(name, from, to, replayed);
+        if (name.isBlank() || checkpointName.length() > 100)
+            throw new IllegalArgumentException("Replay name must be 1 to " + (100 - checkpointName.length() + name.length()) + " characters");
+        replays.values().stream().filter(EventReplayProgress::isRunning).findAny().ifPresent(running -> {
+            throw new IllegalStateException("Replay " + running.getName() + " is still running");
+        });
+
+        LocalDateTime resumeFrom = loadCheckpoint(checkpointName).filter(checkpoint -> checkpoint.isAfter(from)).orElse(from);
+        EventReplayProgress progress = new EventReplayProgress(name, from, to, replayed, resumeFrom);
+        replays.put(name, progress);
+        executor.execute(() -> run(progress));
+        log.info("Started event replay {} of {} charges created from {} to {}", name, replayed, resumeFrom, to);
+        return progress;
+    }
+
+    /// Where a replay checkpoints, its range in epoch seconds and its statuses as a bit set of their codes
+    public static String checkpointName(String name, LocalDateTime from, LocalDateTime to, Set<ChargeStatus> statuses) {
+        int statusBits = statuses.stream().mapToInt(status -> 1 << status.getCode()).reduce(0, (a, b) -> a | b);
+        return JOB_PREFIX + name + ":" + from.toEpochSecond(ZoneOffset.UTC) + "-" + to.toEpochSecond(ZoneOffset.UTC) + ":" + Integer.toHexString(statusBits);
+    }
+
+    public EventReplayProgress get(String name) {
+        return replays.get(name);
+    }
+
+    public Collection<EventReplayProgress> list() {
+        return replays.values();
+    }
+
+    public EventReplayProgress cancel(String name) {
+        EventReplayProgress progress = replays.get(name);
+        if (progress != null)
+            progress.requestCancel();
+        return progress;
+    }
+
+    void run(EventReplayProgress progress) {
+        try {
+            boolean completed = Boolean.TRUE.equals(cursorTransaction.execute(status -> replay(progress)));
+            if (completed) {
+                saveCheckpoint(progress, progress.getTo());
+                progress.finish(EventReplayProgress.State.COMPLETED, null);
+            } else {
+                progress.finish(EventReplayProgress.State.CANCELED, null);
+            }
+            log.info("Event replay {} {} after {} events", progress.getName(), progress.getState(), progress.getPublished());
+        } catch (RuntimeException e) {
+            progress.finish(EventReplayProgress.State.FAILED, e.getMessage());
+            log.error("Event replay {} failed after {} events at {}: {}", progress.getName(), progress.getPublished(), progress.getPosition(), e.getMessage());
+        }
+    }
+
+    private boolean replay(EventReplayProgress progress) {
+        long startedAt = System.nanoTime();
+        LocalDateTime previousBatchEnd = null;
+        int inBatch = 0;
+
+        try (Stream<ChargeReplayView> rows = stripeChargeTransactionRepository.streamForReplay(progress.getStatuses(), progress.getResumedFrom(), progress.getTo())) {
+            Iterator<ChargeReplayView> iterator = rows.iterator();
+            while (iterator.hasNext()) {
+                if (progress.isCancelRequested()) {
+                    if (previousBatchEnd != null)
+                        saveCheckpoint(progress, previousBatchEnd);
+                    return false;
+                }
+
+                ChargeReplayView row = iterator.next();
+                publish(row);
+                progress.published(row.createdAt());
+
+                if (++inBatch == batchSize) {
+                    if (previousBatchEnd != null)
+                        saveCheckpoint(progress, previousBatchEnd);
+                    previousBatchEnd = row.createdAt();
+                    inBatch = 0;
+                }
+                throttle(startedAt, progress.getPublished());
+            }
+        }
+        return true;
+    }
+
+    private void publish(ChargeReplayView row) {
+        String orderId = row.orderId().toString();
+        String binding;
+        Object event;
+        switch (row.status()) {
+            case SUCCEEDED -> {
+                binding = "paymentSuccess-out-0";
+                event = new PaymentSuccessEvent(row.paymentIntentId(), orderId, checkoutType(row));
+            }
+            case REQUIRES_CAPTURE -> {
+                binding = "paymentAuthorized-out-0";
+                event = new PaymentAuthorizedEvent(row.paymentIntentId(), orderId, checkoutType(row), row.amount().movePointRight(2));
+            }
+            case FAILED -> {
+                binding = "paymentFailed-out-0";
+                event = new PaymentFailedEvent(row.paymentIntentId(), orderId, row.stripeErrorMessage() != null ? row.stripeErrorMessage() : "Unknown reason");
+            }
+            case CANCELED -> {
+                binding = "paymentFailed-out-0";
+                event = new PaymentFailedEvent(row.paymentIntentId(), orderId, "Payment was canceled");
+            }
+            default -> throw new IllegalStateException("No event to replay for " + row.status() + " charge of order " + orderId);
+        }
+
+        if (!streamBridge.send(binding, event))
+            throw new IllegalStateException("Could not publish replayed event for order " + orderId + " to " + binding);
+        meterRegistry.counter("payment.replay.events", "binding", binding).increment();
+    }
+
+    /// Charges created before checkout_type was stored only have it in the PaymentIntent metadata
+    private String checkoutType(ChargeReplayView row) {
+        if (row.checkoutType() != null)
+            return row.checkoutType();
+
+        try {
+            PaymentIntent paymentIntent = stripeGateway.call(StripeOperation.PAYMENT_INTENT_RETRIEVE,
+                    options -> PaymentIntent.retrieve(row.paymentIntentId(), options.build()));
+            return paymentIntent.getMetadata().get("checkoutType");
+        } catch (StripeException e) {
+            throw new IllegalStateException("Could not look up the checkout type of PaymentIntent " + row.paymentIntentId() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void throttle(long startedAt, long published) {
+        long aheadNanos = published * 1_000_000_000L / maxRate - (System.nanoTime() - startedAt);
+        if (aheadNanos <= 0)
+            return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while pacing the replay", e);
+        }
+    }
+
+    private Optional<LocalDateTime> loadCheckpoint(String checkpointName) {
+        return jobCheckpointRepository.findById(checkpointName)
+                .map(checkpoint -> LocalDateTime.ofInstant(Instant.ofEpochMilli(checkpoint.getPosition()), ZoneId.systemDefault()));
+    }
+
+    /// Millisecond precision, a resumed replay starts at or just before the checkpointed charge
+    private void saveCheckpoint(EventReplayProgress progress, LocalDateTime position) {
+        String checkpointName = checkpointName(progress.getName(), progress.getFrom(), progress.getTo(), progress.getStatuses());
+        long epochMillis = position.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        checkpointTransaction.executeWithoutResult(status -> {
+            JobCheckpoint checkpoint = jobCheckpointRepository.findById(checkpointName).orElseGet(() -> new JobCheckpoint(checkpointName, epochMillis));
+            checkpoint.setPosition(epochMillis);
+            jobCheckpointRepository.save(checkpoint);
+        });
+    }
+}
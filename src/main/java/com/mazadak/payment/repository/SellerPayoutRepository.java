@@ -0,0 +1,29 @@
+package com.mazadak.payment.repository;
+
+import com.mazadak.payment.model.SellerPayout;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface SellerPayoutRepository extends JpaRepository<SellerPayout, UUID> {
+
+    /// Payouts not sent yet or failed, rows locked by another replica are skipped
+    @Query(value = """
+            SELECT * FROM seller_payouts
+            WHERE status IN (3, 12) /* TransferStatus.FAILED, QUEUED, literals so the partial index matches */ AND next_attempt_at <= :now
+            ORDER BY next_attempt_at
+            LIMIT :limit
+            FOR UPDATE SKIP LOCKED
+            """, nativeQuery = true)
+    List<SellerPayout> claimDuePayouts(@Param("now") LocalDateTime now, @Param("limit") int limit);
+
+    @Query("select p.stripeTransferId from SellerPayout p where p.stripeTransferId in :stripeTransferIds")
+    List<String> findStripeTransferIdsIn(@Param("stripeTransferIds") Collection<String> stripeTransferIds);
+}
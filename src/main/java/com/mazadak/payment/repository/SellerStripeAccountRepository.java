@@ -4,9 +4,13 @@ import com.mazadak.payment.model.SellerStripeAccount;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 @Repository
 public interface SellerStripeAccountRepository extends JpaRepository<SellerStripeAccount, String> {
     SellerStripeAccount findBySellerId(UUID sellerId);
+
+    List<SellerStripeAccount> findAllBySellerIdIn(Collection<UUID> sellerIds);
 }
\ No newline at end of file
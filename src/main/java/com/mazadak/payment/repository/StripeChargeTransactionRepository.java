@@ -1,15 +1,107 @@
 package com.mazadak.payment.repository;
 
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.dto.projection.AuthorizationHoldView;
+import com.mazadak.payment.dto.projection.ChargeReplayView;
+import com.mazadak.payment.dto.projection.ChargeStatusView;
+import com.mazadak.payment.dto.projection.PaymentStatusView;
+import com.mazadak.payment.dto.projection.SellerTotal;
+import com.mazadak.payment.dto.projection.UnconfirmedIntentView;
 import com.mazadak.payment.model.StripeChargeTransaction;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 @Repository
 public interface StripeChargeTransactionRepository extends JpaRepository<StripeChargeTransaction, UUID> {
 
-    Optional<StripeChargeTransaction> findByOrderId(UUID orderId);
-    Optional<StripeChargeTransaction> findByPaymentIntentId(String paymentIntentId);
+    /// charge_lookup carries the partition key, so these only probe the partition that holds the charge
+    @Query(value = "SELECT c.* FROM charge_stripe_transactions c " +
+            "JOIN charge_lookup l ON c.id = l.charge_id AND c.created_at = l.created_at WHERE l.order_id = :orderId", nativeQuery = true)
+    Optional<StripeChargeTransaction> findByOrderId(@Param("orderId") UUID orderId);
+
+    @Query(value = "SELECT c.* FROM charge_stripe_transactions c " +
+            "JOIN charge_lookup l ON c.id = l.charge_id AND c.created_at = l.created_at WHERE l.payment_intent_id = :paymentIntentId", nativeQuery = true)
+    Optional<StripeChargeTransaction> findByPaymentIntentId(@Param("paymentIntentId") String paymentIntentId);
+
+    @Query("select new com.mazadak.payment.dto.projection.SellerTotal(i.sellerId, sum(i.amount)) " +
+            "from OrderItem i where i.chargeTransaction.id = :chargeId group by i.sellerId")
+    List<SellerTotal> sumOrderItemsBySeller(@Param("chargeId") UUID chargeId);
+
+    @Query("select new com.mazadak.payment.dto.projection.ChargeStatusView(c.id, c.orderId, c.paymentIntentId, c.status, c.stripeChargeId) " +
+            "from StripeChargeTransaction c where c.paymentIntentId in :paymentIntentIds")
+    List<ChargeStatusView> findStatusViewsByPaymentIntentIds(@Param("paymentIntentIds") Collection<String> paymentIntentIds);
+
+    /// Charges and their transfer counts in one statement, neither entities nor order items are loaded. Each id probes the
+    /// order_id or payment_intent_id index of every partition, there is no created_at to prune with.
+    @Query("select new com.mazadak.payment.dto.projection.PaymentStatusView(c.orderId, c.paymentIntentId, c.status, c.amount, c.currency, c.refunded, " +
+            "count(t.id), " +
+            "sum(case when t.status = com.mazadak.payment.constant.TransferStatus.SUCCEEDED then 1 else 0 end), " +
+            "sum(case when t.status = com.mazadak.payment.constant.TransferStatus.FAILED then 1 else 0 end), " +
+            "sum(case when t.status = com.mazadak.payment.constant.TransferStatus.QUEUED then 1 else 0 end), " +
+            "sum(case when t.status = com.mazadak.payment.constant.TransferStatus.REVERSED then 1 else 0 end), " +
+            "coalesce(sum(case when t.status = com.mazadak.payment.constant.TransferStatus.SUCCEEDED then t.amount end), 0)) " +
+            "from StripeChargeTransaction c left join c.transfers t " +
+            "where c.orderId in :orderIds or c.paymentIntentId in :paymentIntentIds " +
+            "group by c.id, c.orderId, c.paymentIntentId, c.status, c.amount, c.currency, c.refunded")
+    List<PaymentStatusView> findPaymentStatusViews(@Param("orderIds") Collection<UUID> orderIds, @Param("paymentIntentIds") Collection<String> paymentIntentIds);
+
+    @Query("select new com.mazadak.payment.dto.projection.ChargeStatusView(c.id, c.orderId, c.paymentIntentId, c.status, c.stripeChargeId) " +
+            "from StripeChargeTransaction c where c.status in :statuses and c.created_at < :createdBefore and c.id > :afterId order by c.id")
+    List<ChargeStatusView> findStuckStatusViews(@Param("statuses") Collection<ChargeStatus> statuses, @Param("createdBefore") LocalDateTime createdBefore,
+                                                @Param("afterId") UUID afterId, Pageable pageable);
+
+    /// Holds expiring up to dueBefore, however long ago, in keyset pages after (afterExpiry, afterId)
+    @Query("select new com.mazadak.payment.dto.projection.AuthorizationHoldView(c.id, c.orderId, c.authorizationExpiresAt) " +
+            "from StripeChargeTransaction c where c.status = :status and c.authorizationExpiresAt <= :dueBefore and (c.authorizationExpiresAt > :afterExpiry " +
+            "or (c.authorizationExpiresAt = :afterExpiry and c.id > :afterId)) order by c.authorizationExpiresAt, c.id")
+    List<AuthorizationHoldView> findDueAuthorizationHolds(@Param("status") ChargeStatus status, @Param("dueBefore") LocalDateTime dueBefore,
+                                                          @Param("afterExpiry") LocalDateTime afterExpiry, @Param("afterId") UUID afterId, Pageable pageable);
+
+    @Query("select new com.mazadak.payment.dto.projection.UnconfirmedIntentView(c.id, c.orderId, c.created_at) " +
+            "from StripeChargeTransaction c where c.status in :statuses and c.created_at >= :createdFrom and c.created_at < :createdBefore " +
+            "order by c.created_at, c.id")
+    List<UnconfirmedIntentView> findUnconfirmedIntents(@Param("statuses") Collection<ChargeStatus> statuses, @Param("createdFrom") LocalDateTime createdFrom,
+                                                       @Param("createdBefore") LocalDateTime createdBefore, Pageable pageable);
+
+    /// Walks a created_at range on a server-side cursor, rows arrive in fetch-size chunks and the projection keeps
+    /// nothing in the persistence context. Has to be consumed inside a transaction, Postgres only streams without autocommit.
+    @Query("select new com.mazadak.payment.dto.projection.ChargeReplayView(c.id, c.orderId, c.paymentIntentId, c.status, c.amount, " +
+            "c.checkoutType, c.stripeErrorMessage, c.created_at) " +
+            "from StripeChargeTransaction c where c.status in :statuses and c.created_at >= :createdFrom and c.created_at < :createdBefore " +
+            "order by c.created_at, c.id")
+    @QueryHints({@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"), @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")})
+    Stream<ChargeReplayView> streamForReplay(@Param("statuses") Collection<ChargeStatus> statuses, @Param("createdFrom") LocalDateTime createdFrom,
+                                             @Param("createdBefore") LocalDateTime createdBefore);
+
+    /// Only if the status is still the one it was read with, an expiry that is already set is kept
+    @Modifying
+    @Query("update StripeChargeTransaction c set c.status = :status, c.stripeChargeId = coalesce(:stripeChargeId, c.stripeChargeId), " +
+            "c.authorizationExpiresAt = coalesce(c.authorizationExpiresAt, :authorizationExpiresAt) where c.id = :id and c.status = :expectedStatus")
+    int updateStatus(@Param("id") UUID id, @Param("expectedStatus") ChargeStatus expectedStatus, @Param("status") ChargeStatus status,
+                     @Param("stripeChargeId") String stripeChargeId, @Param("authorizationExpiresAt") LocalDateTime authorizationExpiresAt);
+
+    /// Writes a cached snapshot back only if the status is still the one it was read with, created_at prunes the partitions.
+    /// Clears the persistence context so a reload after a lost race does not get the stale managed instance back.
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query("update StripeChargeTransaction c set c.status = :status, c.stripeChargeId = :stripeChargeId, c.idempotencyKey = :idempotencyKey, " +
+            "c.stripeErrorMessage = :stripeErrorMessage, c.refunded = :refunded, c.authorizationExpiresAt = :authorizationExpiresAt, " +
+            "c.updated_at = local datetime where c.id = :id and c.created_at = :createdAt and c.status = :expectedStatus")
+    int compareAndSet(@Param("id") UUID id, @Param("createdAt") LocalDateTime createdAt, @Param("expectedStatus") ChargeStatus expectedStatus,
+                      @Param("status") ChargeStatus status, @Param("stripeChargeId") String stripeChargeId, @Param("idempotencyKey") UUID idempotencyKey,
+                      @Param("stripeErrorMessage") String stripeErrorMessage, @Param("refunded") Boolean refunded,
+                      @Param("authorizationExpiresAt") LocalDateTime authorizationExpiresAt);
 }
@@ -1,11 +1,114 @@
 package com.mazadak.payment.repository;
 
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.dto.projection.PayoutGroup;
+import com.mazadak.payment.dto.projection.PayoutShare;
+import com.mazadak.payment.dto.projection.TransferRetryCandidate;
+import com.mazadak.payment.dto.projection.TransferStatusView;
 import com.mazadak.payment.model.StripeTransferTransaction;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 @Repository
 public interface StripeTransferTransactionRepository extends JpaRepository<StripeTransferTransaction, UUID> {
+
+    @Query("select new com.mazadak.payment.dto.projection.TransferStatusView(t.id, t.stripeTransferId, t.status) " +
+            "from StripeTransferTransaction t where t.stripeTransferId in :stripeTransferIds")
+    List<TransferStatusView> findStatusViewsByStripeTransferIds(@Param("stripeTransferIds") Collection<String> stripeTransferIds);
+
+    @Query("select new com.mazadak.payment.dto.projection.TransferStatusView(t.id, t.stripeTransferId, t.status) " +
+            "from StripeTransferTransaction t where t.chargeTransaction.id = :chargeId")
+    List<TransferStatusView> findStatusViewsByChargeId(@Param("chargeId") UUID chargeId);
+
+    @Query("select t.sellerId from StripeTransferTransaction t where t.chargeTransaction.id = :chargeId")
+    List<UUID> findSellerIdsByChargeId(@Param("chargeId") UUID chargeId);
+
+    @Modifying
+    @Query("update StripeTransferTransaction t set t.status = :status where t.id = :id")
+    int updateStatus(@Param("id") UUID id, @Param("status") TransferStatus status);
+
+    @Modifying
+    @Query("update StripeTransferTransaction t set t.status = :status where t.chargeTransaction.id = :chargeId and t.status <> :status")
+    int updateStatusByChargeId(@Param("chargeId") UUID chargeId, @Param("status") TransferStatus status);
+
+    /// Rows locked by another replica are skipped instead of waited on, so replicas drain disjoint batches
+    @Query(value = """
+            SELECT t.id AS id, c.order_id AS orderId, t.seller_id AS sellerId, t.seller_stripe_account_id AS sellerStripeAccountId,
+                   t.amount AS amount, t.currency AS currency, t.idempotency_key AS idempotencyKey, t.attempts AS attempts,
+                   c.stripe_charge_id AS sourceTransaction
+            FROM transfer_stripe_transactions t
+            JOIN charge_stripe_transactions c ON c.id = t.charge_transaction_id
+            WHERE t.status = 3 /* TransferStatus.FAILED, a literal so the partial index matches */ AND t.next_attempt_at <= :now
+            ORDER BY t.next_attempt_at
+            LIMIT :limit
+            FOR UPDATE OF t SKIP LOCKED
+            """, nativeQuery = true)
+    List<TransferRetryCandidate> claimDueFailedTransfers(@Param("now") LocalDateTime now, @Param("limit") int limit);
+
+    /// Moves claimed rows out of the due window while they are retried outside the claiming transaction
+    @Modifying
+    @Query("update StripeTransferTransaction t set t.nextAttemptAt = :until where t.id in :ids")
+    int postponeRetries(@Param("ids") Collection<UUID> ids, @Param("until") LocalDateTime until);
+
+    /// Only while the transfer is still in the status it was claimed in, a refund may have moved it in the meantime
+    @Modifying
+    @Query("update StripeTransferTransaction t set t.status = :status, t.stripeTransferId = :stripeTransferId, " +
+            "t.sellerStripeAccountId = :sellerStripeAccountId, t.stripeErrorMessage = null, t.attempts = t.attempts + 1, " +
+            "t.nextAttemptAt = null where t.id = :id and t.status = :expectedStatus")
+    int markRetrySucceeded(@Param("id") UUID id, @Param("expectedStatus") TransferStatus expectedStatus, @Param("status") TransferStatus status,
+                           @Param("stripeTransferId") String stripeTransferId, @Param("sellerStripeAccountId") String sellerStripeAccountId);
+
+    @Modifying
+    @Query("update StripeTransferTransaction t set t.sellerStripeAccountId = :sellerStripeAccountId, t.stripeErrorMessage = :stripeErrorMessage, " +
+            "t.attempts = t.attempts + 1, t.nextAttemptAt = :nextAttemptAt where t.id = :id and t.status = :expectedStatus")
+    int markRetryFailed(@Param("id") UUID id, @Param("expectedStatus") TransferStatus expectedStatus, @Param("sellerStripeAccountId") String sellerStripeAccountId,
+                        @Param("stripeErrorMessage") String stripeErrorMessage, @Param("nextAttemptAt") LocalDateTime nextAttemptAt);
+
+    @Query(value = """
+            SELECT t.seller_id AS sellerId, t.currency AS currency
+            FROM transfer_stripe_transactions t
+            WHERE t.status = 12 /* TransferStatus.QUEUED */ AND t.payout_id IS NULL AND t.created_at <= :settledBefore
+            GROUP BY t.seller_id, t.currency
+            LIMIT :limit
+            """, nativeQuery = true)
+    List<PayoutGroup> findQueuedPayoutGroups(@Param("settledBefore") LocalDateTime settledBefore, @Param("limit") int limit);
+
+    @Query(value = """
+            SELECT t.id AS id, c.order_id AS orderId, t.amount AS amount
+            FROM transfer_stripe_transactions t
+            JOIN charge_stripe_transactions c ON c.id = t.charge_transaction_id
+            WHERE t.status = 12 /* TransferStatus.QUEUED */ AND t.payout_id IS NULL AND t.seller_id = :sellerId
+              AND t.currency = :currency AND t.created_at <= :settledBefore
+            ORDER BY t.created_at
+            LIMIT :limit
+            FOR UPDATE OF t SKIP LOCKED
+            """, nativeQuery = true)
+    List<PayoutShare> claimQueuedShares(@Param("sellerId") UUID sellerId, @Param("currency") String currency,
+                                        @Param("settledBefore") LocalDateTime settledBefore, @Param("limit") int limit);
+
+    @Modifying
+    @Query("update StripeTransferTransaction t set t.payoutId = :payoutId where t.id in :ids")
+    int assignPayout(@Param("ids") Collection<UUID> ids, @Param("payoutId") UUID payoutId);
+
+    /// Locks the shares while the payout is sent, a concurrent refund waits instead of reversing a share mid-payout
+    @Query(value = """
+            SELECT t.id AS id, c.order_id AS orderId, t.amount AS amount
+            FROM transfer_stripe_transactions t
+            JOIN charge_stripe_transactions c ON c.id = t.charge_transaction_id
+            WHERE t.payout_id = :payoutId AND t.status = 12 /* TransferStatus.QUEUED */
+            FOR UPDATE OF t
+            """, nativeQuery = true)
+    List<PayoutShare> lockQueuedShares(@Param("payoutId") UUID payoutId);
+
+    @Modifying
+    @Query("update StripeTransferTransaction t set t.status = :to where t.payoutId = :payoutId and t.status = :from")
+    int updatePayoutShareStatus(@Param("payoutId") UUID payoutId, @Param("from") TransferStatus from, @Param("to") TransferStatus to);
 }
@@ -0,0 +1,59 @@
+package com.mazadak.payment.selleraccount;
+
+import com.mazadak.common.exception.shared.ResourceNotFoundException;
+import com.mazadak.payment.dto.response.SellerOnboardingStatus;
+import com.mazadak.payment.model.SellerStripeAccount;
+import com.mazadak.payment.repository.SellerStripeAccountRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/// Resolves sellers' connected accounts from the seller account replica, and from a read replica of the database for
+/// the ones it does not know. A bean of its own so callers go through the transactional proxy, a call from inside
+/// StripePaymentService would join its read-write transaction and read the primary.
+@Service
+@RequiredArgsConstructor
+public class SellerAccountLookup {
+
+    private final SellerStripeAccountRepository sellerStripeAccountRepository;
+    private final SellerAccountReplica sellerAccountReplica;
+
+    /// Accounts in the seller account replica need no query, the others are read from a read replica when replica
+    /// routing is enabled
+    @Transactional(readOnly = true)
+    public String getStripeAccountId(UUID sellerId) {
+        Optional<String> replicated = sellerAccountReplica.find(sellerId);
+        if (replicated.isPresent())
+            return replicated.get();
+
+        SellerStripeAccount sellerStripeAccount = sellerStripeAccountRepository.findBySellerId(sellerId);
+        if (sellerStripeAccount == null)
+            throw new ResourceNotFoundException("SellerStripeAccount", "sellerId", sellerId.toString());
+
+        return sellerStripeAccount.getStripeAccountId();
+    }
+
+    /// Resolves every seller in at most one query, in request order and without duplicates. Sellers in the seller account
+    /// replica are not queried, a cart of known sellers needs no query at all. Called from inside a read-write transaction
+    /// it joins it and reads the primary, checkout resolves its sellers before anything is written.
+    @Transactional(readOnly = true)
+    public List<SellerOnboardingStatus> getOnboardingStatuses(Collection<UUID> sellerIds) {
+        List<UUID> distinctSellerIds = sellerIds.stream().distinct().toList();
+        Map<UUID, String> stripeAccountIds = new HashMap<>(sellerAccountReplica.findAll(distinctSellerIds));
+        List<UUID> unresolved = distinctSellerIds.stream().filter(sellerId -> !stripeAccountIds.containsKey(sellerId)).toList();
+        if (!unresolved.isEmpty())
+            sellerStripeAccountRepository.findAllBySellerIdIn(unresolved)
+                    .forEach(account -> stripeAccountIds.put(account.getSellerId(), account.getStripeAccountId()));
+
+        return distinctSellerIds.stream()
+                .map(sellerId -> new SellerOnboardingStatus(sellerId, stripeAccountIds.containsKey(sellerId), stripeAccountIds.get(sellerId)))
+                .toList();
+    }
+}
@@ -0,0 +1,212 @@
+package com.mazadak.payment.selleraccount;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mazadak.payment.dto.event.SellerAccountChangedEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.WakeupException;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/// In-memory copy of the compacted seller-accounts topic that OnboardingService publishes to, keyed by seller id. At
+/// startup it reads every partition from the beginning up to the end offsets it found, and readiness waits for that
+/// like it waits for WarmupRunner, at most load-timeout. After that it follows the topic on its own thread.
+///
+/// Lookups that miss, and every lookup before the load finished, are left to the caller's database query, so an
+/// account published moments ago costs a query rather than a wrong answer. Assigning partitions instead of joining a
+/// consumer group gives every replica the whole topic and commits no offsets. Metrics: payment.seller-accounts.replica.size,
+/// payment.seller-accounts.replica.load and payment.seller-accounts.replica.lookups{result=hit|miss}.
+@Component
+@Slf4j
+public class SellerAccountReplica implements ApplicationRunner {
+
+    private static final Duration POLL = Duration.ofSeconds(1);
+
+    private final Supplier<Consumer<String, byte[]>> consumerFactory;
+    private final String topic;
+    private final Duration loadTimeout;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final Counter hits;
+    private final Counter misses;
+
+    private final Map<UUID, String> accounts = new ConcurrentHashMap<>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile boolean running = true;
+    private volatile Consumer<String, byte[]> consumer;
+    private Thread follower;
+
+    @Autowired
+    public SellerAccountReplica(Environment environment, ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                                @Value("${payment.seller-accounts.replica.enabled:true}") boolean enabled,
+                                @Value("${payment.seller-accounts.topic:seller-accounts}") String topic,
+                                @Value("${payment.seller-accounts.replica.load-timeout:PT30S}") Duration loadTimeout) {
+        this(enabled ? () -> kafkaConsumer(environment) : null, topic, loadTimeout, objectMapper, meterRegistry);
+    }
+
+    /// A null consumer factory disables the replica, every lookup then misses
+    public SellerAccountReplica(Supplier<Consumer<String, byte[]>> consumerFactory, String topic, Duration loadTimeout,
+                                ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.consumerFactory = consumerFactory;
+        this.topic = topic;
+        this.loadTimeout = loadTimeout;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.hits = meterRegistry.counter("payment.seller-accounts.replica.lookups", "result", "hit");
+        this.misses = meterRegistry.counter("payment.seller-accounts.replica.lookups", "result", "miss");
+        meterRegistry.gauge("payment.seller-accounts.replica.size", accounts, Map::size);
+    }
+
+    private static Consumer<String, byte[]> kafkaConsumer(Environment environment) {
+        List<String> brokers = Binder.get(environment).bind("spring.cloud.stream.kafka.binder.brokers", Bindable.listOf(String.class))
+                .orElse(List.of("localhost:9092"));
+        return new KafkaConsumer<>(Map.of(
+                ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, String.join(",", brokers),
+                ConsumerConfig.CLIENT_ID_CONFIG, "seller-account-replica",
+                ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false,
+                ConsumerConfig.ALLOW_AUTO_CREATE_TOPICS_CONFIG, false,
+                ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest"), new StringDeserializer(), new ByteArrayDeserializer());
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (consumerFactory == null)
+            return;
+
+        long start = System.nanoTime();
+        follower = Thread.ofPlatform().name("seller-account-replica").daemon().start(this::follow);
+        if (loaded.await(loadTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            meterRegistry.timer("payment.seller-accounts.replica.load").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            log.info("Loaded {} seller accounts from {} in {} ms", accounts.size(), topic, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } else {
+            log.warn("Seller accounts from {} not loaded within {}, lookups go to the database until they are", topic, loadTimeout);
+        }
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        Consumer<String, byte[]> current = consumer;
+        if (current != null)
+            current.wakeup();
+        if (follower != null)
+            follower.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    /// Empty when the seller has no account or the replica is not loaded yet
+    public Optional<String> find(UUID sellerId) {
+        String stripeAccountId = isLoaded() ? accounts.get(sellerId) : null;
+        (stripeAccountId == null ? misses : hits).increment();
+        return Optional.ofNullable(stripeAccountId);
+    }
+
+    /// The accounts of the sellers that have one here, the caller queries the rest
+    public Map<UUID, String> findAll(Collection<UUID> sellerIds) {
+        Map<UUID, String> found = new HashMap<>();
+        sellerIds.forEach(sellerId -> find(sellerId).ifPresent(stripeAccountId -> found.put(sellerId, stripeAccountId)));
+        return found;
+    }
+
+    public boolean isLoaded() {
+        return loaded.getCount() == 0;
+    }
+
+    private void follow() {
+        try (Consumer<String, byte[]> consumer = consumerFactory.get()) {
+            this.consumer = consumer;
+            List<TopicPartition> partitions = partitions(consumer);
+            if (partitions.isEmpty())
+                return;
+
+            consumer.assign(partitions);
+            consumer.seekToBeginning(partitions);
+            Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+            while (running) {
+                try {
+                    for (ConsumerRecord<String, byte[]> record : consumer.poll(POLL))
+                        apply(record);
+                    if (!isLoaded() && endOffsets.entrySet().stream().allMatch(end -> consumer.position(end.getKey()) >= end.getValue()))
+                        loaded.countDown();
+                } catch (WakeupException e) {
+                    throw e;
+                } catch (KafkaException e) {
+                    log.warn("Could not read seller accounts from {}, retrying: {}", topic, e.getMessage());
+                }
+            }
+        } catch (WakeupException e) {
+            /// Woken by stop
+        } catch (RuntimeException e) {
+            log.error("Stopped following seller accounts on {}, lookups go to the database", topic, e);
+            accounts.clear();
+        }
+    }
+
+    /// The producer binding creates the topic as compacted, this consumer must not create it first with the broker defaults
+    private List<TopicPartition> partitions(Consumer<String, byte[]> consumer) {
+        while (running) {
+            try {
+                List<PartitionInfo> infos = consumer.partitionsFor(topic, POLL);
+                if (infos != null && !infos.isEmpty())
+                    return infos.stream().map(info -> new TopicPartition(info.topic(), info.partition())).toList();
+            } catch (WakeupException e) {
+                throw e;
+            } catch (KafkaException e) {
+                log.debug("Topic {} not available yet: {}", topic, e.getMessage());
+            }
+            try {
+                Thread.sleep(POLL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return List.of();
+            }
+        }
+        return List.of();
+    }
+
+    private void apply(ConsumerRecord<String, byte[]> record) {
+        if (record.key() == null) {
+            log.warn("Skipping seller account record without a key at {}-{}@{}", record.topic(), record.partition(), record.offset());
+            return;
+        }
+
+        try {
+            UUID sellerId = UUID.fromString(record.key());
+            if (record.value() == null)
+                accounts.remove(sellerId);
+            else
+                accounts.put(sellerId, objectMapper.readValue(record.value(), SellerAccountChangedEvent.class).stripeAccountId());
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Skipping seller account record at {}-{}@{}: {}", record.topic(), record.partition(), record.offset(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.mazadak.payment.service.impl;
+
+import com.mazadak.payment.bulkhead.Bulkhead;
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.dto.projection.AuthorizationHoldView;
+import com.mazadak.payment.dto.projection.UnconfirmedIntentView;
+import com.mazadak.payment.lease.JobLease;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.model.JobCheckpoint;
+import com.mazadak.payment.repository.JobCheckpointRepository;
+import com.mazadak.payment.repository.StripeChargeTransactionRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/// Captures or releases card authorizations before they lapse and cancels PaymentIntents that were never confirmed.
+/// Holds due within the lead time are kept in a priority queue ordered by expiry and refilled from the database in
+/// keyset pages. A hold that was acted on leaves REQUIRES_CAPTURE and is not loaded again, one whose action failed is,
+/// however long ago it expired. The creation time of the stale intents processed so far is checkpointed so a restart
+/// resumes where it stopped.
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "payment.authorization.lifecycle.enabled", havingValue = "true", matchIfMissing = true)
+public class AuthorizationLifecycleService {
+
+    static final String STALE_INTENT_JOB = "stale-intent-cleanup";
+
+    private static final UUID MIN_UUID = new UUID(Long.MIN_VALUE, Long.MIN_VALUE);
+    private static final LocalDateTime EPOCH = LocalDateTime.of(1970, 1, 1, 0, 0);
+    private static final Set<ChargeStatus> UNCONFIRMED_STATES = EnumSet.of(ChargeStatus.PENDING,
+            ChargeStatus.REQUIRES_PAYMENT_METHOD, ChargeStatus.REQUIRES_CONFIRMATION, ChargeStatus.REQUIRES_ACTION);
+
+    public enum ExpiryAction { CAPTURE, CANCEL }
+
+    @Value("${payment.authorization.lifecycle.expiry-action:CANCEL}")
+    private ExpiryAction expiryAction;
+
+    /// How long before expiry a hold is acted on
+    @Value("${payment.authorization.lifecycle.lead-time:PT6H}")
+    private Duration leadTime;
+
+    @Value("${payment.authorization.lifecycle.stale-after:PT24H}")
+    private Duration staleAfter;
+
+    @Value("${payment.authorization.lifecycle.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${payment.authorization.lifecycle.batch-size:50}")
+    private int batchSize;
+
+    @Value("${payment.authorization.lifecycle.concurrency:4}")
+    private int concurrency;
+
+    private final StripePaymentService stripePaymentService;
+    private final StripeChargeTransactionRepository stripeChargeTransactionRepository;
+    private final JobCheckpointRepository jobCheckpointRepository;
+    private final MeterRegistry meterRegistry;
+    private final Bulkheads bulkheads;
+    private final TransactionTemplate transactionTemplate;
+    private final JobLeaseManager jobLeaseManager;
+
+    private final PriorityQueue<AuthorizationHoldView> holds = new PriorityQueue<>(
+            Comparator.comparing(AuthorizationHoldView::authorizationExpiresAt).thenComparing(AuthorizationHoldView::id));
+    private final Set<UUID> queuedIds = new HashSet<>();
+    /// The queue itself is only touched by the scheduler thread, the gauge reads this copy of its size
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private AuthorizationHoldView lastLoaded;
+    private ExecutorService executor;
+
+    @PostConstruct
+    void start() {
+        executor = Executors.newFixedThreadPool(concurrency);
+        meterRegistry.gauge("payment.authorization.queue.size", queueSize);
+    }
+
+    @PreDestroy
+    void stop() {
+        executor.shutdown();
+    }
+
+    /// Only ever called from the single scheduler thread, so the queue needs no locking
+    @JobLease("authorization-lifecycle")
+    @Scheduled(fixedDelayString = "${payment.authorization.lifecycle.interval:PT1M}", initialDelayString = "${payment.authorization.lifecycle.initial-delay:PT1M}")
+    public void run() {
+        processExpiringHolds();
+        cancelStaleIntents();
+    }
+
+    void processExpiringHolds() {
+        LocalDateTime actBefore = LocalDateTime.now().plus(leadTime);
+        refill(actBefore);
+
+        while (!holds.isEmpty() && !holds.peek().authorizationExpiresAt().isAfter(actBefore)) {
+            List<AuthorizationHoldView> batch = new ArrayList<>(batchSize);
+            while (batch.size() < batchSize && !holds.isEmpty() && !holds.peek().authorizationExpiresAt().isAfter(actBefore))
+                batch.add(holds.poll());
+            queueSize.set(holds.size());
+
+            List<AuthorizationHoldView> failed = runBatch(batch, hold -> () -> {
+                if (expiryAction == ExpiryAction.CAPTURE)
+                    stripePaymentService.capturePayment(hold.orderId());
+                else
+                    stripePaymentService.cancelPayment(hold.orderId());
+                return null;
+            });
+
+            batch.forEach(hold -> queuedIds.remove(hold.id()));
+            meterRegistry.counter("payment.authorization.expiring", "action", expiryAction.name(), "outcome", "succeeded").increment(batch.size() - failed.size());
+            meterRegistry.counter("payment.authorization.expiring", "action", expiryAction.name(), "outcome", "failed").increment(failed.size());
+
+            /// Failed holds are still REQUIRES_CAPTURE, the next run loads them again
+            if (!failed.isEmpty()) {
+                lastLoaded = null;
+                break;
+            }
+        }
+    }
+
+    void cancelStaleIntents() {
+        LocalDateTime createdFrom = loadCheckpoint(STALE_INTENT_JOB);
+        LocalDateTime createdBefore = LocalDateTime.now().minus(staleAfter);
+        /// The checkpoint stays at the earliest intent whose cancel failed, so the next run tries it again
+        LocalDateTime retryFrom = null;
+
+        while (true) {
+            List<UnconfirmedIntentView> stale = stripeChargeTransactionRepository.findUnconfirmedIntents(
+                    UNCONFIRMED_STATES, createdFrom, createdBefore, PageRequest.of(0, batchSize));
+            if (stale.isEmpty())
+                return;
+
+            List<UnconfirmedIntentView> failed = runBatch(stale, intent -> () -> stripePaymentService.cancelPayment(intent.orderId()));
+            meterRegistry.counter("payment.authorization.stale.canceled").increment(stale.size() - failed.size());
+            failed.forEach(intent -> log.warn("Could not cancel stale PaymentIntent for orderId {}, retrying it next run", intent.orderId()));
+            if (retryFrom == null && !failed.isEmpty())
+                retryFrom = failed.stream().map(UnconfirmedIntentView::createdAt).min(Comparator.naturalOrder()).orElseThrow();
+
+            createdFrom = stale.get(stale.size() - 1).createdAt();
+            saveCheckpoint(STALE_INTENT_JOB, retryFrom != null ? retryFrom : createdFrom);
+
+            if (stale.size() < batchSize || failed.size() == stale.size())
+                return;
+        }
+    }
+
+    private void refill(LocalDateTime dueBefore) {
+        if (holds.size() > queueCapacity / 2)
+            return;
+
+        if (lastLoaded == null)
+            lastLoaded = new AuthorizationHoldView(MIN_UUID, null, EPOCH);
+
+        int limit = queueCapacity - holds.size();
+        List<AuthorizationHoldView> page = stripeChargeTransactionRepository.findDueAuthorizationHolds(
+                ChargeStatus.REQUIRES_CAPTURE, dueBefore, lastLoaded.authorizationExpiresAt(), lastLoaded.id(), PageRequest.of(0, limit));
+
+        for (AuthorizationHoldView hold : page) {
+            if (queuedIds.add(hold.id()))
+                holds.add(hold);
+        }
+        queueSize.set(holds.size());
+
+        /// Reached the end: start from the earliest expiry next time to pick up holds that expire earlier than the last
+        /// one loaded, e.g. authorizations with a shorter capture window or ones whose action failed
+        lastLoaded = page.size() < limit ? null : page.get(page.size() - 1);
+    }
+
+    private <T> List<T> runBatch(List<T> items, Function<T, Callable<?>> task) {
+        Bulkhead jobs = bulkheads.get(Bulkheads.Kind.JOBS);
+        List<Future<?>> futures = new ArrayList<>(items.size());
+        for (T item : items) {
+            Callable<?> action = task.apply(item);
+            futures.add(executor.submit(() -> {
+                if (!jobs.tryAcquire())
+                    throw new IllegalStateException("Jobs bulkhead is saturated");
+                try {
+                    return action.call();
+                } finally {
+                    jobs.release();
+                }
+            }));
+        }
+
+        List<T> failed = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                log.error("Authorization lifecycle action failed for {}: {}", items.get(i), e.getCause().getMessage());
+                failed.add(items.get(i));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.add(items.get(i));
+            }
+        }
+        return failed;
+    }
+
+    private LocalDateTime loadCheckpoint(String jobName) {
+        return jobCheckpointRepository.findById(jobName)
+                .map(checkpoint -> LocalDateTime.ofInstant(Instant.ofEpochMilli(checkpoint.getPosition()), ZoneId.systemDefault()))
+                .orElse(EPOCH);
+    }
+
+    /// Fenced like the reconciliation checkpoint. The captures and cancels are not, they run on the executor's threads
+    /// through StripePaymentService, whose status transitions already make a second attempt on a hold a no-op or an error.
+    private void saveCheckpoint(String jobName, LocalDateTime position) {
+        long epochMillis = position.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        transactionTemplate.executeWithoutResult(status -> {
+            jobLeaseManager.checkFence();
+            JobCheckpoint checkpoint = jobCheckpointRepository.findById(jobName).orElseGet(() -> new JobCheckpoint(jobName, epochMillis));
+            checkpoint.setPosition(epochMillis);
+            jobCheckpointRepository.save(checkpoint);
+        });
+    }
+}
@@ -1,9 +1,13 @@
 package com.mazadak.payment.service.impl;
 
 import com.mazadak.common.exception.domain.payment.StripeOAuthException;
+import com.mazadak.common.exception.shared.ResourceNotFoundException;
 import com.mazadak.payment.constant.OnboardingConstants;
+import com.mazadak.payment.dto.event.SellerAccountChangedEvent;
 import com.mazadak.payment.model.SellerStripeAccount;
 import com.mazadak.payment.repository.SellerStripeAccountRepository;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
 import com.stripe.Stripe;
 import com.stripe.exception.StripeException;
 import com.stripe.net.OAuth;
@@ -12,6 +16,10 @@ import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.KafkaNull;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.stereotype.Service;
 import org.springframework.web.util.UriComponentsBuilder;
 
@@ -33,12 +41,20 @@ public class OnboardingService {
     @Value("${stripe.api.secret-key}")
     private String stripeSecretKey;
 
+    /// Points the OAuth token exchange at another host, e.g. a local fake Stripe server in tests
+    @Value("${stripe.connect.base:}")
+    private String connectBase;
+
     private final SellerStripeAccountRepository sellerStripeAccountRepository;
+    private final StripeGateway stripeGateway;
+    private final StreamBridge streamBridge;
 
 
     @PostConstruct
     public void init() {
         Stripe.apiKey = stripeSecretKey;
+        if (connectBase != null && !connectBase.isBlank())
+            Stripe.overrideConnectBase(connectBase);
     }
 
 
@@ -86,7 +102,7 @@ public class OnboardingService {
 
         try {
             /// Communicate with stripe oauth api to extract the actual account id
-            var response = OAuth.token(params, null);
+            var response = stripeGateway.call(StripeOperation.OAUTH_TOKEN, options -> OAuth.token(params, options.build()));
             String connectedAccountId = response.getStripeUserId();
 
             if (connectedAccountId == null)
@@ -98,12 +114,46 @@ public class OnboardingService {
         }
     }
 
+    /// Published before the row is saved: a seller whose event could not be sent is not stored and onboards again
     void storeStripeAccount(UUID sellerId, String connectedAccountId){
+        /// Keyed by seller id, compaction keeps each seller's latest account for SellerAccountReplica and other services
+        publishSellerAccount(sellerId, new SellerAccountChangedEvent(sellerId, connectedAccountId));
+
         SellerStripeAccount sellerStripeAccount = new SellerStripeAccount();
         sellerStripeAccount.setSellerId(sellerId);
         sellerStripeAccount.setStripeAccountId(connectedAccountId);
         sellerStripeAccountRepository.save(sellerStripeAccount);
     }
 
-    /// TODO: Implement the deauthorize account id -> when the user is deleted
+    /// Disconnects the seller's account from the platform on Stripe, then forgets it. The tombstone is published first
+    /// and makes every SellerAccountReplica drop the account, until the row is deleted lookups fall back to it and a
+    /// failed call can be repeated. New checkouts stop using the account, charges created before keep it in their
+    /// seller split and their transfers to it fail on Stripe.
+    public void deauthorizeAccount(UUID sellerId) {
+        SellerStripeAccount sellerStripeAccount = sellerStripeAccountRepository.findBySellerId(sellerId);
+        if (sellerStripeAccount == null)
+            throw new ResourceNotFoundException("SellerStripeAccount", "sellerId", sellerId.toString());
+
+        publishSellerAccount(sellerId, KafkaNull.INSTANCE);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("client_id", stripeClientId);
+        params.put("stripe_user_id", sellerStripeAccount.getStripeAccountId());
+        try {
+            stripeGateway.call(StripeOperation.OAUTH_DEAUTHORIZE, options -> OAuth.deauthorize(params, options.build()));
+        } catch (StripeException e) {
+            throw new StripeOAuthException("Stripe deauthorization failed: " + e.getMessage(), sellerId.toString(), e);
+        }
+
+        sellerStripeAccountRepository.delete(sellerStripeAccount);
+        log.info("Deauthorized Stripe account {} of seller {}", sellerStripeAccount.getStripeAccountId(), sellerId);
+    }
+
+    private void publishSellerAccount(UUID sellerId, Object payload) {
+        boolean sent = streamBridge.send("sellerAccounts-out-0", MessageBuilder.withPayload(payload)
+                .setHeader(KafkaHeaders.KEY, sellerId.toString().getBytes(StandardCharsets.UTF_8))
+                .build());
+        if (!sent)
+            throw new IllegalStateException("Could not publish the Stripe account of seller " + sellerId + " to sellerAccounts-out-0");
+    }
 }
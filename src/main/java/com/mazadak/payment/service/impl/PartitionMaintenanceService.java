@@ -0,0 +1,80 @@
+package com.mazadak.payment.service.impl;
+
+import com.mazadak.payment.lease.JobLease;
+import com.mazadak.payment.lease.JobLeaseManager;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/// Keeps monthly partitions created ahead of time for the partitioned tables (see V1_6 and V1_14) and detaches months
+/// past the retention age into the archive schema. Rows in a DEFAULT partition mean a month was written before its
+/// partition existed, they move into it once it is created and are logged as a warning until then.
+///
+/// Order items and transfers come before charges, their charge_lookup rows are only archived once nothing references them.
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "payment.partitioning.enabled", havingValue = "true", matchIfMissing = true)
+public class PartitionMaintenanceService {
+
+    private static final List<String> PARTITIONED_TABLES = List.of("order_items", "transfer_stripe_transactions", "charge_stripe_transactions");
+
+    @Value("${payment.partitioning.months-ahead:3}")
+    private int monthsAhead;
+
+    @Value("${payment.partitioning.archive.enabled:false}")
+    private boolean archiveEnabled;
+
+    @Value("${payment.partitioning.archive.retention-months:24}")
+    private int retentionMonths;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final JobLeaseManager jobLeaseManager;
+
+    @JobLease("partition-maintenance")
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(cron = "${payment.partitioning.cron:0 0 3 * * *}")
+    public void maintainPartitions() {
+        LocalDate currentMonth = LocalDate.now().withDayOfMonth(1);
+
+        for (String table : PARTITIONED_TABLES) {
+            Integer created = fenced("SELECT create_monthly_partitions(?, ?, ?)", table, currentMonth, currentMonth.plusMonths(monthsAhead));
+            if (created != null && created > 0)
+                log.info("Created {} monthly partitions for {}", created, table);
+
+            if (Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM " + table + "_default)", Boolean.class)))
+                log.warn("{}_default holds rows outside every monthly partition, check payment.partitioning.months-ahead", table);
+        }
+
+        if (archiveEnabled)
+            archivePartitions(currentMonth.minusMonths(retentionMonths));
+    }
+
+    private void archivePartitions(LocalDate olderThan) {
+        for (String table : PARTITIONED_TABLES) {
+            Integer archived = fenced("SELECT archive_monthly_partitions(?, ?)", table, olderThan);
+            if (archived != null && archived > 0)
+                log.info("Archived {} partitions of {} older than {}", archived, table, olderThan);
+        }
+    }
+
+    /// Runs a partition function in one transaction with the fence check, two replicas racing on the same DDL would
+    /// otherwise fail on partitions the other one just created or detached
+    private Integer fenced(String sql, Object... args) {
+        return transactionTemplate.execute(status -> {
+            jobLeaseManager.checkFence();
+            return jdbcTemplate.queryForObject(sql, Integer.class, args);
+        });
+    }
+}
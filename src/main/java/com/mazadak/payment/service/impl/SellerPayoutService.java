@@ -0,0 +1,242 @@
+package com.mazadak.payment.service.impl;
+
+import com.mazadak.payment.bulkhead.Bulkhead;
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.dto.projection.PayoutGroup;
+import com.mazadak.payment.dto.projection.PayoutShare;
+import com.mazadak.payment.journal.PaymentStateJournal;
+import com.mazadak.payment.lease.JobLease;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.model.SellerPayout;
+import com.mazadak.payment.model.SellerStripeAccount;
+import com.mazadak.payment.repository.SellerPayoutRepository;
+import com.mazadak.payment.repository.SellerStripeAccountRepository;
+import com.mazadak.payment.repository.StripeTransferTransactionRepository;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Transfer;
+import com.stripe.param.TransferCreateParams;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Pays sellers in the deferred payout mode. StripePaymentService queues each seller's share of a succeeded order, and
+/// every run moves the settled shares in one Stripe transfer per seller and currency, so a busy seller costs one API
+/// call and one payout row per run instead of one per order.
+///
+/// Payouts are assigned in one transaction. Due payouts are then claimed with FOR UPDATE SKIP LOCKED in a short
+/// transaction, sent to Stripe with no transaction open and each outcome recorded in a transaction of its own. A payout
+/// that was assigned but never sent or that failed is sent again on later runs with its fixed amount and idempotency
+/// key, so Stripe executes it at most once, until max-attempts parks it for manual review.
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "payment.payout.mode", havingValue = "deferred")
+public class SellerPayoutService {
+
+    /// Aggregated transfers carry no source_transaction and draw on the available balance, card funds become
+    /// available a few days after the charge
+    @Value("${payment.payout.settle-after:P2D}")
+    private Duration settleAfter;
+
+    @Value("${payment.payout.batch-size:50}")
+    private int batchSize;
+
+    @Value("${payment.payout.max-shares:1000}")
+    private int maxShares;
+
+    @Value("${payment.payout.retry-delay:PT1H}")
+    private Duration retryDelay;
+
+    /// Keep the whole schedule inside Stripe's 24 hour idempotency key window
+    @Value("${payment.payout.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${payment.payout.claim-timeout:PT5M}")
+    private Duration claimTimeout;
+
+    private final StripeTransferTransactionRepository stripeTransferTransactionRepository;
+    private final SellerPayoutRepository sellerPayoutRepository;
+    private final SellerStripeAccountRepository sellerStripeAccountRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+    private final PaymentStateJournal paymentStateJournal;
+    private final Bulkheads bulkheads;
+    private final StripeGateway stripeGateway;
+    private final JobLeaseManager jobLeaseManager;
+
+    @JobLease("seller-payouts")
+    @Scheduled(cron = "${payment.payout.cron:0 0 2 * * *}")
+    public void runPayouts() {
+        Bulkhead jobs = bulkheads.get(Bulkheads.Kind.JOBS);
+        if (!jobs.tryAcquire()) {
+            log.warn("Skipping payout run, jobs bulkhead is saturated");
+            return;
+        }
+
+        try {
+            int processed;
+            do {
+                Integer assigned = transactionTemplate.execute(status -> assignQueuedShares());
+                processed = assigned == null ? 0 : assigned;
+            } while (processed == batchSize);
+
+            do {
+                processed = sendDuePayouts();
+            } while (processed == batchSize);
+        } finally {
+            jobs.release();
+        }
+    }
+
+    private int assignQueuedShares() {
+        jobLeaseManager.checkFence();
+        LocalDateTime settledBefore = LocalDateTime.now().minus(settleAfter);
+        int created = 0;
+        for (PayoutGroup group : stripeTransferTransactionRepository.findQueuedPayoutGroups(settledBefore, batchSize)) {
+            List<PayoutShare> shares = stripeTransferTransactionRepository.claimQueuedShares(group.getSellerId(), group.getCurrency(), settledBefore, maxShares);
+            if (shares.isEmpty())
+                continue;
+
+            SellerPayout payout = sellerPayoutRepository.save(SellerPayout.builder()
+                    .sellerId(group.getSellerId())
+                    .currency(group.getCurrency())
+                    .amount(shares.stream().map(PayoutShare::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add))
+                    .shareCount(shares.size())
+                    .status(TransferStatus.QUEUED)
+                    .nextAttemptAt(LocalDateTime.now())
+                    .build());
+            stripeTransferTransactionRepository.assignPayout(shares.stream().map(PayoutShare::getId).toList(), payout.getId());
+            created++;
+        }
+        return created;
+    }
+
+    private int sendDuePayouts() {
+        List<SellerPayout> claimed = claimBatch();
+        for (SellerPayout payout : claimed) {
+            try {
+                send(payout);
+            } catch (RuntimeException e) {
+                log.error("Could not record payout {} to seller {}, it is due again in {}", payout.getId(), payout.getSellerId(), claimTimeout, e);
+            }
+        }
+        return claimed.size();
+    }
+
+    /// Claims due payouts and counts the attempt before it is made, so a replica that dies mid-send leaves the payout
+    /// due again after claim-timeout with the amount it may already have been sent with. Until the first attempt, shares
+    /// refunded since the assignment drop out. Afterwards the amount stays fixed so a retry repeats the exact request
+    /// under the same idempotency key, a later refund then needs a transfer reversal like one after an immediate transfer.
+    /// Assigning and claiming are fenced so a replica that lost the lease takes on no new work. Recording an outcome is
+    /// not: the payout was claimed with SKIP LOCKED by this replica only, and Stripe has already acted on it.
+    private List<SellerPayout> claimBatch() {
+        List<SellerPayout> claimed = transactionTemplate.execute(status -> {
+            jobLeaseManager.checkFence();
+            LocalDateTime now = LocalDateTime.now();
+            List<SellerPayout> due = new ArrayList<>();
+            for (SellerPayout payout : sellerPayoutRepository.claimDuePayouts(now, batchSize)) {
+                if (payout.getAttempts() == 0) {
+                    List<PayoutShare> shares = stripeTransferTransactionRepository.lockQueuedShares(payout.getId());
+                    if (shares.isEmpty()) {
+                        payout.setStatus(TransferStatus.REVERSED);
+                        payout.setNextAttemptAt(null);
+                        sellerPayoutRepository.save(payout);
+                        continue;
+                    }
+                    payout.setAmount(shares.stream().map(PayoutShare::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add));
+                    payout.setShareCount(shares.size());
+                }
+                payout.setAttempts(payout.getAttempts() + 1);
+                payout.setNextAttemptAt(now.plus(claimTimeout));
+                due.add(sellerPayoutRepository.save(payout));
+            }
+            return due;
+        });
+        return claimed == null ? List.of() : claimed;
+    }
+
+    private void send(SellerPayout payout) {
+        String idempotencyKey = "payout-" + payout.getId();
+        Transfer transfer;
+        try {
+            if (payout.getSellerStripeAccountId() == null)
+                payout.setSellerStripeAccountId(resolveStripeAccountId(payout));
+
+            TransferCreateParams transferParams = TransferCreateParams.builder()
+                    .setAmount(payout.getAmount().multiply(new BigDecimal("100")).longValue())
+                    .setCurrency(payout.getCurrency().toLowerCase())
+                    .setDestination(payout.getSellerStripeAccountId())
+                    .setTransferGroup(payout.transferGroup())
+                    .putMetadata("payoutId", payout.getId().toString())
+                    .putMetadata("shares", payout.getShareCount().toString())
+                    .build();
+            transfer = stripeGateway.call(StripeOperation.TRANSFER_CREATE,
+                    options -> Transfer.create(transferParams, options.setIdempotencyKey(idempotencyKey).build()));
+        } catch (StripeException | RuntimeException e) {
+            recordFailure(payout, e);
+            return;
+        }
+
+        payout.setStatus(TransferStatus.SUCCEEDED);
+        payout.setStripeTransferId(transfer.getId());
+        payout.setStripeErrorMessage(null);
+        payout.setNextAttemptAt(null);
+        Integer recorded = transactionTemplate.execute(status -> {
+            sellerPayoutRepository.save(payout);
+            List<PayoutShare> shares = stripeTransferTransactionRepository.lockQueuedShares(payout.getId());
+            stripeTransferTransactionRepository.updatePayoutShareStatus(payout.getId(), TransferStatus.QUEUED, TransferStatus.SUCCEEDED);
+            for (PayoutShare share : shares)
+                paymentStateJournal.recordTransfer(share.getOrderId(), transfer.getId(), TransferStatus.QUEUED, TransferStatus.SUCCEEDED, idempotencyKey);
+            return shares.size();
+        });
+        int paid = recorded == null ? 0 : recorded;
+
+        meterRegistry.counter("payment.payout.transfers", "outcome", "succeeded").increment();
+        meterRegistry.counter("payment.payout.shares").increment(paid);
+        if (paid < payout.getShareCount())
+            log.error("{} of the {} orders in payout {} to seller {} were refunded while it was sent, transfer {} needs a partial reversal",
+                    payout.getShareCount() - paid, payout.getShareCount(), payout.getId(), payout.getSellerId(), transfer.getId());
+        log.info("Paid out {} {} to seller {} in transfer {}, covering {} orders",
+                payout.getAmount(), payout.getCurrency(), payout.getSellerId(), transfer.getId(), paid);
+    }
+
+    /// Failed payouts past max-attempts keep their FAILED status without a next attempt, parked for manual review
+    private void recordFailure(SellerPayout payout, Exception e) {
+        payout.setStatus(TransferStatus.FAILED);
+        payout.setStripeErrorMessage(e.getMessage());
+        payout.setNextAttemptAt(payout.getAttempts() < maxAttempts ? LocalDateTime.now().plus(retryDelay) : null);
+        transactionTemplate.executeWithoutResult(status -> sellerPayoutRepository.save(payout));
+
+        if (payout.getNextAttemptAt() == null) {
+            meterRegistry.counter("payment.payout.transfers", "outcome", "exhausted").increment();
+            log.error("Giving up on payout {} to seller {} after {} attempts, it needs manual review: {}",
+                    payout.getId(), payout.getSellerId(), payout.getAttempts(), e.getMessage());
+        } else {
+            meterRegistry.counter("payment.payout.transfers", "outcome", "failed").increment();
+            log.warn("Payout {} to seller {} failed on attempt {}, next attempt at {}: {}",
+                    payout.getId(), payout.getSellerId(), payout.getAttempts(), payout.getNextAttemptAt(), e.getMessage());
+        }
+    }
+
+    private String resolveStripeAccountId(SellerPayout payout) {
+        SellerStripeAccount account = sellerStripeAccountRepository.findBySellerId(payout.getSellerId());
+        if (account == null)
+            throw new IllegalStateException("SellerStripeAccount not found for sellerId " + payout.getSellerId());
+
+        return account.getStripeAccountId();
+    }
+}
@@ -2,28 +2,42 @@ package com.mazadak.payment.service.impl;
 
 import com.mazadak.common.exception.domain.payment.PaymentProcessingException;
 import com.mazadak.common.exception.shared.ResourceNotFoundException;
-import com.mazadak.payment.constant.PaymentStates;
+import com.mazadak.payment.cache.ChargeSnapshot;
+import com.mazadak.payment.cache.ChargeSnapshotCache;
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.PayoutMode;
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.datasource.StatementScope;
 import com.mazadak.payment.dto.event.PaymentAuthorizedEvent;
 import com.mazadak.payment.dto.event.PaymentFailedEvent;
 import com.mazadak.payment.dto.event.PaymentIntentCreatedEvent;
 import com.mazadak.payment.dto.event.PaymentSuccessEvent;
+import com.mazadak.payment.dto.projection.TransferStatusView;
 import com.mazadak.payment.dto.request.CartItem;
 import com.mazadak.payment.dto.request.CreatePaymentIntentRequest;
 import com.mazadak.payment.dto.request.RefundRequest;
 import com.mazadak.payment.dto.response.CreatePaymentIntentResponse;
+import com.mazadak.payment.dto.response.PaymentStatusResponse;
 import com.mazadak.payment.dto.response.RefundResponse;
+import com.mazadak.payment.dto.response.SellerOnboardingStatus;
+import com.mazadak.payment.journal.PaymentStateJournal;
 import com.mazadak.payment.model.OrderItem;
+import com.mazadak.payment.model.SellerSplit;
 import com.mazadak.payment.model.SellerStripeAccount;
 import com.mazadak.payment.model.StripeChargeTransaction;
 import com.mazadak.payment.model.StripeTransferTransaction;
 import com.mazadak.payment.repository.SellerStripeAccountRepository;
 import com.mazadak.payment.repository.StripeChargeTransactionRepository;
 import com.mazadak.payment.repository.StripeTransferTransactionRepository;
+import com.mazadak.payment.selleraccount.SellerAccountLookup;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
+import com.mazadak.payment.tracing.PaymentStage;
+import com.mazadak.payment.tracing.PaymentStages;
 import com.stripe.Stripe;
 import com.stripe.exception.SignatureVerificationException;
 import com.stripe.exception.StripeException;
 import com.stripe.model.*;
-import com.stripe.net.RequestOptions;
 import com.stripe.net.Webhook;
 import com.stripe.param.*;
 import jakarta.annotation.PostConstruct;
@@ -35,9 +49,21 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
 @Service
@@ -51,37 +77,55 @@ public class StripePaymentService {
     @Value("${stripe.webhook.secret}")
     private String webhookSecret;
 
+    /// Fallback when the charge does not report capture_before, online card authorizations last about seven days
+    @Value("${payment.authorization.hold-duration:P7D}")
+    private Duration authorizationHoldDuration;
+
+    @Value("${payment.payout.mode:IMMEDIATE}")
+    private PayoutMode payoutMode;
+
+    /// Points the Stripe client at another host, e.g. a local fake Stripe server in tests
+    @Value("${stripe.api.base:}")
+    private String apiBase;
+
     private final StripeChargeTransactionRepository stripeChargeTransactionRepository;
     private final StripeTransferTransactionRepository stripeTransferTransactionRepository;
     private final SellerStripeAccountRepository sellerStripeAccountRepository;
     private final StreamBridge streamBridge;
+    private final PaymentStateJournal paymentStateJournal;
+    private final ChargeSnapshotCache chargeSnapshotCache;
+    private final StripeGateway stripeGateway;
+    private final SellerAccountLookup sellerAccountLookup;
 
     @PostConstruct
     public void init() {
         Stripe.apiKey = secretKey;
+        if (apiBase != null && !apiBase.isBlank())
+            Stripe.overrideApiBase(apiBase);
     }
 
-    @Transactional
+    /// Not transactional: the sellers are resolved in a read-only transaction that can go to a read replica, and the
+    /// charge is saved on its own once Stripe created the PaymentIntent, no connection is held while Stripe is called
+    @PaymentStage("checkout")
     public CreatePaymentIntentResponse createPaymentIntent(CreatePaymentIntentRequest request) {
         log.info("Creating PaymentIntent for orderId: {}", request.orderId());
+        PaymentStages.annotate(PaymentStages.ORDER_ID, request.orderId());
 
+        Map<UUID, String> stripeAccountIds = requireSellersOnboarded(request.items());
+        PaymentStages.annotate(PaymentStages.SELLER_COUNT, stripeAccountIds.size());
         BigDecimal totalAmount = calculateTotalAmount(request.items());
         long totalAmountInCents = totalAmount.multiply(new BigDecimal("100")).longValue();
 
         try {
-            PaymentIntentCreateParams params = PaymentIntentCreateParams.builder()
-                    .setAmount(totalAmountInCents)
-                    .setCurrency(request.currency().toLowerCase())
-                    .setCaptureMethod(PaymentIntentCreateParams.CaptureMethod.MANUAL)
-                    .putMetadata("orderId", request.orderId().toString())
-                    .putMetadata("checkoutType", request.type())
-                    .build();
+            PaymentIntentCreateParams params = paymentIntentParams(request, totalAmountInCents);
             UUID idempotencyKey = UUID.randomUUID();
-            RequestOptions requestOptions = RequestOptions.builder().setIdempotencyKey(idempotencyKey.toString()).build();
-            PaymentIntent paymentIntent = PaymentIntent.create(params, requestOptions);
+            PaymentIntent paymentIntent = stripeGateway.call(StripeOperation.PAYMENT_INTENT_CREATE,
+                    options -> PaymentIntent.create(params, options.setIdempotencyKey(idempotencyKey.toString()).build()));
+            PaymentStages.annotate(PaymentStages.PAYMENT_INTENT_ID, paymentIntent.getId());
 
-            StripeChargeTransaction chargeTransaction = buildChargeTransaction(request, totalAmount, paymentIntent, idempotencyKey);
+            StripeChargeTransaction chargeTransaction = buildChargeTransaction(request, totalAmount, paymentIntent, idempotencyKey, stripeAccountIds);
             stripeChargeTransactionRepository.save(chargeTransaction);
+            paymentStateJournal.recordCharge(request.orderId(), paymentIntent.getId(), null, chargeTransaction.getStatus(), idempotencyKey.toString());
             log.info("Successfully created PaymentIntent {} for orderId {}", paymentIntent.getId(), request.orderId());
             return new CreatePaymentIntentResponse(paymentIntent.getClientSecret());
 
@@ -91,6 +135,55 @@ public class StripePaymentService {
         }
     }
 
+    /// createPaymentIntent on synthetic data without its side effects, for WarmupRunner: nothing is sent to Stripe, written
+    /// or journaled. The charge and its snapshot are only built in memory, and the lookups by its made-up ids run as
+    /// read-only queries that find nothing.
+    @Transactional(readOnly = true)
+    public void warmUpCheckout(CreatePaymentIntentRequest request, PaymentIntent paymentIntent) {
+        Map<UUID, String> stripeAccountIds = new HashMap<>();
+        sellerAccountLookup.getOnboardingStatuses(request.items().stream().map(CartItem::sellerId).toList())
+                .forEach(status -> stripeAccountIds.put(status.sellerId(), status.stripeAccountId()));
+        BigDecimal totalAmount = calculateTotalAmount(request.items());
+        paymentIntentParams(request, totalAmount.multiply(new BigDecimal("100")).longValue()).toMap();
+
+        StripeChargeTransaction charge = buildChargeTransaction(request, totalAmount, paymentIntent, UUID.randomUUID(), stripeAccountIds);
+        ChargeSnapshot.from(charge, charge.getSellerSplit());
+        chargeSnapshotCache.findByPaymentIntentId(paymentIntent.getId());
+        chargeSnapshotCache.findByOrderId(request.orderId());
+    }
+
+    /// Signs the payload with the webhook secret, then verifies and parses it the way handleStripeWebhook does, without dispatching it
+    public Optional<StripeObject> warmUpWebhook(String payload) throws GeneralSecurityException, SignatureVerificationException {
+        long timestamp = Webhook.Util.getTimeNow();
+        String sigHeader = "t=" + timestamp + ",v1=" + Webhook.Util.computeHmacSha256(webhookSecret, timestamp + "." + payload);
+        return Webhook.constructEvent(payload, sigHeader, webhookSecret).getDataObjectDeserializer().getObject();
+    }
+
+    private static PaymentIntentCreateParams paymentIntentParams(CreatePaymentIntentRequest request, long totalAmountInCents) {
+        return PaymentIntentCreateParams.builder()
+                .setAmount(totalAmountInCents)
+                .setCurrency(request.currency().toLowerCase())
+                .setCaptureMethod(PaymentIntentCreateParams.CaptureMethod.MANUAL)
+                .putMetadata("orderId", request.orderId().toString())
+                .putMetadata("checkoutType", request.type())
+                .setTransferGroup(transferGroup(request.orderId()))
+                .build();
+    }
+
+    /// A seller without a connected account can only be discovered as a FAILED transfer once the buyer has paid,
+    /// reject the cart before anything is created on Stripe instead. Returns each seller's connected account.
+    private Map<UUID, String> requireSellersOnboarded(List<CartItem> items) {
+        List<SellerOnboardingStatus> statuses = sellerAccountLookup.getOnboardingStatuses(items.stream().map(CartItem::sellerId).toList());
+        List<UUID> notOnboarded = statuses.stream()
+                .filter(status -> !status.onboarded())
+                .map(SellerOnboardingStatus::sellerId)
+                .toList();
+
+        if (!notOnboarded.isEmpty())
+            throw new PaymentProcessingException("Sellers are not onboarded with Stripe: " + notOnboarded);
+        return statuses.stream().collect(Collectors.toMap(SellerOnboardingStatus::sellerId, SellerOnboardingStatus::stripeAccountId));
+    }
+
     private BigDecimal calculateTotalAmount(List<CartItem> items) {
         return items.stream()
                 .map(CartItem::amount)
@@ -98,29 +191,28 @@ public class StripePaymentService {
     }
 
     @Transactional
+    @PaymentStage("capture")
     public PaymentIntent capturePayment(UUID orderId) {
         log.info("Attempting to capture payment for orderId: {}", orderId);
-        StripeChargeTransaction chargeTransaction = findChargeByOrderId(orderId);
-
+        ChargeSnapshot charge = findSnapshotByOrderId(orderId);
+        PaymentStages.annotate(PaymentStages.ORDER_ID, orderId);
+        PaymentStages.annotate(PaymentStages.PAYMENT_INTENT_ID, charge.paymentIntentId());
+        requireTransition(charge, ChargeStatus.SUCCEEDED, "captured");
 
         try {
-            PaymentIntent paymentIntent = PaymentIntent.retrieve(chargeTransaction.getPaymentIntentId());
+            PaymentIntent paymentIntent = stripeGateway.call(StripeOperation.PAYMENT_INTENT_RETRIEVE,
+                    options -> PaymentIntent.retrieve(charge.paymentIntentId(), options.build()));
 
-            if (!paymentIntent.getStatus().equalsIgnoreCase(PaymentStates.REQUIRES_CAPTURE)) {
+            if (ChargeStatus.fromStripe(paymentIntent.getStatus()) != ChargeStatus.REQUIRES_CAPTURE) {
                 throw new PaymentProcessingException("PaymentIntent cannot be captured. Status: " + paymentIntent.getStatus());
             }
 
             UUID idempotencyKey = UUID.randomUUID();
-            RequestOptions requestOptions = RequestOptions.builder()
-                    .setIdempotencyKey(idempotencyKey.toString())
-                    .build();
-
-            PaymentIntent capturedPaymentIntent = paymentIntent.capture(PaymentIntentCaptureParams.builder().build() , requestOptions);
+            PaymentIntent capturedPaymentIntent = stripeGateway.call(StripeOperation.PAYMENT_INTENT_CAPTURE,
+                    options -> paymentIntent.capture(PaymentIntentCaptureParams.builder().build(), options.setIdempotencyKey(idempotencyKey.toString()).build()));
 
-            chargeTransaction.setStatus(capturedPaymentIntent.getStatus().toUpperCase());
-            chargeTransaction.setIdempotencyKey(idempotencyKey);
-
-            stripeChargeTransactionRepository.save(chargeTransaction);
+            transition(charge, ChargeStatus.fromStripe(capturedPaymentIntent.getStatus()), idempotencyKey.toString(),
+                    snapshot -> snapshot.withIdempotencyKey(idempotencyKey));
 
             log.info("Successfully initiated capture for PaymentIntent {}", capturedPaymentIntent.getId());
             return capturedPaymentIntent;
@@ -131,26 +223,24 @@ public class StripePaymentService {
     }
 
     @Transactional
+    @PaymentStage("cancel")
     public PaymentIntent cancelPayment(UUID orderId) {
         log.info("Attempting to cancel payment for orderId: {}", orderId);
-        StripeChargeTransaction chargeTransaction = findChargeByOrderId(orderId);
+        ChargeSnapshot charge = findSnapshotByOrderId(orderId);
+        PaymentStages.annotate(PaymentStages.ORDER_ID, orderId);
+        PaymentStages.annotate(PaymentStages.PAYMENT_INTENT_ID, charge.paymentIntentId());
+        requireTransition(charge, ChargeStatus.CANCELED, "canceled");
 
         try {
-            PaymentIntent paymentIntent = PaymentIntent.retrieve(chargeTransaction.getPaymentIntentId());
+            PaymentIntent paymentIntent = stripeGateway.call(StripeOperation.PAYMENT_INTENT_RETRIEVE,
+                    options -> PaymentIntent.retrieve(charge.paymentIntentId(), options.build()));
 
             UUID idempotencyKey = UUID.randomUUID();
-            RequestOptions requestOptions = RequestOptions.builder()
-                    .setIdempotencyKey(idempotencyKey.toString())
-                    .build();
-
-            PaymentIntent canceledPaymentIntent = paymentIntent.cancel(PaymentIntentCancelParams.builder().build() , requestOptions);
-
-            chargeTransaction.setIdempotencyKey(idempotencyKey);
-
-            updateTransactionStatus(paymentIntent, canceledPaymentIntent.getStatus().toUpperCase());
+            PaymentIntent canceledPaymentIntent = stripeGateway.call(StripeOperation.PAYMENT_INTENT_CANCEL,
+                    options -> paymentIntent.cancel(PaymentIntentCancelParams.builder().build(), options.setIdempotencyKey(idempotencyKey.toString()).build()));
 
-            chargeTransaction.setStatus(paymentIntent.getStatus().toUpperCase());
-            stripeChargeTransactionRepository.save(chargeTransaction);
+            transition(charge, ChargeStatus.fromStripe(canceledPaymentIntent.getStatus()), idempotencyKey.toString(),
+                    snapshot -> snapshot.withIdempotencyKey(idempotencyKey));
 
             log.info("Successfully canceled PaymentIntent {}", canceledPaymentIntent.getId());
             return canceledPaymentIntent;
@@ -161,6 +251,7 @@ public class StripePaymentService {
     }
 
     @Transactional
+    @PaymentStage("webhook")
     public void handleStripeWebhook(String payload, String sigHeader) {
         log.info("Webhook triggered");
         Event event;
@@ -170,11 +261,16 @@ public class StripePaymentService {
             log.error("Webhook error: {}", e.getMessage());
             throw new PaymentProcessingException("Invalid webhook signature or payload.");
         }
+        /// Every webhook arrives on the same endpoint, statement counts are worth more per event type
+        StatementScope.rename("webhook " + event.getType());
+        PaymentStages.tag(PaymentStages.EVENT_TYPE, event.getType());
 
         if (event.getDataObjectDeserializer().getObject().orElse(null) instanceof PaymentIntent) {
             PaymentIntent paymentIntent = (PaymentIntent) event.getDataObjectDeserializer().getObject().get();
             String orderId = paymentIntent.getMetadata().get("orderId");
             String checkoutType = paymentIntent.getMetadata().get("checkoutType");
+            PaymentStages.annotate(PaymentStages.ORDER_ID, orderId);
+            PaymentStages.annotate(PaymentStages.PAYMENT_INTENT_ID, paymentIntent.getId());
             switch (event.getType()) {
                 case "payment_intent.created":
                     log.info("Webhook received: PaymentIntent {} created.", paymentIntent.getId());
@@ -187,37 +283,37 @@ public class StripePaymentService {
                     );
 
                     streamBridge.send("paymentIntentCreated-out-0", createdEvent);
-                    log.info("Published PaymentIntentCreatedEvent {}", createdEvent);
+                    log.info("Published PaymentIntentCreatedEvent to Kafka for Order ID: {}", orderId);
                     break;
                 case "payment_intent.succeeded":
                     log.info("Webhook received: PaymentIntent {} succeeded.", paymentIntent.getId());
-                    finalizePaymentAndCreateTransfers(paymentIntent);
-
+                    if (!finalizePaymentAndCreateTransfers(paymentIntent, event.getId()))
+                        break;
 
                     streamBridge.send("paymentSuccess-out-0", new PaymentSuccessEvent(paymentIntent.getId(), orderId, checkoutType));
                     log.info("Published PaymentSuccessEvent to Kafka for Order ID: {}", orderId);
                     break;
                 case "payment_intent.requires_capture":
                     log.info("Webhook received: PaymentIntent {} requires capture.", paymentIntent.getId());
-                    updateTransactionStatus(paymentIntent, "REQUIRES_CAPTURE");
+                    updateTransactionStatus(paymentIntent, ChargeStatus.REQUIRES_CAPTURE, event.getId());
                     break;
                 case "payment_intent.amount_capturable_updated":
                     log.info("Webhook received: PaymentIntent {} amount_capturable_updated.", paymentIntent.getId());
+                    recordAuthorization(paymentIntent, event.getId());
                     PaymentAuthorizedEvent paymentAuthorizedEvent = new PaymentAuthorizedEvent(paymentIntent.getId(), orderId,checkoutType, new BigDecimal(paymentIntent.getAmount()));
                     streamBridge.send("paymentAuthorized-out-0", paymentAuthorizedEvent);
                     log.info("Published PaymentAuthorizedEvent to Kafka for Order ID: {}", orderId);
-                    log.info("Payment Authorized Event Details{}", paymentAuthorizedEvent);
                     break;
                 case "payment_intent.canceled":
                     log.info("Webhook received: PaymentIntent {} was canceled.", paymentIntent.getId());
-                    updateTransactionStatus(paymentIntent, "CANCELED");
+                    updateTransactionStatus(paymentIntent, ChargeStatus.CANCELED, event.getId());
                     streamBridge.send("paymentFailed-out-0", new PaymentFailedEvent(paymentIntent.getId(),orderId, "Payment was canceled"));
                     log.info("Published PaymentFailedEvent to Kafka for Order ID: {}", orderId);
                     break;
                 case "payment_intent.payment_failed":
                     String failureReason = paymentIntent.getLastPaymentError() != null ? paymentIntent.getLastPaymentError().getMessage() : "Unknown reason";
                     log.warn("Webhook received: PaymentIntent {} failed: {}", paymentIntent.getId(), paymentIntent.getLastPaymentError().getMessage());
-                    updateTransactionStatus(paymentIntent, "FAILED");
+                    updateTransactionStatus(paymentIntent, ChargeStatus.FAILED, event.getId());
 
                     streamBridge.send("paymentFailed-out-0", new PaymentFailedEvent(paymentIntent.getId(),orderId, failureReason));
                     log.info("Published PaymentFailedEvent to Kafka for Order ID: {}", orderId);
@@ -230,30 +326,53 @@ public class StripePaymentService {
         }
     }
 
-    private void finalizePaymentAndCreateTransfers(PaymentIntent paymentIntent) {
-        StripeChargeTransaction chargeTransaction = stripeChargeTransactionRepository.findByPaymentIntentId(paymentIntent.getId())
+    /// Pays every seller of the charge that has no transfer or queued share for it yet, so a redelivered webhook or one
+    /// that arrives after capturePayment pays nobody twice. Concurrent deliveries that both get past the check are
+    /// stopped by the unique (charge, seller) constraint on transfer_lookup and Stripe retries the loser. Returns false
+    /// when nobody was left to pay.
+    private boolean finalizePaymentAndCreateTransfers(PaymentIntent paymentIntent, String eventId) {
+        ChargeSnapshot charge = chargeSnapshotCache.findByPaymentIntentId(paymentIntent.getId())
                 .orElseThrow(() -> new ResourceNotFoundException("Charge Transaction", "paymentIntentId", paymentIntent.getId()));
 
-        if ("SUCCEEDED".equals(paymentIntent.getStatus())) {
-            log.warn("Received webhook for already succeeded PaymentIntent {}.", paymentIntent.getId());
-            return;
-        }
-
-        chargeTransaction.setStatus("SUCCEEDED");
-        chargeTransaction.setStripeChargeId(paymentIntent.getLatestCharge());
+        /// A late succeeded webhook for a charge that was refunded or canceled in the meantime must not pay sellers again.
+        /// UNCHANGED carries on, capturePayment sets SUCCEEDED before this webhook arrives and sellers are only paid here.
+        if (transition(charge, ChargeStatus.SUCCEEDED, eventId, snapshot -> snapshot.withStripeChargeId(paymentIntent.getLatestCharge())) == Transition.REJECTED)
+            return false;
 
-        stripeChargeTransactionRepository.save(chargeTransaction);
+        Set<UUID> paid = new HashSet<>(stripeTransferTransactionRepository.findSellerIdsByChargeId(charge.id()));
+        List<SellerSplit> unpaid = charge.sellerSplit().stream().filter(share -> !paid.contains(share.sellerId())).toList();
+        if (unpaid.isEmpty()) {
+            log.info("Sellers of orderId {} were already paid, ignoring event {}", charge.orderId(), eventId);
+            return false;
+        }
 
-        Map<UUID, BigDecimal> sellerTotals = chargeTransaction.getOrderItems().stream()
-                .collect(Collectors.groupingBy(OrderItem::getSellerId, Collectors.mapping(OrderItem::getAmount, Collectors.reducing(BigDecimal.ZERO, BigDecimal::add))));
+        /// Only the foreign key is needed, a reference avoids loading the charge and its order items again
+        StripeChargeTransaction chargeTransaction = stripeChargeTransactionRepository.getReferenceById(charge.id());
+        PaymentStages.annotate(PaymentStages.SELLER_COUNT, unpaid.size());
+
+        /// Accounts were resolved at intent creation, only charges from before that need a lookup. A seller without an
+        /// account still gets a FAILED transfer that is retried later.
+        List<UUID> unresolved = unpaid.stream().filter(share -> share.stripeAccountId() == null).map(SellerSplit::sellerId).toList();
+        Map<UUID, String> stripeAccountIds = payoutMode == PayoutMode.DEFERRED || unresolved.isEmpty() ? Map.of()
+                : sellerStripeAccountRepository.findAllBySellerIdIn(unresolved).stream()
+                        .collect(Collectors.toMap(SellerStripeAccount::getSellerId, SellerStripeAccount::getStripeAccountId));
+
+        for (SellerSplit share : unpaid) {
+            UUID sellerId = share.sellerId();
+            BigDecimal sellerAmount = share.amount();
+            if (payoutMode == PayoutMode.DEFERRED) {
+                queueSellerShare(chargeTransaction, charge, sellerId, sellerAmount, eventId);
+                continue;
+            }
 
-        for (Map.Entry<UUID, BigDecimal> entry : sellerTotals.entrySet()) {
-            UUID sellerId = entry.getKey();
-            BigDecimal sellerAmount = entry.getValue();
             long sellerAmountInCents = sellerAmount.multiply(new BigDecimal("100")).longValue();
+            String idempotencyKey = "transfer-" + charge.id() + "-" + sellerId;
+            String stripeAccountId = null;
 
             try {
-                String stripeAccountId = getStripeAccountId(sellerId);
+                stripeAccountId = share.stripeAccountId() != null ? share.stripeAccountId() : stripeAccountIds.get(sellerId);
+                if (stripeAccountId == null)
+                    throw new ResourceNotFoundException("SellerStripeAccount", "sellerId", sellerId.toString());
                 TransferCreateParams transferParams = TransferCreateParams.builder()
                         .setAmount(sellerAmountInCents)
                         .setCurrency(paymentIntent.getCurrency())
@@ -261,44 +380,142 @@ public class StripePaymentService {
                         .setSourceTransaction(paymentIntent.getLatestCharge())
                         .build();
 
-                String idempotencyKey = "transfer-" + chargeTransaction.getId() + "-" + sellerId;
-                RequestOptions requestOptions = RequestOptions.builder().setIdempotencyKey(idempotencyKey).build();
-
-
-                Transfer transfer = Transfer.create(transferParams , requestOptions);
-                StripeTransferTransaction transferTransaction = buildTransferTransaction(chargeTransaction, sellerId, sellerAmount, transfer.getId(), "SUCCEEDED", null);
+                Transfer transfer = stripeGateway.call(StripeOperation.TRANSFER_CREATE,
+                        options -> Transfer.create(transferParams, options.setIdempotencyKey(idempotencyKey).build()));
+                StripeTransferTransaction transferTransaction = buildTransferTransaction(chargeTransaction, charge.currency(), sellerId, stripeAccountId, sellerAmount, transfer.getId(), TransferStatus.SUCCEEDED, null, idempotencyKey);
 
                 stripeTransferTransactionRepository.save(transferTransaction);
-                log.info("Successfully transferred {} to seller {} for orderId {}", sellerAmount, sellerId, chargeTransaction.getOrderId());
+                paymentStateJournal.recordTransfer(charge.orderId(), transfer.getId(), null, TransferStatus.SUCCEEDED, eventId);
+                log.info("Successfully transferred {} to seller {} for orderId {}", sellerAmount, sellerId, charge.orderId());
 
             } catch (StripeException | ResourceNotFoundException e) {
-                log.error("Failed to transfer funds to seller {} for orderId {}: {}", sellerId, chargeTransaction.getOrderId(), e.getMessage());
-                StripeTransferTransaction transferTransaction = buildTransferTransaction(chargeTransaction, sellerId, sellerAmount, null, "FAILED", e.getMessage());
+                log.error("Failed to transfer funds to seller {} for orderId {}: {}", sellerId, charge.orderId(), e.getMessage());
+                StripeTransferTransaction transferTransaction = buildTransferTransaction(chargeTransaction, charge.currency(), sellerId, stripeAccountId, sellerAmount, null, TransferStatus.FAILED, e.getMessage(), idempotencyKey);
+                /// Picked up by TransferRetryService
+                transferTransaction.setNextAttemptAt(LocalDateTime.now());
                 stripeTransferTransactionRepository.save(transferTransaction);
+                paymentStateJournal.recordTransfer(charge.orderId(), null, null, TransferStatus.FAILED, eventId);
             }
         }
+        return true;
     }
 
-    private void updateTransactionStatus(PaymentIntent paymentIntent, String status) {
-        stripeChargeTransactionRepository.findByPaymentIntentId(paymentIntent.getId()).ifPresent(charge -> {
-            charge.setStatus(status);
+    /// Deferred payout mode, SellerPayoutService pays the share out later together with the seller's other orders
+    private void queueSellerShare(StripeChargeTransaction chargeTransaction, ChargeSnapshot charge, UUID sellerId, BigDecimal sellerAmount, String eventId) {
+        StripeTransferTransaction share = buildTransferTransaction(chargeTransaction, charge.currency(), sellerId, null, sellerAmount, null, TransferStatus.QUEUED, null, null);
+        share.setTransferGroup(transferGroup(charge.orderId()));
+        stripeTransferTransactionRepository.save(share);
+        paymentStateJournal.recordTransfer(charge.orderId(), null, null, TransferStatus.QUEUED, eventId);
+        log.info("Queued {} for seller {} for orderId {} for the next payout", sellerAmount, sellerId, charge.orderId());
+    }
 
-            if (status.equalsIgnoreCase(PaymentStates.FAILED) && paymentIntent.getLastPaymentError() != null)
-                charge.setStripeErrorMessage(paymentIntent.getLastPaymentError().getMessage());
+    private static String transferGroup(UUID orderId) {
+        return "order-" + orderId;
+    }
 
-            stripeChargeTransactionRepository.save(charge);
-        });
+    private void updateTransactionStatus(PaymentIntent paymentIntent, ChargeStatus status, String eventId) {
+        chargeSnapshotCache.findByPaymentIntentId(paymentIntent.getId()).ifPresent(charge -> transition(charge, status, eventId, snapshot ->
+                status == ChargeStatus.FAILED && paymentIntent.getLastPaymentError() != null
+                        ? snapshot.withStripeErrorMessage(paymentIntent.getLastPaymentError().getMessage())
+                        : snapshot));
+    }
+
+    /// A redelivered event keeps the expiry already recorded, it neither asks Stripe again nor rewrites the charge
+    private void recordAuthorization(PaymentIntent paymentIntent, String eventId) {
+        chargeSnapshotCache.findByPaymentIntentId(paymentIntent.getId()).ifPresent(charge -> transition(charge, ChargeStatus.REQUIRES_CAPTURE, eventId,
+                snapshot -> snapshot.authorizationExpiresAt() != null ? snapshot
+                        : snapshot.withAuthorizationExpiresAt(resolveAuthorizationExpiry(paymentIntent))));
+    }
+
+    private LocalDateTime resolveAuthorizationExpiry(PaymentIntent paymentIntent) {
+        LocalDateTime fallback = LocalDateTime.now().plus(authorizationHoldDuration);
+        if (paymentIntent.getLatestCharge() == null)
+            return fallback;
+
+        try {
+            Charge charge = stripeGateway.call(StripeOperation.CHARGE_RETRIEVE, options -> Charge.retrieve(paymentIntent.getLatestCharge(), options.build()));
+            if (charge.getPaymentMethodDetails() == null || charge.getPaymentMethodDetails().getCard() == null
+                    || charge.getPaymentMethodDetails().getCard().getCaptureBefore() == null)
+                return fallback;
+
+            return LocalDateTime.ofInstant(Instant.ofEpochSecond(charge.getPaymentMethodDetails().getCard().getCaptureBefore()), ZoneId.systemDefault());
+        } catch (StripeException e) {
+            log.warn("Could not resolve capture_before for PaymentIntent {}, assuming {}: {}", paymentIntent.getId(), authorizationHoldDuration, e.getMessage());
+            return fallback;
+        }
+    }
+
+    /// Outcome of {@link #transition}. UNCHANGED is a redelivered webhook or a repeated call for the status the charge
+    /// already has, its other changes are still written, but anything that must happen once per status change must not.
+    private enum Transition {
+        APPLIED, UNCHANGED, REJECTED
+    }
+
+    /// Webhooks arrive out of order and can be redelivered, a transition the state machine rejects is logged and ignored.
+    /// The write is a compare-and-set on the status the snapshot was read with, if another replica got there first the
+    /// snapshot is reloaded and the transition re-checked once against the fresh status. A transition that changes
+    /// nothing at all writes nothing.
+    private Transition transition(ChargeSnapshot charge, ChargeStatus status, String eventId, UnaryOperator<ChargeSnapshot> changes) {
+        ChargeSnapshot current = charge;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (!current.status().canTransitionTo(status)) {
+                log.warn("Ignoring transition of charge for orderId {} from {} to {} (event {})", current.orderId(), current.status(), status, eventId);
+                return Transition.REJECTED;
+            }
+
+            ChargeSnapshot next = changes.apply(current).withStatus(status);
+            if (next.equals(current)) {
+                log.debug("Charge for orderId {} already {} (event {})", current.orderId(), status, eventId);
+                return Transition.UNCHANGED;
+            }
+
+            int updated = stripeChargeTransactionRepository.compareAndSet(current.id(), current.createdAt(), current.status(), next.status(),
+                    next.stripeChargeId(), next.idempotencyKey(), next.stripeErrorMessage(), next.refunded(), next.authorizationExpiresAt());
+            if (updated == 1) {
+                chargeSnapshotCache.changed(next);
+                if (current.status() == status)
+                    return Transition.UNCHANGED;
+                paymentStateJournal.recordCharge(current.orderId(), current.paymentIntentId(), current.status(), status, eventId);
+                return Transition.APPLIED;
+            }
+
+            log.info("Charge for orderId {} changed since it was read as {}, reloading", current.orderId(), current.status());
+            current = chargeSnapshotCache.reload(current.orderId())
+                    .orElseThrow(() -> new ResourceNotFoundException("Charge Transaction", "orderId", charge.orderId().toString()));
+        }
+        throw new PaymentProcessingException("Charge for orderId " + charge.orderId() + " is being updated concurrently, retry later");
+    }
+
+    private boolean transition(StripeChargeTransaction charge, ChargeStatus status, String eventId) {
+        ChargeStatus current = charge.getStatus();
+        if (!current.canTransitionTo(status)) {
+            log.warn("Ignoring transition of charge for orderId {} from {} to {} (event {})", charge.getOrderId(), current, status, eventId);
+            return false;
+        }
+
+        if (current != status)
+            paymentStateJournal.recordCharge(charge.getOrderId(), charge.getPaymentIntentId(), current, status, eventId);
+        charge.setStatus(status);
+        return true;
+    }
+
+    private void requireTransition(ChargeSnapshot charge, ChargeStatus status, String action) {
+        if (!charge.status().canTransitionTo(status))
+            throw new PaymentProcessingException("Payment cannot be " + action + ". Status: " + charge.status());
     }
 
     @Transactional
+    @PaymentStage("refund")
     public RefundResponse refundPayment(RefundRequest refundRequest) {
         log.info("Processing refund for orderId: {} with idempotency key: {}", refundRequest.orderId(), refundRequest.idempotencyKey());
+        PaymentStages.annotate(PaymentStages.ORDER_ID, refundRequest.orderId());
 
         StripeChargeTransaction chargeTransaction = findChargeByOrderId(refundRequest.orderId());
+        PaymentStages.annotate(PaymentStages.PAYMENT_INTENT_ID, chargeTransaction.getPaymentIntentId());
 
         if (chargeTransaction.getRefunded().equals(Boolean.TRUE))
             throw new PaymentProcessingException("This transaction has already been refunded");
-        if (!chargeTransaction.getStatus().equals(PaymentStates.SUCCEEDED))
+        if (!chargeTransaction.getStatus().canTransitionTo(ChargeStatus.REFUNDED))
             throw new PaymentProcessingException("Cannot refund a transaction that has not been captured and succeeded");
 
         try {
@@ -306,17 +523,20 @@ public class StripePaymentService {
                     .setPaymentIntent(chargeTransaction.getPaymentIntentId())
                     .build();
 
-            RequestOptions requestOptions = RequestOptions.builder().setIdempotencyKey(refundRequest.idempotencyKey().toString()).build();
-            Refund refund = Refund.create(params, requestOptions);
+            Refund refund = stripeGateway.call(StripeOperation.REFUND_CREATE,
+                    options -> Refund.create(params, options.setIdempotencyKey(refundRequest.idempotencyKey().toString()).build()));
 
-            chargeTransaction.setStatus(PaymentStates.REFUNDED);
+            transition(chargeTransaction, ChargeStatus.REFUNDED, refund.getId());
             chargeTransaction.setRefunded(true);
             stripeChargeTransactionRepository.save(chargeTransaction);
 
-            for (StripeTransferTransaction transfer : chargeTransaction.getTransfers()) {
-                transfer.setStatus(PaymentStates.REVERSED);
-                stripeTransferTransactionRepository.save(transfer);
+            /// One projection query and one bulk update instead of loading the transfers collection and saving each row
+            for (TransferStatusView transfer : stripeTransferTransactionRepository.findStatusViewsByChargeId(chargeTransaction.getId())) {
+                if (transfer.status() != TransferStatus.REVERSED)
+                    paymentStateJournal.recordTransfer(chargeTransaction.getOrderId(), transfer.stripeTransferId(), transfer.status(), TransferStatus.REVERSED, refund.getId());
             }
+            stripeTransferTransactionRepository.updateStatusByChargeId(chargeTransaction.getId(), TransferStatus.REVERSED);
+            chargeSnapshotCache.invalidate(chargeTransaction.getOrderId(), chargeTransaction.getPaymentIntentId());
 
             log.info("Successfully refunded PaymentIntent {} for orderId {}. Refund ID: {}", chargeTransaction.getPaymentIntentId(), refundRequest.orderId(), refund.getId());
             return new RefundResponse(refund.getId(), refundRequest.orderId(), refund.getStatus(), "Full refund processed successfully.");
@@ -327,22 +547,32 @@ public class StripePaymentService {
         }
     }
 
-    private StripeChargeTransaction buildChargeTransaction(CreatePaymentIntentRequest request, BigDecimal totalAmount, PaymentIntent paymentIntent, UUID idempotencyKey) {
+    /// Writes one order item and one split entry per seller rather than per cart line, auction bundles can hold many lines
+    private StripeChargeTransaction buildChargeTransaction(CreatePaymentIntentRequest request, BigDecimal totalAmount, PaymentIntent paymentIntent,
+                                                           UUID idempotencyKey, Map<UUID, String> stripeAccountIds) {
+        Map<UUID, BigDecimal> sellerTotals = new LinkedHashMap<>();
+        request.items().forEach(item -> sellerTotals.merge(item.sellerId(), item.amount(), BigDecimal::add));
+        List<SellerSplit> sellerSplit = sellerTotals.entrySet().stream()
+                .map(total -> new SellerSplit(total.getKey(), total.getValue(), stripeAccountIds.get(total.getKey())))
+                .toList();
+
         StripeChargeTransaction charge = StripeChargeTransaction.builder()
                 .orderId(request.orderId())
                 .paymentIntentId(paymentIntent.getId())
                 .amount(totalAmount)
                 .idempotencyKey(idempotencyKey)
                 .currency(request.currency())
-                .status(paymentIntent.getStatus().toUpperCase())
+                .checkoutType(request.type())
+                .status(ChargeStatus.fromStripe(paymentIntent.getStatus()))
                 .refunded(false)
+                .sellerSplit(sellerSplit)
                 .build();
 
-        List<OrderItem> orderItems = request.items().stream()
-                .map(itemDto -> OrderItem.builder()
+        List<OrderItem> orderItems = sellerSplit.stream()
+                .map(share -> OrderItem.builder()
                         .chargeTransaction(charge)
-                        .sellerId(itemDto.sellerId())
-                        .amount(itemDto.amount())
+                        .sellerId(share.sellerId())
+                        .amount(share.amount())
                         .build())
                 .collect(Collectors.toList());
 
@@ -350,24 +580,35 @@ public class StripePaymentService {
         return charge;
     }
 
-    private StripeTransferTransaction buildTransferTransaction(StripeChargeTransaction parent, UUID sellerId, BigDecimal amount, String stripeTransferId, String status, String stripeErrorMessage) {
+    private StripeTransferTransaction buildTransferTransaction(StripeChargeTransaction parent, String currency, UUID sellerId, String stripeAccountId, BigDecimal amount, String stripeTransferId, TransferStatus status, String stripeErrorMessage, String idempotencyKey) {
         return StripeTransferTransaction.builder()
                 .chargeTransaction(parent)
                 .stripeTransferId(stripeTransferId)
-                .sellerStripeAccountId(getStripeAccountId(sellerId))
+                .sellerId(sellerId)
+                .sellerStripeAccountId(stripeAccountId)
+                .idempotencyKey(idempotencyKey)
                 .amount(amount)
-                .currency(parent.getCurrency())
+                .currency(currency)
                 .status(status)
                 .stripeErrorMessage(stripeErrorMessage)
                 .build();
     }
 
-    public String getStripeAccountId(UUID sellerId) {
-        SellerStripeAccount sellerStripeAccount = sellerStripeAccountRepository.findBySellerId(sellerId);
-        if (sellerStripeAccount == null)
-            throw new ResourceNotFoundException("SellerStripeAccount", "sellerId", sellerId.toString());
+    /// Resolves every order in a single query, by order id, PaymentIntent id or both. Ids without a charge are left out.
+    @Transactional(readOnly = true)
+    public List<PaymentStatusResponse> getPaymentStatuses(Collection<UUID> orderIds, Collection<String> paymentIntentIds) {
+        if (orderIds.isEmpty() && paymentIntentIds.isEmpty())
+            return List.of();
+
+        return stripeChargeTransactionRepository.findPaymentStatusViews(orderIds.stream().distinct().toList(), paymentIntentIds.stream().distinct().toList())
+                .stream()
+                .map(PaymentStatusResponse::from)
+                .toList();
+    }
 
-        return sellerStripeAccount.getStripeAccountId();
+    private ChargeSnapshot findSnapshotByOrderId(UUID orderId) {
+        return chargeSnapshotCache.findByOrderId(orderId)
+                .orElseThrow(() -> new ResourceNotFoundException("Charge Transaction", "orderId", orderId.toString()));
     }
 
     public StripeChargeTransaction findChargeByOrderId(UUID orderId) {
@@ -0,0 +1,307 @@
+package com.mazadak.payment.service.impl;
+
+import com.mazadak.payment.bulkhead.Bulkhead;
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.cache.ChargeSnapshotCache;
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.dto.projection.ChargeStatusView;
+import com.mazadak.payment.dto.projection.TransferStatusView;
+import com.mazadak.payment.journal.PaymentStateJournal;
+import com.mazadak.payment.lease.JobLease;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.model.JobCheckpoint;
+import com.mazadak.payment.repository.JobCheckpointRepository;
+import com.mazadak.payment.repository.SellerPayoutRepository;
+import com.mazadak.payment.repository.StripeChargeTransactionRepository;
+import com.mazadak.payment.repository.StripeTransferTransactionRepository;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
+import com.stripe.exception.StripeException;
+import com.stripe.model.PaymentIntent;
+import com.stripe.model.Transfer;
+import com.stripe.param.PaymentIntentListParams;
+import com.stripe.param.TransferListParams;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/// Streams PaymentIntents and Transfers from Stripe, created since the last persisted checkpoint, and compares them
+/// with local rows one bounded batch at a time, so memory use does not depend on how much history is scanned.
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "payment.reconciliation.enabled", havingValue = "true", matchIfMissing = true)
+public class StripeReconciliationService {
+
+    static final String PAYMENT_INTENTS_JOB = "reconciliation-payment-intents";
+    static final String TRANSFERS_JOB = "reconciliation-transfers";
+
+    private static final long PAGE_SIZE = 100L;
+    private static final UUID MIN_UUID = new UUID(Long.MIN_VALUE, Long.MIN_VALUE);
+
+    /// Local states that are only ever left through an explicit API call, never by catching up with Stripe
+    private static final Set<ChargeStatus> SETTLED_STATES = EnumSet.of(ChargeStatus.SUCCEEDED, ChargeStatus.REFUNDED, ChargeStatus.CANCELED, ChargeStatus.FAILED);
+    private static final Set<ChargeStatus> IN_FLIGHT_STATES = EnumSet.complementOf(EnumSet.copyOf(SETTLED_STATES));
+
+    @Value("${payment.reconciliation.batch-size:100}")
+    private int batchSize;
+
+    /// Re-scan window before the checkpoint, for objects that changed state shortly after they were created
+    @Value("${payment.reconciliation.overlap:PT24H}")
+    private Duration overlap;
+
+    /// Cap on charges stuck in flight that are re-checked one by one per run
+    @Value("${payment.reconciliation.max-stuck-per-run:500}")
+    private int maxStuckPerRun;
+
+    /// Holds found here are given the fallback expiry counted from the PaymentIntent's creation, never later than the real one
+    @Value("${payment.authorization.hold-duration:P7D}")
+    private Duration authorizationHoldDuration;
+
+    private final StripeChargeTransactionRepository stripeChargeTransactionRepository;
+    private final StripeTransferTransactionRepository stripeTransferTransactionRepository;
+    private final SellerPayoutRepository sellerPayoutRepository;
+    private final JobCheckpointRepository jobCheckpointRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+    private final PaymentStateJournal paymentStateJournal;
+    private final ChargeSnapshotCache chargeSnapshotCache;
+    private final Bulkheads bulkheads;
+    private final StripeGateway stripeGateway;
+    private final JobLeaseManager jobLeaseManager;
+
+    @JobLease("reconciliation")
+    @Scheduled(fixedDelayString = "${payment.reconciliation.interval:PT15M}", initialDelayString = "${payment.reconciliation.initial-delay:PT1M}")
+    public void reconcile() {
+        Bulkhead jobs = bulkheads.get(Bulkheads.Kind.JOBS);
+        if (!jobs.tryAcquire()) {
+            log.warn("Skipping reconciliation run, jobs bulkhead is saturated");
+            return;
+        }
+
+        try {
+            reconcilePaymentIntents();
+            reconcileTransfers();
+            reconcileStuckCharges();
+        } catch (StripeException e) {
+            log.error("Stripe reconciliation run aborted: {}", e.getMessage());
+        } finally {
+            jobs.release();
+        }
+    }
+
+    public void reconcilePaymentIntents() throws StripeException {
+        long runStartedAt = Instant.now().getEpochSecond();
+        long from = windowStart(PAYMENT_INTENTS_JOB, runStartedAt);
+        log.info("Reconciling PaymentIntents created between {} and {}", Instant.ofEpochSecond(from), Instant.ofEpochSecond(runStartedAt));
+
+        PaymentIntentListParams params = PaymentIntentListParams.builder()
+                .setCreated(PaymentIntentListParams.Created.builder().setGte(from).setLte(runStartedAt).build())
+                .setLimit(PAGE_SIZE)
+                .build();
+
+        List<PaymentIntent> batch = new ArrayList<>(batchSize);
+        long scanned = 0;
+        /// Later pages are fetched with the same timeouts, but only the first one goes through the circuit breaker
+        for (PaymentIntent paymentIntent : stripeGateway.call(StripeOperation.PAYMENT_INTENT_LIST, options -> PaymentIntent.list(params, options.build())).autoPagingIterable()) {
+            batch.add(paymentIntent);
+            if (batch.size() == batchSize) {
+                scanned += flush(batch, this::reconcilePaymentIntentBatch);
+            }
+        }
+        scanned += flush(batch, this::reconcilePaymentIntentBatch);
+
+        saveCheckpoint(PAYMENT_INTENTS_JOB, runStartedAt);
+        log.info("Reconciled {} PaymentIntents", scanned);
+    }
+
+    public void reconcileTransfers() throws StripeException {
+        long runStartedAt = Instant.now().getEpochSecond();
+        long from = windowStart(TRANSFERS_JOB, runStartedAt);
+        log.info("Reconciling Transfers created between {} and {}", Instant.ofEpochSecond(from), Instant.ofEpochSecond(runStartedAt));
+
+        TransferListParams params = TransferListParams.builder()
+                .setCreated(TransferListParams.Created.builder().setGte(from).setLte(runStartedAt).build())
+                .setLimit(PAGE_SIZE)
+                .build();
+
+        List<Transfer> batch = new ArrayList<>(batchSize);
+        long scanned = 0;
+        for (Transfer transfer : stripeGateway.call(StripeOperation.TRANSFER_LIST, options -> Transfer.list(params, options.build())).autoPagingIterable()) {
+            batch.add(transfer);
+            if (batch.size() == batchSize) {
+                scanned += flush(batch, this::reconcileTransferBatch);
+            }
+        }
+        scanned += flush(batch, this::reconcileTransferBatch);
+
+        saveCheckpoint(TRANSFERS_JOB, runStartedAt);
+        log.info("Reconciled {} Transfers", scanned);
+    }
+
+    /// Charges created before the scanned window that are still in flight locally are re-checked one by one
+    public void reconcileStuckCharges() throws StripeException {
+        LocalDateTime createdBefore = LocalDateTime.now().minus(overlap);
+        UUID afterId = MIN_UUID;
+        int checked = 0;
+        while (checked < maxStuckPerRun) {
+            List<ChargeStatusView> page = stripeChargeTransactionRepository.findStuckStatusViews(
+                    IN_FLIGHT_STATES, createdBefore, afterId, PageRequest.of(0, Math.min(batchSize, maxStuckPerRun - checked)));
+            if (page.isEmpty())
+                break;
+
+            for (ChargeStatusView charge : page) {
+                if (charge.paymentIntentId() != null) {
+                    PaymentIntent paymentIntent = stripeGateway.call(StripeOperation.PAYMENT_INTENT_RETRIEVE,
+                            options -> PaymentIntent.retrieve(charge.paymentIntentId(), options.build()));
+                    transactionTemplate.executeWithoutResult(status -> reconcileCharge(charge, paymentIntent));
+                }
+            }
+            checked += page.size();
+            afterId = page.get(page.size() - 1).id();
+        }
+    }
+
+    private <T> int flush(List<T> batch, Consumer<List<T>> reconciler) {
+        int size = batch.size();
+        if (size > 0) {
+            transactionTemplate.executeWithoutResult(status -> reconciler.accept(batch));
+            batch.clear();
+        }
+        return size;
+    }
+
+    private void reconcilePaymentIntentBatch(List<PaymentIntent> paymentIntents) {
+        Map<String, ChargeStatusView> charges = stripeChargeTransactionRepository
+                .findStatusViewsByPaymentIntentIds(paymentIntents.stream().map(PaymentIntent::getId).toList())
+                .stream()
+                .collect(Collectors.toMap(ChargeStatusView::paymentIntentId, Function.identity()));
+
+        for (PaymentIntent paymentIntent : paymentIntents) {
+            ChargeStatusView charge = charges.get(paymentIntent.getId());
+            if (charge != null) {
+                reconcileCharge(charge, paymentIntent);
+            } else if (paymentIntent.getMetadata() != null && paymentIntent.getMetadata().containsKey("orderId")) {
+                flag("charge_missing_locally", "PaymentIntent {} for orderId {} has no local charge",
+                        paymentIntent.getId(), paymentIntent.getMetadata().get("orderId"));
+            }
+        }
+    }
+
+    private void reconcileCharge(ChargeStatusView charge, PaymentIntent paymentIntent) {
+        ChargeStatus stripeStatus;
+        try {
+            stripeStatus = ChargeStatus.fromStripe(paymentIntent.getStatus());
+        } catch (IllegalArgumentException e) {
+            flag("charge_status_unknown", "PaymentIntent {} of charge {} has status {} that has no local equivalent",
+                    paymentIntent.getId(), charge.id(), paymentIntent.getStatus());
+            return;
+        }
+        if (stripeStatus == charge.status())
+            return;
+
+        if (SETTLED_STATES.contains(charge.status())) {
+            /// Refunds and payment failures are not reflected in the PaymentIntent status, only a contradiction is drift
+            boolean contradicts = (charge.status() == ChargeStatus.SUCCEEDED || charge.status() == ChargeStatus.REFUNDED)
+                    ? stripeStatus != ChargeStatus.SUCCEEDED
+                    : stripeStatus == ChargeStatus.SUCCEEDED;
+            if (contradicts)
+                flag("charge_status_conflict", "Charge {} is {} locally but PaymentIntent {} is {}",
+                        charge.id(), charge.status(), paymentIntent.getId(), stripeStatus);
+            return;
+        }
+
+        if (!charge.status().canTransitionTo(stripeStatus)) {
+            flag("charge_status_conflict", "Charge {} is {} locally but PaymentIntent {} is {}",
+                    charge.id(), charge.status(), paymentIntent.getId(), stripeStatus);
+            return;
+        }
+
+        /// A capture or webhook that moved the charge since it was read wins, the next run looks at it again
+        LocalDateTime authorizationExpiresAt = stripeStatus == ChargeStatus.REQUIRES_CAPTURE
+                ? LocalDateTime.ofInstant(Instant.ofEpochSecond(paymentIntent.getCreated()), ZoneId.systemDefault()).plus(authorizationHoldDuration)
+                : null;
+        if (stripeChargeTransactionRepository.updateStatus(charge.id(), charge.status(), stripeStatus, paymentIntent.getLatestCharge(), authorizationExpiresAt) == 0)
+            return;
+
+        paymentStateJournal.recordCharge(charge.orderId(), paymentIntent.getId(), charge.status(), stripeStatus, null);
+        chargeSnapshotCache.invalidate(charge.orderId(), paymentIntent.getId());
+        count("charge_status_fixed");
+        log.warn("Reconciled charge {} from {} to {} for PaymentIntent {}", charge.id(), charge.status(), stripeStatus, paymentIntent.getId());
+
+        if (stripeStatus == ChargeStatus.SUCCEEDED)
+            flag("charge_succeeded_without_transfers", "Charge {} succeeded without a processed webhook, seller transfers need to be created",
+                    charge.id());
+    }
+
+    private void reconcileTransferBatch(List<Transfer> transfers) {
+        Map<String, TransferStatusView> localTransfers = stripeTransferTransactionRepository
+                .findStatusViewsByStripeTransferIds(transfers.stream().map(Transfer::getId).toList())
+                .stream()
+                .collect(Collectors.toMap(TransferStatusView::stripeTransferId, Function.identity()));
+        /// Aggregated transfers of the deferred payout mode are recorded as payouts, not as transfer rows
+        Set<String> payoutTransfers = Set.copyOf(sellerPayoutRepository.findStripeTransferIdsIn(transfers.stream().map(Transfer::getId).toList()));
+
+        for (Transfer transfer : transfers) {
+            TransferStatusView local = localTransfers.get(transfer.getId());
+            if (local == null && payoutTransfers.contains(transfer.getId())) {
+                if (Boolean.TRUE.equals(transfer.getReversed()))
+                    flag("payout_reversed", "Payout transfer {} to {} was reversed on Stripe", transfer.getId(), transfer.getDestination());
+            } else if (local == null) {
+                flag("transfer_missing_locally", "Transfer {} to {} (source {}) has no local record",
+                        transfer.getId(), transfer.getDestination(), transfer.getSourceTransaction());
+            } else if (Boolean.TRUE.equals(transfer.getReversed()) && local.status() != TransferStatus.REVERSED) {
+                stripeTransferTransactionRepository.updateStatus(local.id(), TransferStatus.REVERSED);
+                paymentStateJournal.recordTransfer(null, transfer.getId(), local.status(), TransferStatus.REVERSED, null);
+                count("transfer_status_fixed");
+                log.warn("Reconciled transfer {} from {} to {}", transfer.getId(), local.status(), TransferStatus.REVERSED);
+            }
+        }
+    }
+
+    private long windowStart(String jobName, long runStartedAt) {
+        return jobCheckpointRepository.findById(jobName)
+                .map(checkpoint -> checkpoint.getPosition() - overlap.toSeconds())
+                .orElse(runStartedAt - overlap.toSeconds());
+    }
+
+    /// Fenced, a replica that lost the reconciliation lease mid-run must not move the checkpoint of the one that took over
+    private void saveCheckpoint(String jobName, long position) {
+        transactionTemplate.executeWithoutResult(status -> {
+            jobLeaseManager.checkFence();
+            JobCheckpoint checkpoint = jobCheckpointRepository.findById(jobName).orElseGet(() -> new JobCheckpoint(jobName, position));
+            checkpoint.setPosition(position);
+            jobCheckpointRepository.save(checkpoint);
+        });
+    }
+
+    private void flag(String type, String message, Object... args) {
+        count(type);
+        log.warn("Reconciliation drift [" + type + "] " + message, args);
+    }
+
+    private void count(String type) {
+        meterRegistry.counter("payment.reconciliation.drift", "type", type).increment();
+    }
+}
@@ -0,0 +1,180 @@
+package com.mazadak.payment.service.impl;
+
+import com.mazadak.payment.bulkhead.Bulkhead;
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.dto.projection.TransferRetryCandidate;
+import com.mazadak.payment.journal.PaymentStateJournal;
+import com.mazadak.payment.lease.JobLease;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.model.SellerStripeAccount;
+import com.mazadak.payment.repository.SellerStripeAccountRepository;
+import com.mazadak.payment.repository.StripeTransferTransactionRepository;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Transfer;
+import com.stripe.param.TransferCreateParams;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/// Retries FAILED seller transfers. A batch is claimed with FOR UPDATE SKIP LOCKED in a short transaction that moves
+/// its next_attempt_at past claim-timeout, then each transfer is sent to Stripe with no transaction open and its result
+/// recorded in a transaction of its own, SellerPayoutService sends payouts the same way. Rows of a replica that dies
+/// mid-batch become due again after claim-timeout and are retried under the same idempotency key. A result is only
+/// recorded on a transfer that is still FAILED, one that a refund moved while it was sent is flagged instead.
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "payment.transfer-retry.enabled", havingValue = "true", matchIfMissing = true)
+public class TransferRetryService {
+
+    @Value("${payment.transfer-retry.batch-size:20}")
+    private int batchSize;
+
+    @Value("${payment.transfer-retry.base-delay:PT1M}")
+    private Duration baseDelay;
+
+    @Value("${payment.transfer-retry.max-delay:PT2H}")
+    private Duration maxDelay;
+
+    @Value("${payment.transfer-retry.claim-timeout:PT5M}")
+    private Duration claimTimeout;
+
+    /// Keep the whole schedule inside Stripe's 24 hour idempotency key window
+    @Value("${payment.transfer-retry.max-attempts:10}")
+    private int maxAttempts;
+
+    private final StripeTransferTransactionRepository stripeTransferTransactionRepository;
+    private final SellerStripeAccountRepository sellerStripeAccountRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final MeterRegistry meterRegistry;
+    private final PaymentStateJournal paymentStateJournal;
+    private final Bulkheads bulkheads;
+    private final StripeGateway stripeGateway;
+    private final JobLeaseManager jobLeaseManager;
+
+    @JobLease("transfer-retry")
+    @Scheduled(fixedDelayString = "${payment.transfer-retry.interval:PT30S}", initialDelayString = "${payment.transfer-retry.initial-delay:PT30S}")
+    public void retryFailedTransfers() {
+        Bulkhead jobs = bulkheads.get(Bulkheads.Kind.JOBS);
+        if (!jobs.tryAcquire()) {
+            log.warn("Skipping transfer retry run, jobs bulkhead is saturated");
+            return;
+        }
+
+        try {
+            List<TransferRetryCandidate> claimed;
+            do {
+                claimed = claimBatch();
+                for (TransferRetryCandidate candidate : claimed) {
+                    try {
+                        retry(candidate);
+                    } catch (RuntimeException e) {
+                        log.error("Could not record the retry of transfer {} for orderId {}, it is due again in {}",
+                                candidate.getId(), candidate.getOrderId(), claimTimeout, e);
+                    }
+                }
+            } while (claimed.size() == batchSize);
+        } finally {
+            jobs.release();
+        }
+    }
+
+    /// Fenced, a replica that lost the lease stops claiming. Outcomes are recorded unfenced: SKIP LOCKED gave the rows to
+    /// this replica alone, and a transfer Stripe already created has to be recorded whoever holds the lease by then.
+    private List<TransferRetryCandidate> claimBatch() {
+        List<TransferRetryCandidate> claimed = transactionTemplate.execute(status -> {
+            jobLeaseManager.checkFence();
+            LocalDateTime now = LocalDateTime.now();
+            List<TransferRetryCandidate> candidates = stripeTransferTransactionRepository.claimDueFailedTransfers(now, batchSize);
+            if (!candidates.isEmpty())
+                stripeTransferTransactionRepository.postponeRetries(candidates.stream().map(TransferRetryCandidate::getId).toList(), now.plus(claimTimeout));
+            return candidates;
+        });
+        return claimed == null ? List.of() : claimed;
+    }
+
+    private void retry(TransferRetryCandidate candidate) {
+        String stripeAccountId = candidate.getSellerStripeAccountId();
+        Transfer transfer;
+        try {
+            if (stripeAccountId == null)
+                stripeAccountId = resolveStripeAccountId(candidate);
+
+            TransferCreateParams transferParams = TransferCreateParams.builder()
+                    .setAmount(candidate.getAmount().multiply(new BigDecimal("100")).longValue())
+                    .setCurrency(candidate.getCurrency().toLowerCase())
+                    .setDestination(stripeAccountId)
+                    .setSourceTransaction(candidate.getSourceTransaction())
+                    .build();
+            transfer = stripeGateway.call(StripeOperation.TRANSFER_CREATE,
+                    options -> Transfer.create(transferParams, options.setIdempotencyKey(candidate.getIdempotencyKey()).build()));
+        } catch (StripeException | RuntimeException e) {
+            recordFailure(candidate, stripeAccountId, e);
+            return;
+        }
+
+        String destination = stripeAccountId;
+        Integer updated = transactionTemplate.execute(status -> stripeTransferTransactionRepository.markRetrySucceeded(
+                candidate.getId(), TransferStatus.FAILED, TransferStatus.SUCCEEDED, transfer.getId(), destination));
+        if (updated == null || updated == 0) {
+            meterRegistry.counter("payment.transfer.retry", "outcome", "superseded").increment();
+            log.error("Transfer {} for orderId {} left FAILED while it was retried, Stripe transfer {} to {} needs a manual reversal",
+                    candidate.getId(), candidate.getOrderId(), transfer.getId(), destination);
+            return;
+        }
+        paymentStateJournal.recordTransfer(candidate.getOrderId(), transfer.getId(), TransferStatus.FAILED, TransferStatus.SUCCEEDED, null);
+        meterRegistry.counter("payment.transfer.retry", "outcome", "succeeded").increment();
+        log.info("Retried transfer {} to seller {} for orderId {} on attempt {}",
+                transfer.getId(), candidate.getSellerId(), candidate.getOrderId(), candidate.getAttempts() + 1);
+    }
+
+    private void recordFailure(TransferRetryCandidate candidate, String stripeAccountId, Exception e) {
+        int attempt = candidate.getAttempts() + 1;
+        LocalDateTime nextAttemptAt = attempt < maxAttempts ? LocalDateTime.now().plus(backoff(attempt)) : null;
+        Integer updated = transactionTemplate.execute(status -> stripeTransferTransactionRepository.markRetryFailed(
+                candidate.getId(), TransferStatus.FAILED, stripeAccountId, e.getMessage(), nextAttemptAt));
+        if (updated == null || updated == 0) {
+            log.info("Transfer {} for orderId {} left FAILED while it was retried, not recording the failed attempt", candidate.getId(), candidate.getOrderId());
+            return;
+        }
+
+        String outcome = nextAttemptAt == null ? "exhausted" : "failed";
+        meterRegistry.counter("payment.transfer.retry", "outcome", outcome).increment();
+        if (nextAttemptAt == null)
+            log.error("Giving up on transfer {} to seller {} for orderId {} after {} attempts: {}",
+                    candidate.getId(), candidate.getSellerId(), candidate.getOrderId(), attempt, e.getMessage());
+        else
+            log.warn("Retry {} of transfer {} for orderId {} failed, next attempt at {}: {}",
+                    attempt, candidate.getId(), candidate.getOrderId(), nextAttemptAt, e.getMessage());
+    }
+
+    private String resolveStripeAccountId(TransferRetryCandidate candidate) {
+        SellerStripeAccount account = candidate.getSellerId() == null ? null : sellerStripeAccountRepository.findBySellerId(candidate.getSellerId());
+        if (account == null)
+            throw new IllegalStateException("SellerStripeAccount not found for sellerId " + candidate.getSellerId());
+
+        return account.getStripeAccountId();
+    }
+
+    /// Exponential backoff capped at maxDelay, with +-20% jitter so replicas do not retry in lockstep
+    Duration backoff(int attempt) {
+        long exponential = baseDelay.toMillis() << Math.min(attempt - 1, 20);
+        long capped = Math.min(exponential, maxDelay.toMillis());
+        long jitter = (long) (capped * 0.2 * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+        return Duration.ofMillis(capped + jitter);
+    }
+}
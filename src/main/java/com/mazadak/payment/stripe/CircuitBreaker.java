@@ -0,0 +1,136 @@
+package com.mazadak.payment.stripe;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+
+/// Count-based circuit breaker over the last windowSize calls. It opens once at least minimumCalls were recorded and
+/// the failure rate reaches the threshold, rejects calls for openDuration, then lets halfOpenCalls trial calls through:
+/// all of them succeeding closes it again, any failure opens it for another openDuration.
+@Slf4j
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    @Getter
+    private final String name;
+    private final double failureRateThreshold;
+    private final int minimumCalls;
+    private final Duration openDuration;
+    private final int halfOpenCalls;
+
+    private final boolean[] window;
+    private int next;
+    private int recorded;
+    private int failures;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    private final Counter notPermitted;
+
+    public CircuitBreaker(String name, double failureRateThreshold, int windowSize, int minimumCalls, Duration openDuration, int halfOpenCalls, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.openDuration = openDuration;
+        this.halfOpenCalls = halfOpenCalls;
+        this.window = new boolean[windowSize];
+
+        for (State candidate : State.values())
+            Gauge.builder("payment.stripe.circuit.state", this, breaker -> breaker.state() == candidate ? 1 : 0)
+                    .tag("group", name)
+                    .tag("state", candidate.name().toLowerCase())
+                    .register(meterRegistry);
+        Gauge.builder("payment.stripe.circuit.failure.rate", this, CircuitBreaker::failureRate).tag("group", name).register(meterRegistry);
+        this.notPermitted = meterRegistry.counter("payment.stripe.circuit.not.permitted", "group", name);
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    /// A permitted call must be followed by exactly one of onSuccess or onFailure
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN && System.nanoTime() - openedAt >= openDuration.toNanos()) {
+            log.info("Circuit {} is half-open, letting {} trial calls through", name, halfOpenCalls);
+            state = State.HALF_OPEN;
+            halfOpenPermits = halfOpenCalls;
+            halfOpenSuccesses = 0;
+        }
+
+        boolean permitted = switch (state) {
+            case CLOSED -> true;
+            case OPEN -> false;
+            case HALF_OPEN -> {
+                if (halfOpenPermits == 0)
+                    yield false;
+                halfOpenPermits--;
+                yield true;
+            }
+        };
+        if (!permitted)
+            notPermitted.increment();
+        return permitted;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            if (++halfOpenSuccesses >= halfOpenCalls) {
+                log.info("Circuit {} closed", name);
+                state = State.CLOSED;
+                resetWindow();
+            }
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (recorded >= minimumCalls && failureRate() >= failureRateThreshold)
+                open();
+        }
+    }
+
+    private void record(boolean failure) {
+        if (recorded == window.length) {
+            if (window[next])
+                failures--;
+        } else {
+            recorded++;
+        }
+        window[next] = failure;
+        if (failure)
+            failures++;
+        next = (next + 1) % window.length;
+    }
+
+    private synchronized double failureRate() {
+        return recorded == 0 ? 0 : failures * 100.0 / recorded;
+    }
+
+    private void open() {
+        log.warn("Circuit {} opened for {}, failure rate {}% over the last {} calls", name, openDuration, Math.round(failureRate()), recorded);
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        next = 0;
+        recorded = 0;
+        failures = 0;
+    }
+}
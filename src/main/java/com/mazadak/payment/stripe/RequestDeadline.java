@@ -0,0 +1,27 @@
+package com.mazadak.payment.stripe;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/// The point by which the inbound request handled on the current thread must be answered, set by RequestDeadlineFilter.
+/// Scheduled jobs and other threads outside a request have no deadline.
+public final class RequestDeadline {
+
+    private static final ThreadLocal<Long> DEADLINE_NANOS = new ThreadLocal<>();
+
+    private RequestDeadline() {
+    }
+
+    public static void start(Duration budget) {
+        DEADLINE_NANOS.set(System.nanoTime() + budget.toNanos());
+    }
+
+    public static void clear() {
+        DEADLINE_NANOS.remove();
+    }
+
+    public static Optional<Duration> remaining() {
+        Long deadline = DEADLINE_NANOS.get();
+        return deadline == null ? Optional.empty() : Optional.of(Duration.ofNanos(deadline - System.nanoTime()));
+    }
+}
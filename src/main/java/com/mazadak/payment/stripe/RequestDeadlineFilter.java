@@ -0,0 +1,51 @@
+package com.mazadak.payment.stripe;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/// Starts the deadline of each request before it waits for a bulkhead, so queueing time counts against it. A caller
+/// with less time left than the configured budget passes its remaining milliseconds in X-Request-Timeout.
+@Component
+@Slf4j
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+public class RequestDeadlineFilter extends OncePerRequestFilter {
+
+    static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
+    @Value("${payment.stripe.deadline.request-budget:PT10S}")
+    private Duration requestBudget;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        RequestDeadline.start(budget(request.getHeader(TIMEOUT_HEADER)));
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            RequestDeadline.clear();
+        }
+    }
+
+    private Duration budget(String timeoutHeader) {
+        if (timeoutHeader == null)
+            return requestBudget;
+
+        try {
+            Duration callerBudget = Duration.ofMillis(Long.parseLong(timeoutHeader.trim()));
+            return callerBudget.isNegative() || callerBudget.compareTo(requestBudget) > 0 ? requestBudget : callerBudget;
+        } catch (NumberFormatException e) {
+            log.debug("Ignoring malformed {} header: {}", TIMEOUT_HEADER, timeoutHeader);
+            return requestBudget;
+        }
+    }
+}
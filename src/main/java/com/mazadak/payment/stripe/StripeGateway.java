@@ -0,0 +1,130 @@
+package com.mazadak.payment.stripe;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.RateLimitException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.RequestOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/// Runs Stripe calls with per-operation timeouts and retries, cut down to what is left of the inbound request's
+/// deadline, behind one circuit breaker per operation group. Only timeouts, connection errors, 429 and 5xx count as
+/// failures, a declined card or an invalid request means Stripe itself is healthy.
+@Component
+public class StripeGateway {
+
+    @FunctionalInterface
+    public interface StripeCall<T> {
+        T execute(RequestOptions.RequestOptionsBuilder options) throws StripeException;
+    }
+
+    /// Below this it is not worth calling Stripe at all, the request would time out before the response arrives
+    private static final long MIN_TIMEOUT_MILLIS = 100;
+
+    private record Settings(Duration timeout, int maxRetries) {}
+
+    private final Duration connectTimeout;
+    private final Duration deadlineReserve;
+    private final Map<StripeOperation, Settings> settings = new EnumMap<>(StripeOperation.class);
+    private final Map<StripeOperation.Group, CircuitBreaker> circuitBreakers = new EnumMap<>(StripeOperation.Group.class);
+    private final MeterRegistry meterRegistry;
+
+    public StripeGateway(Environment environment, MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.connectTimeout = environment.getProperty("payment.stripe.connect-timeout", Duration.class, Duration.ofSeconds(2));
+        this.deadlineReserve = environment.getProperty("payment.stripe.deadline.reserve", Duration.class, Duration.ofMillis(250));
+
+        for (StripeOperation operation : StripeOperation.values()) {
+            String prefix = "payment.stripe.operations." + operation.getKey() + ".";
+            settings.put(operation, new Settings(
+                    environment.getProperty(prefix + "timeout", Duration.class, Duration.parse(operation.getTimeout())),
+                    environment.getProperty(prefix + "max-retries", Integer.class, operation.getMaxRetries())));
+        }
+
+        String prefix = "payment.stripe.circuit-breaker.";
+        for (StripeOperation.Group group : StripeOperation.Group.values())
+            circuitBreakers.put(group, new CircuitBreaker(group.getKey(),
+                    environment.getProperty(prefix + "failure-rate-threshold", Double.class, 50.0),
+                    environment.getProperty(prefix + "window-size", Integer.class, 20),
+                    environment.getProperty(prefix + "minimum-calls", Integer.class, 10),
+                    environment.getProperty(prefix + "open-duration", Duration.class, Duration.ofSeconds(30)),
+                    environment.getProperty(prefix + "half-open-calls", Integer.class, 3),
+                    meterRegistry));
+    }
+
+    public <T> T call(StripeOperation operation, StripeCall<T> call) throws StripeException {
+        RequestOptions.RequestOptionsBuilder options = options(operation);
+        CircuitBreaker circuitBreaker = circuitBreakers.get(operation.getGroup());
+        if (!circuitBreaker.tryAcquirePermission()) {
+            timer(operation, "not_permitted").record(0, TimeUnit.NANOSECONDS);
+            throw new StripeUnavailableException("Stripe " + operation.getGroup().getKey() + " calls are failing, circuit is open");
+        }
+
+        long start = System.nanoTime();
+        String outcome = "success";
+        try {
+            return call.execute(options);
+        } catch (StripeException e) {
+            outcome = isStripeDegraded(e) ? "failure" : "client_error";
+            throw e;
+        } catch (RuntimeException e) {
+            outcome = "error";
+            throw e;
+        } finally {
+            if (outcome.equals("failure"))
+                circuitBreaker.onFailure();
+            else
+                circuitBreaker.onSuccess();
+            timer(operation, outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public CircuitBreaker.State state(StripeOperation.Group group) {
+        return circuitBreakers.get(group).state();
+    }
+
+    private RequestOptions.RequestOptionsBuilder options(StripeOperation operation) throws StripeUnavailableException {
+        Settings operationSettings = settings.get(operation);
+        long timeoutMillis = operationSettings.timeout().toMillis();
+        int maxRetries = operationSettings.maxRetries();
+
+        Optional<Duration> remaining = RequestDeadline.remaining();
+        if (remaining.isPresent()) {
+            long budgetMillis = remaining.get().minus(deadlineReserve).toMillis();
+            if (budgetMillis < MIN_TIMEOUT_MILLIS) {
+                timer(operation, "deadline_exceeded").record(0, TimeUnit.NANOSECONDS);
+                throw new StripeUnavailableException("Request deadline leaves no time to call Stripe " + operation.getKey());
+            }
+            timeoutMillis = Math.min(timeoutMillis, budgetMillis);
+            /// Each retry waits the full timeout again, so only retry as often as the rest of the budget allows
+            maxRetries = (int) Math.min(maxRetries, budgetMillis / timeoutMillis - 1);
+        }
+
+        return RequestOptions.builder()
+                .setConnectTimeout((int) Math.min(connectTimeout.toMillis(), timeoutMillis))
+                .setReadTimeout((int) timeoutMillis)
+                .setMaxNetworkRetries(maxRetries);
+    }
+
+    private static boolean isStripeDegraded(StripeException e) {
+        if (e instanceof ApiConnectionException || e instanceof RateLimitException)
+            return true;
+        return e.getStatusCode() != null && e.getStatusCode() >= 500;
+    }
+
+    private Timer timer(StripeOperation operation, String outcome) {
+        return Timer.builder("payment.stripe.calls")
+                .tag("operation", operation.getKey())
+                .tag("group", operation.getGroup().getKey())
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+}
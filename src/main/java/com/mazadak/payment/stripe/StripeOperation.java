@@ -0,0 +1,49 @@
+package com.mazadak.payment.stripe;
+
+import lombok.Getter;
+
+/// Every Stripe API call the service makes, with its default timeout and network retries. Both can be overridden under
+/// payment.stripe.operations.<key>. Operations of a group share one circuit breaker.
+@Getter
+public enum StripeOperation {
+    PAYMENT_INTENT_CREATE("payment-intent-create", Group.PAYMENTS, "PT10S", 2),
+    PAYMENT_INTENT_RETRIEVE("payment-intent-retrieve", Group.PAYMENTS, "PT5S", 2),
+    PAYMENT_INTENT_CAPTURE("payment-intent-capture", Group.PAYMENTS, "PT10S", 2),
+    PAYMENT_INTENT_CANCEL("payment-intent-cancel", Group.PAYMENTS, "PT10S", 2),
+    PAYMENT_INTENT_LIST("payment-intent-list", Group.PAYMENTS, "PT20S", 2),
+    CHARGE_RETRIEVE("charge-retrieve", Group.PAYMENTS, "PT5S", 1),
+    /// Read-only, only used by WarmupRunner to open a connection to Stripe before the pod reports ready
+    BALANCE_RETRIEVE("balance-retrieve", Group.PAYMENTS, "PT5S", 0),
+    REFUND_CREATE("refund-create", Group.REFUNDS, "PT15S", 2),
+    TRANSFER_CREATE("transfer-create", Group.TRANSFERS, "PT15S", 2),
+    TRANSFER_LIST("transfer-list", Group.TRANSFERS, "PT20S", 2),
+    /// An authorization code can only be redeemed once, a retry after a lost response would always fail
+    OAUTH_TOKEN("oauth-token", Group.CONNECT, "PT10S", 0),
+    OAUTH_DEAUTHORIZE("oauth-deauthorize", Group.CONNECT, "PT10S", 1);
+
+    public enum Group {
+        PAYMENTS("payments"),
+        REFUNDS("refunds"),
+        TRANSFERS("transfers"),
+        CONNECT("connect");
+
+        @Getter
+        private final String key;
+
+        Group(String key) {
+            this.key = key;
+        }
+    }
+
+    private final String key;
+    private final Group group;
+    private final String timeout;
+    private final int maxRetries;
+
+    StripeOperation(String key, Group group, String timeout, int maxRetries) {
+        this.key = key;
+        this.group = group;
+        this.timeout = timeout;
+        this.maxRetries = maxRetries;
+    }
+}
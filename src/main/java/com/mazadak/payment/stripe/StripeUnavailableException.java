@@ -0,0 +1,12 @@
+package com.mazadak.payment.stripe;
+
+import com.stripe.exception.ApiConnectionException;
+
+/// Raised without calling Stripe, when the circuit of the operation group is open or the request deadline is too close.
+/// It is an ApiConnectionException so existing handling treats it like Stripe being unreachable, which it effectively is.
+public class StripeUnavailableException extends ApiConnectionException {
+
+    public StripeUnavailableException(String message) {
+        super(message);
+    }
+}
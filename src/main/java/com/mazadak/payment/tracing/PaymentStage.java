@@ -0,0 +1,18 @@
+package com.mazadak.payment.tracing;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/// Observes the method as one stage of a payment, see {@link PaymentStages}. Applied outside @Transactional, so the
+/// stage includes the commit.
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface PaymentStage {
+
+    /// Stage name, the stage tag of payment.stage and the span name after "payment "
+    String value();
+}
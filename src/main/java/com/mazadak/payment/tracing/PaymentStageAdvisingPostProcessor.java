@@ -0,0 +1,45 @@
+package com.mazadak.payment.tracing;
+
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.autoproxy.AbstractBeanFactoryAwareAdvisingPostProcessor;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.annotation.AnnotationMatchingPointcut;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+
+/// Proxies beans with {@link PaymentStage} methods, the way @Async is applied. The registry is looked up on the first
+/// call since a post-processor is created before the beans it depends on.
+public class PaymentStageAdvisingPostProcessor extends AbstractBeanFactoryAwareAdvisingPostProcessor {
+
+    public PaymentStageAdvisingPostProcessor(ObjectProvider<ObservationRegistry> observationRegistry) {
+        this.advisor = new DefaultPointcutAdvisor(AnnotationMatchingPointcut.forMethodAnnotation(PaymentStage.class), interceptor(observationRegistry));
+        setBeforeExistingAdvisors(true);
+        setProxyTargetClass(true);
+    }
+
+    private static MethodInterceptor interceptor(ObjectProvider<ObservationRegistry> observationRegistry) {
+        return (MethodInvocation invocation) -> {
+            Class<?> targetClass = invocation.getThis() == null ? invocation.getMethod().getDeclaringClass() : AopUtils.getTargetClass(invocation.getThis());
+            String stage = AnnotatedElementUtils.findMergedAnnotation(AopUtils.getMostSpecificMethod(invocation.getMethod(), targetClass), PaymentStage.class).value();
+
+            Observation observation = Observation.createNotStarted(PaymentStages.OBSERVATION, observationRegistry.getIfAvailable(() -> ObservationRegistry.NOOP))
+                    .contextualName("payment " + stage)
+                    .lowCardinalityKeyValue("stage", stage)
+                    .start();
+            Observation enclosing = PaymentStages.enter(observation);
+            try (Observation.Scope scope = observation.openScope()) {
+                return invocation.proceed();
+            } catch (Throwable e) {
+                observation.error(e);
+                throw e;
+            } finally {
+                PaymentStages.exit(enclosing);
+                observation.stop();
+            }
+        };
+    }
+}
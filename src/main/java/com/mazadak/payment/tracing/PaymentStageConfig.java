@@ -0,0 +1,15 @@
+package com.mazadak.payment.tracing;
+
+import io.micrometer.observation.ObservationRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class PaymentStageConfig {
+
+    @Bean
+    static PaymentStageAdvisingPostProcessor paymentStageAdvisingPostProcessor(ObjectProvider<ObservationRegistry> observationRegistry) {
+        return new PaymentStageAdvisingPostProcessor(observationRegistry);
+    }
+}
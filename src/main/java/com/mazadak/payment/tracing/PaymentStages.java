@@ -0,0 +1,50 @@
+package com.mazadak.payment.tracing;
+
+import io.micrometer.observation.Observation;
+
+/// Each {@link PaymentStage} method runs in a payment.stage observation, timed per stage and, for the webhook, per
+/// event type. With a Micrometer tracing bridge on the classpath every stage also becomes a span carrying the key
+/// values below, and the stage histogram buckets get the trace as exemplar. The OpenTelemetry agent the image starts
+/// with puts the webhook or API request, the Stripe HTTP calls and the Kafka sends of a stage into one trace, and its
+/// Kafka instrumentation writes that trace to the traceparent header of every payment event.
+public final class PaymentStages {
+
+    public static final String OBSERVATION = "payment.stage";
+
+    public static final String ORDER_ID = "payment.order_id";
+    public static final String PAYMENT_INTENT_ID = "payment.intent_id";
+    public static final String SELLER_COUNT = "payment.seller_count";
+    public static final String EVENT_TYPE = "stripe.event_type";
+
+    private static final ThreadLocal<Observation> CURRENT = new ThreadLocal<>();
+
+    private PaymentStages() {
+    }
+
+    static Observation enter(Observation observation) {
+        Observation enclosing = CURRENT.get();
+        CURRENT.set(observation);
+        return enclosing;
+    }
+
+    static void exit(Observation enclosing) {
+        if (enclosing == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(enclosing);
+    }
+
+    /// Adds a span attribute to the stage running on this thread, a no-op outside {@link PaymentStage} methods
+    public static void annotate(String key, Object value) {
+        Observation observation = CURRENT.get();
+        if (observation != null && value != null)
+            observation.highCardinalityKeyValue(key, value.toString());
+    }
+
+    /// Like {@link #annotate} but also tags the stage timer, only for values from a small fixed set
+    public static void tag(String key, String value) {
+        Observation observation = CURRENT.get();
+        if (observation != null && value != null)
+            observation.lowCardinalityKeyValue(key, value);
+    }
+}
@@ -0,0 +1,50 @@
+package com.mazadak.payment.velocity;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// Attempts of one key over a sliding window kept as a ring of buckets. Each bucket is a single long with the bucket's
+/// epoch in the high half and its count in the low half, so moving a bucket on to a new epoch and counting in it is one
+/// compare-and-set and no lock is ever taken. Epochs start at 1, an empty bucket has epoch 0.
+final class SlidingWindowCounter {
+
+    private final AtomicLongArray buckets;
+
+    SlidingWindowCounter(int bucketCount) {
+        this.buckets = new AtomicLongArray(bucketCount);
+    }
+
+    void increment(long epoch) {
+        int index = (int) (epoch % buckets.length());
+        while (true) {
+            long bucket = buckets.get(index);
+            long bucketEpoch = bucket >>> 32;
+            /// A thread that read the clock earlier lost the race to one that already moved the bucket on
+            if (bucketEpoch > epoch)
+                return;
+            long next = bucketEpoch == epoch ? bucket + 1 : epoch << 32 | 1;
+            if (buckets.compareAndSet(index, bucket, next))
+                return;
+        }
+    }
+
+    /// Attempts in the window that ends with the bucket of epoch
+    long sum(long epoch) {
+        long sum = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            long bucket = buckets.get(i);
+            long bucketEpoch = bucket >>> 32;
+            if (bucketEpoch > epoch - buckets.length() && bucketEpoch <= epoch)
+                sum += bucket & 0xFFFFFFFFL;
+        }
+        return sum;
+    }
+
+    /// True once every counted attempt has left the window
+    boolean idle(long epoch) {
+        for (int i = 0; i < buckets.length(); i++) {
+            if ((buckets.get(i) >>> 32) > epoch - buckets.length())
+                return false;
+        }
+        return true;
+    }
+}
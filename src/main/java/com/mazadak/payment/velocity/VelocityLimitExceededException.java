@@ -0,0 +1,25 @@
+package com.mazadak.payment.velocity;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+
+/// Answered with 429 and a Retry-After header, the attempt never reached Stripe or the database
+public class VelocityLimitExceededException extends ResponseStatusException {
+
+    private final Duration retryAfter;
+
+    public VelocityLimitExceededException(String dimension, Duration retryAfter) {
+        super(HttpStatus.TOO_MANY_REQUESTS, "Too many payment attempts for this " + dimension);
+        this.retryAfter = retryAfter;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, (retryAfter.toMillis() + 999) / 1000)));
+        return headers;
+    }
+}
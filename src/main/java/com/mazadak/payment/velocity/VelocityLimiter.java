@@ -0,0 +1,92 @@
+package com.mazadak.payment.velocity;
+
+import com.mazadak.payment.dto.request.CartItem;
+import com.mazadak.payment.dto.request.CreatePaymentIntentRequest;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/// Sliding-window limits on payment intent attempts per order, buyer and seller set, configured under
+/// payment.velocity.<dimension>. Checked before any Stripe or database work, an attempt over a limit is rejected and
+/// not counted, so a burst is let through again once it slows down. Counters live in memory on each replica, behind
+/// the load balancer a key gets up to limit times the replica count. Checking and counting are separate steps,
+/// attempts racing on one key can overshoot the limit by the number of racers.
+@Component
+public class VelocityLimiter {
+
+    public enum Dimension {
+        ORDER("order", 5, "PT10M"),
+        BUYER("buyer", 20, "PT10M"),
+        /// The sorted seller ids of the cart. A single popular seller is a seller set too, the limit has to sit above
+        /// their busiest auction close.
+        SELLER_SET("seller-set", 600, "PT10M");
+
+        private final String key;
+        private final int limit;
+        private final String window;
+
+        Dimension(String key, int limit, String window) {
+            this.key = key;
+            this.limit = limit;
+            this.window = window;
+        }
+    }
+
+    private final boolean enabled;
+    private final Map<Dimension, VelocityWindow> windows = new EnumMap<>(Dimension.class);
+
+    @Autowired
+    public VelocityLimiter(Environment environment, MeterRegistry meterRegistry) {
+        this(environment, meterRegistry, System::nanoTime);
+    }
+
+    public VelocityLimiter(Environment environment, MeterRegistry meterRegistry, LongSupplier nanoTime) {
+        this.enabled = environment.getProperty("payment.velocity.enabled", Boolean.class, true);
+        int maxKeys = environment.getProperty("payment.velocity.max-keys", Integer.class, 100_000);
+        for (Dimension dimension : Dimension.values()) {
+            String prefix = "payment.velocity." + dimension.key + ".";
+            windows.put(dimension, new VelocityWindow(dimension.key,
+                    environment.getProperty(prefix + "limit", Integer.class, dimension.limit),
+                    environment.getProperty(prefix + "window", Duration.class, Duration.parse(dimension.window)),
+                    maxKeys, nanoTime, meterRegistry));
+        }
+    }
+
+    /// Counts the attempt, or throws VelocityLimitExceededException without counting it
+    public void check(CreatePaymentIntentRequest request) {
+        if (!enabled)
+            return;
+
+        Map<Dimension, String> keys = keys(request);
+        keys.forEach((dimension, key) -> {
+            VelocityWindow window = windows.get(dimension);
+            if (window.exceeded(key))
+                throw new VelocityLimitExceededException(dimension.key, window.retryAfter());
+        });
+        keys.forEach((dimension, key) -> windows.get(dimension).record(key));
+    }
+
+    @Scheduled(fixedDelayString = "${payment.velocity.eviction-interval:PT1M}")
+    public void evictIdle() {
+        windows.values().forEach(VelocityWindow::evictIdle);
+    }
+
+    private static Map<Dimension, String> keys(CreatePaymentIntentRequest request) {
+        Map<Dimension, String> keys = new EnumMap<>(Dimension.class);
+        keys.put(Dimension.ORDER, request.orderId().toString());
+        if (request.buyerId() != null)
+            keys.put(Dimension.BUYER, request.buyerId().toString());
+        keys.put(Dimension.SELLER_SET, request.items().stream().map(CartItem::sellerId).map(UUID::toString).sorted().distinct()
+                .collect(Collectors.joining(",")));
+        return keys;
+    }
+}
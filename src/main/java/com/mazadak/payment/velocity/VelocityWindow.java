@@ -0,0 +1,89 @@
+package com.mazadak.payment.velocity;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/// The counters of one velocity dimension. The map is a ConcurrentHashMap, reads take no lock and writers only lock
+/// the bin of their key, so checks for different keys do not contend. Past maxKeys new keys are not tracked rather than
+/// letting a flood of distinct ids grow the heap.
+final class VelocityWindow {
+
+    static final int BUCKETS = 10;
+
+    private final int limit;
+    private final int maxKeys;
+    private final long bucketNanos;
+    private final Duration retryAfter;
+    private final LongSupplier nanoTime;
+    private final long origin;
+    private final Map<String, SlidingWindowCounter> counters = new ConcurrentHashMap<>();
+
+    private final Counter allowed;
+    private final Counter rejected;
+    private final Counter untracked;
+
+    VelocityWindow(String dimension, int limit, Duration window, int maxKeys, LongSupplier nanoTime, MeterRegistry meterRegistry) {
+        this.limit = limit;
+        this.maxKeys = maxKeys;
+        this.bucketNanos = Math.max(1, window.toNanos() / BUCKETS);
+        /// The oldest bucket has to leave the window before a rejected key gets another attempt
+        this.retryAfter = Duration.ofNanos(bucketNanos);
+        this.nanoTime = nanoTime;
+        this.origin = nanoTime.getAsLong();
+
+        this.allowed = meterRegistry.counter("payment.velocity.checks", "dimension", dimension, "outcome", "allowed");
+        this.rejected = meterRegistry.counter("payment.velocity.checks", "dimension", dimension, "outcome", "rejected");
+        this.untracked = meterRegistry.counter("payment.velocity.untracked", "dimension", dimension);
+        Gauge.builder("payment.velocity.keys", counters, Map::size).tag("dimension", dimension).register(meterRegistry);
+        Gauge.builder("payment.velocity.max", this, VelocityWindow::max).tag("dimension", dimension).register(meterRegistry);
+        Gauge.builder("payment.velocity.limit", () -> limit).tag("dimension", dimension).register(meterRegistry);
+    }
+
+    boolean exceeded(String key) {
+        SlidingWindowCounter counter = counters.get(key);
+        if (counter != null && counter.sum(epoch()) >= limit) {
+            rejected.increment();
+            return true;
+        }
+        return false;
+    }
+
+    void record(String key) {
+        allowed.increment();
+        SlidingWindowCounter counter = counters.get(key);
+        if (counter == null) {
+            if (counters.size() >= maxKeys) {
+                untracked.increment();
+                return;
+            }
+            counter = counters.computeIfAbsent(key, ignored -> new SlidingWindowCounter(BUCKETS));
+        }
+        counter.increment(epoch());
+    }
+
+    Duration retryAfter() {
+        return retryAfter;
+    }
+
+    /// An attempt that races with its key's removal may go uncounted, only keys idle for a whole window are removed
+    void evictIdle() {
+        long epoch = epoch();
+        counters.values().removeIf(counter -> counter.idle(epoch));
+    }
+
+    /// Attempts of the busiest key, computed on scrape
+    double max() {
+        long epoch = epoch();
+        return counters.values().stream().mapToLong(counter -> counter.sum(epoch)).max().orElse(0);
+    }
+
+    private long epoch() {
+        return (nanoTime.getAsLong() - origin) / bucketNanos + 1;
+    }
+}
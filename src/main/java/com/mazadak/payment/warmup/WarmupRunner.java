@@ -0,0 +1,147 @@
+package com.mazadak.payment.warmup;
+
+import com.mazadak.payment.dto.request.CartItem;
+import com.mazadak.payment.dto.request.CreatePaymentIntentRequest;
+import com.mazadak.payment.service.impl.StripePaymentService;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
+import com.stripe.Stripe;
+import com.stripe.model.Balance;
+import com.stripe.model.PaymentIntent;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/// Warms the pod up before it takes traffic. Spring Boot only reports readiness once every ApplicationRunner has
+/// returned, so until this one finishes /actuator/health/readiness answers 503 while liveness is already up.
+///
+/// Opens the database pool and a connection to Stripe, then runs the checkout and webhook parsing paths on synthetic
+/// data until the JIT has compiled them, see StripePaymentService.warmUpCheckout and warmUpWebhook. Kafka producers are
+/// created at startup through spring.cloud.stream.output-bindings. Every step is best effort: a failing step is logged
+/// and skipped, and the whole warm-up stops at the timeout so a slow dependency cannot hold readiness back for good.
+/// Timed as payment.warmup and payment.warmup.step.
+@Component
+@Slf4j
+@ConditionalOnProperty(name = "payment.warmup.enabled", havingValue = "true", matchIfMissing = true)
+public class WarmupRunner implements ApplicationRunner {
+
+    private final StripePaymentService stripePaymentService;
+    private final StripeGateway stripeGateway;
+    private final DataSource dataSource;
+    private final MeterRegistry meterRegistry;
+    private final int iterations;
+    private final int connections;
+    private final Duration timeout;
+
+    public WarmupRunner(StripePaymentService stripePaymentService, StripeGateway stripeGateway, DataSource dataSource, MeterRegistry meterRegistry,
+                        @Value("${payment.warmup.iterations:200}") int iterations,
+                        @Value("${payment.warmup.connections:10}") int connections,
+                        @Value("${payment.warmup.timeout:PT30S}") Duration timeout) {
+        this.stripePaymentService = stripePaymentService;
+        this.stripeGateway = stripeGateway;
+        this.dataSource = dataSource;
+        this.meterRegistry = meterRegistry;
+        this.iterations = iterations;
+        this.connections = connections;
+        this.timeout = timeout;
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long start = System.nanoTime();
+        long deadline = start + timeout.toNanos();
+
+        step("database", deadline, this::openConnections);
+        step("stripe", deadline, () -> stripeGateway.call(StripeOperation.BALANCE_RETRIEVE, options -> Balance.retrieve(options.build())));
+        step("checkout", deadline, () -> repeat(deadline, () -> stripePaymentService.warmUpCheckout(syntheticRequest(), syntheticPaymentIntent())));
+        step("webhook", deadline, () -> repeat(deadline, () -> stripePaymentService.warmUpWebhook(syntheticEvent())));
+
+        long elapsed = System.nanoTime() - start;
+        meterRegistry.timer("payment.warmup").record(elapsed, TimeUnit.NANOSECONDS);
+        log.info("Warm-up finished in {} ms", TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    private void step(String name, long deadline, Step step) {
+        if (System.nanoTime() > deadline) {
+            log.warn("Skipping warm-up step {}, warm-up ran out of time", name);
+            return;
+        }
+
+        long start = System.nanoTime();
+        String outcome = "success";
+        try {
+            step.run();
+        } catch (Exception e) {
+            outcome = "failure";
+            log.warn("Warm-up step {} failed, the first requests will pay for it: {}", name, e.getMessage());
+        } finally {
+            meterRegistry.timer("payment.warmup.step", "step", name, "outcome", outcome).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void repeat(long deadline, Step step) throws Exception {
+        for (int i = 0; i < iterations && System.nanoTime() < deadline; i++)
+            step.run();
+    }
+
+    /// Holds the connections at the same time so the pool has to open that many, a statement on each makes the lazy
+    /// replica routing proxy pick a physical connection
+    private void openConnections() throws Exception {
+        List<Connection> opened = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                Connection connection = dataSource.getConnection();
+                opened.add(connection);
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("SELECT 1");
+                }
+            }
+        } finally {
+            for (Connection connection : opened)
+                connection.close();
+        }
+    }
+
+    private static CreatePaymentIntentRequest syntheticRequest() {
+        return new CreatePaymentIntentRequest(UUID.randomUUID(), "usd", "FIXED", List.of(
+                new CartItem(UUID.randomUUID(), new BigDecimal("40.00")),
+                new CartItem(UUID.randomUUID(), new BigDecimal("9.99"))), UUID.randomUUID());
+    }
+
+    private static PaymentIntent syntheticPaymentIntent() {
+        PaymentIntent paymentIntent = new PaymentIntent();
+        paymentIntent.setId("pi_warmup_" + UUID.randomUUID().toString().replace("-", ""));
+        paymentIntent.setStatus("requires_payment_method");
+        return paymentIntent;
+    }
+
+    private static String syntheticPaymentIntentJson() {
+        String id = "pi_warmup_" + UUID.randomUUID().toString().replace("-", "");
+        return "{\"id\":\"" + id + "\",\"object\":\"payment_intent\",\"amount\":4999,\"currency\":\"usd\","
+                + "\"status\":\"requires_payment_method\",\"capture_method\":\"manual\",\"client_secret\":\"" + id + "_secret\","
+                + "\"metadata\":{\"orderId\":\"" + UUID.randomUUID() + "\",\"checkoutType\":\"FIXED\"}}";
+    }
+
+    private static String syntheticEvent() {
+        return "{\"id\":\"evt_warmup\",\"object\":\"event\",\"api_version\":\"" + Stripe.API_VERSION + "\","
+                + "\"type\":\"payment_intent.created\",\"data\":{\"object\":" + syntheticPaymentIntentJson() + "}}";
+    }
+}
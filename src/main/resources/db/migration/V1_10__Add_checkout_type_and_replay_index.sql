@@ -0,0 +1,6 @@
+-- Replayed payment events carry the checkout type, which only lived in the PaymentIntent metadata so far. Rows created
+-- before this keep NULL and have it looked up on Stripe once by EventReplayService.
+ALTER TABLE charge_stripe_transactions ADD COLUMN checkout_type VARCHAR(32);
+
+-- Lets a replay walk a created_at range in cursor order without sorting it first
+CREATE INDEX idx_charge_created_at_id ON charge_stripe_transactions(created_at, id);
@@ -0,0 +1,4 @@
+-- Exports stream each table in created_at order, these let the cursor return rows right away instead of sorting a
+-- whole month first. Charges already have idx_charge_created_at_id.
+CREATE INDEX idx_order_items_created_at ON order_items(created_at);
+CREATE INDEX idx_transfer_created_at ON transfer_stripe_transactions(created_at);
@@ -0,0 +1,9 @@
+-- One row per leased job, see JobLeaseManager. Times come from the database clock only, TIMESTAMPTZ keeps them
+-- comparable across replicas whose JVMs run in different time zones.
+CREATE TABLE job_leases (
+    job_name VARCHAR(100) PRIMARY KEY,
+    owner VARCHAR(255) NOT NULL,
+    fencing_token BIGINT NOT NULL,
+    acquired_at TIMESTAMP WITH TIME ZONE NOT NULL,
+    expires_at TIMESTAMP WITH TIME ZONE NOT NULL
+);
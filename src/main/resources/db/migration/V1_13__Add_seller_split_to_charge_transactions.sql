@@ -0,0 +1,3 @@
+-- Per-seller payout plan written when the PaymentIntent is created: [{"sellerId", "amount", "stripeAccountId"}].
+-- NULL on older charges, their totals are still summed from order_items.
+ALTER TABLE charge_stripe_transactions ADD COLUMN seller_split JSONB;
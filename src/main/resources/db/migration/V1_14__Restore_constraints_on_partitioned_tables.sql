@@ -0,0 +1,149 @@
+-- Gives the tables partitioned in V1_6 back the guarantees they had before. Unique constraints on a partitioned table
+-- must include the partition key, so Stripe ids and idempotency keys become unique through the narrow lookup tables,
+-- the way order and PaymentIntent ids already are. Order items and transfers reference charge_lookup, which holds one
+-- row per charge, instead of the partitioned charge table. A DEFAULT partition takes rows for months that partition
+-- maintenance has not created yet, so a missed run no longer fails every insert.
+
+ALTER TABLE charge_lookup
+    ADD COLUMN stripe_charge_id VARCHAR(255) UNIQUE,
+    ADD COLUMN idempotency_key UUID UNIQUE,
+    ADD CONSTRAINT uq_charge_lookup_charge_id UNIQUE (charge_id);
+
+-- Fails on duplicates rather than picking a winner, they have to be resolved by hand
+UPDATE charge_lookup l SET stripe_charge_id = c.stripe_charge_id, idempotency_key = c.idempotency_key
+FROM charge_stripe_transactions c
+WHERE c.id = l.charge_id AND c.created_at = l.created_at;
+
+CREATE OR REPLACE FUNCTION maintain_charge_lookup() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO charge_lookup(order_id, payment_intent_id, stripe_charge_id, idempotency_key, charge_id, created_at)
+        VALUES (NEW.order_id, NEW.payment_intent_id, NEW.stripe_charge_id, NEW.idempotency_key, NEW.id, NEW.created_at);
+    ELSE
+        UPDATE charge_lookup
+        SET payment_intent_id = NEW.payment_intent_id, stripe_charge_id = NEW.stripe_charge_id, idempotency_key = NEW.idempotency_key
+        WHERE charge_id = NEW.id;
+    END IF;
+    RETURN NEW;
+END
+$$ LANGUAGE plpgsql;
+
+-- Hibernate sets every column on update, the WHEN clause skips the lookup for updates that leave its ids as they were
+DROP TRIGGER trg_charge_lookup ON charge_stripe_transactions;
+CREATE TRIGGER trg_charge_lookup_insert
+    AFTER INSERT ON charge_stripe_transactions
+    FOR EACH ROW EXECUTE FUNCTION maintain_charge_lookup();
+CREATE TRIGGER trg_charge_lookup_update
+    AFTER UPDATE OF payment_intent_id, stripe_charge_id, idempotency_key ON charge_stripe_transactions
+    FOR EACH ROW
+    WHEN (OLD.payment_intent_id IS DISTINCT FROM NEW.payment_intent_id
+        OR OLD.stripe_charge_id IS DISTINCT FROM NEW.stripe_charge_id
+        OR OLD.idempotency_key IS DISTINCT FROM NEW.idempotency_key)
+    EXECUTE FUNCTION maintain_charge_lookup();
+
+CREATE TABLE transfer_lookup (
+    transfer_id UUID PRIMARY KEY,
+    stripe_transfer_id VARCHAR(255) UNIQUE,
+    created_at TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+
+INSERT INTO transfer_lookup(transfer_id, stripe_transfer_id, created_at)
+SELECT id, stripe_transfer_id, created_at FROM transfer_stripe_transactions;
+
+CREATE OR REPLACE FUNCTION maintain_transfer_lookup() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO transfer_lookup(transfer_id, stripe_transfer_id, created_at)
+        VALUES (NEW.id, NEW.stripe_transfer_id, NEW.created_at);
+    ELSE
+        UPDATE transfer_lookup SET stripe_transfer_id = NEW.stripe_transfer_id WHERE transfer_id = NEW.id;
+    END IF;
+    RETURN NEW;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_transfer_lookup_insert
+    AFTER INSERT ON transfer_stripe_transactions
+    FOR EACH ROW EXECUTE FUNCTION maintain_transfer_lookup();
+CREATE TRIGGER trg_transfer_lookup_update
+    AFTER UPDATE OF stripe_transfer_id ON transfer_stripe_transactions
+    FOR EACH ROW
+    WHEN (OLD.stripe_transfer_id IS DISTINCT FROM NEW.stripe_transfer_id)
+    EXECUTE FUNCTION maintain_transfer_lookup();
+
+-- The charge_lookup row is written by the insert trigger of the charge, before Hibernate inserts items and transfers
+ALTER TABLE order_items
+    ADD CONSTRAINT fk_order_items_charge FOREIGN KEY (charge_transaction_id) REFERENCES charge_lookup (charge_id);
+ALTER TABLE transfer_stripe_transactions
+    ADD CONSTRAINT fk_transfer_charge FOREIGN KEY (charge_transaction_id) REFERENCES charge_lookup (charge_id);
+
+CREATE TABLE charge_stripe_transactions_default PARTITION OF charge_stripe_transactions DEFAULT;
+CREATE TABLE order_items_default PARTITION OF order_items DEFAULT;
+CREATE TABLE transfer_stripe_transactions_default PARTITION OF transfer_stripe_transactions DEFAULT;
+
+-- A month's rows that went to the default partition move into the month's partition when it is created, attaching
+-- it fails otherwise. Lookup rows keep pointing at them, id and created_at do not change.
+CREATE OR REPLACE FUNCTION create_monthly_partitions(parent TEXT, from_month DATE, to_month DATE) RETURNS INTEGER AS $$
+DECLARE
+    month DATE := date_trunc('month', from_month)::date;
+    next_month DATE;
+    partition TEXT;
+    created INTEGER := 0;
+BEGIN
+    WHILE month <= to_month LOOP
+        next_month := (month + INTERVAL '1 month')::date;
+        partition := format('%s_p%s', parent, to_char(month, 'YYYYMM'));
+        IF to_regclass(partition) IS NULL THEN
+            IF to_regclass(parent || '_default') IS NULL THEN
+                EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)', partition, parent, month, next_month);
+            ELSE
+                EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS)', partition, parent);
+                EXECUTE format('WITH moved AS (DELETE FROM %I WHERE created_at >= %L AND created_at < %L RETURNING *) INSERT INTO %I SELECT * FROM moved',
+                               parent || '_default', month, next_month, partition);
+                EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', parent, partition, month, next_month);
+            END IF;
+            created := created + 1;
+        END IF;
+        month := next_month;
+    END LOOP;
+    RETURN created;
+END
+$$ LANGUAGE plpgsql;
+
+-- Archived partitions drop the foreign keys they took along from their parent, the charges they point at are archived
+-- too. Lookup rows are only removed once nothing live references them.
+CREATE OR REPLACE FUNCTION archive_monthly_partitions(parent TEXT, older_than DATE) RETURNS INTEGER AS $$
+DECLARE
+    partition RECORD;
+    fk RECORD;
+    archived INTEGER := 0;
+BEGIN
+    FOR partition IN
+        SELECT c.relname
+        FROM pg_inherits i
+        JOIN pg_class c ON c.oid = i.inhrelid
+        JOIN pg_class p ON p.oid = i.inhparent
+        WHERE p.relname = parent
+          AND c.relname ~ '_p[0-9]{6}$'
+          AND to_date(right(c.relname, 6), 'YYYYMM') + INTERVAL '1 month' <= older_than
+        ORDER BY c.relname
+    LOOP
+        EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', parent, partition.relname);
+        FOR fk IN SELECT conname FROM pg_constraint WHERE contype = 'f' AND conrelid = partition.relname::regclass LOOP
+            EXECUTE format('ALTER TABLE %I DROP CONSTRAINT %I', partition.relname, fk.conname);
+        END LOOP;
+        EXECUTE format('ALTER TABLE %I SET SCHEMA archive', partition.relname);
+        archived := archived + 1;
+    END LOOP;
+
+    IF parent = 'charge_stripe_transactions' THEN
+        DELETE FROM charge_lookup l
+        WHERE l.created_at < older_than
+          AND NOT EXISTS (SELECT 1 FROM order_items i WHERE i.charge_transaction_id = l.charge_id)
+          AND NOT EXISTS (SELECT 1 FROM transfer_stripe_transactions t WHERE t.charge_transaction_id = l.charge_id);
+    ELSIF parent = 'transfer_stripe_transactions' THEN
+        DELETE FROM transfer_lookup WHERE created_at < older_than;
+    END IF;
+    RETURN archived;
+END
+$$ LANGUAGE plpgsql;
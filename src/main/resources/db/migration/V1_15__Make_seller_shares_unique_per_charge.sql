@@ -0,0 +1,46 @@
+-- A charge pays each of its sellers once, whether by an immediate transfer or a share queued for a deferred payout.
+-- The transfer table is partitioned by created_at, so the constraint lives on transfer_lookup like the Stripe ids do.
+
+ALTER TABLE transfer_lookup
+    ADD COLUMN charge_transaction_id UUID,
+    ADD COLUMN seller_id UUID,
+    ADD CONSTRAINT uq_transfer_lookup_charge_seller UNIQUE (charge_transaction_id, seller_id);
+
+-- Charges that were already paid twice keep only their first row constrained, the others are left for reconciliation
+-- to reverse and show up in the notice
+DO $$
+DECLARE
+    duplicates INTEGER;
+BEGIN
+    WITH ranked AS (
+        SELECT id, charge_transaction_id, seller_id,
+               row_number() OVER (PARTITION BY charge_transaction_id, seller_id ORDER BY created_at, id) AS rank
+        FROM transfer_stripe_transactions
+        WHERE seller_id IS NOT NULL
+    )
+    UPDATE transfer_lookup l SET charge_transaction_id = r.charge_transaction_id, seller_id = r.seller_id
+    FROM ranked r
+    WHERE r.id = l.transfer_id AND r.rank = 1;
+
+    SELECT count(*) INTO duplicates
+    FROM transfer_lookup l
+    JOIN transfer_stripe_transactions t ON t.id = l.transfer_id
+    WHERE l.seller_id IS NULL AND t.seller_id IS NOT NULL;
+    IF duplicates > 0 THEN
+        RAISE NOTICE '% transfers pay a seller again for a charge that already paid them, see transfer_lookup rows without seller_id', duplicates;
+    END IF;
+END
+$$;
+
+-- charge_transaction_id and seller_id are written once, updates only ever change the Stripe transfer id
+CREATE OR REPLACE FUNCTION maintain_transfer_lookup() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO transfer_lookup(transfer_id, stripe_transfer_id, charge_transaction_id, seller_id, created_at)
+        VALUES (NEW.id, NEW.stripe_transfer_id, NEW.charge_transaction_id, NEW.seller_id, NEW.created_at);
+    ELSE
+        UPDATE transfer_lookup SET stripe_transfer_id = NEW.stripe_transfer_id WHERE transfer_id = NEW.id;
+    END IF;
+    RETURN NEW;
+END
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,8 @@
+CREATE TABLE job_checkpoints (
+    job_name VARCHAR(100) PRIMARY KEY,
+    position BIGINT NOT NULL,
+    created_at TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT NOW(),
+    updated_at TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT NOW(),
+    created_by VARCHAR(255),
+    updated_by VARCHAR(255)
+);
@@ -0,0 +1,10 @@
+ALTER TABLE transfer_stripe_transactions
+    ADD COLUMN seller_id UUID,
+    ADD COLUMN idempotency_key VARCHAR(255),
+    ADD COLUMN attempts INT NOT NULL DEFAULT 0,
+    ADD COLUMN next_attempt_at TIMESTAMP WITHOUT TIME ZONE;
+
+-- A transfer can fail before the seller's Stripe account is resolved
+ALTER TABLE transfer_stripe_transactions ALTER COLUMN seller_stripe_account_id DROP NOT NULL;
+
+CREATE INDEX idx_transfer_retry_due ON transfer_stripe_transactions(next_attempt_at) WHERE status = 'FAILED';
@@ -0,0 +1,131 @@
+-- Moves charges, order items and transfers to monthly range partitions on created_at. Primary keys and indexes
+-- become partition-local, so each month's indexes stay small and old months can be detached into the archive
+-- schema without touching hot data.
+
+CREATE SCHEMA IF NOT EXISTS archive;
+
+-- Foreign keys to a partitioned table would have to include the partition key, the associations are kept by JPA
+DO $$
+DECLARE
+    fk RECORD;
+BEGIN
+    FOR fk IN
+        SELECT conrelid::regclass AS tbl, conname
+        FROM pg_constraint
+        WHERE contype = 'f' AND confrelid = 'charge_stripe_transactions'::regclass
+    LOOP
+        EXECUTE format('ALTER TABLE %s DROP CONSTRAINT %I', fk.tbl, fk.conname);
+    END LOOP;
+END
+$$;
+
+CREATE OR REPLACE FUNCTION create_monthly_partitions(parent TEXT, from_month DATE, to_month DATE) RETURNS INTEGER AS $$
+DECLARE
+    month DATE := date_trunc('month', from_month)::date;
+    partition TEXT;
+    created INTEGER := 0;
+BEGIN
+    WHILE month <= to_month LOOP
+        partition := format('%s_p%s', parent, to_char(month, 'YYYYMM'));
+        IF to_regclass(partition) IS NULL THEN
+            EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)',
+                           partition, parent, month, (month + INTERVAL '1 month')::date);
+            created := created + 1;
+        END IF;
+        month := (month + INTERVAL '1 month')::date;
+    END LOOP;
+    RETURN created;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION partition_table_by_month(parent TEXT) RETURNS VOID AS $$
+DECLARE
+    legacy TEXT := parent || '_legacy';
+    first_month DATE;
+BEGIN
+    EXECUTE format('ALTER TABLE %I ALTER COLUMN created_at TYPE TIMESTAMP WITHOUT TIME ZONE USING created_at::timestamp', parent);
+    EXECUTE format('ALTER TABLE %I ALTER COLUMN updated_at TYPE TIMESTAMP WITHOUT TIME ZONE USING updated_at::timestamp', parent);
+    EXECUTE format('UPDATE %I SET created_at = COALESCE(updated_at, NOW()) WHERE created_at IS NULL', parent);
+    EXECUTE format('ALTER TABLE %I RENAME TO %I', parent, legacy);
+
+    EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS) PARTITION BY RANGE (created_at)', parent, legacy);
+    EXECUTE format('ALTER TABLE %I ALTER COLUMN created_at SET NOT NULL', parent);
+
+    EXECUTE format('SELECT date_trunc(''month'', COALESCE(MIN(created_at), NOW()))::date FROM %I', legacy) INTO first_month;
+    PERFORM create_monthly_partitions(parent, first_month, (date_trunc('month', NOW()) + INTERVAL '3 months')::date);
+
+    EXECUTE format('INSERT INTO %I SELECT * FROM %I', parent, legacy);
+    EXECUTE format('DROP TABLE %I', legacy);
+    EXECUTE format('ALTER TABLE %I ADD PRIMARY KEY (id, created_at)', parent);
+END
+$$ LANGUAGE plpgsql;
+
+SELECT partition_table_by_month('charge_stripe_transactions');
+SELECT partition_table_by_month('order_items');
+SELECT partition_table_by_month('transfer_stripe_transactions');
+DROP FUNCTION partition_table_by_month(TEXT);
+
+CREATE INDEX idx_charge_order_id ON charge_stripe_transactions(order_id);
+CREATE INDEX idx_charge_payment_intent_id ON charge_stripe_transactions(payment_intent_id);
+CREATE INDEX idx_charge_stripe_charge_id ON charge_stripe_transactions(stripe_charge_id);
+CREATE INDEX idx_order_items_charge_id ON order_items(charge_transaction_id);
+CREATE INDEX idx_transfer_charge_id ON transfer_stripe_transactions(charge_transaction_id);
+CREATE INDEX idx_transfer_stripe_transfer_id ON transfer_stripe_transactions(stripe_transfer_id);
+CREATE INDEX idx_transfer_retry_due ON transfer_stripe_transactions(next_attempt_at) WHERE status = 'FAILED';
+
+-- Unique constraints on a partitioned table must include the partition key, so global uniqueness of order and
+-- PaymentIntent ids lives in this narrow table. It also carries created_at, which lets lookups by order id or
+-- PaymentIntent id prune to the single partition holding the charge.
+CREATE TABLE charge_lookup (
+    order_id UUID PRIMARY KEY,
+    payment_intent_id VARCHAR(255) UNIQUE,
+    charge_id UUID NOT NULL,
+    created_at TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+
+INSERT INTO charge_lookup(order_id, payment_intent_id, charge_id, created_at)
+SELECT order_id, payment_intent_id, id, created_at FROM charge_stripe_transactions;
+
+CREATE OR REPLACE FUNCTION maintain_charge_lookup() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO charge_lookup(order_id, payment_intent_id, charge_id, created_at)
+        VALUES (NEW.order_id, NEW.payment_intent_id, NEW.id, NEW.created_at);
+    ELSE
+        UPDATE charge_lookup SET payment_intent_id = NEW.payment_intent_id WHERE charge_id = NEW.id;
+    END IF;
+    RETURN NEW;
+END
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_charge_lookup
+    AFTER INSERT OR UPDATE OF payment_intent_id ON charge_stripe_transactions
+    FOR EACH ROW EXECUTE FUNCTION maintain_charge_lookup();
+
+-- Detaches whole months that ended before older_than and moves them into the archive schema
+CREATE OR REPLACE FUNCTION archive_monthly_partitions(parent TEXT, older_than DATE) RETURNS INTEGER AS $$
+DECLARE
+    partition RECORD;
+    archived INTEGER := 0;
+BEGIN
+    FOR partition IN
+        SELECT c.relname
+        FROM pg_inherits i
+        JOIN pg_class c ON c.oid = i.inhrelid
+        JOIN pg_class p ON p.oid = i.inhparent
+        WHERE p.relname = parent
+          AND c.relname ~ '_p[0-9]{6}$'
+          AND to_date(right(c.relname, 6), 'YYYYMM') + INTERVAL '1 month' <= older_than
+        ORDER BY c.relname
+    LOOP
+        EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', parent, partition.relname);
+        EXECUTE format('ALTER TABLE %I SET SCHEMA archive', partition.relname);
+        archived := archived + 1;
+    END LOOP;
+
+    IF parent = 'charge_stripe_transactions' THEN
+        DELETE FROM charge_lookup WHERE created_at < older_than;
+    END IF;
+    RETURN archived;
+END
+$$ LANGUAGE plpgsql;
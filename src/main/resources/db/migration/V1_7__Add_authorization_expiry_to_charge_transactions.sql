@@ -0,0 +1,7 @@
+ALTER TABLE charge_stripe_transactions ADD COLUMN authorization_expires_at TIMESTAMP WITHOUT TIME ZONE;
+
+-- Partial indexes only cover rows the authorization lifecycle job still has to act on
+CREATE INDEX idx_charge_authorization_expiry ON charge_stripe_transactions(authorization_expires_at, id)
+    WHERE status = 'REQUIRES_CAPTURE';
+CREATE INDEX idx_charge_unconfirmed_created ON charge_stripe_transactions(created_at, id)
+    WHERE status IN ('PENDING', 'REQUIRES_PAYMENT_METHOD', 'REQUIRES_CONFIRMATION', 'REQUIRES_ACTION');
@@ -0,0 +1,34 @@
+-- Statuses become the SMALLINT codes of ChargeStatus / TransferStatus. The partial indexes filter on status and have
+-- to be rebuilt against the new literals.
+DROP INDEX idx_charge_authorization_expiry;
+DROP INDEX idx_charge_unconfirmed_created;
+DROP INDEX idx_transfer_retry_due;
+
+-- An unknown value maps to NULL and fails the NOT NULL constraint instead of being silently rewritten
+ALTER TABLE charge_stripe_transactions ALTER COLUMN status TYPE SMALLINT USING CASE status
+    WHEN 'PENDING' THEN 1
+    WHEN 'REQUIRES_CAPTURE' THEN 2
+    WHEN 'FAILED' THEN 3
+    WHEN 'SUCCEEDED' THEN 4
+    WHEN 'REFUNDED' THEN 5
+    WHEN 'CANCELED' THEN 6
+    WHEN 'REQUIRES_PAYMENT_METHOD' THEN 8
+    WHEN 'REQUIRES_CONFIRMATION' THEN 9
+    WHEN 'REQUIRES_ACTION' THEN 10
+    WHEN 'PROCESSING' THEN 11
+END;
+
+ALTER TABLE transfer_stripe_transactions ALTER COLUMN status TYPE SMALLINT USING CASE status
+    WHEN 'FAILED' THEN 3
+    WHEN 'SUCCEEDED' THEN 4
+    WHEN 'REVERSED' THEN 7
+END;
+
+-- REQUIRES_CAPTURE
+CREATE INDEX idx_charge_authorization_expiry ON charge_stripe_transactions(authorization_expires_at, id)
+    WHERE status = 2;
+-- PENDING, REQUIRES_PAYMENT_METHOD, REQUIRES_CONFIRMATION, REQUIRES_ACTION
+CREATE INDEX idx_charge_unconfirmed_created ON charge_stripe_transactions(created_at, id)
+    WHERE status IN (1, 8, 9, 10);
+-- FAILED
+CREATE INDEX idx_transfer_retry_due ON transfer_stripe_transactions(next_attempt_at) WHERE status = 3;
@@ -0,0 +1,32 @@
+-- Deferred payout mode, see SellerPayoutService. Seller shares wait as QUEUED (12) transfer rows and are moved in one
+-- aggregated Stripe transfer per seller and currency, recorded here. Each share keeps the id of the payout that paid it.
+CREATE TABLE seller_payouts
+(
+    id                       UUID PRIMARY KEY,
+    seller_id                UUID           NOT NULL,
+    seller_stripe_account_id VARCHAR(255),
+    currency                 VARCHAR(255)   NOT NULL,
+    amount                   NUMERIC(19, 2) NOT NULL,
+    share_count              INT            NOT NULL,
+    stripe_transfer_id       VARCHAR(255) UNIQUE,
+    status                   SMALLINT       NOT NULL,
+    stripe_error_message     TEXT,
+    attempts                 INT            NOT NULL DEFAULT 0,
+    next_attempt_at          TIMESTAMP WITHOUT TIME ZONE,
+    created_at               TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT NOW(),
+    updated_at               TIMESTAMP WITHOUT TIME ZONE NOT NULL DEFAULT NOW(),
+    created_by               VARCHAR(255),
+    updated_by               VARCHAR(255)
+);
+
+-- FAILED, QUEUED
+CREATE INDEX idx_seller_payouts_due ON seller_payouts(next_attempt_at) WHERE status IN (3, 12);
+
+ALTER TABLE transfer_stripe_transactions
+    ADD COLUMN transfer_group VARCHAR(255),
+    ADD COLUMN payout_id UUID;
+
+-- QUEUED and not assigned to a payout yet
+CREATE INDEX idx_transfer_queued ON transfer_stripe_transactions(seller_id, currency, created_at)
+    WHERE status = 12 AND payout_id IS NULL;
+CREATE INDEX idx_transfer_payout_id ON transfer_stripe_transactions(payout_id) WHERE payout_id IS NOT NULL;
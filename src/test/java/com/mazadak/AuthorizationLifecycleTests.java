@@ -0,0 +1,185 @@
+package com.mazadak;
+
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.cache.ChargeSnapshotCache;
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.dto.request.CartItem;
+import com.mazadak.payment.dto.request.CreatePaymentIntentRequest;
+import com.mazadak.payment.journal.PaymentStateJournal;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.model.JobCheckpoint;
+import com.mazadak.payment.model.StripeChargeTransaction;
+import com.mazadak.payment.repository.JobCheckpointRepository;
+import com.mazadak.payment.selleraccount.SellerAccountLookup;
+import com.mazadak.payment.selleraccount.SellerAccountReplica;
+import com.mazadak.payment.service.impl.AuthorizationLifecycleService;
+import com.mazadak.payment.service.impl.StripePaymentService;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.support.FakeStripeServer;
+import com.mazadak.support.InMemoryPaymentRepositories;
+import com.stripe.Stripe;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.bus.BusProperties;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AuthorizationLifecycleTests {
+
+    private static final String WEBHOOK_SECRET = "whsec_test";
+
+    private FakeStripeServer stripe;
+    private InMemoryPaymentRepositories repositories;
+    private final Map<String, JobCheckpoint> checkpoints = new ConcurrentHashMap<>();
+    private SimpleMeterRegistry meterRegistry;
+    private StripePaymentService paymentService;
+    private final JobLeaseManager jobLeaseManager = mock(JobLeaseManager.class);
+    private AuthorizationLifecycleService lifecycleService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        stripe = new FakeStripeServer(WEBHOOK_SECRET);
+        repositories = new InMemoryPaymentRepositories();
+        meterRegistry = new SimpleMeterRegistry();
+
+        ChargeSnapshotCache chargeSnapshotCache = new ChargeSnapshotCache(repositories.charges, mock(ApplicationEventPublisher.class), new BusProperties(), meterRegistry);
+        ReflectionTestUtils.setField(chargeSnapshotCache, "enabled", true);
+        ReflectionTestUtils.setField(chargeSnapshotCache, "maxSize", 100);
+        ReflectionTestUtils.setField(chargeSnapshotCache, "ttl", Duration.ofMinutes(1));
+        /// Injected faults fail the action at once instead of after client retries
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("payment.stripe.operations.payment-intent-retrieve.max-retries", "0")
+                .withProperty("payment.stripe.operations.payment-intent-cancel.max-retries", "0");
+        paymentService = new StripePaymentService(repositories.charges, repositories.transfers, repositories.sellers, mock(StreamBridge.class),
+                mock(PaymentStateJournal.class), chargeSnapshotCache, new StripeGateway(environment, meterRegistry), new SellerAccountLookup(repositories.sellers, mock(SellerAccountReplica.class)));
+        ReflectionTestUtils.setField(paymentService, "secretKey", "sk_test_fake");
+        ReflectionTestUtils.setField(paymentService, "webhookSecret", WEBHOOK_SECRET);
+        ReflectionTestUtils.setField(paymentService, "apiBase", stripe.baseUrl());
+        ReflectionTestUtils.setField(paymentService, "authorizationHoldDuration", Duration.ofDays(7));
+        paymentService.init();
+
+        JobCheckpointRepository jobCheckpointRepository = mock(JobCheckpointRepository.class);
+        when(jobCheckpointRepository.findById(any())).thenAnswer(invocation -> Optional.ofNullable(checkpoints.get(invocation.<String>getArgument(0))));
+        when(jobCheckpointRepository.save(any())).thenAnswer(invocation -> {
+            JobCheckpoint checkpoint = invocation.getArgument(0);
+            checkpoints.put(checkpoint.getJobName(), checkpoint);
+            return checkpoint;
+        });
+
+        lifecycleService = new AuthorizationLifecycleService(paymentService, repositories.charges, jobCheckpointRepository, meterRegistry,
+                new Bulkheads(new MockEnvironment(), meterRegistry), new TransactionTemplate(mock(PlatformTransactionManager.class)), jobLeaseManager);
+        ReflectionTestUtils.setField(lifecycleService, "expiryAction", AuthorizationLifecycleService.ExpiryAction.CANCEL);
+        ReflectionTestUtils.setField(lifecycleService, "leadTime", Duration.ofHours(6));
+        ReflectionTestUtils.setField(lifecycleService, "staleAfter", Duration.ofHours(24));
+        ReflectionTestUtils.setField(lifecycleService, "queueCapacity", 10);
+        ReflectionTestUtils.setField(lifecycleService, "batchSize", 2);
+        ReflectionTestUtils.setField(lifecycleService, "concurrency", 2);
+        ReflectionTestUtils.invokeMethod(lifecycleService, "start");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(lifecycleService, "stop");
+        stripe.close();
+        Stripe.overrideApiBase(Stripe.LIVE_API_BASE);
+    }
+
+    @Test
+    void holdsAreReleasedBeforeTheyExpireAndOnesThatFailedOrExpiredEarlierAreRetried() {
+        StripeChargeTransaction expiringSoon = authorizedCharge(LocalDateTime.now().plusHours(1));
+        StripeChargeTransaction expiringLater = authorizedCharge(LocalDateTime.now().plusDays(3));
+
+        lifecycleService.run();
+        assertEquals(ChargeStatus.CANCELED, expiringSoon.getStatus());
+        assertEquals(ChargeStatus.REQUIRES_CAPTURE, expiringLater.getStatus());
+
+        /// Expired before the hold processed last run, and its first cancel fails
+        StripeChargeTransaction alreadyExpired = authorizedCharge(LocalDateTime.now().minusHours(1));
+        stripe.faults(0, 1.0);
+        lifecycleService.run();
+        assertEquals(ChargeStatus.REQUIRES_CAPTURE, alreadyExpired.getStatus());
+
+        stripe.faults(0, 0);
+        lifecycleService.run();
+        assertEquals(ChargeStatus.CANCELED, alreadyExpired.getStatus());
+        assertEquals("canceled", stripe.paymentIntent(alreadyExpired.getPaymentIntentId()).get("status"));
+        assertEquals(ChargeStatus.REQUIRES_CAPTURE, expiringLater.getStatus());
+
+        assertEquals(2, meterRegistry.get("payment.authorization.expiring").tags("action", "CANCEL", "outcome", "succeeded").counter().count());
+        assertEquals(1, meterRegistry.get("payment.authorization.expiring").tags("action", "CANCEL", "outcome", "failed").counter().count());
+        assertEquals(0, meterRegistry.get("payment.authorization.queue.size").gauge().value());
+    }
+
+    @Test
+    void intentsNeverConfirmedAreCanceledOnceStale() {
+        StripeChargeTransaction stale = unconfirmedCharge(LocalDateTime.now().minusDays(2));
+        StripeChargeTransaction recent = unconfirmedCharge(LocalDateTime.now().minusHours(1));
+
+        lifecycleService.run();
+
+        assertEquals(ChargeStatus.CANCELED, stale.getStatus());
+        assertEquals("canceled", stripe.paymentIntent(stale.getPaymentIntentId()).get("status"));
+        assertEquals(ChargeStatus.REQUIRES_PAYMENT_METHOD, recent.getStatus());
+        assertEquals(1, meterRegistry.get("payment.authorization.stale.canceled").counter().count());
+        assertEquals(stale.getCreated_at().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                checkpoints.get("stale-intent-cleanup").getPosition());
+        verify(jobLeaseManager).checkFence();
+    }
+
+    @Test
+    void checkpointStaysAtAStaleIntentWhoseCancelFailed() {
+        StripeChargeTransaction failing = unconfirmedCharge(LocalDateTime.now().minusDays(3));
+        /// Stripe does not know the PaymentIntent, so its cancel fails
+        failing.setPaymentIntentId("pi_unknown");
+        StripeChargeTransaction stale = unconfirmedCharge(LocalDateTime.now().minusDays(2));
+
+        lifecycleService.run();
+
+        assertEquals(ChargeStatus.REQUIRES_PAYMENT_METHOD, failing.getStatus());
+        assertEquals(ChargeStatus.CANCELED, stale.getStatus());
+        assertEquals(failing.getCreated_at().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                checkpoints.get("stale-intent-cleanup").getPosition());
+    }
+
+    private StripeChargeTransaction unconfirmedCharge(LocalDateTime createdAt) {
+        UUID sellerId = UUID.randomUUID();
+        repositories.addSeller(sellerId, "acct_" + sellerId.toString().substring(0, 8));
+        UUID orderId = UUID.randomUUID();
+        paymentService.createPaymentIntent(new CreatePaymentIntentRequest(orderId, "usd", "AUCTION",
+                List.of(new CartItem(sellerId, new BigDecimal("10.00"))), null));
+        StripeChargeTransaction charge = repositories.charge(orderId).orElseThrow();
+        charge.setCreated_at(createdAt);
+        return charge;
+    }
+
+    private StripeChargeTransaction authorizedCharge(LocalDateTime expiresAt) {
+        StripeChargeTransaction charge = unconfirmedCharge(LocalDateTime.now());
+        stripe.authorize(charge.getPaymentIntentId());
+        FakeStripeServer.SignedEvent event = stripe.signedEvent("payment_intent.amount_capturable_updated", charge.getPaymentIntentId());
+        paymentService.handleStripeWebhook(event.payload(), event.signature());
+        charge.setAuthorizationExpiresAt(expiresAt);
+        return charge;
+    }
+}
@@ -0,0 +1,99 @@
+package com.mazadak;
+
+import com.mazadak.payment.bulkhead.Bulkhead;
+import com.mazadak.payment.bulkhead.BulkheadFilter;
+import com.mazadak.payment.bulkhead.Bulkheads;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.FilterChain;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class BulkheadTests {
+
+    @Test
+    void queuedCallerGetsTheReleasedPermitAndOverflowIsRejected() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        Bulkhead bulkhead = new Bulkhead("test", 1, 1, Duration.ofSeconds(5), Duration.ofSeconds(1), meterRegistry);
+        assertTrue(bulkhead.tryAcquire());
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> queued = pool.submit(bulkhead::tryAcquire);
+            while (meterRegistry.get("payment.bulkhead.queued").gauge().value() < 1)
+                Thread.sleep(5);
+
+            assertFalse(bulkhead.tryAcquire());
+            bulkhead.release();
+            assertTrue(queued.get(5, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(1, bulkhead.active());
+        assertEquals(1, meterRegistry.get("payment.bulkhead.rejected").tag("bulkhead", "test").counter().count());
+    }
+
+    @Test
+    void saturatedWebhookBulkheadShedsWebhooksButNotCheckout() throws Exception {
+        MockEnvironment environment = new MockEnvironment()
+                .withProperty("payment.bulkhead.webhook.max-concurrent", "1")
+                .withProperty("payment.bulkhead.webhook.max-queued", "0");
+        Bulkheads bulkheads = new Bulkheads(environment, new SimpleMeterRegistry());
+        BulkheadFilter filter = new BulkheadFilter(bulkheads);
+
+        CountDownLatch inFlight = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            pool.submit(() -> {
+                filter.doFilter(post("/api/payments/stripe-webhook"), new MockHttpServletResponse(), (request, response) -> {
+                    inFlight.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                return null;
+            });
+            assertTrue(inFlight.await(5, TimeUnit.SECONDS));
+
+            FilterChain shedChain = mock(FilterChain.class);
+            MockHttpServletResponse shed = new MockHttpServletResponse();
+            filter.doFilter(post("/api/payments/stripe-webhook"), shed, shedChain);
+            assertEquals(503, shed.getStatus());
+            assertEquals("10", shed.getHeader("Retry-After"));
+            verify(shedChain, never()).doFilter(any(), any());
+
+            FilterChain checkoutChain = mock(FilterChain.class);
+            MockHttpServletResponse checkout = new MockHttpServletResponse();
+            filter.doFilter(post("/api/payments/create-payment-intent"), checkout, checkoutChain);
+            assertEquals(200, checkout.getStatus());
+            verify(checkoutChain).doFilter(any(), any());
+        } finally {
+            finish.countDown();
+            pool.shutdown();
+        }
+    }
+
+    private static MockHttpServletRequest post(String path) {
+        return new MockHttpServletRequest("POST", path);
+    }
+}
@@ -0,0 +1,104 @@
+package com.mazadak;
+
+import com.mazadak.payment.cache.ChargeCacheInvalidationEvent;
+import com.mazadak.payment.cache.ChargeSnapshot;
+import com.mazadak.payment.cache.ChargeSnapshotCache;
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.model.StripeChargeTransaction;
+import com.mazadak.support.InMemoryPaymentRepositories;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.bus.BusProperties;
+import org.springframework.cloud.bus.event.PathDestinationFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class ChargeSnapshotCacheTests {
+
+    private InMemoryPaymentRepositories repositories;
+    private ApplicationEventPublisher publisher;
+    private BusProperties busProperties;
+    private ChargeSnapshotCache cache;
+
+    @BeforeEach
+    void setUp() {
+        repositories = new InMemoryPaymentRepositories();
+        publisher = mock(ApplicationEventPublisher.class);
+        busProperties = new BusProperties();
+        busProperties.setId("payment:8080:a");
+        cache = new ChargeSnapshotCache(repositories.charges, publisher, busProperties, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cache, "enabled", true);
+        ReflectionTestUtils.setField(cache, "maxSize", 2);
+        ReflectionTestUtils.setField(cache, "ttl", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(cache, "applicationName", "payment");
+    }
+
+    @Test
+    void hitsByEitherKeyAndWritesChangesThrough() {
+        StripeChargeTransaction charge = save("pi_1");
+
+        cache.findByOrderId(charge.getOrderId());
+        cache.findByPaymentIntentId("pi_1");
+        verify(repositories.charges, times(1)).findByOrderId(charge.getOrderId());
+        verify(repositories.charges, times(0)).findByPaymentIntentId("pi_1");
+
+        ChargeSnapshot changed = cache.findByOrderId(charge.getOrderId()).orElseThrow().withStatus(ChargeStatus.REQUIRES_CAPTURE);
+        cache.changed(changed);
+
+        assertEquals(ChargeStatus.REQUIRES_CAPTURE, cache.findByPaymentIntentId("pi_1").orElseThrow().status());
+        verify(publisher).publishEvent(any(ChargeCacheInvalidationEvent.class));
+    }
+
+    @Test
+    void remoteInvalidationEvictsButOwnBroadcastDoesNot() {
+        StripeChargeTransaction charge = save("pi_1");
+        cache.findByOrderId(charge.getOrderId());
+
+        cache.onInvalidation(new ChargeCacheInvalidationEvent(this, busProperties.getId(), new PathDestinationFactory().getDestination(null), charge.getOrderId(), "pi_1"));
+        cache.findByOrderId(charge.getOrderId());
+        verify(repositories.charges, times(1)).findByOrderId(charge.getOrderId());
+
+        cache.onInvalidation(new ChargeCacheInvalidationEvent(this, "payment:8080:b", new PathDestinationFactory().getDestination(null), charge.getOrderId(), "pi_1"));
+        cache.findByOrderId(charge.getOrderId());
+        verify(repositories.charges, times(2)).findByOrderId(charge.getOrderId());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedBeyondMaxSize() {
+        StripeChargeTransaction first = save("pi_1");
+        StripeChargeTransaction second = save("pi_2");
+        StripeChargeTransaction third = save("pi_3");
+
+        cache.findByOrderId(first.getOrderId());
+        cache.findByOrderId(second.getOrderId());
+        cache.findByOrderId(first.getOrderId());
+        cache.findByOrderId(third.getOrderId());
+
+        cache.findByPaymentIntentId("pi_1");
+        cache.findByPaymentIntentId("pi_2");
+        verify(repositories.charges, times(0)).findByPaymentIntentId("pi_1");
+        verify(repositories.charges, times(1)).findByPaymentIntentId("pi_2");
+    }
+
+    private StripeChargeTransaction save(String paymentIntentId) {
+        return repositories.charges.save(StripeChargeTransaction.builder()
+                .orderId(UUID.randomUUID())
+                .paymentIntentId(paymentIntentId)
+                .amount(new BigDecimal("10.00"))
+                .currency("usd")
+                .status(ChargeStatus.PENDING)
+                .refunded(false)
+                .build());
+    }
+}
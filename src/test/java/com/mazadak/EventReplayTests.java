@@ -0,0 +1,132 @@
+package com.mazadak;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.dto.event.PaymentAuthorizedEvent;
+import com.mazadak.payment.dto.event.PaymentFailedEvent;
+import com.mazadak.payment.dto.event.PaymentSuccessEvent;
+import com.mazadak.payment.dto.projection.ChargeReplayView;
+import com.mazadak.payment.model.JobCheckpoint;
+import com.mazadak.payment.replay.EventReplayProgress;
+import com.mazadak.payment.replay.EventReplayService;
+import com.mazadak.payment.repository.JobCheckpointRepository;
+import com.mazadak.payment.repository.StripeChargeTransactionRepository;
+import com.mazadak.payment.stripe.StripeGateway;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class EventReplayTests {
+
+    private static final LocalDateTime FROM = LocalDateTime.of(2025, 10, 1, 0, 0);
+    private static final LocalDateTime TO = LocalDateTime.of(2025, 11, 1, 0, 0);
+
+    private final StripeChargeTransactionRepository charges = mock(StripeChargeTransactionRepository.class);
+    private final JobCheckpointRepository checkpoints = mock(JobCheckpointRepository.class);
+    private final StreamBridge streamBridge = mock(StreamBridge.class);
+    private final Map<String, JobCheckpoint> checkpointsByName = new ConcurrentHashMap<>();
+    private final List<Object> published = new ArrayList<>();
+    private EventReplayService replayService;
+
+    @BeforeEach
+    void setUp() {
+        when(checkpoints.findById(anyString())).thenAnswer(invocation -> Optional.ofNullable(checkpointsByName.get(invocation.<String>getArgument(0))));
+        when(checkpoints.save(any(JobCheckpoint.class))).thenAnswer(invocation -> {
+            JobCheckpoint checkpoint = invocation.getArgument(0);
+            checkpointsByName.put(checkpoint.getJobName(), checkpoint);
+            return checkpoint;
+        });
+        when(streamBridge.send(anyString(), any())).thenAnswer(invocation -> published.add(invocation.getArgument(1)));
+
+        replayService = new EventReplayService(charges, checkpoints, streamBridge,
+                new StripeGateway(new MockEnvironment(), new SimpleMeterRegistry()), new SimpleMeterRegistry(), mock(PlatformTransactionManager.class));
+        ReflectionTestUtils.setField(replayService, "maxRate", 1_000_000);
+        ReflectionTestUtils.setField(replayService, "batchSize", 100);
+    }
+
+    @Test
+    void replaysEachChargeAsTheEventOfItsStateAndCheckpointsTheRange() throws Exception {
+        ChargeStatus[] statuses = {ChargeStatus.SUCCEEDED, ChargeStatus.REQUIRES_CAPTURE, ChargeStatus.FAILED, ChargeStatus.CANCELED};
+        /// Generated lazily, the replay has to consume the cursor rather than collect it
+        when(charges.streamForReplay(any(), eq(FROM), eq(TO))).thenAnswer(invocation -> Stream.iterate(0, i -> i + 1)
+                .limit(10_000)
+                .map(i -> new ChargeReplayView(UUID.randomUUID(), UUID.randomUUID(), "pi_" + i, statuses[i % 4], new BigDecimal("12.50"),
+                        "FIXED", null, FROM.plusSeconds(i))));
+
+        EventReplayProgress progress = awaitFinished(replayService.start("october", FROM, TO, Set.of()));
+
+        assertEquals(EventReplayProgress.State.COMPLETED, progress.getState());
+        assertEquals(10_000, progress.getPublished());
+        assertEquals(10_000, published.size());
+        assertEquals(new PaymentSuccessEvent("pi_0", ((PaymentSuccessEvent) published.get(0)).orderId(), "FIXED"), published.get(0));
+        assertEquals(new BigDecimal("1250"), assertInstanceOf(PaymentAuthorizedEvent.class, published.get(1)).amount());
+        assertEquals("Unknown reason", assertInstanceOf(PaymentFailedEvent.class, published.get(2)).failureReason());
+        assertEquals("Payment was canceled", assertInstanceOf(PaymentFailedEvent.class, published.get(3)).failureReason());
+        Set<ChargeStatus> replayable = Set.of(ChargeStatus.SUCCEEDED, ChargeStatus.REQUIRES_CAPTURE, ChargeStatus.FAILED, ChargeStatus.CANCELED);
+        assertEquals(epochMillis(TO), checkpointsByName.get(EventReplayService.checkpointName("october", FROM, TO, replayable)).getPosition());
+    }
+
+    @Test
+    void resumesFromTheCheckpointOfAnEarlierRunWithTheSameNameAndRange() throws Exception {
+        LocalDateTime checkpoint = FROM.plusDays(10);
+        String checkpointName = EventReplayService.checkpointName("october", FROM, TO, Set.of(ChargeStatus.SUCCEEDED));
+        checkpointsByName.put(checkpointName, new JobCheckpoint(checkpointName, epochMillis(checkpoint)));
+        when(charges.streamForReplay(any(), eq(checkpoint), eq(TO))).thenAnswer(invocation -> Stream.of(
+                new ChargeReplayView(UUID.randomUUID(), UUID.randomUUID(), "pi_1", ChargeStatus.SUCCEEDED, BigDecimal.TEN, "AUCTION", null, checkpoint)));
+
+        EventReplayProgress progress = awaitFinished(replayService.start("october", FROM, TO, Set.of(ChargeStatus.SUCCEEDED)));
+
+        assertEquals(EventReplayProgress.State.COMPLETED, progress.getState());
+        assertEquals(checkpoint, progress.getResumedFrom());
+        assertEquals(1, published.size());
+    }
+
+    @Test
+    void aNameReusedForAnotherRangeStartsAtItsBeginning() throws Exception {
+        String completed = EventReplayService.checkpointName("october", FROM, TO, Set.of(ChargeStatus.SUCCEEDED));
+        checkpointsByName.put(completed, new JobCheckpoint(completed, epochMillis(TO)));
+        LocalDateTime to = TO.plusMonths(1);
+        when(charges.streamForReplay(any(), eq(FROM), eq(to))).thenAnswer(invocation -> Stream.of(
+                new ChargeReplayView(UUID.randomUUID(), UUID.randomUUID(), "pi_1", ChargeStatus.SUCCEEDED, BigDecimal.TEN, "AUCTION", null, TO.plusDays(3))));
+
+        EventReplayProgress progress = awaitFinished(replayService.start("october", FROM, to, Set.of(ChargeStatus.SUCCEEDED)));
+
+        assertEquals(EventReplayProgress.State.COMPLETED, progress.getState());
+        assertEquals(FROM, progress.getResumedFrom());
+        assertEquals(1, published.size());
+        assertEquals(epochMillis(TO), checkpointsByName.get(completed).getPosition());
+    }
+
+    private static EventReplayProgress awaitFinished(EventReplayProgress progress) throws InterruptedException {
+        for (int i = 0; i < 500 && progress.getState() == EventReplayProgress.State.RUNNING; i++)
+            Thread.sleep(10);
+        return progress;
+    }
+
+    private static long epochMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
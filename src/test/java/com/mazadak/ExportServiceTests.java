@@ -0,0 +1,107 @@
+package com.mazadak;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.export.ExportDataset;
+import com.mazadak.payment.export.ExportFormat;
+import com.mazadak.payment.export.ExportService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ExportServiceTests {
+
+    private static final UUID SELLER_ID = UUID.randomUUID();
+    private static final LocalDateTime CREATED_AT = LocalDateTime.of(2025, 10, 3, 14, 30);
+
+    private final PreparedStatement statement = mock(PreparedStatement.class);
+    private ExportService exportService;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        String[] columns = {"id", "amount", "status", "checkout_type", "created_at"};
+        int[] types = {Types.OTHER, Types.NUMERIC, Types.SMALLINT, Types.VARCHAR, Types.TIMESTAMP};
+        when(metaData.getColumnCount()).thenReturn(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            when(metaData.getColumnLabel(i + 1)).thenReturn(columns[i]);
+            when(metaData.getColumnType(i + 1)).thenReturn(types[i]);
+        }
+
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.getMetaData()).thenReturn(metaData);
+        when(resultSet.next()).thenReturn(true, true, false);
+        when(resultSet.getObject(1)).thenReturn(UUID.fromString("00000000-0000-0000-0000-000000000001"), UUID.fromString("00000000-0000-0000-0000-000000000002"));
+        when(resultSet.getObject(2)).thenReturn(new BigDecimal("12.50"), new BigDecimal("7.00"));
+        when(resultSet.getShort(3)).thenReturn(ChargeStatus.SUCCEEDED.getCode(), ChargeStatus.REFUNDED.getCode());
+        when(resultSet.getObject(4)).thenReturn("FIXED", "needs, \"quoting\"");
+        when(resultSet.getObject(5, LocalDateTime.class)).thenReturn(CREATED_AT);
+
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+
+        exportService = new ExportService(dataSource, mock(PlatformTransactionManager.class), new SimpleMeterRegistry(), 500);
+    }
+
+    @Test
+    void csvExportStreamsRowsFromACursorWithTheFetchSize() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = exportService.export(ExportDataset.CHARGES, ExportFormat.CSV, LocalDate.of(2025, 10, 1), LocalDate.of(2025, 10, 31),
+                List.of("succeeded", "REFUNDED"), SELLER_ID, out);
+
+        assertEquals(2, rows);
+        assertEquals("id,amount,status,checkout_type,created_at\r\n"
+                + "00000000-0000-0000-0000-000000000001,12.50,SUCCEEDED,FIXED,2025-10-03T14:30\r\n"
+                + "00000000-0000-0000-0000-000000000002,7.00,REFUNDED,\"needs, \"\"quoting\"\"\",2025-10-03T14:30\r\n", out.toString(StandardCharsets.UTF_8));
+        verify(statement).setFetchSize(500);
+        /// Days are inclusive, the upper bound is the start of the day after
+        verify(statement).setObject(2, LocalDateTime.of(2025, 11, 1, 0, 0));
+        verify(statement).setObject(3, ChargeStatus.SUCCEEDED.getCode());
+        verify(statement).setObject(5, SELLER_ID);
+    }
+
+    @Test
+    void ndjsonExportWritesOneTypedObjectPerLine() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exportService.export(ExportDataset.CHARGES, ExportFormat.NDJSON, LocalDate.of(2025, 10, 1), LocalDate.of(2025, 10, 31), List.of(), null, out);
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        JsonNode first = new ObjectMapper().readTree(lines[0]);
+        assertTrue(first.get("amount").isNumber());
+        assertTrue(lines[0].contains("\"amount\":12.50"));
+        assertEquals("SUCCEEDED", first.get("status").asText());
+        assertEquals("2025-10-03T14:30", first.get("created_at").asText());
+        verify(statement, never()).setObject(anyInt(), any(UUID.class));
+    }
+}
@@ -0,0 +1,55 @@
+package com.mazadak;
+
+import com.mazadak.payment.lease.JobLease;
+import com.mazadak.payment.lease.JobLeaseAdvisingPostProcessor;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.lease.Lease;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.DataAccessResourceFailureException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class JobLeaseTests {
+
+    public static class Jobs {
+        final List<Optional<Lease>> runs = new ArrayList<>();
+
+        @JobLease("nightly")
+        public void run() {
+            runs.add(JobLeaseManager.current());
+        }
+    }
+
+    @Test
+    void annotatedJobsOnlyRunWhileTheirLeaseIsHeld() {
+        JobLeaseManager manager = mock(JobLeaseManager.class);
+        @SuppressWarnings("unchecked")
+        ObjectProvider<JobLeaseManager> provider = mock(ObjectProvider.class);
+        when(provider.getObject()).thenReturn(manager);
+
+        Jobs target = new Jobs();
+        Jobs jobs = (Jobs) new JobLeaseAdvisingPostProcessor(provider).postProcessAfterInitialization(target, "jobs");
+
+        when(manager.tryAcquire("nightly")).thenReturn(Optional.empty());
+        jobs.run();
+        assertTrue(target.runs.isEmpty());
+
+        when(manager.tryAcquire("nightly")).thenReturn(Optional.of(new Lease("nightly", 3)));
+        jobs.run();
+        assertEquals(List.of(Optional.of(new Lease("nightly", 3))), target.runs);
+        assertTrue(JobLeaseManager.current().isEmpty());
+
+        /// An unreachable lease table skips the run instead of running it everywhere
+        when(manager.tryAcquire("nightly")).thenThrow(new DataAccessResourceFailureException("connection refused"));
+        jobs.run();
+        assertEquals(1, target.runs.size());
+    }
+}
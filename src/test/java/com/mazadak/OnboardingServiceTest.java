@@ -1,20 +1,40 @@
 package com.mazadak;
 
+import com.mazadak.common.exception.shared.ResourceNotFoundException;
+import com.mazadak.payment.model.SellerStripeAccount;
 import com.mazadak.payment.repository.SellerStripeAccountRepository;
 import com.mazadak.payment.service.impl.OnboardingService;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.support.FakeStripeServer;
+import com.stripe.Stripe;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.KafkaNull;
+import org.springframework.messaging.Message;
+import org.springframework.mock.env.MockEnvironment;
 
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 class OnboardingServiceTest {
@@ -22,6 +42,9 @@ class OnboardingServiceTest {
     @Mock
     private SellerStripeAccountRepository sellerStripeAccountRepository;
 
+    @Mock
+    private StreamBridge streamBridge;
+
     @InjectMocks
     private OnboardingService onboardingService;
 
@@ -30,7 +53,7 @@ class OnboardingServiceTest {
     @BeforeEach
     void setUp() {
         // Re-initialize the service with constructor arguments for each test
-        onboardingService = new OnboardingService(sellerStripeAccountRepository);
+        onboardingService = new OnboardingService(sellerStripeAccountRepository, new StripeGateway(new MockEnvironment(), new SimpleMeterRegistry()), streamBridge);
         onboardingService.setStripeClientId("test_client_id");
         onboardingService.setStripeSecretKey("test_secret_key");
         onboardingService.init(); // Manually trigger PostConstruct method
@@ -83,4 +106,61 @@ class OnboardingServiceTest {
 
         assertEquals("redirectUrl is required", exception.getMessage());
     }
-}
\ No newline at end of file
+
+    @Test
+    void deauthorizeAccount_disconnectsTheAccountAndPublishesATombstone() throws Exception {
+        UUID sellerId = UUID.randomUUID();
+        SellerStripeAccount account = new SellerStripeAccount();
+        account.setSellerId(sellerId);
+        account.setStripeAccountId("acct_leaving");
+        when(sellerStripeAccountRepository.findBySellerId(sellerId)).thenReturn(account);
+        when(streamBridge.send(eq("sellerAccounts-out-0"), any())).thenReturn(true);
+
+        try (FakeStripeServer stripe = new FakeStripeServer("whsec_test")) {
+            onboardingService.setConnectBase(stripe.baseUrl());
+            onboardingService.init();
+
+            onboardingService.deauthorizeAccount(sellerId);
+
+            assertEquals(1, stripe.requestCount("POST", "/oauth/deauthorize"));
+        } finally {
+            Stripe.overrideConnectBase(Stripe.CONNECT_API_BASE);
+        }
+        verify(sellerStripeAccountRepository).delete(account);
+        ArgumentCaptor<Message<?>> sent = ArgumentCaptor.forClass(Message.class);
+        verify(streamBridge).send(eq("sellerAccounts-out-0"), sent.capture());
+        assertEquals(KafkaNull.INSTANCE, sent.getValue().getPayload());
+        assertArrayEquals(sellerId.toString().getBytes(StandardCharsets.UTF_8), (byte[]) sent.getValue().getHeaders().get(KafkaHeaders.KEY));
+    }
+
+    @Test
+    void deauthorizeAccount_whenTheTombstoneIsNotSent_keepsTheAccount() throws Exception {
+        UUID sellerId = UUID.randomUUID();
+        SellerStripeAccount account = new SellerStripeAccount();
+        account.setSellerId(sellerId);
+        account.setStripeAccountId("acct_staying");
+        when(sellerStripeAccountRepository.findBySellerId(sellerId)).thenReturn(account);
+        when(streamBridge.send(eq("sellerAccounts-out-0"), any())).thenReturn(false);
+
+        try (FakeStripeServer stripe = new FakeStripeServer("whsec_test")) {
+            onboardingService.setConnectBase(stripe.baseUrl());
+            onboardingService.init();
+
+            assertThrows(IllegalStateException.class, () -> onboardingService.deauthorizeAccount(sellerId));
+
+            assertEquals(0, stripe.requestCount("POST", "/oauth/deauthorize"));
+        } finally {
+            Stripe.overrideConnectBase(Stripe.CONNECT_API_BASE);
+        }
+        verify(sellerStripeAccountRepository, never()).delete(any());
+    }
+
+    @Test
+    void deauthorizeAccount_withoutAnAccount_throwsResourceNotFound() {
+        UUID sellerId = UUID.randomUUID();
+
+        assertThrows(ResourceNotFoundException.class, () -> onboardingService.deauthorizeAccount(sellerId));
+
+        verifyNoInteractions(streamBridge);
+    }
+}
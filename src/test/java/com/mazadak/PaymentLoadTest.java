@@ -0,0 +1,223 @@
+package com.mazadak;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.cache.ChargeSnapshotCache;
+import com.mazadak.payment.constant.PayoutMode;
+import com.mazadak.payment.controller.OnboardingController;
+import com.mazadak.payment.controller.StripePaymentController;
+import com.mazadak.payment.dto.request.CartItem;
+import com.mazadak.payment.dto.request.CreatePaymentIntentRequest;
+import com.mazadak.payment.dto.request.SellerOnboardingStatusRequest;
+import com.mazadak.payment.journal.PaymentStateJournal;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.selleraccount.SellerAccountLookup;
+import com.mazadak.payment.selleraccount.SellerAccountReplica;
+import com.mazadak.payment.service.impl.OnboardingService;
+import com.mazadak.payment.service.impl.SellerPayoutService;
+import com.mazadak.payment.service.impl.StripePaymentService;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
+import com.mazadak.payment.velocity.VelocityLimiter;
+import com.mazadak.support.FakeStripeServer;
+import com.mazadak.support.InMemoryPaymentRepositories;
+import com.mazadak.support.LatencyRecorder;
+import com.stripe.Stripe;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.cloud.bus.BusProperties;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.http.MediaType;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/// Drives the payment and onboarding REST endpoints and Stripe webhooks against {@link FakeStripeServer} and reports
+/// throughput with p50/p99/p999 latency per operation. Not part of the default build, run it with
+/// `mvn test -Pload-test -Dload.users=64 -Dload.checkouts=200 -Dload.stripe-latency-ms=40`. Add
+/// `-Dload.payout-mode=deferred` to compare the Stripe transfers of the deferred payout mode with per-order transfers.
+@Tag("load")
+@Slf4j
+class PaymentLoadTest {
+
+    private static final String WEBHOOK_SECRET = "whsec_load";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final int users = Integer.getInteger("load.users", 16);
+    private final int checkoutsPerUser = Integer.getInteger("load.checkouts", 25);
+    private final int sellersPerCart = Integer.getInteger("load.sellers-per-cart", 3);
+    private final long stripeLatencyMs = Long.getLong("load.stripe-latency-ms", 20);
+    private final double rateLimitRate = Double.parseDouble(System.getProperty("load.rate-limit-rate", "0.0"));
+    private final double serverErrorRate = Double.parseDouble(System.getProperty("load.server-error-rate", "0.0"));
+    private final PayoutMode payoutMode = PayoutMode.valueOf(System.getProperty("load.payout-mode", "immediate").toUpperCase());
+
+    private FakeStripeServer stripe;
+    private InMemoryPaymentRepositories repositories;
+    private MockMvc mockMvc;
+    private SellerPayoutService payoutService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        stripe = new FakeStripeServer(WEBHOOK_SECRET)
+                .latency(Duration.ofMillis(stripeLatencyMs), Duration.ofMillis(stripeLatencyMs / 2))
+                .faults(rateLimitRate, serverErrorRate);
+        repositories = new InMemoryPaymentRepositories();
+
+        /// Injected faults are ridden out with stripe-java's network retries
+        MockEnvironment environment = new MockEnvironment();
+        for (StripeOperation operation : StripeOperation.values())
+            environment.setProperty("payment.stripe.operations." + operation.getKey() + ".max-retries", Integer.toString(rateLimitRate + serverErrorRate > 0 ? 3 : 0));
+        StripeGateway stripeGateway = new StripeGateway(environment, new SimpleMeterRegistry());
+
+        SellerAccountLookup sellerAccountLookup = new SellerAccountLookup(repositories.sellers, mock(SellerAccountReplica.class));
+        StripePaymentService paymentService = new StripePaymentService(repositories.charges, repositories.transfers, repositories.sellers, mock(StreamBridge.class), new PaymentStateJournal(),
+                new ChargeSnapshotCache(repositories.charges, mock(ApplicationEventPublisher.class), new BusProperties(), new SimpleMeterRegistry()), stripeGateway,
+                sellerAccountLookup);
+        ReflectionTestUtils.setField(paymentService, "secretKey", "sk_test_fake");
+        ReflectionTestUtils.setField(paymentService, "webhookSecret", WEBHOOK_SECRET);
+        ReflectionTestUtils.setField(paymentService, "apiBase", stripe.baseUrl());
+        ReflectionTestUtils.setField(paymentService, "authorizationHoldDuration", Duration.ofDays(7));
+        ReflectionTestUtils.setField(paymentService, "payoutMode", payoutMode);
+        paymentService.init();
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        payoutService = new SellerPayoutService(repositories.transfers, repositories.payouts, repositories.sellers,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), meterRegistry, new PaymentStateJournal(),
+                new Bulkheads(new MockEnvironment(), meterRegistry), stripeGateway, mock(JobLeaseManager.class));
+        ReflectionTestUtils.setField(payoutService, "settleAfter", Duration.ZERO);
+        ReflectionTestUtils.setField(payoutService, "batchSize", 50);
+        ReflectionTestUtils.setField(payoutService, "maxShares", 1000);
+        ReflectionTestUtils.setField(payoutService, "retryDelay", Duration.ofHours(1));
+        ReflectionTestUtils.setField(payoutService, "maxAttempts", 3);
+        ReflectionTestUtils.setField(payoutService, "claimTimeout", Duration.ofMinutes(5));
+
+        StreamBridge sellerAccounts = mock(StreamBridge.class);
+        when(sellerAccounts.send(anyString(), any())).thenReturn(true);
+        OnboardingService onboardingService = new OnboardingService(repositories.sellers, stripeGateway, sellerAccounts);
+        onboardingService.setStripeClientId("ca_fake");
+        onboardingService.setStripeSecretKey("sk_test_fake");
+        onboardingService.setConnectBase(stripe.baseUrl());
+        onboardingService.init();
+
+        mockMvc = MockMvcBuilders.standaloneSetup(
+                new StripePaymentController(paymentService,
+                        new VelocityLimiter(new MockEnvironment().withProperty("payment.velocity.enabled", "false"), meterRegistry)),
+                new OnboardingController(onboardingService, sellerAccountLookup)).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        stripe.close();
+        Stripe.overrideApiBase(Stripe.LIVE_API_BASE);
+        Stripe.overrideConnectBase(Stripe.CONNECT_API_BASE);
+    }
+
+    @Test
+    void checkoutFlow_underConcurrentLoad() throws Exception {
+        LatencyRecorder recorder = new LatencyRecorder();
+        ExecutorService pool = Executors.newFixedThreadPool(users);
+        long start = System.nanoTime();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int user = 0; user < users; user++)
+            futures.add(pool.submit(() -> runUser(recorder)));
+        for (Future<?> future : futures)
+            future.get();
+
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        if (payoutMode == PayoutMode.DEFERRED)
+            recorder.time("payouts.run", () -> payoutService.runPayouts());
+
+        log.info("Load test: {} users x {} checkouts, {} sellers per cart, Stripe latency {} ms, 429 rate {}, 5xx rate {}",
+                users, checkoutsPerUser, sellersPerCart, stripeLatencyMs, rateLimitRate, serverErrorRate);
+        log.info("Wall clock {} s, Stripe requests {}", String.format("%.2f", elapsed / 1e9), stripe.requestCount());
+        log.info("Payout mode {}: {} Stripe transfers for {} seller shares",
+                payoutMode, stripe.requestCount("POST", "/v1/transfers"), repositories.transfers().size());
+        log.info("Latencies\n{}", recorder.report(elapsed));
+
+        if (rateLimitRate + serverErrorRate == 0)
+            assertEquals(0, recorder.errorCount());
+    }
+
+    private Void runUser(LatencyRecorder recorder) {
+        UUID buyerId = UUID.randomUUID();
+        List<UUID> sellers = new ArrayList<>();
+        for (int i = 0; i < sellersPerCart; i++) {
+            UUID sellerId = UUID.randomUUID();
+            sellers.add(sellerId);
+            recorder.time("onboarding.oauth-callback", () -> mockMvc.perform(get("/api/onboarding/oauth/callback")
+                            .param("code", "ac_fake")
+                            .param("state", state(sellerId)))
+                    .andExpect(status().isFound()));
+        }
+        recorder.time("onboarding.accounts-status", () -> mockMvc.perform(post("/api/onboarding/accounts/status")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(MAPPER.writeValueAsString(new SellerOnboardingStatusRequest(sellers))))
+                .andExpect(status().isOk()));
+
+        for (int i = 0; i < checkoutsPerUser; i++) {
+            UUID orderId = UUID.randomUUID();
+            List<CartItem> items = sellers.stream().map(sellerId -> new CartItem(sellerId, new BigDecimal("12.50"))).toList();
+            CreatePaymentIntentRequest request = new CreatePaymentIntentRequest(orderId, "usd", "FIXED", items, buyerId);
+
+            recorder.time("payments.create-payment-intent", () -> mockMvc.perform(post("/api/payments/create-payment-intent")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(MAPPER.writeValueAsString(request)))
+                    .andExpect(status().isOk()));
+
+            String paymentIntentId = repositories.charge(orderId).map(charge -> charge.getPaymentIntentId()).orElse(null);
+            if (paymentIntentId == null)
+                continue;
+
+            stripe.authorize(paymentIntentId);
+            recorder.time("webhook.amount_capturable_updated", () -> webhook("payment_intent.amount_capturable_updated", paymentIntentId));
+            recorder.time("payments.capture", () -> mockMvc.perform(post("/api/payments/{orderId}/capture", orderId))
+                    .andExpect(status().isOk()));
+            recorder.time("webhook.succeeded", () -> webhook("payment_intent.succeeded", paymentIntentId));
+        }
+        return null;
+    }
+
+    private void webhook(String type, String paymentIntentId) throws Exception {
+        FakeStripeServer.SignedEvent event = stripe.signedEvent(type, paymentIntentId);
+        mockMvc.perform(post("/api/payments/stripe-webhook")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .header("Stripe-Signature", event.signature())
+                        .content(event.payload()))
+                .andExpect(status().isOk());
+    }
+
+    private static String state(UUID sellerId) {
+        String json = String.format("{\"sellerId\":\"%s\",\"redirectUrl\":\"%s\"}", sellerId, "https://example.com/done");
+        return Base64.getUrlEncoder().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -1,15 +1,372 @@
 package com.mazadak;
 
+import com.mazadak.common.exception.domain.payment.PaymentProcessingException;
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.cache.ChargeSnapshotCache;
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.PayoutMode;
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.dto.request.CartItem;
+import com.mazadak.payment.dto.request.CreatePaymentIntentRequest;
+import com.mazadak.payment.dto.response.PaymentStatusResponse;
+import com.mazadak.payment.journal.JournalRecord;
+import com.mazadak.payment.journal.PaymentStateJournal;
+import com.mazadak.payment.journal.PaymentStateJournalReader;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.model.SellerPayout;
+import com.mazadak.payment.model.SellerSplit;
+import com.mazadak.payment.model.StripeChargeTransaction;
+import com.mazadak.payment.model.StripeTransferTransaction;
+import com.mazadak.payment.selleraccount.SellerAccountLookup;
+import com.mazadak.payment.selleraccount.SellerAccountReplica;
+import com.mazadak.payment.service.impl.SellerPayoutService;
+import com.mazadak.payment.service.impl.StripePaymentService;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.support.FakeStripeServer;
+import com.mazadak.support.InMemoryPaymentRepositories;
+import com.stripe.Stripe;
+import com.stripe.model.PaymentIntent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.cloud.bus.BusProperties;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 
 @ExtendWith(MockitoExtension.class)
 class PaymentServiceTests {
 
+    private static final String WEBHOOK_SECRET = "whsec_test";
+
+    private FakeStripeServer stripe;
+    private InMemoryPaymentRepositories repositories;
+    private StreamBridge streamBridge;
+    private PaymentStateJournal journal;
+    private StripeGateway stripeGateway;
+    private StripePaymentService paymentService;
+
+    @TempDir
+    Path journalDirectory;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        stripe = new FakeStripeServer(WEBHOOK_SECRET);
+        repositories = new InMemoryPaymentRepositories();
+        streamBridge = mock(StreamBridge.class);
+
+        journal = new PaymentStateJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "directory", journalDirectory);
+        ReflectionTestUtils.setField(journal, "segmentSize", DataSize.ofKilobytes(64));
+        ReflectionTestUtils.setField(journal, "flushInterval", Duration.ofMillis(100));
+        journal.open();
+
+        ChargeSnapshotCache chargeSnapshotCache = new ChargeSnapshotCache(repositories.charges, mock(ApplicationEventPublisher.class), new BusProperties(), new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(chargeSnapshotCache, "enabled", true);
+        ReflectionTestUtils.setField(chargeSnapshotCache, "maxSize", 100);
+        ReflectionTestUtils.setField(chargeSnapshotCache, "ttl", Duration.ofMinutes(1));
+
+        paymentService = new StripePaymentService(repositories.charges, repositories.transfers, repositories.sellers, streamBridge, journal, chargeSnapshotCache,
+                stripeGateway = new StripeGateway(new MockEnvironment(), new SimpleMeterRegistry()), new SellerAccountLookup(repositories.sellers, mock(SellerAccountReplica.class)));
+        ReflectionTestUtils.setField(paymentService, "secretKey", "sk_test_fake");
+        ReflectionTestUtils.setField(paymentService, "webhookSecret", WEBHOOK_SECRET);
+        ReflectionTestUtils.setField(paymentService, "apiBase", stripe.baseUrl());
+        ReflectionTestUtils.setField(paymentService, "authorizationHoldDuration", Duration.ofDays(7));
+        paymentService.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        journal.close();
+        stripe.close();
+        Stripe.overrideApiBase(Stripe.LIVE_API_BASE);
+    }
+
+    @Test
+    void authorizeCaptureAndSucceed_transfersEachSellersShare() throws IOException {
+        UUID sellerA = UUID.randomUUID();
+        UUID sellerB = UUID.randomUUID();
+        repositories.addSeller(sellerA, "acct_a");
+        repositories.addSeller(sellerB, "acct_b");
+        UUID orderId = UUID.randomUUID();
+
+        paymentService.createPaymentIntent(new CreatePaymentIntentRequest(orderId, "usd", "FIXED", List.of(
+                new CartItem(sellerA, new BigDecimal("30.00")),
+                new CartItem(sellerA, new BigDecimal("20.00")),
+                new CartItem(sellerB, new BigDecimal("15.50"))), null));
+
+        StripeChargeTransaction charge = repositories.charge(orderId).orElseThrow();
+        assertEquals(6550L, stripe.paymentIntent(charge.getPaymentIntentId()).get("amount"));
+        /// Cart lines are folded per seller when the intent is created, with the accounts the transfers will use
+        assertEquals(List.of(new SellerSplit(sellerA, new BigDecimal("50.00"), "acct_a"), new SellerSplit(sellerB, new BigDecimal("15.50"), "acct_b")),
+                charge.getSellerSplit());
+        assertEquals(2, charge.getOrderItems().size());
+
+        stripe.authorize(charge.getPaymentIntentId());
+        deliver("payment_intent.amount_capturable_updated", charge.getPaymentIntentId());
+        assertEquals(ChargeStatus.REQUIRES_CAPTURE, charge.getStatus());
+        assertNotNull(charge.getAuthorizationExpiresAt());
+        verify(streamBridge).send(eq("paymentAuthorized-out-0"), any());
+
+        PaymentIntent captured = paymentService.capturePayment(orderId);
+        assertEquals("succeeded", captured.getStatus());
+
+        deliver("payment_intent.succeeded", charge.getPaymentIntentId());
+        assertEquals(ChargeStatus.SUCCEEDED, charge.getStatus());
+        assertEquals(2, stripe.transfers().size());
+        assertTrue(stripe.transfers().stream().anyMatch(transfer -> transfer.get("destination").equals("acct_a") && transfer.get("amount").equals(5000L)));
+        assertTrue(stripe.transfers().stream().anyMatch(transfer -> transfer.get("destination").equals("acct_b") && transfer.get("amount").equals(1550L)));
+        assertTrue(repositories.transfers().stream().allMatch(transfer -> transfer.getStatus() == TransferStatus.SUCCEEDED));
+        verify(repositories.sellers, times(1)).findAllBySellerIdIn(any());
+
+        List<JournalRecord> records = journal();
+        assertEquals(List.of("null->REQUIRES_PAYMENT_METHOD", "REQUIRES_PAYMENT_METHOD->REQUIRES_CAPTURE", "REQUIRES_CAPTURE->SUCCEEDED",
+                        "null->SUCCEEDED", "null->SUCCEEDED"),
+                records.stream().map(record -> record.fromState() + "->" + record.toState()).toList());
+        assertTrue(records.stream().allMatch(record -> orderId.equals(record.orderId())));
+        assertEquals(charge.getPaymentIntentId(), records.getFirst().reference());
+        assertTrue(records.get(1).eventId().startsWith("evt_"));
+
+        /// Bulk status reads are one projection query, ids without a charge are left out
+        clearInvocations(repositories.charges);
+        List<PaymentStatusResponse> statuses = paymentService.getPaymentStatuses(List.of(orderId, orderId), List.of(charge.getPaymentIntentId(), "pi_unknown"));
+        assertEquals(1, statuses.size());
+        assertEquals(ChargeStatus.SUCCEEDED, statuses.getFirst().status());
+        assertEquals(new BigDecimal("65.50"), statuses.getFirst().amount());
+        assertEquals(new PaymentStatusResponse.TransferSummary(2, 2, 0, 0, 0, new BigDecimal("65.50")), statuses.getFirst().transfers());
+        verify(repositories.charges).findPaymentStatusViews(List.of(orderId), List.of(charge.getPaymentIntentId(), "pi_unknown"));
+        verifyNoMoreInteractions(repositories.charges);
+    }
+
+    @Test
+    void cancelPayment_storesCanceledStatus() {
+        UUID orderId = UUID.randomUUID();
+        paymentService.createPaymentIntent(new CreatePaymentIntentRequest(orderId, "usd", "AUCTION", List.of(
+                new CartItem(onboardedSeller(), new BigDecimal("10.00"))), null));
+
+        PaymentIntent canceled = paymentService.cancelPayment(orderId);
+
+        assertEquals("canceled", canceled.getStatus());
+        assertEquals(ChargeStatus.CANCELED, repositories.charge(orderId).orElseThrow().getStatus());
+    }
+
+    @Test
+    void cancelPayment_afterSucceeded_isRejectedBeforeCallingStripe() {
+        UUID orderId = UUID.randomUUID();
+        paymentService.createPaymentIntent(new CreatePaymentIntentRequest(orderId, "usd", "FIXED", List.of(
+                new CartItem(onboardedSeller(), new BigDecimal("10.00"))), null));
+        StripeChargeTransaction charge = repositories.charge(orderId).orElseThrow();
+        stripe.authorize(charge.getPaymentIntentId());
+        paymentService.capturePayment(orderId);
+        long cancelRequests = stripe.requestCount("POST", "/v1/payment_intents/" + charge.getPaymentIntentId() + "/cancel");
+
+        assertThrows(PaymentProcessingException.class, () -> paymentService.cancelPayment(orderId));
+
+        assertEquals(ChargeStatus.SUCCEEDED, charge.getStatus());
+        assertEquals(cancelRequests, stripe.requestCount("POST", "/v1/payment_intents/" + charge.getPaymentIntentId() + "/cancel"));
+    }
+
+    @Test
+    void createPaymentIntent_withSellerNotOnboarded_isRejectedBeforeCallingStripe() {
+        UUID orderId = UUID.randomUUID();
+        UUID missingSeller = UUID.randomUUID();
+        CreatePaymentIntentRequest request = new CreatePaymentIntentRequest(orderId, "usd", "FIXED", List.of(
+                new CartItem(onboardedSeller(), new BigDecimal("10.00")),
+                new CartItem(missingSeller, new BigDecimal("5.00"))), null);
+
+        PaymentProcessingException rejected = assertThrows(PaymentProcessingException.class, () -> paymentService.createPaymentIntent(request));
+
+        assertTrue(rejected.getMessage().contains(missingSeller.toString()));
+        assertEquals(0, stripe.requestCount());
+        assertTrue(repositories.charge(orderId).isEmpty());
+    }
+
+    @Test
+    void checkoutWarmUp_writesNothing() throws IOException {
+        UUID orderId = UUID.randomUUID();
+        PaymentIntent paymentIntent = new PaymentIntent();
+        paymentIntent.setId("pi_warmup");
+        paymentIntent.setStatus("requires_payment_method");
+
+        paymentService.warmUpCheckout(new CreatePaymentIntentRequest(orderId, "usd", "FIXED", List.of(
+                new CartItem(onboardedSeller(), new BigDecimal("10.00"))), null), paymentIntent);
+
+        verify(repositories.charges).findByPaymentIntentId("pi_warmup");
+        verify(repositories.charges).findByOrderId(orderId);
+        verify(repositories.charges, never()).save(any());
+        verify(repositories.charges, never()).saveAndFlush(any());
+        assertTrue(repositories.charge(orderId).isEmpty());
+        assertEquals(0, stripe.requestCount());
+        assertTrue(journal().isEmpty());
+    }
+
+    @Test
+    void deferredPayoutMode_paysEachSellerOnceForAllOfTheirOrders() {
+        ReflectionTestUtils.setField(paymentService, "payoutMode", PayoutMode.DEFERRED);
+        UUID sellerA = onboardedSeller();
+        UUID sellerB = onboardedSeller();
+        for (int i = 0; i < 3; i++)
+            pay(new CartItem(sellerA, new BigDecimal("30.00")), new CartItem(sellerB, new BigDecimal("5.25")));
+
+        assertEquals(0, stripe.transfers().size());
+        assertEquals(6, repositories.transfers().stream().filter(share -> share.getStatus() == TransferStatus.QUEUED).count());
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SellerPayoutService payoutService = payoutService(meterRegistry);
+        payoutService.runPayouts();
+
+        assertEquals(2, stripe.transfers().size());
+        assertTrue(stripe.transfers().stream().anyMatch(transfer -> transfer.get("amount").equals(9000L) && ((String) transfer.get("transfer_group")).startsWith("payout-")));
+        assertTrue(stripe.transfers().stream().anyMatch(transfer -> transfer.get("amount").equals(1575L)));
+        for (SellerPayout payout : repositories.payouts()) {
+            assertEquals(TransferStatus.SUCCEEDED, payout.getStatus());
+            assertEquals(3, repositories.transfers().stream().filter(share -> payout.getId().equals(share.getPayoutId())).count());
+        }
+        assertTrue(repositories.transfers().stream().allMatch(share -> share.getStatus() == TransferStatus.SUCCEEDED && share.getTransferGroup().startsWith("order-")));
+        assertEquals(6, meterRegistry.get("payment.payout.shares").counter().count());
+
+        payoutService.runPayouts();
+        assertEquals(2, stripe.transfers().size());
+    }
+
+    @Test
+    void deferredPayoutMode_parksAPayoutThatKeepsFailingAfterMaxAttempts() {
+        ReflectionTestUtils.setField(paymentService, "payoutMode", PayoutMode.DEFERRED);
+        pay(new CartItem(onboardedSeller(), new BigDecimal("12.00")));
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SellerPayoutService payoutService = payoutService(meterRegistry);
+
+        stripe.faults(0, 1.0);
+        for (int run = 0; run < 3; run++) {
+            payoutService.runPayouts();
+            repositories.payouts().forEach(payout -> {
+                if (payout.getNextAttemptAt() != null)
+                    payout.setNextAttemptAt(LocalDateTime.now());
+            });
+        }
+        long requests = stripe.requestCount("POST", "/v1/transfers");
+        payoutService.runPayouts();
+
+        SellerPayout payout = repositories.payouts().iterator().next();
+        assertEquals(TransferStatus.FAILED, payout.getStatus());
+        assertEquals(3, payout.getAttempts());
+        assertNull(payout.getNextAttemptAt());
+        assertEquals(requests, stripe.requestCount("POST", "/v1/transfers"));
+        assertEquals(2, meterRegistry.get("payment.payout.transfers").tag("outcome", "failed").counter().count());
+        assertEquals(1, meterRegistry.get("payment.payout.transfers").tag("outcome", "exhausted").counter().count());
+        assertTrue(repositories.transfers().stream().allMatch(share -> share.getStatus() == TransferStatus.QUEUED));
+    }
+
+    @Test
+    void succeededRedeliveredAfterCapture_transfersEachShareOnce() {
+        assertSucceededRedeliveryPaysEachSellerOnce(PayoutMode.IMMEDIATE, TransferStatus.SUCCEEDED);
+        assertEquals(2, stripe.transfers().size());
+    }
+
+    @Test
+    void succeededRedeliveredAfterCapture_queuesEachShareOnce() {
+        assertSucceededRedeliveryPaysEachSellerOnce(PayoutMode.DEFERRED, TransferStatus.QUEUED);
+        assertEquals(0, stripe.transfers().size());
+    }
+
+    /// capturePayment has already set SUCCEEDED when the first succeeded webhook arrives, then that webhook is
+    /// redelivered and Stripe sends a second succeeded event for the same PaymentIntent
+    private void assertSucceededRedeliveryPaysEachSellerOnce(PayoutMode payoutMode, TransferStatus shareStatus) {
+        ReflectionTestUtils.setField(paymentService, "payoutMode", payoutMode);
+        UUID sellerA = onboardedSeller();
+        UUID sellerB = onboardedSeller();
+        UUID orderId = UUID.randomUUID();
+        paymentService.createPaymentIntent(new CreatePaymentIntentRequest(orderId, "usd", "FIXED", List.of(
+                new CartItem(sellerA, new BigDecimal("30.00")), new CartItem(sellerB, new BigDecimal("5.25"))), null));
+        StripeChargeTransaction charge = repositories.charge(orderId).orElseThrow();
+        stripe.authorize(charge.getPaymentIntentId());
+        deliver("payment_intent.amount_capturable_updated", charge.getPaymentIntentId());
+        paymentService.capturePayment(orderId);
+        assertEquals(ChargeStatus.SUCCEEDED, charge.getStatus());
+
+        FakeStripeServer.SignedEvent succeeded = stripe.signedEvent("payment_intent.succeeded", charge.getPaymentIntentId());
+        paymentService.handleStripeWebhook(succeeded.payload(), succeeded.signature());
+        long transferRequests = stripe.requestCount("POST", "/v1/transfers");
+        paymentService.handleStripeWebhook(succeeded.payload(), succeeded.signature());
+        deliver("payment_intent.succeeded", charge.getPaymentIntentId());
+
+        assertEquals(ChargeStatus.SUCCEEDED, charge.getStatus());
+        assertEquals(List.of(sellerA, sellerB).stream().sorted().toList(),
+                repositories.transfers().stream().map(StripeTransferTransaction::getSellerId).sorted().toList());
+        assertTrue(repositories.transfers().stream().allMatch(share -> share.getStatus() == shareStatus));
+        assertEquals(transferRequests, stripe.requestCount("POST", "/v1/transfers"));
+        verify(streamBridge, times(1)).send(eq("paymentSuccess-out-0"), any());
+    }
+
+    private void pay(CartItem... items) {
+        UUID orderId = UUID.randomUUID();
+        paymentService.createPaymentIntent(new CreatePaymentIntentRequest(orderId, "usd", "FIXED", List.of(items), null));
+        String paymentIntentId = repositories.charge(orderId).orElseThrow().getPaymentIntentId();
+        stripe.authorize(paymentIntentId);
+        deliver("payment_intent.amount_capturable_updated", paymentIntentId);
+        paymentService.capturePayment(orderId);
+        deliver("payment_intent.succeeded", paymentIntentId);
+    }
+
+    private SellerPayoutService payoutService(SimpleMeterRegistry meterRegistry) {
+        SellerPayoutService payoutService = new SellerPayoutService(repositories.transfers, repositories.payouts, repositories.sellers,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), meterRegistry, journal, new Bulkheads(new MockEnvironment(), meterRegistry), stripeGateway,
+                mock(JobLeaseManager.class));
+        ReflectionTestUtils.setField(payoutService, "settleAfter", Duration.ZERO);
+        ReflectionTestUtils.setField(payoutService, "batchSize", 50);
+        ReflectionTestUtils.setField(payoutService, "maxShares", 1000);
+        ReflectionTestUtils.setField(payoutService, "retryDelay", Duration.ofHours(1));
+        ReflectionTestUtils.setField(payoutService, "maxAttempts", 3);
+        ReflectionTestUtils.setField(payoutService, "claimTimeout", Duration.ofMinutes(5));
+        return payoutService;
+    }
+
+    private UUID onboardedSeller() {
+        UUID sellerId = UUID.randomUUID();
+        repositories.addSeller(sellerId, "acct_" + sellerId.toString().substring(0, 8));
+        return sellerId;
+    }
+
+    private List<JournalRecord> journal() throws IOException {
+        List<JournalRecord> records = new ArrayList<>();
+        PaymentStateJournalReader.read(journalDirectory, records::add);
+        return records;
+    }
 
+    private void deliver(String type, String paymentIntentId) {
+        FakeStripeServer.SignedEvent event = stripe.signedEvent(type, paymentIntentId);
+        paymentService.handleStripeWebhook(event.payload(), event.signature());
+    }
 }
@@ -0,0 +1,75 @@
+package com.mazadak;
+
+import com.mazadak.payment.tracing.PaymentStage;
+import com.mazadak.payment.tracing.PaymentStageAdvisingPostProcessor;
+import com.mazadak.payment.tracing.PaymentStages;
+import io.micrometer.core.instrument.observation.DefaultMeterObservationHandler;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationHandler;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PaymentStageTests {
+
+    public static class Stages {
+        @PaymentStage("webhook")
+        public void handle(String eventType, boolean fail) {
+            PaymentStages.tag(PaymentStages.EVENT_TYPE, eventType);
+            PaymentStages.annotate(PaymentStages.ORDER_ID, "order-1");
+            if (fail)
+                throw new IllegalStateException("charge not found");
+        }
+    }
+
+    @Test
+    void stagesAreObservedWithTheirKeyValuesAndTimedPerEventType() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        List<Observation.Context> stopped = new ArrayList<>();
+        ObservationRegistry observationRegistry = ObservationRegistry.create();
+        observationRegistry.observationConfig()
+                .observationHandler(new DefaultMeterObservationHandler(meterRegistry))
+                .observationHandler(new ObservationHandler<>() {
+                    @Override
+                    public void onStop(Observation.Context context) {
+                        stopped.add(context);
+                    }
+
+                    @Override
+                    public boolean supportsContext(Observation.Context context) {
+                        return true;
+                    }
+                });
+        @SuppressWarnings("unchecked")
+        ObjectProvider<ObservationRegistry> provider = mock(ObjectProvider.class);
+        when(provider.getIfAvailable(any())).thenReturn(observationRegistry);
+
+        Stages stages = (Stages) new PaymentStageAdvisingPostProcessor(provider).postProcessAfterInitialization(new Stages(), "stages");
+        stages.handle("payment_intent.succeeded", false);
+        assertThrows(IllegalStateException.class, () -> stages.handle("payment_intent.canceled", true));
+
+        assertEquals(2, stopped.size());
+        Observation.Context succeeded = stopped.getFirst();
+        assertEquals("payment webhook", succeeded.getContextualName());
+        assertEquals("payment_intent.succeeded", succeeded.getLowCardinalityKeyValue(PaymentStages.EVENT_TYPE).getValue());
+        assertEquals("order-1", succeeded.getHighCardinalityKeyValue(PaymentStages.ORDER_ID).getValue());
+        assertNull(succeeded.getLowCardinalityKeyValue(PaymentStages.ORDER_ID));
+        assertEquals("charge not found", stopped.get(1).getError().getMessage());
+
+        assertEquals(1, meterRegistry.get(PaymentStages.OBSERVATION).tag("stage", "webhook").tag(PaymentStages.EVENT_TYPE, "payment_intent.canceled").timer().count());
+        /// Outside a stage the helpers do nothing
+        PaymentStages.annotate(PaymentStages.ORDER_ID, "order-2");
+        assertEquals(2, stopped.size());
+    }
+}
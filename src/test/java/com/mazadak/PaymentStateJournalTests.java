@@ -0,0 +1,168 @@
+package com.mazadak;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.journal.JournalRecord;
+import com.mazadak.payment.journal.PaymentStateJournal;
+import com.mazadak.payment.journal.PaymentStateJournalReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PaymentStateJournalTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void appendsRotateAcrossSegmentsAndReadBackInOrder() throws IOException {
+        PaymentStateJournal journal = open(DataSize.ofBytes(128 * 4));
+        UUID orderId = UUID.randomUUID();
+        for (int i = 0; i < 10; i++)
+            journal.recordCharge(orderId, "pi_" + i, ChargeStatus.PENDING, ChargeStatus.REQUIRES_CAPTURE, "evt_" + i);
+        journal.recordTransfer(null, "tr_1", TransferStatus.SUCCEEDED, TransferStatus.REVERSED, null);
+        journal.close();
+
+        List<JournalRecord> records = read();
+        assertEquals(3, segmentCount());
+        assertEquals(11, records.size());
+        for (int i = 0; i < 10; i++) {
+            JournalRecord record = records.get(i);
+            assertEquals(i + 1, record.sequence());
+            assertEquals("CHARGE", record.entity());
+            assertEquals(orderId, record.orderId());
+            assertEquals("pi_" + i, record.reference());
+            assertEquals("PENDING", record.fromState());
+            assertEquals("REQUIRES_CAPTURE", record.toState());
+            assertEquals("evt_" + i, record.eventId());
+        }
+        JournalRecord transfer = records.getLast();
+        assertEquals("TRANSFER", transfer.entity());
+        assertNull(transfer.orderId());
+        assertNull(transfer.eventId());
+        assertEquals("SUCCEEDED", transfer.fromState());
+        assertEquals("REVERSED", transfer.toState());
+    }
+
+    @Test
+    void reopenContinuesAfterLastCommittedRecord() throws IOException {
+        PaymentStateJournal first = open(DataSize.ofKilobytes(4));
+        first.recordCharge(UUID.randomUUID(), "pi_a", null, ChargeStatus.PENDING, null);
+        first.recordCharge(UUID.randomUUID(), "pi_b", ChargeStatus.PENDING, ChargeStatus.FAILED, null);
+        first.close();
+
+        PaymentStateJournal second = open(DataSize.ofKilobytes(4));
+        second.recordCharge(UUID.randomUUID(), "pi_c", ChargeStatus.PENDING, ChargeStatus.CANCELED, null);
+        second.close();
+
+        List<JournalRecord> records = read();
+        assertEquals(1, segmentCount());
+        assertEquals(List.of(1L, 2L, 3L), records.stream().map(JournalRecord::sequence).toList());
+        assertEquals("pi_c", records.getLast().reference());
+    }
+
+    @Test
+    void recordsInsideATransactionAreAppendedTogetherOnCommitAndDroppedOnRollback() throws IOException {
+        PaymentStateJournal journal = open(DataSize.ofKilobytes(4));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            journal.recordCharge(UUID.randomUUID(), "pi_rolled_back", ChargeStatus.PENDING, ChargeStatus.FAILED, null);
+            complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+            journal.recordCharge(UUID.randomUUID(), "pi_a", ChargeStatus.PENDING, ChargeStatus.REQUIRES_CAPTURE, null);
+            journal.recordTransfer(null, "tr_a", TransferStatus.FAILED, TransferStatus.SUCCEEDED, null);
+            assertEquals(1, TransactionSynchronizationManager.getSynchronizations().size());
+            assertTrue(read().isEmpty());
+            complete(TransactionSynchronization.STATUS_COMMITTED);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        journal.close();
+
+        assertEquals(List.of("pi_a", "tr_a"), read().stream().map(JournalRecord::reference).toList());
+    }
+
+    @Test
+    void aThreadReusesItsTransactionBufferAndGrowsItForLargeTransactions() throws IOException {
+        PaymentStateJournal journal = open(DataSize.ofKilobytes(4));
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            for (int i = 0; i < 20; i++)
+                journal.recordTransfer(null, "tr_long_reference_" + i, TransferStatus.FAILED, TransferStatus.SUCCEEDED, null);
+            TransactionSynchronization first = TransactionSynchronizationManager.getSynchronizations().getFirst();
+            complete(TransactionSynchronization.STATUS_COMMITTED);
+
+            journal.recordTransfer(null, "tr_b", TransferStatus.FAILED, TransferStatus.SUCCEEDED, null);
+            assertSame(first, TransactionSynchronizationManager.getSynchronizations().getFirst());
+            complete(TransactionSynchronization.STATUS_COMMITTED);
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        journal.close();
+
+        List<JournalRecord> records = read();
+        assertEquals(21, records.size());
+        assertEquals("tr_long_reference_19", records.get(19).reference());
+        assertEquals("tr_b", records.getLast().reference());
+        assertEquals(21L, records.getLast().sequence());
+    }
+
+    @Test
+    void enabledWithoutADirectoryFailsAtStartup() {
+        PaymentStateJournal journal = new PaymentStateJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        assertThrows(IllegalStateException.class, journal::open);
+    }
+
+    /// What the transaction manager does at the end of a transaction, the synchronizations are cleared afterwards
+    private static void complete(int status) {
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+        if (status == TransactionSynchronization.STATUS_COMMITTED)
+            synchronizations.forEach(TransactionSynchronization::afterCommit);
+        synchronizations.forEach(synchronization -> synchronization.afterCompletion(status));
+        TransactionSynchronizationManager.clearSynchronization();
+        TransactionSynchronizationManager.initSynchronization();
+    }
+
+    private PaymentStateJournal open(DataSize segmentSize) {
+        PaymentStateJournal journal = new PaymentStateJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "directory", directory);
+        ReflectionTestUtils.setField(journal, "segmentSize", segmentSize);
+        ReflectionTestUtils.setField(journal, "flushInterval", Duration.ofMillis(50));
+        journal.open();
+        return journal;
+    }
+
+    private List<JournalRecord> read() throws IOException {
+        List<JournalRecord> records = new ArrayList<>();
+        PaymentStateJournalReader.read(directory, records::add);
+        return records;
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.mazadak;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.TransferStatus;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PaymentStatusTests {
+
+    @Test
+    void codesRoundTripAndShareOneCodeSpace() {
+        for (ChargeStatus status : ChargeStatus.values())
+            assertEquals(status, ChargeStatus.fromCode(status.getCode()));
+        for (TransferStatus status : TransferStatus.values())
+            assertEquals(status, TransferStatus.fromCode(status.getCode()));
+
+        Set<Short> chargeCodes = new HashSet<>();
+        Arrays.stream(ChargeStatus.values()).forEach(status -> assertTrue(chargeCodes.add(status.getCode())));
+        /// A name used by both enums must carry the same code, the journal stores codes without the enum type
+        for (TransferStatus status : TransferStatus.values())
+            Stream.of(ChargeStatus.values()).filter(charge -> charge.name().equals(status.name()))
+                    .forEach(charge -> assertEquals(charge.getCode(), status.getCode()));
+
+        assertThrows(IllegalArgumentException.class, () -> ChargeStatus.fromCode((short) 0));
+        assertThrows(IllegalArgumentException.class, () -> ChargeStatus.fromCode((short) 7));
+    }
+
+    @Test
+    void mapsEveryPaymentIntentStatus() {
+        assertEquals(ChargeStatus.REQUIRES_PAYMENT_METHOD, ChargeStatus.fromStripe("requires_payment_method"));
+        assertEquals(ChargeStatus.REQUIRES_CONFIRMATION, ChargeStatus.fromStripe("requires_confirmation"));
+        assertEquals(ChargeStatus.REQUIRES_ACTION, ChargeStatus.fromStripe("requires_action"));
+        assertEquals(ChargeStatus.PROCESSING, ChargeStatus.fromStripe("processing"));
+        assertEquals(ChargeStatus.REQUIRES_CAPTURE, ChargeStatus.fromStripe("requires_capture"));
+        assertEquals(ChargeStatus.SUCCEEDED, ChargeStatus.fromStripe("succeeded"));
+        assertEquals(ChargeStatus.CANCELED, ChargeStatus.fromStripe("canceled"));
+        assertThrows(IllegalArgumentException.class, () -> ChargeStatus.fromStripe("SUCCEEDED"));
+    }
+
+    @Test
+    void transitionTableRejectsLeavingTerminalStates() {
+        assertTrue(ChargeStatus.REQUIRES_PAYMENT_METHOD.canTransitionTo(ChargeStatus.REQUIRES_CAPTURE));
+        assertTrue(ChargeStatus.REQUIRES_CAPTURE.canTransitionTo(ChargeStatus.SUCCEEDED));
+        assertTrue(ChargeStatus.FAILED.canTransitionTo(ChargeStatus.SUCCEEDED));
+        assertTrue(ChargeStatus.SUCCEEDED.canTransitionTo(ChargeStatus.REFUNDED));
+        assertTrue(ChargeStatus.SUCCEEDED.canTransitionTo(ChargeStatus.SUCCEEDED));
+
+        assertFalse(ChargeStatus.SUCCEEDED.canTransitionTo(ChargeStatus.CANCELED));
+        assertFalse(ChargeStatus.REQUIRES_CAPTURE.canTransitionTo(ChargeStatus.REQUIRES_PAYMENT_METHOD));
+        assertFalse(ChargeStatus.REQUIRES_CAPTURE.canTransitionTo(ChargeStatus.REFUNDED));
+        for (ChargeStatus next : ChargeStatus.values()) {
+            assertEquals(next == ChargeStatus.CANCELED, ChargeStatus.CANCELED.canTransitionTo(next));
+            assertEquals(next == ChargeStatus.REFUNDED, ChargeStatus.REFUNDED.canTransitionTo(next));
+        }
+
+        assertTrue(TransferStatus.FAILED.canTransitionTo(TransferStatus.SUCCEEDED));
+        assertTrue(TransferStatus.FAILED.canTransitionTo(TransferStatus.REVERSED));
+        assertFalse(TransferStatus.REVERSED.canTransitionTo(TransferStatus.SUCCEEDED));
+        assertFalse(TransferStatus.SUCCEEDED.canTransitionTo(TransferStatus.FAILED));
+    }
+}
@@ -0,0 +1,133 @@
+package com.mazadak;
+
+import com.mazadak.payment.datasource.ReplicaRoutingDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ReplicaRoutingTests {
+
+    private record Database(String name, DataSource dataSource, AtomicReference<Double> lagSeconds) {}
+
+    @Test
+    void readOnlyTransactionsUseHealthyReplicasAndFallBackToThePrimary() throws Exception {
+        Database primary = database("primary");
+        Database replica1 = database("replica-1");
+        Database replica2 = database("replica-2");
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        replicas.put(replica1.name(), replica1.dataSource());
+        replicas.put(replica2.name(), replica2.dataSource());
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary.dataSource(), replicas, Duration.ofSeconds(5), meterRegistry);
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(primary.dataSource());
+        dataSource.setReadOnlyDataSource(routing);
+
+        TransactionTemplate writes = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        TransactionTemplate reads = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        reads.setReadOnly(true);
+
+        /// Replicas stay out of rotation until their first lag check
+        assertEquals("primary", servedBy(reads, dataSource));
+
+        routing.checkLag();
+        assertEquals(Set.of("replica-1", "replica-2"), Set.of(servedBy(reads, dataSource), servedBy(reads, dataSource)));
+        assertEquals("primary", servedBy(writes, dataSource));
+
+        replica1.lagSeconds().set(12.0);
+        routing.checkLag();
+        assertEquals("replica-2", servedBy(reads, dataSource));
+        assertEquals("replica-2", servedBy(reads, dataSource));
+        assertEquals(0.0, meterRegistry.get("payment.datasource.replica.healthy").tag("replica", "replica-1").gauge().value());
+
+        replica2.lagSeconds().set(null);
+        routing.checkLag();
+        assertEquals("primary", servedBy(reads, dataSource));
+
+        replica1.lagSeconds().set(0.5);
+        routing.checkLag();
+        assertEquals("replica-1", servedBy(reads, dataSource));
+        assertEquals(2.0, meterRegistry.get("payment.datasource.reads").tag("target", "primary").counter().count());
+    }
+
+    @Test
+    void readOnlyWorkReachesAReplicaOnlyOutsideAWriteTransaction() throws Exception {
+        Database primary = database("primary");
+        Database replica = database("replica");
+        ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary.dataSource(), Map.of(replica.name(), replica.dataSource()),
+                Duration.ofSeconds(5), new SimpleMeterRegistry());
+        routing.checkLag();
+        LazyConnectionDataSourceProxy dataSource = new LazyConnectionDataSourceProxy(primary.dataSource());
+        dataSource.setReadOnlyDataSource(routing);
+
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+        TransactionTemplate writes = new TransactionTemplate(transactionManager);
+        TransactionTemplate reads = new TransactionTemplate(transactionManager);
+        reads.setReadOnly(true);
+
+        assertEquals(List.of("primary", "primary"), writes.execute(status -> List.of(servedBy(reads, dataSource), servedBy(writes, dataSource))));
+        assertEquals(List.of("replica", "primary"), List.of(servedBy(reads, dataSource), servedBy(writes, dataSource)));
+    }
+
+    /// Runs a statement in a transaction and reports which database's connection executed it
+    private static String servedBy(TransactionTemplate template, DataSource dataSource) {
+        return template.execute(status -> {
+            Connection connection = DataSourceUtils.getConnection(dataSource);
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT current_database()")) {
+                resultSet.next();
+                return resultSet.getString(1);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /// A null lag makes the lag check fail as if the database were unreachable
+    private static Database database(String name) throws SQLException {
+        AtomicReference<Double> lagSeconds = new AtomicReference<>(0.0);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenAnswer(invocation -> {
+            Connection connection = mock(Connection.class);
+            when(connection.getAutoCommit()).thenReturn(true);
+            when(connection.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_READ_COMMITTED);
+            when(connection.createStatement()).thenAnswer(statementInvocation -> {
+                Statement statement = mock(Statement.class);
+                when(statement.executeQuery(anyString())).thenAnswer(query -> {
+                    boolean lagCheck = query.<String>getArgument(0).contains("pg_is_in_recovery");
+                    if (lagCheck && lagSeconds.get() == null)
+                        throw new SQLException("connection refused");
+
+                    ResultSet resultSet = mock(ResultSet.class);
+                    when(resultSet.next()).thenReturn(true);
+                    when(resultSet.getString(1)).thenReturn(name);
+                    when(resultSet.getDouble(1)).thenReturn(lagCheck ? lagSeconds.get() : 0.0);
+                    return resultSet;
+                });
+                return statement;
+            });
+            return connection;
+        });
+        return new Database(name, dataSource, lagSeconds);
+    }
+}
@@ -0,0 +1,89 @@
+package com.mazadak;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mazadak.payment.dto.event.SellerAccountChangedEvent;
+import com.mazadak.payment.selleraccount.SellerAccountReplica;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.DefaultApplicationArguments;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SellerAccountReplicaTests {
+
+    private static final String TOPIC = "seller-accounts";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final TopicPartition partition = new TopicPartition(TOPIC, 0);
+    private final MockConsumer<String, byte[]> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+
+    @Test
+    void loadsTheTopicBeforeReadinessThenFollowsIt() throws Exception {
+        UUID relinked = UUID.randomUUID();
+        UUID deauthorized = UUID.randomUUID();
+        UUID onboardedLater = UUID.randomUUID();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SellerAccountReplica replica = new SellerAccountReplica(() -> consumer, TOPIC, Duration.ofSeconds(10), objectMapper, meterRegistry);
+
+        consumer.updatePartitions(TOPIC, List.of(new PartitionInfo(TOPIC, 0, null, null, null)));
+        consumer.updateBeginningOffsets(Map.of(partition, 0L));
+        consumer.updateEndOffsets(Map.of(partition, 4L));
+        consumer.schedulePollTask(() -> {
+            consumer.addRecord(record(0, relinked, "acct_old"));
+            consumer.addRecord(record(1, deauthorized, "acct_gone"));
+            consumer.addRecord(record(2, relinked, "acct_new"));
+            consumer.addRecord(new ConsumerRecord<>(TOPIC, 0, 3, deauthorized.toString(), null));
+        });
+        assertEquals(Optional.empty(), replica.find(relinked));
+
+        try {
+            replica.run(new DefaultApplicationArguments());
+
+            assertTrue(replica.isLoaded());
+            assertEquals(Optional.of("acct_new"), replica.find(relinked));
+            assertEquals(Optional.empty(), replica.find(deauthorized));
+            assertEquals(1, meterRegistry.get("payment.seller-accounts.replica.size").gauge().value());
+
+            consumer.schedulePollTask(() -> consumer.addRecord(record(4, onboardedLater, "acct_later")));
+            long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while (replica.findAll(List.of(onboardedLater)).isEmpty() && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertEquals(Map.of(onboardedLater, "acct_later", relinked, "acct_new"), replica.findAll(List.of(onboardedLater, relinked, deauthorized)));
+        } finally {
+            consumer.wakeup();
+        }
+        assertEquals(1, meterRegistry.get("payment.seller-accounts.replica.load").timer().count());
+        assertTrue(meterRegistry.get("payment.seller-accounts.replica.lookups").tag("result", "miss").counter().count() >= 3);
+    }
+
+    @Test
+    void aDisabledReplicaMissesEveryLookup() throws Exception {
+        SellerAccountReplica replica = new SellerAccountReplica(null, TOPIC, Duration.ofSeconds(10), objectMapper, new SimpleMeterRegistry());
+
+        replica.run(new DefaultApplicationArguments());
+
+        assertFalse(replica.isLoaded());
+        assertEquals(Map.of(), replica.findAll(List.of(UUID.randomUUID())));
+    }
+
+    private ConsumerRecord<String, byte[]> record(long offset, UUID sellerId, String stripeAccountId) {
+        try {
+            return new ConsumerRecord<>(TOPIC, 0, offset, sellerId.toString(), objectMapper.writeValueAsBytes(new SellerAccountChangedEvent(sellerId, stripeAccountId)));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.mazadak;
+
+import com.mazadak.payment.datasource.StatementCountingDataSource;
+import com.mazadak.payment.datasource.StatementMetricsFilter;
+import com.mazadak.payment.datasource.StatementScope;
+import com.mazadak.support.StatementBudget;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opentest4j.AssertionFailedError;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StatementCountingTests {
+
+    private final AtomicInteger unscoped = new AtomicInteger();
+    private DataSource dataSource;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenAnswer(invocation -> mock(PreparedStatement.class));
+        when(connection.createStatement()).thenAnswer(invocation -> mock(Statement.class));
+        DataSource target = mock(DataSource.class);
+        when(target.getConnection()).thenReturn(connection);
+        dataSource = new StatementCountingDataSource(target, unscoped::incrementAndGet);
+    }
+
+    @Test
+    void requestsAreTaggedByRoutePatternAndWebhooksByEventType() throws Exception {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StatementMetricsFilter filter = new StatementMetricsFilter(meterRegistry);
+
+        MockHttpServletRequest capture = new MockHttpServletRequest("POST", "/api/payments/42/capture");
+        filter.doFilter(capture, new MockHttpServletResponse(), (request, response) -> {
+            request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/api/payments/{orderId}/capture");
+            run("SELECT 1", "SELECT 2");
+            /// A batch is one round trip
+            try (Connection connection = dataSource.getConnection(); PreparedStatement statement = connection.prepareStatement("UPDATE t SET x = ?")) {
+                statement.addBatch();
+                statement.addBatch();
+                statement.executeBatch();
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        filter.doFilter(new MockHttpServletRequest("POST", "/api/payments/stripe-webhook"), new MockHttpServletResponse(), (request, response) -> {
+            StatementScope.rename("webhook payment_intent.succeeded");
+            run("SELECT 1");
+        });
+
+        DistributionSummary captures = meterRegistry.get("payment.db.statements").tag("scope", "POST /api/payments/{orderId}/capture").summary();
+        assertEquals(1, captures.count());
+        assertEquals(3.0, captures.totalAmount());
+        assertEquals(1.0, meterRegistry.get("payment.db.statements").tag("scope", "webhook payment_intent.succeeded").summary().totalAmount());
+
+        run("SELECT 3");
+        assertEquals(1, unscoped.get());
+    }
+
+    @Test
+    void budgetFailsAFlowThatRunsMoreStatementsThanExpected() {
+        StatementBudget.assertAtMost(2, "lookup", () -> run("SELECT 1", "SELECT 2"));
+
+        AssertionFailedError error = assertThrows(AssertionFailedError.class,
+                () -> StatementBudget.assertAtMost(1, "n+1", () -> run("SELECT * FROM charges", "SELECT * FROM items")));
+        assertTrue(error.getMessage().contains("n+1 ran 2 statements, budget is 1"));
+        assertTrue(error.getMessage().contains("SELECT * FROM items"));
+        assertEquals(0, unscoped.get());
+    }
+
+    private void run(String... sql) {
+        try (Connection connection = dataSource.getConnection()) {
+            for (String query : sql) {
+                try (PreparedStatement statement = connection.prepareStatement(query)) {
+                    statement.executeQuery();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
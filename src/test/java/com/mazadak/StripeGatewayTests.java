@@ -0,0 +1,102 @@
+package com.mazadak;
+
+import com.mazadak.payment.stripe.CircuitBreaker;
+import com.mazadak.payment.stripe.RequestDeadline;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
+import com.mazadak.payment.stripe.StripeUnavailableException;
+import com.mazadak.support.FakeStripeServer;
+import com.stripe.Stripe;
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.ApiException;
+import com.stripe.exception.CardException;
+import com.stripe.model.PaymentIntent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StripeGatewayTests {
+
+    private SimpleMeterRegistry meterRegistry;
+    private StripeGateway gateway;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        MockEnvironment environment = new MockEnvironment();
+        /// Spring Boot installs this on the application environment, it is what converts "PT0.2S" to a Duration
+        environment.setConversionService(new ApplicationConversionService());
+        gateway = new StripeGateway(environment
+                .withProperty("payment.stripe.circuit-breaker.window-size", "4")
+                .withProperty("payment.stripe.circuit-breaker.minimum-calls", "4")
+                .withProperty("payment.stripe.circuit-breaker.open-duration", "PT0.2S")
+                .withProperty("payment.stripe.circuit-breaker.half-open-calls", "1"), meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        RequestDeadline.clear();
+    }
+
+    @Test
+    void serverErrorsOpenTheGroupCircuitButDeclinesDoNot() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 4; i++)
+            assertThrows(CardException.class, () -> gateway.call(StripeOperation.PAYMENT_INTENT_CAPTURE, options -> {
+                calls.incrementAndGet();
+                throw new CardException("declined", "req", "card_declined", null, null, null, 402, null);
+            }));
+        assertEquals(CircuitBreaker.State.CLOSED, gateway.state(StripeOperation.Group.PAYMENTS));
+
+        for (int i = 0; i < 2; i++)
+            assertThrows(ApiException.class, () -> gateway.call(StripeOperation.PAYMENT_INTENT_RETRIEVE, options -> {
+                calls.incrementAndGet();
+                throw new ApiException("unavailable", "req", null, 503, null);
+            }));
+        assertEquals(CircuitBreaker.State.OPEN, gateway.state(StripeOperation.Group.PAYMENTS));
+        assertEquals(1, meterRegistry.get("payment.stripe.circuit.state").tags("group", "payments", "state", "open").gauge().value());
+
+        assertThrows(StripeUnavailableException.class, () -> gateway.call(StripeOperation.PAYMENT_INTENT_CREATE, options -> calls.incrementAndGet()));
+        assertEquals(6, calls.get());
+        assertEquals("ok", gateway.call(StripeOperation.TRANSFER_CREATE, options -> "ok"));
+
+        Thread.sleep(250);
+        assertEquals("ok", gateway.call(StripeOperation.PAYMENT_INTENT_RETRIEVE, options -> "ok"));
+        assertEquals(CircuitBreaker.State.CLOSED, gateway.state(StripeOperation.Group.PAYMENTS));
+    }
+
+    @Test
+    void timeoutIsCutToTheRemainingRequestDeadline() throws Exception {
+        RequestDeadline.start(Duration.ofMillis(50));
+        assertThrows(StripeUnavailableException.class, () -> gateway.call(StripeOperation.PAYMENT_INTENT_CREATE, options -> "unreachable"));
+
+        RequestDeadline.start(Duration.ofSeconds(3));
+        var options = gateway.call(StripeOperation.PAYMENT_INTENT_CREATE, builder -> builder.build());
+        assertTrue(options.getReadTimeout() <= 2750);
+        assertEquals(0, options.getMaxNetworkRetries());
+
+        try (FakeStripeServer stripe = new FakeStripeServer("whsec_test").latency(Duration.ofSeconds(5), Duration.ZERO)) {
+            Stripe.apiKey = "sk_test_fake";
+            Stripe.overrideApiBase(stripe.baseUrl());
+            RequestDeadline.start(Duration.ofMillis(800));
+            long start = System.nanoTime();
+
+            assertThrows(ApiConnectionException.class, () -> gateway.call(StripeOperation.PAYMENT_INTENT_RETRIEVE,
+                    builder -> PaymentIntent.retrieve("pi_slow", builder.build())));
+
+            assertTrue(Duration.ofNanos(System.nanoTime() - start).toMillis() < 2000);
+        } finally {
+            Stripe.overrideApiBase(Stripe.LIVE_API_BASE);
+        }
+    }
+}
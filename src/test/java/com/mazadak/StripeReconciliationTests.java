@@ -0,0 +1,216 @@
+package com.mazadak;
+
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.cache.ChargeSnapshotCache;
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.dto.projection.ChargeStatusView;
+import com.mazadak.payment.journal.PaymentStateJournal;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.model.JobCheckpoint;
+import com.mazadak.payment.model.SellerPayout;
+import com.mazadak.payment.model.StripeChargeTransaction;
+import com.mazadak.payment.model.StripeTransferTransaction;
+import com.mazadak.payment.repository.JobCheckpointRepository;
+import com.mazadak.payment.service.impl.StripeReconciliationService;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.support.FakeStripeServer;
+import com.mazadak.support.InMemoryPaymentRepositories;
+import com.stripe.Stripe;
+import com.stripe.exception.StripeException;
+import com.stripe.model.PaymentIntent;
+import com.stripe.model.Transfer;
+import com.stripe.param.PaymentIntentCreateParams;
+import com.stripe.param.TransferCreateParams;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class StripeReconciliationTests {
+
+    private FakeStripeServer stripe;
+    private InMemoryPaymentRepositories repositories;
+    private JobCheckpointRepository checkpoints;
+    private JobLeaseManager jobLeaseManager;
+    private ChargeSnapshotCache chargeSnapshotCache;
+    private SimpleMeterRegistry meterRegistry;
+    private StripeReconciliationService reconciliationService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        stripe = new FakeStripeServer("whsec_test");
+        stripe.install();
+        Stripe.apiKey = "sk_test_fake";
+        repositories = new InMemoryPaymentRepositories();
+        checkpoints = mock(JobCheckpointRepository.class);
+        jobLeaseManager = mock(JobLeaseManager.class);
+        chargeSnapshotCache = mock(ChargeSnapshotCache.class);
+        meterRegistry = new SimpleMeterRegistry();
+
+        reconciliationService = new StripeReconciliationService(repositories.charges, repositories.transfers, repositories.payouts, checkpoints,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), meterRegistry, mock(PaymentStateJournal.class), chargeSnapshotCache,
+                new Bulkheads(new MockEnvironment(), meterRegistry), new StripeGateway(new MockEnvironment(), meterRegistry), jobLeaseManager);
+        /// Smaller than the number of objects, so the scan is compared in several batches
+        ReflectionTestUtils.setField(reconciliationService, "batchSize", 2);
+        ReflectionTestUtils.setField(reconciliationService, "overlap", Duration.ofHours(24));
+        ReflectionTestUtils.setField(reconciliationService, "maxStuckPerRun", 500);
+        ReflectionTestUtils.setField(reconciliationService, "authorizationHoldDuration", Duration.ofDays(7));
+    }
+
+    @AfterEach
+    void tearDown() {
+        stripe.close();
+        Stripe.overrideApiBase(Stripe.LIVE_API_BASE);
+        Stripe.overrideConnectBase(Stripe.CONNECT_API_BASE);
+    }
+
+    @Test
+    void paymentIntentsThatDriftedAreFixedOrFlagged() throws StripeException {
+        PaymentIntent behind = createPaymentIntent();
+        StripeChargeTransaction behindCharge = localCharge(behind, ChargeStatus.REQUIRES_PAYMENT_METHOD);
+        stripe.authorize(behind.getId());
+
+        PaymentIntent contradicted = createPaymentIntent();
+        StripeChargeTransaction contradictedCharge = localCharge(contradicted, ChargeStatus.SUCCEEDED);
+        contradicted.cancel();
+
+        PaymentIntent missing = createPaymentIntent();
+        PaymentIntent inSync = createPaymentIntent();
+        StripeChargeTransaction inSyncCharge = localCharge(inSync, ChargeStatus.REQUIRES_PAYMENT_METHOD);
+
+        reconciliationService.reconcilePaymentIntents();
+
+        assertEquals(ChargeStatus.REQUIRES_CAPTURE, behindCharge.getStatus());
+        assertEquals(stripe.paymentIntent(behind.getId()).get("latest_charge"), behindCharge.getStripeChargeId());
+        assertNotNull(behindCharge.getAuthorizationExpiresAt());
+        verify(chargeSnapshotCache).invalidate(behindCharge.getOrderId(), behind.getId());
+        assertEquals(ChargeStatus.SUCCEEDED, contradictedCharge.getStatus());
+        assertEquals(ChargeStatus.REQUIRES_PAYMENT_METHOD, inSyncCharge.getStatus());
+        assertEquals(1, drift("charge_status_fixed"));
+        assertEquals(1, drift("charge_status_conflict"));
+        assertEquals(1, drift("charge_missing_locally"));
+        assertTrue(repositories.charge(UUID.fromString(missing.getMetadata().get("orderId"))).isEmpty());
+        assertEquals(0, meterRegistry.find("payment.reconciliation.drift").tag("type", "charge_succeeded_without_transfers").counters().size());
+        verify(checkpoints).save(any(JobCheckpoint.class));
+        verify(jobLeaseManager).checkFence();
+    }
+
+    @Test
+    void chargeMovedSinceItWasRead_isLeftAlone() throws StripeException {
+        PaymentIntent paymentIntent = createPaymentIntent();
+        StripeChargeTransaction charge = localCharge(paymentIntent, ChargeStatus.REQUIRES_PAYMENT_METHOD);
+        stripe.authorize(paymentIntent.getId());
+        List<ChargeStatusView> views = repositories.charges.findStatusViewsByPaymentIntentIds(List.of(paymentIntent.getId()));
+        /// A webhook cancels the charge between the read and the write
+        doAnswer(invocation -> {
+            charge.setStatus(ChargeStatus.CANCELED);
+            return views;
+        }).when(repositories.charges).findStatusViewsByPaymentIntentIds(any());
+
+        reconciliationService.reconcilePaymentIntents();
+
+        assertEquals(ChargeStatus.CANCELED, charge.getStatus());
+        assertNull(charge.getAuthorizationExpiresAt());
+        verify(chargeSnapshotCache, never()).invalidate(any(), any());
+        assertEquals(0, meterRegistry.find("payment.reconciliation.drift").tag("type", "charge_status_fixed").counters().size());
+    }
+
+    @Test
+    void paymentIntentStatusWithoutLocalEquivalent_isFlagged() throws StripeException {
+        PaymentIntent paymentIntent = createPaymentIntent();
+        StripeChargeTransaction charge = localCharge(paymentIntent, ChargeStatus.REQUIRES_PAYMENT_METHOD);
+        stripe.paymentIntent(paymentIntent.getId()).put("status", "requires_something_new");
+
+        reconciliationService.reconcilePaymentIntents();
+
+        assertEquals(ChargeStatus.REQUIRES_PAYMENT_METHOD, charge.getStatus());
+        assertEquals(1, drift("charge_status_unknown"));
+    }
+
+    @Test
+    void transfersThatDriftedAreFixedOrFlagged() throws StripeException {
+        createTransfer();
+        Transfer reversed = createTransfer();
+        StripeTransferTransaction reversedLocally = localTransfer(reversed);
+        stripe.reverseTransfer(reversed.getId());
+        Transfer payout = createTransfer();
+        repositories.payouts.save(SellerPayout.builder().sellerId(UUID.randomUUID()).currency("usd").amount(new BigDecimal("10.00"))
+                .shareCount(1).status(TransferStatus.SUCCEEDED).stripeTransferId(payout.getId()).build());
+        stripe.reverseTransfer(payout.getId());
+        Transfer inSync = createTransfer();
+        StripeTransferTransaction inSyncLocally = localTransfer(inSync);
+
+        reconciliationService.reconcileTransfers();
+
+        assertEquals(TransferStatus.REVERSED, reversedLocally.getStatus());
+        assertEquals(TransferStatus.SUCCEEDED, inSyncLocally.getStatus());
+        assertEquals(1, drift("transfer_status_fixed"));
+        assertEquals(1, drift("transfer_missing_locally"));
+        assertEquals(1, drift("payout_reversed"));
+        verify(checkpoints).save(any(JobCheckpoint.class));
+    }
+
+    private double drift(String type) {
+        return meterRegistry.get("payment.reconciliation.drift").tag("type", type).counter().count();
+    }
+
+    private PaymentIntent createPaymentIntent() throws StripeException {
+        return PaymentIntent.create(PaymentIntentCreateParams.builder()
+                .setAmount(1000L)
+                .setCurrency("usd")
+                .setCaptureMethod(PaymentIntentCreateParams.CaptureMethod.MANUAL)
+                .putMetadata("orderId", UUID.randomUUID().toString())
+                .build());
+    }
+
+    private StripeChargeTransaction localCharge(PaymentIntent paymentIntent, ChargeStatus status) {
+        return repositories.charges.save(StripeChargeTransaction.builder()
+                .orderId(UUID.fromString(paymentIntent.getMetadata().get("orderId")))
+                .paymentIntentId(paymentIntent.getId())
+                .amount(new BigDecimal("10.00"))
+                .currency("usd")
+                .status(status)
+                .build());
+    }
+
+    private Transfer createTransfer() throws StripeException {
+        return Transfer.create(TransferCreateParams.builder().setAmount(1000L).setCurrency("usd").setDestination("acct_reconciled").build());
+    }
+
+    private StripeTransferTransaction localTransfer(Transfer transfer) {
+        StripeChargeTransaction charge = repositories.charges.save(StripeChargeTransaction.builder()
+                .orderId(UUID.randomUUID())
+                .amount(new BigDecimal("10.00"))
+                .currency("usd")
+                .status(ChargeStatus.SUCCEEDED)
+                .build());
+        return repositories.transfers.save(StripeTransferTransaction.builder()
+                .chargeTransaction(charge)
+                .sellerId(UUID.randomUUID())
+                .stripeTransferId(transfer.getId())
+                .amount(new BigDecimal("10.00"))
+                .currency("usd")
+                .status(TransferStatus.SUCCEEDED)
+                .build());
+    }
+}
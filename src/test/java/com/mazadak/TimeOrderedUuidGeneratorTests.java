@@ -0,0 +1,48 @@
+package com.mazadak;
+
+import com.mazadak.payment.model.TimeOrderedUuidGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeOrderedUuidGeneratorTests {
+
+    @Test
+    void idsAreVersion7WithTheCurrentTimeAndIncreaseWithinAMillisecond() {
+        long before = System.currentTimeMillis();
+        List<UUID> ids = IntStream.range(0, 10_000).mapToObj(i -> TimeOrderedUuidGenerator.next()).toList();
+        long after = System.currentTimeMillis();
+
+        for (int i = 0; i < ids.size(); i++) {
+            UUID id = ids.get(i);
+            assertEquals(7, id.version());
+            assertEquals(2, id.variant());
+            if (i > 0)
+                assertTrue(id.compareTo(ids.get(i - 1)) > 0, "ids must increase: " + ids.get(i - 1) + " then " + id);
+        }
+        long firstMillis = ids.getFirst().getMostSignificantBits() >>> 16;
+        assertTrue(firstMillis >= before && firstMillis <= after);
+        /// More ids than the counter holds in one millisecond may run ahead of the clock, but not far
+        assertTrue((ids.getLast().getMostSignificantBits() >>> 16) <= after + ids.size() / 4096 + 1);
+    }
+
+    @Test
+    void concurrentCallersNeverGetTheSameId() throws InterruptedException {
+        ConcurrentLinkedQueue<UUID> ids = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++)
+            threads.add(Thread.ofPlatform().start(() -> IntStream.range(0, 5_000).forEach(i -> ids.add(TimeOrderedUuidGenerator.next()))));
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(40_000, new HashSet<>(ids).size());
+    }
+}
@@ -0,0 +1,176 @@
+package com.mazadak;
+
+import com.mazadak.payment.bulkhead.Bulkheads;
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.journal.PaymentStateJournal;
+import com.mazadak.payment.lease.JobLeaseManager;
+import com.mazadak.payment.model.StripeChargeTransaction;
+import com.mazadak.payment.model.StripeTransferTransaction;
+import com.mazadak.payment.service.impl.TransferRetryService;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.support.FakeStripeServer;
+import com.mazadak.support.InMemoryPaymentRepositories;
+import com.stripe.Stripe;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class TransferRetryTests {
+
+    private FakeStripeServer stripe;
+    private InMemoryPaymentRepositories repositories;
+    private SimpleMeterRegistry meterRegistry;
+    private JobLeaseManager jobLeaseManager;
+    private TransferRetryService retryService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        stripe = new FakeStripeServer("whsec_test");
+        stripe.install();
+        Stripe.apiKey = "sk_test_fake";
+        repositories = new InMemoryPaymentRepositories();
+        meterRegistry = new SimpleMeterRegistry();
+
+        MockEnvironment environment = new MockEnvironment().withProperty("payment.stripe.operations.transfer-create.max-retries", "0");
+        jobLeaseManager = mock(JobLeaseManager.class);
+        retryService = new TransferRetryService(repositories.transfers, repositories.sellers, new TransactionTemplate(mock(PlatformTransactionManager.class)),
+                meterRegistry, mock(PaymentStateJournal.class), new Bulkheads(new MockEnvironment(), meterRegistry), new StripeGateway(environment, meterRegistry),
+                jobLeaseManager);
+        ReflectionTestUtils.setField(retryService, "batchSize", 20);
+        ReflectionTestUtils.setField(retryService, "baseDelay", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(retryService, "maxDelay", Duration.ofHours(2));
+        ReflectionTestUtils.setField(retryService, "maxAttempts", 3);
+        ReflectionTestUtils.setField(retryService, "claimTimeout", Duration.ofMinutes(5));
+    }
+
+    @AfterEach
+    void tearDown() {
+        stripe.close();
+        Stripe.overrideApiBase(Stripe.LIVE_API_BASE);
+        Stripe.overrideConnectBase(Stripe.CONNECT_API_BASE);
+    }
+
+    @Test
+    void failingTransfersBackOffExponentiallyUntilTheAttemptCap() {
+        stripe.faults(0, 1.0);
+        StripeTransferTransaction transfer = failedTransfer(UUID.randomUUID(), "acct_capped");
+
+        retryService.retryFailedTransfers();
+        assertEquals(1, transfer.getAttempts());
+        assertEquals(TransferStatus.FAILED, transfer.getStatus());
+        assertNotNull(transfer.getStripeErrorMessage());
+        assertNextAttemptIn(transfer, Duration.ofMinutes(1));
+
+        /// Not due yet
+        retryService.retryFailedTransfers();
+        assertEquals(1, transfer.getAttempts());
+
+        transfer.setNextAttemptAt(LocalDateTime.now());
+        retryService.retryFailedTransfers();
+        assertEquals(2, transfer.getAttempts());
+        assertNextAttemptIn(transfer, Duration.ofMinutes(2));
+
+        transfer.setNextAttemptAt(LocalDateTime.now());
+        retryService.retryFailedTransfers();
+        assertEquals(3, transfer.getAttempts());
+        assertNull(transfer.getNextAttemptAt());
+
+        retryService.retryFailedTransfers();
+        assertEquals(3, transfer.getAttempts());
+        assertEquals(TransferStatus.FAILED, transfer.getStatus());
+        assertEquals(3, stripe.requestCount("POST", "/v1/transfers"));
+        assertEquals(2, meterRegistry.get("payment.transfer.retry").tag("outcome", "failed").counter().count());
+        assertEquals(1, meterRegistry.get("payment.transfer.retry").tag("outcome", "exhausted").counter().count());
+    }
+
+    @Test
+    void aTransferThatCannotBeSentDoesNotHoldBackTheRestOfTheBatch() {
+        UUID onboarded = UUID.randomUUID();
+        repositories.addSeller(onboarded, "acct_onboarded");
+        StripeTransferTransaction withoutAccount = failedTransfer(UUID.randomUUID(), null);
+        StripeTransferTransaction resolvable = failedTransfer(onboarded, null);
+
+        retryService.retryFailedTransfers();
+
+        assertEquals(TransferStatus.FAILED, withoutAccount.getStatus());
+        assertEquals(1, withoutAccount.getAttempts());
+        assertTrue(withoutAccount.getStripeErrorMessage().contains("SellerStripeAccount not found"));
+        assertNextAttemptIn(withoutAccount, Duration.ofMinutes(1));
+
+        assertEquals(TransferStatus.SUCCEEDED, resolvable.getStatus());
+        assertEquals("acct_onboarded", resolvable.getSellerStripeAccountId());
+        assertNull(resolvable.getNextAttemptAt());
+        Map<String, Object> sent = stripe.transfers().getFirst();
+        assertEquals(resolvable.getStripeTransferId(), sent.get("id"));
+        assertEquals(1250L, sent.get("amount"));
+        assertEquals(resolvable.getChargeTransaction().getStripeChargeId(), sent.get("source_transaction"));
+        assertEquals(1, stripe.transfers().size());
+        assertEquals(1, meterRegistry.get("payment.transfer.retry").tag("outcome", "succeeded").counter().count());
+        verify(jobLeaseManager).checkFence();
+    }
+
+    @Test
+    void aTransferRefundedWhileItWasRetriedIsFlaggedNotOverwritten() {
+        StripeTransferTransaction transfer = failedTransfer(UUID.randomUUID(), "acct_refunded");
+        /// A refund reverses the transfer right after the retry claimed it
+        doAnswer(invocation -> {
+            transfer.setStatus(TransferStatus.REVERSED);
+            return 1;
+        }).when(repositories.transfers).postponeRetries(any(), any());
+
+        retryService.retryFailedTransfers();
+
+        assertEquals(TransferStatus.REVERSED, transfer.getStatus());
+        assertNull(transfer.getStripeTransferId());
+        assertEquals(1, stripe.transfers().size());
+        assertEquals(1, meterRegistry.get("payment.transfer.retry").tag("outcome", "superseded").counter().count());
+    }
+
+    /// Backoff has +-20% jitter
+    private static void assertNextAttemptIn(StripeTransferTransaction transfer, Duration delay) {
+        Duration until = Duration.between(LocalDateTime.now(), transfer.getNextAttemptAt());
+        assertTrue(until.compareTo(delay.multipliedBy(7).dividedBy(10)) > 0 && until.compareTo(delay.multipliedBy(12).dividedBy(10)) <= 0,
+                "next attempt in " + until);
+    }
+
+    private StripeTransferTransaction failedTransfer(UUID sellerId, String stripeAccountId) {
+        StripeChargeTransaction charge = repositories.charges.save(StripeChargeTransaction.builder()
+                .orderId(UUID.randomUUID())
+                .stripeChargeId("ch_" + UUID.randomUUID())
+                .amount(new BigDecimal("12.50"))
+                .currency("usd")
+                .status(ChargeStatus.SUCCEEDED)
+                .build());
+        return repositories.transfers.save(StripeTransferTransaction.builder()
+                .chargeTransaction(charge)
+                .sellerId(sellerId)
+                .sellerStripeAccountId(stripeAccountId)
+                .amount(new BigDecimal("12.50"))
+                .currency("usd")
+                .status(TransferStatus.FAILED)
+                .idempotencyKey("transfer-" + charge.getId() + "-" + sellerId)
+                .nextAttemptAt(LocalDateTime.now().minusSeconds(1))
+                .build());
+    }
+}
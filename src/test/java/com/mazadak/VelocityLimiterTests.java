@@ -0,0 +1,140 @@
+package com.mazadak;
+
+import com.mazadak.payment.dto.request.CartItem;
+import com.mazadak.payment.dto.request.CreatePaymentIntentRequest;
+import com.mazadak.payment.velocity.VelocityLimitExceededException;
+import com.mazadak.payment.velocity.VelocityLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@Slf4j
+class VelocityLimiterTests {
+
+    private final UUID seller = UUID.randomUUID();
+
+    @Test
+    void attemptsOverTheLimitAreRejectedUntilTheWindowSlidesPastThem() {
+        AtomicLong nanos = new AtomicLong();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MockEnvironment environment = new MockEnvironment().withProperty("payment.velocity.order.limit", "3");
+        VelocityLimiter limiter = new VelocityLimiter(environment, meterRegistry, nanos::get);
+        CreatePaymentIntentRequest request = request(UUID.randomUUID(), null);
+
+        for (int i = 0; i < 3; i++) {
+            limiter.check(request);
+            nanos.addAndGet(Duration.ofMinutes(1).toNanos());
+        }
+        VelocityLimitExceededException rejected = assertThrows(VelocityLimitExceededException.class, () -> limiter.check(request));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, rejected.getStatusCode());
+        assertEquals("60", rejected.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        assertDoesNotThrow(() -> limiter.check(request(UUID.randomUUID(), null)));
+
+        /// The first attempt leaves the window ten minutes after it was made, the rejected one was not counted
+        nanos.set(Duration.ofMinutes(10).toNanos());
+        limiter.check(request);
+        assertThrows(VelocityLimitExceededException.class, () -> limiter.check(request));
+
+        assertEquals(5, meterRegistry.get("payment.velocity.checks").tags("dimension", "order", "outcome", "allowed").counter().count());
+        assertEquals(2, meterRegistry.get("payment.velocity.checks").tags("dimension", "order", "outcome", "rejected").counter().count());
+        assertEquals(3, meterRegistry.get("payment.velocity.max").tag("dimension", "order").gauge().value());
+        assertEquals(2, meterRegistry.get("payment.velocity.keys").tag("dimension", "order").gauge().value());
+
+        nanos.set(Duration.ofMinutes(30).toNanos());
+        limiter.evictIdle();
+        assertEquals(0, meterRegistry.get("payment.velocity.keys").tag("dimension", "order").gauge().value());
+    }
+
+    @Test
+    void aBuyerOverTheLimitIsRejectedAcrossOrdersAndNothingElseIsCounted() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MockEnvironment environment = new MockEnvironment().withProperty("payment.velocity.buyer.limit", "2");
+        VelocityLimiter limiter = new VelocityLimiter(environment, meterRegistry, () -> 0);
+        UUID buyer = UUID.randomUUID();
+
+        limiter.check(request(UUID.randomUUID(), buyer));
+        limiter.check(request(UUID.randomUUID(), buyer));
+        VelocityLimitExceededException rejected = assertThrows(VelocityLimitExceededException.class,
+                () -> limiter.check(request(UUID.randomUUID(), buyer)));
+
+        assertEquals("Too many payment attempts for this buyer", rejected.getReason());
+        assertEquals(2, meterRegistry.get("payment.velocity.keys").tag("dimension", "order").gauge().value());
+        assertEquals(2, meterRegistry.get("payment.velocity.max").tag("dimension", "seller-set").gauge().value());
+    }
+
+    /// Run with mvn test -Pload-test -Dtest=VelocityLimiterTests
+    @Test
+    @Tag("benchmark")
+    void contendedChecksAreCountedExactly() throws InterruptedException {
+        int threads = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+        int checksPerThread = 50_000;
+        for (boolean hotKey : new boolean[]{true, false}) {
+            MockEnvironment environment = new MockEnvironment()
+                    .withProperty("payment.velocity.order.limit", Integer.toString(Integer.MAX_VALUE))
+                    .withProperty("payment.velocity.buyer.limit", Integer.toString(Integer.MAX_VALUE))
+                    .withProperty("payment.velocity.seller-set.limit", Integer.toString(Integer.MAX_VALUE))
+                    .withProperty("payment.velocity.max-keys", Integer.toString(threads * checksPerThread));
+            SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+            VelocityLimiter limiter = new VelocityLimiter(environment, meterRegistry);
+            CreatePaymentIntentRequest hot = request(UUID.randomUUID(), UUID.randomUUID());
+
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger failures = new AtomicInteger();
+            List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                List<CreatePaymentIntentRequest> requests = new ArrayList<>(hotKey ? 1 : checksPerThread);
+                if (hotKey)
+                    requests.add(hot);
+                else
+                    for (int i = 0; i < checksPerThread; i++)
+                        requests.add(request(UUID.randomUUID(), UUID.randomUUID()));
+                workers.add(Thread.ofPlatform().start(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < checksPerThread; i++)
+                            limiter.check(requests.get(hotKey ? 0 : i));
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }));
+            }
+
+            long began = System.nanoTime();
+            start.countDown();
+            for (Thread worker : workers)
+                worker.join();
+            long elapsed = System.nanoTime() - began;
+
+            long checks = (long) threads * checksPerThread;
+            assertEquals(0, failures.get());
+            assertEquals(checks, meterRegistry.get("payment.velocity.checks").tags("dimension", "order", "outcome", "allowed").counter().count());
+            if (hotKey)
+                assertEquals(checks, meterRegistry.get("payment.velocity.max").tag("dimension", "buyer").gauge().value());
+            else
+                assertEquals(checks, meterRegistry.get("payment.velocity.keys").tag("dimension", "buyer").gauge().value());
+            log.info("Velocity checks, {}, {} threads: {} checks in {} s, {} checks/s", hotKey ? "one key" : "distinct keys", threads, checks,
+                    String.format("%.2f", elapsed / 1e9), String.format("%.0f", checks / (elapsed / 1e9)));
+        }
+    }
+
+    private CreatePaymentIntentRequest request(UUID orderId, UUID buyerId) {
+        return new CreatePaymentIntentRequest(orderId, "usd", "card", List.of(new CartItem(seller, new BigDecimal("10.00"))), buyerId);
+    }
+}
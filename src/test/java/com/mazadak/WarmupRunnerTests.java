@@ -0,0 +1,51 @@
+package com.mazadak;
+
+import com.mazadak.payment.service.impl.StripePaymentService;
+import com.mazadak.payment.stripe.StripeGateway;
+import com.mazadak.payment.stripe.StripeOperation;
+import com.mazadak.payment.warmup.WarmupRunner;
+import com.stripe.exception.ApiConnectionException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.DefaultApplicationArguments;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WarmupRunnerTests {
+
+    @Test
+    void warmsEveryPathAndCarriesOnPastAFailingStep() throws Exception {
+        Connection connection = mock(Connection.class);
+        when(connection.createStatement()).thenReturn(mock(Statement.class));
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+
+        StripeGateway stripeGateway = mock(StripeGateway.class);
+        when(stripeGateway.call(eq(StripeOperation.BALANCE_RETRIEVE), any())).thenThrow(new ApiConnectionException("connection refused"));
+        StripePaymentService stripePaymentService = mock(StripePaymentService.class);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        new WarmupRunner(stripePaymentService, stripeGateway, dataSource, meterRegistry, 25, 4, Duration.ofSeconds(30))
+                .run(new DefaultApplicationArguments());
+
+        verify(dataSource, times(4)).getConnection();
+        verify(connection, times(4)).close();
+        verify(stripePaymentService, times(25)).warmUpCheckout(any(), any());
+        verify(stripePaymentService, times(25)).warmUpWebhook(anyString());
+        assertEquals(1, meterRegistry.get("payment.warmup.step").tags("step", "stripe", "outcome", "failure").timer().count());
+        assertEquals(1, meterRegistry.get("payment.warmup.step").tags("step", "webhook", "outcome", "success").timer().count());
+        assertEquals(1, meterRegistry.get("payment.warmup").timer().count());
+    }
+}
@@ -0,0 +1,433 @@
+package com.mazadak.support;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stripe.Stripe;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// Local HTTP stand-in for the Stripe endpoints the service uses: payment intents, charges, transfers, refunds and
+/// the Connect OAuth token exchange, plus signed webhook delivery. Latency, 429 and 5xx responses can be injected.
+/// Point the client at it with {@link #install()}, or run {@link #main} and start the service with
+/// stripe.api.base and stripe.connect.base set to its URL.
+@Slf4j
+public class FakeStripeServer implements AutoCloseable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final String webhookSecret;
+    private final AtomicLong sequence = new AtomicLong();
+    private final HttpClient webhookClient = HttpClient.newHttpClient();
+
+    private final Map<String, Map<String, Object>> paymentIntents = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> charges = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> transfers = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Object>> refunds = new ConcurrentHashMap<>();
+    private final Map<String, String> idempotentResponses = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+
+    private volatile Duration latency = Duration.ZERO;
+    private volatile Duration latencyJitter = Duration.ZERO;
+    private volatile double rateLimitRate;
+    private volatile double serverErrorRate;
+
+    public record SignedEvent(String id, String payload, String signature) {}
+
+    public FakeStripeServer(String webhookSecret) throws IOException {
+        this.webhookSecret = webhookSecret;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 12111;
+        FakeStripeServer fake = new FakeStripeServer(args.length > 1 ? args[1] : "whsec_test");
+        fake.server.stop(0);
+        HttpServer fixed = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        fixed.createContext("/", fake::handle);
+        fixed.setExecutor(fake.executor);
+        fixed.start();
+        log.info("Fake Stripe listening on http://127.0.0.1:{}", port);
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /// Routes the global Stripe client to this server
+    public void install() {
+        Stripe.overrideApiBase(baseUrl());
+        Stripe.overrideConnectBase(baseUrl());
+    }
+
+    public FakeStripeServer latency(Duration latency, Duration jitter) {
+        this.latency = latency;
+        this.latencyJitter = jitter;
+        return this;
+    }
+
+    public FakeStripeServer faults(double rateLimitRate, double serverErrorRate) {
+        this.rateLimitRate = rateLimitRate;
+        this.serverErrorRate = serverErrorRate;
+        return this;
+    }
+
+    public long requestCount() {
+        return requestCounts.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    public long requestCount(String method, String pathPrefix) {
+        return requestCounts.entrySet().stream()
+                .filter(entry -> entry.getKey().startsWith(method + " " + pathPrefix))
+                .mapToLong(entry -> entry.getValue().get())
+                .sum();
+    }
+
+    public Map<String, Object> paymentIntent(String id) {
+        return paymentIntents.get(id);
+    }
+
+    public List<Map<String, Object>> transfers() {
+        return new ArrayList<>(transfers.values());
+    }
+
+    /// Simulates a transfer reversed from the Stripe dashboard
+    public void reverseTransfer(String transferId) {
+        transfers.get(transferId).put("reversed", true);
+    }
+
+    /// Simulates the customer confirming a manual-capture PaymentIntent
+    public void authorize(String paymentIntentId) {
+        Map<String, Object> paymentIntent = paymentIntents.get(paymentIntentId);
+        String chargeId = newId("ch");
+        Map<String, Object> charge = new LinkedHashMap<>();
+        charge.put("id", chargeId);
+        charge.put("object", "charge");
+        charge.put("amount", paymentIntent.get("amount"));
+        charge.put("currency", paymentIntent.get("currency"));
+        charge.put("payment_intent", paymentIntentId);
+        charge.put("payment_method_details", Map.of("type", "card",
+                "card", Map.of("capture_before", Instant.now().plus(Duration.ofDays(7)).getEpochSecond())));
+        charges.put(chargeId, charge);
+
+        paymentIntent.put("status", "requires_capture");
+        paymentIntent.put("amount_capturable", paymentIntent.get("amount"));
+        paymentIntent.put("latest_charge", chargeId);
+    }
+
+    public SignedEvent signedEvent(String type, String paymentIntentId) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        String id = newId("evt");
+        event.put("id", id);
+        event.put("object", "event");
+        event.put("api_version", Stripe.API_VERSION);
+        event.put("created", Instant.now().getEpochSecond());
+        event.put("type", type);
+        event.put("livemode", false);
+        event.put("data", Map.of("object", paymentIntents.get(paymentIntentId)));
+
+        String payload = json(event);
+        long timestamp = Instant.now().getEpochSecond();
+        return new SignedEvent(id, payload, "t=" + timestamp + ",v1=" + hmacSha256(timestamp + "." + payload));
+    }
+
+    /// Posts a signed event to a running service, as Stripe would
+    public int deliverWebhook(URI endpoint, String type, String paymentIntentId) throws IOException, InterruptedException {
+        SignedEvent event = signedEvent(type, paymentIntentId);
+        HttpRequest request = HttpRequest.newBuilder(endpoint)
+                .header("Content-Type", "application/json")
+                .header("Stripe-Signature", event.signature())
+                .POST(HttpRequest.BodyPublishers.ofString(event.payload()))
+                .build();
+        return webhookClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            requestCounts.computeIfAbsent(method + " " + path, key -> new AtomicLong()).incrementAndGet();
+            simulateLatency();
+
+            double roll = ThreadLocalRandom.current().nextDouble();
+            if (roll < rateLimitRate) {
+                respond(exchange, 429, error("rate_limit_error", "Too many requests"));
+                return;
+            }
+            if (roll < rateLimitRate + serverErrorRate) {
+                respond(exchange, 500, error("api_error", "Injected server error"));
+                return;
+            }
+
+            Map<String, String> params = new HashMap<>(parseForm(exchange.getRequestURI().getRawQuery()));
+            params.putAll(parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)));
+
+            String idempotencyKey = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+            if (idempotencyKey != null && method.equals("POST")) {
+                String cached = idempotentResponses.get(method + path + idempotencyKey);
+                if (cached != null) {
+                    respond(exchange, 200, cached);
+                    return;
+                }
+            }
+
+            Response response = route(method, path, params);
+            if (idempotencyKey != null && method.equals("POST") && response.status() == 200)
+                idempotentResponses.putIfAbsent(method + path + idempotencyKey, response.body());
+            respond(exchange, response.status(), response.body());
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error("api_error", e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private record Response(int status, String body) {}
+
+    private Response route(String method, String path, Map<String, String> params) {
+        String[] segments = path.substring(1).split("/");
+
+        if (path.equals("/oauth/token") && method.equals("POST"))
+            return ok(Map.of("stripe_user_id", newId("acct"), "access_token", newId("sk_test"),
+                    "token_type", "bearer", "scope", "read_write", "livemode", false));
+
+        if (path.equals("/oauth/deauthorize") && method.equals("POST"))
+            return ok(Map.of("stripe_user_id", params.get("stripe_user_id")));
+
+        if (segments.length < 2 || !segments[0].equals("v1"))
+            return notFound(path);
+
+        String resource = segments[1];
+        String id = segments.length > 2 ? segments[2] : null;
+        String action = segments.length > 3 ? segments[3] : null;
+
+        return switch (resource) {
+            case "payment_intents" -> {
+                if (id == null)
+                    yield method.equals("POST") ? ok(createPaymentIntent(params)) : ok(list(paymentIntents, "/v1/payment_intents", params));
+                Map<String, Object> paymentIntent = paymentIntents.get(id);
+                if (paymentIntent == null)
+                    yield notFound(id);
+                if ("capture".equals(action))
+                    yield capture(paymentIntent);
+                if ("cancel".equals(action))
+                    yield cancel(paymentIntent);
+                yield ok(paymentIntent);
+            }
+            case "charges" -> charges.containsKey(id) ? ok(charges.get(id)) : notFound(id);
+            case "transfers" -> {
+                if (id != null)
+                    yield transfers.containsKey(id) ? ok(transfers.get(id)) : notFound(id);
+                yield method.equals("POST") ? ok(createTransfer(params)) : ok(list(transfers, "/v1/transfers", params));
+            }
+            case "refunds" -> ok(createRefund(params));
+            default -> notFound(path);
+        };
+    }
+
+    private Map<String, Object> createPaymentIntent(Map<String, String> params) {
+        Map<String, Object> paymentIntent = new ConcurrentHashMap<>();
+        String id = newId("pi");
+        paymentIntent.put("id", id);
+        paymentIntent.put("object", "payment_intent");
+        paymentIntent.put("amount", Long.parseLong(params.get("amount")));
+        paymentIntent.put("currency", params.get("currency"));
+        paymentIntent.put("capture_method", params.getOrDefault("capture_method", "automatic"));
+        paymentIntent.put("client_secret", id + "_secret_" + sequence.incrementAndGet());
+        paymentIntent.put("status", "requires_payment_method");
+        paymentIntent.put("created", Instant.now().getEpochSecond());
+        paymentIntent.put("metadata", prefixed(params, "metadata"));
+        if (params.containsKey("transfer_group"))
+            paymentIntent.put("transfer_group", params.get("transfer_group"));
+        paymentIntents.put(id, paymentIntent);
+        return paymentIntent;
+    }
+
+    private Response capture(Map<String, Object> paymentIntent) {
+        if (!"requires_capture".equals(paymentIntent.get("status")))
+            return invalidRequest("PaymentIntent cannot be captured in status " + paymentIntent.get("status"));
+        paymentIntent.put("status", "succeeded");
+        paymentIntent.put("amount_received", paymentIntent.get("amount"));
+        return ok(paymentIntent);
+    }
+
+    private Response cancel(Map<String, Object> paymentIntent) {
+        if ("succeeded".equals(paymentIntent.get("status")) || "canceled".equals(paymentIntent.get("status")))
+            return invalidRequest("PaymentIntent cannot be canceled in status " + paymentIntent.get("status"));
+        paymentIntent.put("status", "canceled");
+        return ok(paymentIntent);
+    }
+
+    private Map<String, Object> createTransfer(Map<String, String> params) {
+        Map<String, Object> transfer = new LinkedHashMap<>();
+        String id = newId("tr");
+        transfer.put("id", id);
+        transfer.put("object", "transfer");
+        transfer.put("amount", Long.parseLong(params.get("amount")));
+        transfer.put("currency", params.get("currency"));
+        transfer.put("destination", params.get("destination"));
+        transfer.put("source_transaction", params.get("source_transaction"));
+        transfer.put("transfer_group", params.get("transfer_group"));
+        transfer.put("reversed", false);
+        transfer.put("created", Instant.now().getEpochSecond());
+        transfer.put("metadata", prefixed(params, "metadata"));
+        transfers.put(id, transfer);
+        return transfer;
+    }
+
+    private Map<String, Object> createRefund(Map<String, String> params) {
+        Map<String, Object> refund = new LinkedHashMap<>();
+        String id = newId("re");
+        refund.put("id", id);
+        refund.put("object", "refund");
+        refund.put("payment_intent", params.get("payment_intent"));
+        refund.put("status", "succeeded");
+        refunds.put(id, refund);
+        return refund;
+    }
+
+    /// Newest first like Stripe, with created[gte]/created[lte] filters and starting_after pagination
+    private Map<String, Object> list(Map<String, Map<String, Object>> objects, String url, Map<String, String> params) {
+        long gte = Long.parseLong(params.getOrDefault("created[gte]", "0"));
+        long lte = Long.parseLong(params.getOrDefault("created[lte]", String.valueOf(Long.MAX_VALUE)));
+        int limit = Integer.parseInt(params.getOrDefault("limit", "10"));
+        String startingAfter = params.get("starting_after");
+
+        List<Map<String, Object>> sorted = objects.values().stream()
+                .filter(object -> ((Number) object.get("created")).longValue() >= gte && ((Number) object.get("created")).longValue() <= lte)
+                .sorted(Comparator.comparing((Map<String, Object> object) -> ((Number) object.get("created")).longValue())
+                        .thenComparing(object -> (String) object.get("id")).reversed())
+                .toList();
+
+        int from = 0;
+        if (startingAfter != null) {
+            for (int i = 0; i < sorted.size(); i++) {
+                if (sorted.get(i).get("id").equals(startingAfter)) {
+                    from = i + 1;
+                    break;
+                }
+            }
+        }
+        int to = Math.min(sorted.size(), from + limit);
+        return Map.of("object", "list", "url", url, "has_more", to < sorted.size(), "data", sorted.subList(from, to));
+    }
+
+    private void simulateLatency() {
+        long millis = latency.toMillis();
+        if (!latencyJitter.isZero())
+            millis += ThreadLocalRandom.current().nextLong(latencyJitter.toMillis() + 1);
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Map<String, String> parseForm(String body) {
+        Map<String, String> params = new HashMap<>();
+        if (body == null || body.isBlank())
+            return params;
+        for (String pair : body.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    private static Map<String, String> prefixed(Map<String, String> params, String prefix) {
+        Map<String, String> nested = new LinkedHashMap<>();
+        params.forEach((key, value) -> {
+            if (key.startsWith(prefix + "[") && key.endsWith("]"))
+                nested.put(key.substring(prefix.length() + 1, key.length() - 1), value);
+        });
+        return nested;
+    }
+
+    private String newId(String prefix) {
+        return prefix + "_fake" + Long.toString(sequence.incrementAndGet(), 36) + Long.toString(System.nanoTime() & 0xffffff, 36);
+    }
+
+    private String hmacSha256(String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(webhookSecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return HexFormat.of().formatHex(mac.doFinal(data.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Response ok(Object body) {
+        return new Response(200, json(body));
+    }
+
+    private static Response notFound(String what) {
+        return new Response(404, error("invalid_request_error", "No such resource: " + what));
+    }
+
+    private static Response invalidRequest(String message) {
+        return new Response(400, error("invalid_request_error", message));
+    }
+
+    private static String error(String type, String message) {
+        return json(Map.of("error", Map.of("type", type, "message", message)));
+    }
+
+    private static String json(Object value) {
+        try {
+            return MAPPER.writeValueAsString(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.getResponseHeaders().add("Request-Id", "req_fake" + System.nanoTime());
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.mazadak.support;
+
+import com.mazadak.payment.constant.ChargeStatus;
+import com.mazadak.payment.constant.TransferStatus;
+import com.mazadak.payment.dto.projection.AuthorizationHoldView;
+import com.mazadak.payment.dto.projection.ChargeStatusView;
+import com.mazadak.payment.dto.projection.PaymentStatusView;
+import com.mazadak.payment.dto.projection.PayoutGroup;
+import com.mazadak.payment.dto.projection.PayoutShare;
+import com.mazadak.payment.dto.projection.SellerTotal;
+import com.mazadak.payment.dto.projection.TransferRetryCandidate;
+import com.mazadak.payment.dto.projection.TransferStatusView;
+import com.mazadak.payment.dto.projection.UnconfirmedIntentView;
+import com.mazadak.payment.model.OrderItem;
+import com.mazadak.payment.model.SellerPayout;
+import com.mazadak.payment.model.SellerStripeAccount;
+import com.mazadak.payment.model.StripeChargeTransaction;
+import com.mazadak.payment.model.StripeTransferTransaction;
+import com.mazadak.payment.repository.SellerPayoutRepository;
+import com.mazadak.payment.repository.SellerStripeAccountRepository;
+import com.mazadak.payment.repository.StripeChargeTransactionRepository;
+import com.mazadak.payment.repository.StripeTransferTransactionRepository;
+import org.springframework.data.domain.Pageable;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+
+/// Map-backed stand-ins for the JPA repositories, so service flows can run without a database
+public class InMemoryPaymentRepositories {
+
+    public final StripeChargeTransactionRepository charges = mock(StripeChargeTransactionRepository.class);
+    public final StripeTransferTransactionRepository transfers = mock(StripeTransferTransactionRepository.class);
+    public final SellerStripeAccountRepository sellers = mock(SellerStripeAccountRepository.class);
+    public final SellerPayoutRepository payouts = mock(SellerPayoutRepository.class);
+
+    private final Map<UUID, StripeChargeTransaction> chargesByOrderId = new ConcurrentHashMap<>();
+    private final Map<String, StripeChargeTransaction> chargesByPaymentIntentId = new ConcurrentHashMap<>();
+    private final Map<UUID, StripeTransferTransaction> transfersById = new ConcurrentHashMap<>();
+    private final Map<UUID, SellerStripeAccount> sellersById = new ConcurrentHashMap<>();
+    private final Map<UUID, SellerPayout> payoutsById = new ConcurrentHashMap<>();
+
+    private record PayoutGroupRow(UUID getSellerId, String getCurrency) implements PayoutGroup {}
+
+    private record PayoutShareRow(UUID getId, UUID getOrderId, BigDecimal getAmount) implements PayoutShare {}
+
+    private record RetryCandidateRow(UUID getId, UUID getOrderId, UUID getSellerId, String getSellerStripeAccountId, BigDecimal getAmount,
+                                     String getCurrency, String getIdempotencyKey, Integer getAttempts, String getSourceTransaction)
+            implements TransferRetryCandidate {}
+
+    private static ChargeStatusView chargeStatusView(StripeChargeTransaction charge) {
+        return new ChargeStatusView(charge.getId(), charge.getOrderId(), charge.getPaymentIntentId(), charge.getStatus(), charge.getStripeChargeId());
+    }
+
+    private static PaymentStatusView statusView(StripeChargeTransaction charge) {
+        List<StripeTransferTransaction> transfers = charge.getTransfers() == null ? List.of() : charge.getTransfers();
+        Map<TransferStatus, Long> counts = transfers.stream().collect(Collectors.groupingBy(StripeTransferTransaction::getStatus, Collectors.counting()));
+        BigDecimal transferred = transfers.stream().filter(transfer -> transfer.getStatus() == TransferStatus.SUCCEEDED)
+                .map(StripeTransferTransaction::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add);
+        return new PaymentStatusView(charge.getOrderId(), charge.getPaymentIntentId(), charge.getStatus(), charge.getAmount(), charge.getCurrency(),
+                charge.getRefunded(), (long) transfers.size(), counts.getOrDefault(TransferStatus.SUCCEEDED, 0L), counts.getOrDefault(TransferStatus.FAILED, 0L),
+                counts.getOrDefault(TransferStatus.QUEUED, 0L), counts.getOrDefault(TransferStatus.REVERSED, 0L), transferred);
+    }
+
+    public InMemoryPaymentRepositories() {
+        lenient().when(charges.save(any(StripeChargeTransaction.class))).thenAnswer(invocation -> {
+            StripeChargeTransaction charge = invocation.getArgument(0);
+            if (charge.getId() == null)
+                charge.setId(UUID.randomUUID());
+            chargesByOrderId.put(charge.getOrderId(), charge);
+            if (charge.getPaymentIntentId() != null)
+                chargesByPaymentIntentId.put(charge.getPaymentIntentId(), charge);
+            return charge;
+        });
+        lenient().when(charges.findByOrderId(any())).thenAnswer(invocation -> Optional.ofNullable(chargesByOrderId.get(invocation.<UUID>getArgument(0))));
+        lenient().when(charges.findByPaymentIntentId(any())).thenAnswer(invocation -> Optional.ofNullable(chargesByPaymentIntentId.get(invocation.<String>getArgument(0))));
+        lenient().when(charges.sumOrderItemsBySeller(any())).thenAnswer(invocation -> chargeById(invocation.getArgument(0))
+                .map(StripeChargeTransaction::getOrderItems)
+                .orElse(List.of())
+                .stream()
+                .collect(Collectors.groupingBy(OrderItem::getSellerId, Collectors.reducing(BigDecimal.ZERO, OrderItem::getAmount, BigDecimal::add)))
+                .entrySet().stream()
+                .map(total -> new SellerTotal(total.getKey(), total.getValue()))
+                .toList());
+        lenient().when(charges.findPaymentStatusViews(any(), any())).thenAnswer(invocation -> {
+            Collection<UUID> orderIds = invocation.getArgument(0);
+            Collection<String> paymentIntentIds = invocation.getArgument(1);
+            return chargesByOrderId.values().stream()
+                    .filter(charge -> orderIds.contains(charge.getOrderId()) || paymentIntentIds.contains(charge.getPaymentIntentId()))
+                    .map(InMemoryPaymentRepositories::statusView)
+                    .toList();
+        });
+        lenient().when(charges.findStatusViewsByPaymentIntentIds(any())).thenAnswer(invocation -> invocation.<Collection<String>>getArgument(0).stream()
+                .map(chargesByPaymentIntentId::get)
+                .filter(Objects::nonNull)
+                .map(InMemoryPaymentRepositories::chargeStatusView)
+                .toList());
+        lenient().when(charges.findStuckStatusViews(any(), any(), any(), any())).thenAnswer(invocation -> chargesByOrderId.values().stream()
+                .filter(charge -> invocation.<Collection<ChargeStatus>>getArgument(0).contains(charge.getStatus())
+                        && charge.getCreated_at() != null && charge.getCreated_at().isBefore(invocation.getArgument(1))
+                        && charge.getId().compareTo(invocation.getArgument(2)) > 0)
+                .sorted(Comparator.comparing(StripeChargeTransaction::getId))
+                .limit(invocation.<Pageable>getArgument(3).getPageSize())
+                .map(InMemoryPaymentRepositories::chargeStatusView)
+                .toList());
+        lenient().when(charges.findDueAuthorizationHolds(any(), any(), any(), any(), any())).thenAnswer(invocation -> chargesByOrderId.values().stream()
+                .filter(charge -> charge.getStatus() == invocation.getArgument(0) && charge.getAuthorizationExpiresAt() != null
+                        && !charge.getAuthorizationExpiresAt().isAfter(invocation.getArgument(1))
+                        && (charge.getAuthorizationExpiresAt().isAfter(invocation.getArgument(2))
+                        || charge.getAuthorizationExpiresAt().equals(invocation.getArgument(2)) && charge.getId().compareTo(invocation.getArgument(3)) > 0))
+                .sorted(Comparator.comparing(StripeChargeTransaction::getAuthorizationExpiresAt).thenComparing(StripeChargeTransaction::getId))
+                .limit(invocation.<Pageable>getArgument(4).getPageSize())
+                .map(charge -> new AuthorizationHoldView(charge.getId(), charge.getOrderId(), charge.getAuthorizationExpiresAt()))
+                .toList());
+        lenient().when(charges.findUnconfirmedIntents(any(), any(), any(), any())).thenAnswer(invocation -> chargesByOrderId.values().stream()
+                .filter(charge -> invocation.<Collection<ChargeStatus>>getArgument(0).contains(charge.getStatus()) && charge.getCreated_at() != null
+                        && !charge.getCreated_at().isBefore(invocation.getArgument(1)) && charge.getCreated_at().isBefore(invocation.getArgument(2)))
+                .sorted(Comparator.comparing(StripeChargeTransaction::getCreated_at).thenComparing(StripeChargeTransaction::getId))
+                .limit(invocation.<Pageable>getArgument(3).getPageSize())
+                .map(charge -> new UnconfirmedIntentView(charge.getId(), charge.getOrderId(), charge.getCreated_at()))
+                .toList());
+        lenient().when(charges.updateStatus(any(), any(), any(), any(), any())).thenAnswer(invocation -> chargeById(invocation.getArgument(0))
+                .filter(charge -> charge.getStatus() == invocation.getArgument(1))
+                .map(charge -> {
+                    charge.setStatus(invocation.getArgument(2));
+                    if (invocation.getArgument(3) != null)
+                        charge.setStripeChargeId(invocation.getArgument(3));
+                    if (charge.getAuthorizationExpiresAt() == null)
+                        charge.setAuthorizationExpiresAt(invocation.getArgument(4));
+                    return 1;
+                }).orElse(0));
+        lenient().when(charges.getReferenceById(any())).thenAnswer(invocation -> chargeById(invocation.getArgument(0)).orElseThrow());
+        lenient().when(charges.compareAndSet(any(), any(), any(), any(), any(), any(), any(), any(), any())).thenAnswer(invocation -> {
+            StripeChargeTransaction charge = chargeById(invocation.getArgument(0)).orElse(null);
+            if (charge == null)
+                return 0;
+            synchronized (charge) {
+                if (!Objects.equals(charge.getCreated_at(), invocation.getArgument(1)) || charge.getStatus() != invocation.getArgument(2))
+                    return 0;
+                charge.setStatus(invocation.getArgument(3));
+                charge.setStripeChargeId(invocation.getArgument(4));
+                charge.setIdempotencyKey(invocation.getArgument(5));
+                charge.setStripeErrorMessage(invocation.getArgument(6));
+                charge.setRefunded(invocation.getArgument(7));
+                charge.setAuthorizationExpiresAt(invocation.getArgument(8));
+                return 1;
+            }
+        });
+
+        lenient().when(transfers.save(any(StripeTransferTransaction.class))).thenAnswer(invocation -> {
+            StripeTransferTransaction transfer = invocation.getArgument(0);
+            if (transfer.getId() == null)
+                transfer.setId(UUID.randomUUID());
+            transfersById.put(transfer.getId(), transfer);
+            StripeChargeTransaction parent = transfer.getChargeTransaction();
+            synchronized (parent) {
+                if (parent.getTransfers() == null)
+                    parent.setTransfers(new ArrayList<>());
+                if (!parent.getTransfers().contains(transfer))
+                    parent.getTransfers().add(transfer);
+            }
+            return transfer;
+        });
+
+        lenient().when(transfers.findStatusViewsByStripeTransferIds(any())).thenAnswer(invocation -> transfersById.values().stream()
+                .filter(transfer -> invocation.<Collection<String>>getArgument(0).contains(transfer.getStripeTransferId()))
+                .map(transfer -> new TransferStatusView(transfer.getId(), transfer.getStripeTransferId(), transfer.getStatus()))
+                .toList());
+        lenient().when(transfers.updateStatus(any(), any())).thenAnswer(invocation -> {
+            StripeTransferTransaction transfer = transfersById.get(invocation.<UUID>getArgument(0));
+            if (transfer == null)
+                return 0;
+            transfer.setStatus(invocation.getArgument(1));
+            return 1;
+        });
+        lenient().when(transfers.findStatusViewsByChargeId(any())).thenAnswer(invocation -> transfersOfCharge(invocation.getArgument(0))
+                .map(transfer -> new TransferStatusView(transfer.getId(), transfer.getStripeTransferId(), transfer.getStatus()))
+                .toList());
+        lenient().when(transfers.findSellerIdsByChargeId(any())).thenAnswer(invocation -> transfersOfCharge(invocation.getArgument(0))
+                .map(StripeTransferTransaction::getSellerId)
+                .toList());
+        lenient().when(transfers.updateStatusByChargeId(any(), any())).thenAnswer(invocation -> {
+            List<StripeTransferTransaction> changed = transfersOfCharge(invocation.getArgument(0))
+                    .filter(transfer -> transfer.getStatus() != invocation.getArgument(1))
+                    .toList();
+            changed.forEach(transfer -> transfer.setStatus(invocation.getArgument(1)));
+            return changed.size();
+        });
+
+        lenient().when(transfers.claimDueFailedTransfers(any(), anyInt())).thenAnswer(invocation -> transfersById.values().stream()
+                .filter(transfer -> transfer.getStatus() == TransferStatus.FAILED && transfer.getNextAttemptAt() != null
+                        && !transfer.getNextAttemptAt().isAfter(invocation.getArgument(0)))
+                .sorted(Comparator.comparing(StripeTransferTransaction::getNextAttemptAt))
+                .limit(invocation.<Integer>getArgument(1))
+                .map(transfer -> (TransferRetryCandidate) new RetryCandidateRow(transfer.getId(), transfer.getChargeTransaction().getOrderId(),
+                        transfer.getSellerId(), transfer.getSellerStripeAccountId(), transfer.getAmount(), transfer.getCurrency(),
+                        transfer.getIdempotencyKey(), transfer.getAttempts(), transfer.getChargeTransaction().getStripeChargeId()))
+                .toList());
+        lenient().when(transfers.postponeRetries(any(), any())).thenAnswer(invocation -> {
+            Collection<UUID> ids = invocation.getArgument(0);
+            ids.forEach(id -> transfersById.get(id).setNextAttemptAt(invocation.getArgument(1)));
+            return ids.size();
+        });
+        lenient().when(transfers.markRetrySucceeded(any(), any(), any(), any(), any())).thenAnswer(invocation -> {
+            StripeTransferTransaction transfer = transfersById.get(invocation.<UUID>getArgument(0));
+            if (transfer.getStatus() != invocation.getArgument(1))
+                return 0;
+            transfer.setStatus(invocation.getArgument(2));
+            transfer.setStripeTransferId(invocation.getArgument(3));
+            transfer.setSellerStripeAccountId(invocation.getArgument(4));
+            transfer.setStripeErrorMessage(null);
+            transfer.setAttempts(transfer.getAttempts() + 1);
+            transfer.setNextAttemptAt(null);
+            return 1;
+        });
+        lenient().when(transfers.markRetryFailed(any(), any(), any(), any(), any())).thenAnswer(invocation -> {
+            StripeTransferTransaction transfer = transfersById.get(invocation.<UUID>getArgument(0));
+            if (transfer.getStatus() != invocation.getArgument(1))
+                return 0;
+            transfer.setSellerStripeAccountId(invocation.getArgument(2));
+            transfer.setStripeErrorMessage(invocation.getArgument(3));
+            transfer.setAttempts(transfer.getAttempts() + 1);
+            transfer.setNextAttemptAt(invocation.getArgument(4));
+            return 1;
+        });
+
+        /// Rows without created_at count as settled, nothing sets audit columns here
+        lenient().when(transfers.findQueuedPayoutGroups(any(), anyInt())).thenAnswer(invocation -> unassignedQueued(invocation.getArgument(0))
+                .map(transfer -> new PayoutGroupRow(transfer.getSellerId(), transfer.getCurrency()))
+                .distinct()
+                .limit(invocation.<Integer>getArgument(1))
+                .toList());
+        lenient().when(transfers.claimQueuedShares(any(), any(), any(), anyInt())).thenAnswer(invocation -> unassignedQueued(invocation.getArgument(2))
+                .filter(transfer -> transfer.getSellerId().equals(invocation.getArgument(0)) && transfer.getCurrency().equals(invocation.getArgument(1)))
+                .limit(invocation.<Integer>getArgument(3))
+                .map(InMemoryPaymentRepositories::share)
+                .toList());
+        lenient().when(transfers.assignPayout(any(), any())).thenAnswer(invocation -> {
+            Collection<UUID> ids = invocation.getArgument(0);
+            ids.forEach(id -> transfersById.get(id).setPayoutId(invocation.getArgument(1)));
+            return ids.size();
+        });
+        lenient().when(transfers.lockQueuedShares(any())).thenAnswer(invocation -> transfersById.values().stream()
+                .filter(transfer -> invocation.getArgument(0).equals(transfer.getPayoutId()) && transfer.getStatus() == TransferStatus.QUEUED)
+                .map(InMemoryPaymentRepositories::share)
+                .toList());
+        lenient().when(transfers.updatePayoutShareStatus(any(), any(), any())).thenAnswer(invocation -> {
+            List<StripeTransferTransaction> shares = transfersById.values().stream()
+                    .filter(transfer -> invocation.getArgument(0).equals(transfer.getPayoutId()) && transfer.getStatus() == invocation.getArgument(1))
+                    .toList();
+            shares.forEach(transfer -> transfer.setStatus(invocation.getArgument(2)));
+            return shares.size();
+        });
+
+        lenient().when(payouts.save(any(SellerPayout.class))).thenAnswer(invocation -> {
+            SellerPayout payout = invocation.getArgument(0);
+            if (payout.getId() == null)
+                payout.setId(UUID.randomUUID());
+            payoutsById.put(payout.getId(), payout);
+            return payout;
+        });
+        lenient().when(payouts.findStripeTransferIdsIn(any())).thenAnswer(invocation -> payoutsById.values().stream()
+                .map(SellerPayout::getStripeTransferId)
+                .filter(invocation.<Collection<String>>getArgument(0)::contains)
+                .toList());
+        lenient().when(payouts.claimDuePayouts(any(), anyInt())).thenAnswer(invocation -> payoutsById.values().stream()
+                .filter(payout -> EnumSet.of(TransferStatus.FAILED, TransferStatus.QUEUED).contains(payout.getStatus())
+                        && payout.getNextAttemptAt() != null && !payout.getNextAttemptAt().isAfter(invocation.getArgument(0)))
+                .limit(invocation.<Integer>getArgument(1))
+                .toList());
+
+        lenient().when(sellers.save(any(SellerStripeAccount.class))).thenAnswer(invocation -> {
+            SellerStripeAccount account = invocation.getArgument(0);
+            sellersById.put(account.getSellerId(), account);
+            return account;
+        });
+        lenient().when(sellers.findBySellerId(any())).thenAnswer(invocation -> sellersById.get(invocation.<UUID>getArgument(0)));
+        lenient().when(sellers.findAllBySellerIdIn(any())).thenAnswer(invocation -> invocation.<Collection<UUID>>getArgument(0).stream()
+                .map(sellersById::get)
+                .filter(Objects::nonNull)
+                .toList());
+    }
+
+    public void addSeller(UUID sellerId, String stripeAccountId) {
+        sellersById.put(sellerId, new SellerStripeAccount(sellerId, stripeAccountId));
+    }
+
+    public Optional<StripeChargeTransaction> charge(UUID orderId) {
+        return Optional.ofNullable(chargesByOrderId.get(orderId));
+    }
+
+    private Optional<StripeChargeTransaction> chargeById(UUID id) {
+        return chargesByOrderId.values().stream().filter(charge -> id.equals(charge.getId())).findFirst();
+    }
+
+    public Collection<StripeTransferTransaction> transfers() {
+        return transfersById.values();
+    }
+
+    public Collection<SellerPayout> payouts() {
+        return payoutsById.values();
+    }
+
+    private Stream<StripeTransferTransaction> transfersOfCharge(UUID chargeId) {
+        return transfersById.values().stream().filter(transfer -> chargeId.equals(transfer.getChargeTransaction().getId()));
+    }
+
+    private Stream<StripeTransferTransaction> unassignedQueued(LocalDateTime settledBefore) {
+        return transfersById.values().stream()
+                .filter(transfer -> transfer.getStatus() == TransferStatus.QUEUED && transfer.getPayoutId() == null
+                        && (transfer.getCreated_at() == null || !transfer.getCreated_at().isAfter(settledBefore)));
+    }
+
+    private static PayoutShare share(StripeTransferTransaction transfer) {
+        return new PayoutShareRow(transfer.getId(), transfer.getChargeTransaction().getOrderId(), transfer.getAmount());
+    }
+}
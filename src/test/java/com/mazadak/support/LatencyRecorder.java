@@ -0,0 +1,69 @@
+package com.mazadak.support;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/// Records per-operation latencies and prints throughput with p50, p99 and p999
+public class LatencyRecorder {
+
+    private final Map<String, Samples> samples = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    public void time(String operation, Operation body) {
+        long start = System.nanoTime();
+        try {
+            body.run();
+            samples.computeIfAbsent(operation, key -> new Samples()).add(System.nanoTime() - start);
+        } catch (Exception e) {
+            errors.computeIfAbsent(operation, key -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    public long errorCount() {
+        return errors.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    public String report(long wallClockNanos) {
+        StringBuilder report = new StringBuilder(String.format("%-34s %9s %7s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms"));
+        new TreeMap<>(samples).forEach((operation, recorded) -> {
+            long[] sorted = recorded.sorted();
+            report.append(String.format("%-34s %9d %7d %10.1f %10.2f %10.2f %10.2f%n",
+                    operation, sorted.length, errors.getOrDefault(operation, new AtomicLong()).get(),
+                    sorted.length / (wallClockNanos / 1e9),
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999)));
+        });
+        return report.toString();
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static final class Samples {
+        private long[] values = new long[1024];
+        private int size;
+
+        synchronized void add(long value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        synchronized long[] sorted() {
+            long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.mazadak.support;
+
+import com.mazadak.payment.datasource.StatementScope;
+import org.junit.jupiter.api.function.ThrowingSupplier;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/// Fails a test when a flow runs more statements than budgeted, listing the SQL it ran. Counts whatever goes through a
+/// StatementCountingDataSource on the calling thread, so the flow needs a real or mocked JDBC DataSource behind it.
+public final class StatementBudget {
+
+    private StatementBudget() {
+    }
+
+    public static void assertAtMost(int budget, String flow, Runnable action) {
+        assertAtMost(budget, flow, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    public static <T> T assertAtMost(int budget, String flow, ThrowingSupplier<T> action) {
+        T result;
+        try (StatementScope scope = StatementScope.open(flow, true)) {
+            try {
+                result = action.get();
+            } catch (Throwable e) {
+                throw e instanceof RuntimeException runtime ? runtime : new IllegalStateException(e);
+            }
+            if (scope.count() > budget)
+                fail(flow + " ran " + scope.count() + " statements, budget is " + budget + ":\n  " + String.join("\n  ", scope.statements()));
+        }
+        return result;
+    }
+}